@@ -0,0 +1,70 @@
+package com.wigl.wigl;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Draws one Wigl frame through its alignment matrix, so frames can be aligned at draw time and
+ * the cached bitmaps stay untouched.
+ */
+public class AlignedFrameDrawable extends Drawable {
+    private final Bitmap bitmap;
+    private final Matrix matrix;
+    private final int width;
+    private final int height;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * @param matrix maps the bitmap onto a {@code width} x {@code height} image
+     */
+    public AlignedFrameDrawable(Bitmap bitmap, Matrix matrix, int width, int height) {
+        this.bitmap = bitmap;
+        this.matrix = matrix;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        canvas.save();
+        canvas.clipRect(bounds);
+        canvas.translate(bounds.left, bounds.top);
+        canvas.scale((float) bounds.width() / width, (float) bounds.height() / height);
+        canvas.drawBitmap(bitmap, matrix, paint);
+        canvas.restore();
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return width;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return height;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        paint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        paint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.OPAQUE;
+    }
+}
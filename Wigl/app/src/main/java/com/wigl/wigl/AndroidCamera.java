@@ -0,0 +1,165 @@
+package com.wigl.wigl;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+
+/**
+ * A {@link CameraDevice} on an {@link android.hardware.Camera}.  The preview goes to an offscreen
+ * texture unless {@link CaptureActivity} gives it a surface to show, so the camera can stay
+ * warm with nothing on screen.  Opened from the engine thread, which has no looper, so the
+ * camera delivers its pictures on the main thread.
+ *
+ * <p>The camera is only touched holding this object's lock, so {@link #detachDisplay()} can
+ * take the preview off a surface from the main thread, whatever the engine is doing.
+ */
+class AndroidCamera implements CameraDevice {
+    private static final String TAG = "AndroidCamera";
+
+    private final int cameraId;
+    private Camera camera;
+    private SurfaceTexture offscreen;
+    private volatile SurfaceHolder display;
+    private volatile int displayOrientation;
+    /*
+     * Guarded by this
+     */
+    private boolean previewing;
+    private boolean capturing;
+
+    AndroidCamera(int cameraId) {
+        this.cameraId = cameraId;
+    }
+
+    /**
+     * Shows the preview on {@code holder}, or offscreen if it is null, from the next
+     * {@link #startPreview()}; see {@link CaptureEngine#restartPreview()}.
+     *
+     * @param orientation clockwise rotation of the preview, in degrees
+     */
+    void setDisplay(SurfaceHolder holder, int orientation) {
+        display = holder;
+        displayOrientation = orientation;
+    }
+
+    /**
+     * Moves the preview offscreen before returning, as a surface being destroyed requires.  A
+     * running preview is restarted on the offscreen texture, so the engine finds the camera as
+     * it left it; one stopped for a shot goes offscreen when it starts again.
+     */
+    synchronized void detachDisplay() {
+        display = null;
+        if (camera == null || capturing) {
+            return;
+        }
+        boolean restart = previewing;
+        try {
+            if (restart) {
+                camera.stopPreview();
+                previewing = false;
+            }
+            camera.setPreviewTexture(offscreen);
+            if (restart) {
+                camera.startPreview();
+                previewing = true;
+            }
+        } catch (IOException | RuntimeException e) {
+            // the next shot fails to fire and the engine opens the camera again
+            Log.w(TAG, "Could not move the preview offscreen: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (camera != null) {
+            return;
+        }
+        try {
+            camera = Camera.open(cameraId);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not open camera " + cameraId, e);
+        }
+        if (camera == null) {
+            throw new IOException("No camera " + cameraId);
+        }
+        if (offscreen == null) {
+            offscreen = new SurfaceTexture(0);
+        }
+    }
+
+    @Override
+    public synchronized void startPreview() throws IOException {
+        SurfaceHolder holder = display;
+        try {
+            if (holder != null && holder.getSurface() != null && holder.getSurface().isValid()) {
+                camera.setPreviewDisplay(holder);
+            } else {
+                camera.setPreviewTexture(offscreen);
+            }
+            camera.setDisplayOrientation(displayOrientation);
+            camera.startPreview();
+            previewing = true;
+        } catch (RuntimeException e) {
+            throw new IOException("Could not start the preview", e);
+        }
+    }
+
+    @Override
+    public synchronized void stopPreview() {
+        previewing = false;
+        try {
+            camera.stopPreview();
+        } catch (RuntimeException e) {
+            // tried to stop a non-existent preview
+        }
+    }
+
+    @Override
+    public synchronized void lockExposure(boolean locked) {
+        try {
+            Camera.Parameters params = camera.getParameters();
+            if (params.isAutoExposureLockSupported()) {
+                params.setAutoExposureLock(locked);
+            }
+            if (params.isAutoWhiteBalanceLockSupported()) {
+                params.setAutoWhiteBalanceLock(locked);
+            }
+            camera.setParameters(params);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not " + (locked ? "lock" : "unlock") + " exposure: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void takePicture(final PictureCallback callback) throws IOException {
+        try {
+            camera.takePicture(null, null, new Camera.PictureCallback() {
+                @Override
+                public void onPictureTaken(byte[] data, Camera camera) {
+                    synchronized (AndroidCamera.this) {
+                        capturing = false;
+                    }
+                    callback.onPictureTaken(data);
+                }
+            });
+        } catch (RuntimeException e) {
+            throw new IOException("Could not take the picture", e);
+        }
+        // the preview stops, and must not be touched until the picture is in
+        previewing = false;
+        capturing = true;
+    }
+
+    @Override
+    public synchronized void close() {
+        previewing = false;
+        capturing = false;
+        if (camera != null) {
+            camera.release();
+            camera = null;
+        }
+    }
+}
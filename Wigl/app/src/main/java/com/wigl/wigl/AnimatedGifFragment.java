@@ -1,20 +1,106 @@
 package com.wigl.wigl;
 
+import android.app.Activity;
 import android.app.Fragment;
+import android.content.ComponentCallbacks2;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.AnimationDrawable;
-import android.graphics.drawable.Drawable;
-import android.media.Image;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Environment;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
+import android.widget.Toast;
+
+import com.wigl.wigl.image.Alignment;
+import com.wigl.wigl.image.BucketPool;
+import com.wigl.wigl.image.FrameCache;
+import com.wigl.wigl.image.FrameKey;
+import com.wigl.wigl.image.FramePipeline;
+import com.wigl.wigl.image.GifExporter;
+import com.wigl.wigl.image.ImageSize;
+import com.wigl.wigl.image.JpegFrame;
+import com.wigl.wigl.image.JpegHeader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class AnimatedGifFragment extends Fragment {
     private static final String TAG = "AnimatedGifFragment";
+    private static final int FRAME_DURATION = 10;
+
+    /**
+     * Exported GIFs are at most this many pixels on their longer side, and show each frame for
+     * this many hundredths of a second.
+     */
+    private static final int GIF_MAX_SIDE = 480;
+    private static final int GIF_FRAME_DELAY = 10;
+
+    /**
+     * Each decode holds a whole picture's worth of JPEG state, so only a couple run at once.
+     */
+    private static final int DECODE_THREADS = 2;
+    private static final ExecutorService decodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS);
+
+    /**
+     * Decoded frames of the last few Wigls, so replaying one costs no decode.  An evicted frame
+     * goes back to the pool to be decoded over, so the round on screen and the one being decoded
+     * are pinned in the cache; a round is unpinned only once its drawable has been replaced.
+     */
+    private static final long CACHE_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    private static final long POOL_BYTES = Runtime.getRuntime().maxMemory() / 16;
+
+    private static final BitmapFrameDecoder decoder =
+            new BitmapFrameDecoder(new BucketPool<>(POOL_BYTES, BitmapFrameDecoder.SIZER));
+    private static final FrameCache<Bitmap> cache = new FrameCache<>(CACHE_BYTES, BitmapFrameDecoder.WEIGHER,
+            new FrameCache.EvictionListener<Bitmap>() {
+                @Override
+                public void onEvicted(FrameKey key, Bitmap value) {
+                    decoder.recycle(value);
+                }
+            });
+    private static final FramePipeline<Bitmap> pipeline = new FramePipeline<>(decoder, decodeExecutor, cache);
+
+    /**
+     * Alignments of recent rounds.  They are tiny and only depend on the pictures, so they
+     * outlive the decoded frames they were computed from.
+     */
+    private static final int MAX_ALIGNMENTS = 32;
+    private static final Map<Long, Alignment> alignments = Collections.synchronizedMap(
+            new LinkedHashMap<Long, Alignment>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Alignment> eldest) {
+                    return size() > MAX_ALIGNMENTS;
+                }
+            });
 
     private View mView;
+    private FramePipeline.Request pending;
+    /*
+     * The rounds this fragment holds pinned in the cache, or null
+     */
+    private Long pendingRound;
+    private Long displayedRound;
+    private int shown;
+    private long shownRound;
+    private List<File> shownFiles;
+    private Alignment shownAlignment;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -22,18 +108,250 @@ public class AnimatedGifFragment extends Fragment {
         return mView;
     }
 
-    public void showWigl(String... paths) {
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        cancelPending();
+        releaseDisplayed();
+    }
+
+    /*
+     * Keep only the most recent rounds when the system runs short.  In the background we are
+     * next to be killed, so stop the animation and drop every frame; its bitmaps may be reused.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            shown++;
+            cancelPending();
+            ((ImageView) mView.findViewById(R.id.ivAnimation)).setImageDrawable(null);
+            releaseDisplayed();
+            cache.trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(cache.getMaxBytes() / 4);
+        }
+        Log.d(TAG, "Trimmed for level " + level + ": " + cache);
+    }
+
+    /**
+     * Decodes the pictures of a round in the background, scaled down to about the size of this
+     * fragment, and starts the animation once all of them are ready; until then the first
+     * picture's EXIF thumbnail stands in.  Frames of a round shown before come from the cache.
+     * Must be called on the UI thread; a newer call replaces one still decoding.
+     */
+    public void showWigl(long roundId, String... paths) {
+        cancelPending();
+        if (paths.length == 0) {
+            return;
+        }
+        List<File> files = new ArrayList<>(paths.length);
+        for (String path : paths) {
+            files.add(new File(path));
+        }
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        int width = mView.getWidth() > 0 ? mView.getWidth() : metrics.widthPixels;
+        int height = mView.getHeight() > 0 ? mView.getHeight() : metrics.heightPixels;
+        Log.d(TAG, "Decoding " + files.size() + " frames for " + width + "x" + height);
+
+        shownRound = roundId;
+        shownFiles = files;
+        shownAlignment = null;
+        final long round = roundId;
+        final Activity activity = getActivity();
+        final long start = System.nanoTime();
+        final int generation = ++shown;
+        showThumbnail(files.get(0), generation);
+        cache.pin(roundId);
+        pendingRound = roundId;
+        pending = pipeline.decode(roundId, files, width, height, new FramePipeline.Callback<Bitmap>() {
+            @Override
+            public void onFrames(final List<Bitmap> frames) {
+                Log.d(TAG, "Decoded " + frames.size() + " frames in " + (System.nanoTime() - start) / 1000000 + " ms, " + cache);
+                Alignment alignment = alignments.get(round);
+                if (alignment == null) {
+                    alignment = WiglAligner.align(frames);
+                    alignments.put(round, alignment);
+                }
+                final Alignment aligned = alignment;
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == shown) {
+                            pending = null;
+                            animate(frames, aligned);
+                            releaseDisplayed();
+                            displayedRound = pendingRound;
+                            pendingRound = null;
+                            Tracer.getInstance().recordSince(round, TraceStage.DISPLAY, start);
+                            ((WiFiDirectActivity) activity).wiglShown(round);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onError(File file, IOException e) {
+                Log.e(TAG, "Could not decode " + file + ": " + e.getMessage());
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == shown) {
+                            cancelPending();
+                        }
+                    }
+                });
+            }
+        });
+        if (pending.isDone()) {
+            // every frame was cached, and the round is on the view already
+            pending = null;
+        }
+    }
+
+    /*
+     * Stops the decode in flight, if any, and lets the frames of its round be evicted
+     */
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel();
+            pending = null;
+        }
+        if (pendingRound != null) {
+            cache.unpin(pendingRound);
+            pendingRound = null;
+        }
+    }
+
+    /*
+     * Only once the animation of a round is off the view may its bitmaps go back to the pool
+     */
+    private void releaseDisplayed() {
+        if (displayedRound != null) {
+            cache.unpin(displayedRound);
+            displayedRound = null;
+        }
+    }
+
+    /*
+     * Queued ahead of the frame decodes.  The thumbnail is sliced out of a mapping of the
+     * picture, so only its own few kilobytes reach the heap.
+     */
+    private void showThumbnail(final File file, final int generation) {
+        final Activity activity = getActivity();
+        decodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap thumbnail;
+                try {
+                    ByteBuffer jpeg = JpegFrame.map(file).getThumbnail();
+                    if (jpeg == null) {
+                        return;
+                    }
+                    byte[] data = new byte[jpeg.remaining()];
+                    jpeg.get(data);
+                    thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length);
+                } catch (IOException e) {
+                    Log.d(TAG, "No thumbnail in " + file + ": " + e.getMessage());
+                    return;
+                }
+                if (thumbnail == null) {
+                    return;
+                }
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the frames may have beaten it, or been cached all along
+                        if (generation == shown && pending != null && !pending.isDone()) {
+                            ((ImageView) mView.findViewById(R.id.ivAnimation)).setImageBitmap(thumbnail);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+     * Every frame is drawn aligned and cropped, at the resolution the reference frame was decoded
+     */
+    private void animate(List<Bitmap> frames, Alignment alignment) {
+        shownAlignment = alignment;
         ImageView animationView = (ImageView) mView.findViewById(R.id.ivAnimation);
         AnimationDrawable animation = new AnimationDrawable();
         animation.setOneShot(false);
-        for (String path : paths) {
-            Log.d(TAG, "Creating drawable from " + path);
-            Drawable drawable = Drawable.createFromPath(path);
-            Log.d(TAG, "Got drawable " + drawable);
-            if (drawable != null)
-                animation.addFrame(drawable, 10);
+        Bitmap reference = frames.get(alignment.getReference());
+        int width = Math.round((float) alignment.getCrop().getWidth() * reference.getWidth() / alignment.getWidth());
+        int height = Math.round((float) alignment.getCrop().getHeight() * reference.getHeight() / alignment.getHeight());
+        for (int i = 0; i < frames.size(); i++) {
+            Bitmap frame = frames.get(i);
+            animation.addFrame(new AlignedFrameDrawable(frame,
+                    WiglAligner.frameMatrix(alignment, i, frame.getWidth(), frame.getHeight(), width, height),
+                    width, height), FRAME_DURATION);
         }
         animationView.setImageDrawable(animation);
         animation.start();
     }
+
+    /**
+     * Writes the Wigl shown last as an animated GIF under the app's pictures directory, in the
+     * background, and offers to share it.
+     */
+    public void exportGif() {
+        final long roundId = shownRound;
+        final Alignment alignment = shownAlignment;
+        final Activity activity = getActivity();
+        if (shownFiles == null) {
+            Toast.makeText(activity, "No Wigl to save yet", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        // the alignment holds for any resolution, so export from the full-size pictures that
+        // have arrived since their previews were shown
+        final List<File> files = new ArrayList<>(shownFiles.size());
+        for (File shown : shownFiles) {
+            files.add(((WiFiDirectActivity) activity).getFullPicture(shown));
+        }
+        File dir = activity.getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        final File gif = new File(dir != null ? dir : activity.getFilesDir(), "wigl-" + roundId + ".gif");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final boolean saved = writeGif(files, alignment, gif);
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!saved) {
+                            Toast.makeText(activity, "Could not save the Wigl", Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        Intent share = new Intent(Intent.ACTION_SEND);
+                        share.setType("image/gif");
+                        share.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(gif));
+                        activity.startActivity(Intent.createChooser(share, "Share Wigl"));
+                    }
+                });
+            }
+        }, "GifExport").start();
+    }
+
+    /*
+     * Called on a background thread; quantization runs on the decode threads
+     */
+    private static boolean writeGif(List<File> files, Alignment alignment, File gif) {
+        long start = System.nanoTime();
+        try {
+            ImageSize first = JpegHeader.readSize(files.get(0));
+            float scale = Math.min(1f, (float) GIF_MAX_SIDE / Math.max(first.getWidth(), first.getHeight()));
+            int width = Math.max(1, Math.round(first.getWidth() * scale));
+            int height = Math.max(1, Math.round(first.getHeight() * scale));
+            new GifExporter(decodeExecutor, DECODE_THREADS).export(new BitmapGifSource(files, alignment), width, height,
+                    GIF_FRAME_DELAY, new BufferedOutputStream(new FileOutputStream(gif)));
+            Log.d(TAG, "Saved " + gif + " (" + width + "x" + height + ", " + gif.length() + " bytes) in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + gif + ": " + e.getMessage());
+            gif.delete();
+            return false;
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package com.wigl.wigl;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.wigl.wigl.image.BucketPool;
+import com.wigl.wigl.image.FrameCache;
+import com.wigl.wigl.image.FrameDecoder;
+import com.wigl.wigl.image.ImageSize;
+import com.wigl.wigl.image.SampleSize;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes Wigl pictures with {@link BitmapFactory}, letting the JPEG decoder downscale while it
+ * decodes so the full-size bitmap is never allocated.  Where the platform allows, the pixels are
+ * decoded into a bitmap from the pool instead of a new one.
+ */
+public class BitmapFrameDecoder implements FrameDecoder<Bitmap> {
+    private static final String TAG = "BitmapFrameDecoder";
+
+    /**
+     * KitKat: from here on {@code inBitmap} may be any mutable bitmap at least as large as the
+     * decoded image, and works with {@code inSampleSize}.  Before, it had to match exactly.
+     */
+    private static final int REUSE_ANY_SIZE_SDK = 19;
+
+    public static final BucketPool.Sizer<Bitmap> SIZER = new BucketPool.Sizer<Bitmap>() {
+        @Override
+        public int capacityOf(Bitmap item) {
+            return byteCount(item);
+        }
+    };
+
+    public static final FrameCache.Weigher<Bitmap> WEIGHER = new FrameCache.Weigher<Bitmap>() {
+        @Override
+        public int weigh(Bitmap value) {
+            return byteCount(value);
+        }
+    };
+
+    private final BucketPool<Bitmap> pool;
+
+    /**
+     * @param pool may be null
+     */
+    public BitmapFrameDecoder(BucketPool<Bitmap> pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public Bitmap decode(File file, ImageSize size, int sampleSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        if (canReuse()) {
+            ImageSize scaled = SampleSize.scaled(size, sampleSize);
+            options.inMutable = true;
+            options.inBitmap = pool.acquire(scaled.getWidth() * scaled.getHeight() * 4);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap could not take these pixels after all
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + file + " (" + size + " / " + sampleSize + ")");
+        }
+        return bitmap;
+    }
+
+    /**
+     * Offers a bitmap that is no longer displayed back to the pool.
+     */
+    public void recycle(Bitmap bitmap) {
+        if (canReuse() && bitmap.isMutable()) {
+            pool.release(bitmap);
+        }
+    }
+
+    private boolean canReuse() {
+        return pool != null && Build.VERSION.SDK_INT >= REUSE_ANY_SIZE_SDK;
+    }
+
+    private static int byteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,68 @@
+package com.wigl.wigl;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.wigl.wigl.image.Affine;
+import com.wigl.wigl.image.Alignment;
+import com.wigl.wigl.image.ArgbImage;
+import com.wigl.wigl.image.GifExporter;
+import com.wigl.wigl.image.ImageOps;
+import com.wigl.wigl.image.ImageSize;
+import com.wigl.wigl.image.JpegHeader;
+import com.wigl.wigl.image.SampleSize;
+import com.wigl.wigl.image.TileExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads Wigl pictures for {@link GifExporter}: each is decoded at the nearest power-of-two scale
+ * above the GIF size, then resampled aligned and cropped, or just scaled, to exactly that size.
+ * Pictures with a different aspect ratio than the GIF are stretched.  The exporter already reads
+ * several frames at once, so each frame is resampled on its own thread.
+ */
+public class BitmapGifSource implements GifExporter.FrameSource {
+    private final List<File> files;
+    private final Alignment alignment;
+
+    /**
+     * @param alignment may be null to export the pictures as they are
+     */
+    public BitmapGifSource(List<File> files, Alignment alignment) {
+        this.files = files;
+        this.alignment = alignment;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return files.size();
+    }
+
+    @Override
+    public ArgbImage readFrame(int index, int width, int height) throws IOException {
+        File file = files.get(index);
+        ImageSize size = JpegHeader.readSize(file);
+        // the crop is blown up to the GIF size, so decode enough pixels for the crop
+        float zoom = alignment == null ? 1 : (float) alignment.getWidth() / alignment.getCrop().getWidth();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = SampleSize.compute(size, (int) Math.ceil(width * zoom), (int) Math.ceil(height * zoom));
+        Bitmap decoded = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (decoded == null) {
+            throw new IOException("Could not decode " + file);
+        }
+        ArgbImage pixels = new ArgbImage(decoded.getWidth(), decoded.getHeight());
+        decoded.getPixels(pixels.getPixels(), 0, pixels.getWidth(), 0, 0, pixels.getWidth(), pixels.getHeight());
+        decoded.recycle();
+        Affine toSource;
+        if (alignment != null) {
+            toSource = alignment.outputToFrame(index, pixels.getWidth(), pixels.getHeight(), width, height);
+        } else {
+            toSource = Affine.scale((double) pixels.getWidth() / width, (double) pixels.getHeight() / height);
+        }
+        ArgbImage frame = new ArgbImage(width, height);
+        ImageOps.warp(pixels, toSource, frame, TileExecutor.serial());
+        return frame;
+    }
+}
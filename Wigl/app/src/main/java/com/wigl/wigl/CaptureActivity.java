@@ -1,154 +1,83 @@
 package com.wigl.wigl;
 
 import android.app.Activity;
-import android.content.Context;
-import android.content.Intent;
 import android.hardware.Camera;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
-import android.support.annotation.NonNull;
-import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
-import android.view.WindowManager;
 import android.widget.FrameLayout;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
-
+/**
+ * Shows what the camera sees, for lining up the shot.  The camera itself belongs to
+ * {@link WiglCamera}: pictures are taken by its engine whether or not this activity is showing,
+ * and the preview moves back offscreen when it goes away.
+ */
 public class CaptureActivity extends Activity {
-    private static final String TAG = "CaptureActivity";
-
     public static final String ACTION_CAPTURE = "com.wigl.wigl.ACTION_CAPTURE";
 
-    public static final String CAPTURE_TIME = "com.wigl.wigl.CAPTURE_TIME";
-
-    private Camera mCamera;
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.capture);
-
-        long captureTime = getIntent().getLongExtra(CAPTURE_TIME, 0);
-        Log.d(TAG, "CaptureActivity.onCreate captureTime: " + captureTime);
-        if (captureTime > 0) {
-            TimerTask task = new CaptureTimer();
-            new Timer().schedule(task, captureTime - System.currentTimeMillis());
-        } else {
-            Log.d(TAG, "Capture time was not set; must be in Capture preview mode");
-        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        WiglCamera.acquire();
 
-        if (safeCameraOpen(0)) {
-            // Create our Preview view and set it as the content of our activity.
-            SurfaceView mPreview = new CameraPreview(this, mCamera);
-            FrameLayout preview = (FrameLayout) findViewById(R.id.camera_preview);
-            preview.addView(mPreview);
+        // Create our Preview view and set it as the content of our activity.
+        SurfaceView mPreview = new CameraPreview();
+        FrameLayout preview = (FrameLayout) findViewById(R.id.camera_preview);
+        preview.addView(mPreview);
 
-            setupCrosshair();
-        }
+        setupCrosshair();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        releaseCameraAndPreview();
-    }
-
-    private boolean safeCameraOpen(int id) {
-        boolean qOpened = false;
-
-        try {
-            mCamera = Camera.open(id);
-            qOpened = (mCamera != null);
-        } catch (Exception e) {
-            Log.e(TAG, "failed to open Camera");
-            e.printStackTrace();
-        }
-
-        return qOpened;
-    }
-
-    private void releaseCameraAndPreview() {
-        if (mCamera != null) {
-            mCamera.release();
-            mCamera = null;
-        }
+        FrameLayout preview = (FrameLayout) findViewById(R.id.camera_preview);
+        preview.removeAllViews();
+        WiglCamera.release();
     }
 
     private class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
-        private SurfaceHolder mHolder;
-        private Camera mCamera;
-
-        public CameraPreview(Context context, Camera camera) {
-            super(context);
-            mCamera = camera;
+        public CameraPreview() {
+            super(CaptureActivity.this);
 
             // Install a SurfaceHolder.Callback so we get notified when the
             // underlying surface is created and destroyed.
-            mHolder = getHolder();
-            mHolder.addCallback(this);
+            getHolder().addCallback(this);
         }
 
         public void surfaceCreated(SurfaceHolder holder) {
             // The Surface has been created, now tell the camera where to draw the preview.
-            try {
-                mCamera.setPreviewDisplay(holder);
-                mCamera.startPreview();
-            } catch (IOException e) {
-                Log.d(TAG, "Error setting camera preview: " + e.getMessage());
-            }
+            WiglCamera.camera.setDisplay(holder, getDisplayOrientation(0));
+            WiglCamera.engine.restartPreview();
         }
 
         public void surfaceDestroyed(SurfaceHolder holder) {
-            // empty. Take care of releasing the Camera preview in your activity.
+            // back to drawing offscreen, so the camera stays warm; the camera must be off the
+            // surface before this returns, so it cannot wait for the engine
+            WiglCamera.camera.detachDisplay();
         }
 
         public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
-            // If your preview can change or rotate, take care of those events here.
-            // Make sure to stop the preview before resizing or reformatting it.
-
-            if (mHolder.getSurface() == null){
+            if (holder.getSurface() == null) {
                 // preview surface does not exist
                 return;
             }
-
-            // stop preview before making changes
-            try {
-                mCamera.stopPreview();
-            } catch (Exception e){
-                // ignore: tried to stop a non-existent preview
-            }
-
-            // set preview size and make any resize, rotate or
-            // reformatting changes here
-            setCameraDisplayOrientation(getWindowManager(), 0, mCamera);
-
-            // start preview with new settings
-            try {
-                mCamera.setPreviewDisplay(mHolder);
-                mCamera.startPreview();
-            } catch (Exception e){
-                Log.d(TAG, "Error starting camera preview: " + e.getMessage());
-            }
+            WiglCamera.camera.setDisplay(holder, getDisplayOrientation(0));
+            WiglCamera.engine.restartPreview();
         }
 
-        public void setCameraDisplayOrientation(WindowManager windowManager, int cameraId, android.hardware.Camera camera) {
-            android.hardware.Camera.CameraInfo info = new android.hardware.Camera.CameraInfo();
-            android.hardware.Camera.getCameraInfo(cameraId, info);
-            int rotation = windowManager.getDefaultDisplay().getRotation();
+        private int getDisplayOrientation(int cameraId) {
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            Camera.getCameraInfo(cameraId, info);
+            int rotation = getWindowManager().getDefaultDisplay().getRotation();
             int degrees = 0;
             switch (rotation) {
                 case Surface.ROTATION_0: degrees = 0; break;
@@ -164,50 +93,9 @@ public class CaptureActivity extends Activity {
             } else {  // back-facing
                 result = (info.orientation - degrees + 360) % 360;
             }
-            camera.setDisplayOrientation(result);
+            return result;
         }
     }
-    
-    private class CaptureTimer extends TimerTask {
-        @Override
-        public void run() {
-            mCamera.takePicture(null, null, getJpeg());
-        }
-    }
-
-    @NonNull
-    private Camera.PictureCallback getJpeg() {
-        return new Camera.PictureCallback() {
-            @Override
-            public void onPictureTaken(byte[] data, Camera camera) {
-                Log.d(TAG, "Picture captured");
-                File pictureFile = new File(getFilesDir(), "wiglPic-" + System.currentTimeMillis());
-                if (pictureFile == null) {
-                    Log.e(TAG, "Error creating media file");
-                    return;
-                }
-
-                FileOutputStream os = null;
-                try {
-                    os = new FileOutputStream(pictureFile);
-                    os.write(data);
-                    Log.d(TAG, "File created: " + pictureFile.getAbsolutePath());
-
-                    Intent resultData = new Intent();
-                    resultData.setData(Uri.fromFile(pictureFile));
-                    setResult(RESULT_OK, resultData);
-                    Log.d(TAG, "Result set");
-                    finish();
-                } catch (FileNotFoundException e) {
-                    Log.d(TAG, "File not found: " + e.getMessage());
-                } catch (IOException e) {
-                    Log.d(TAG, "Error accessing file: " + e.getMessage());
-                } finally {
-                    Utils.close(os);
-                }
-            }
-        };
-    }
 
     private void setupCrosshair() {
 
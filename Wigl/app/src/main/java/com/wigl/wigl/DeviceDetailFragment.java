@@ -16,6 +16,7 @@
 
 package com.wigl.wigl;
 
+import android.app.Activity;
 import android.app.Fragment;
 import android.app.ProgressDialog;
 import android.content.Intent;
@@ -28,6 +29,7 @@ import android.net.wifi.p2p.WifiP2pManager.ConnectionInfoListener;
 import android.nfc.Tag;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -37,8 +39,11 @@ import android.widget.TextView;
 import com.wigl.wigl.DeviceListFragment.DeviceActionListener;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A fragment that manages a particular peer and allows interaction with device i.e. setting up
@@ -47,12 +52,44 @@ import java.io.IOException;
 public class DeviceDetailFragment extends Fragment implements ConnectionInfoListener {
     public static final String IP_SERVER = "192.168.49.1";
     private static final String TAG = "DeviceDetailFragment";
-    private static final long CAPTURE_DELAY = 5000;
+    private static final int SOCKET_TIMEOUT = 5000;
+    /**
+     * How the pictures taken here are named until they are stored or sent.
+     */
+    static final String PICTURE_PREFIX = "wiglPic-";
+    private static final int MAX_MEMBERS = 8;
+    /**
+     * Members send their picture from memory while it is written to disk; false goes through
+     * the file first, to compare the capture-to-owner latency logged by FileTransferClient.
+     */
+    private static final boolean DIRECT_UPLOAD = true;
+    /**
+     * JPEG quality of the previews members send ahead of their pictures; they are scaled to
+     * this screen's longer side, which is all playback needs.
+     */
+    private static final int PREVIEW_QUALITY = 80;
+    /**
+     * Shots of a round, and the time between them, while burst mode is on.
+     */
+    private static final int BURST_SHOTS = 4;
+    private static final long BURST_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
     ProgressDialog progressDialog = null;
     private View mView = null;
     private WifiP2pDevice device;
     private WifiP2pInfo info;
     private long captureTime;
+    private FileTransferServer server;
+    private volatile CaptureBroadcaster broadcaster;
+    private PreviewSpec preview = PreviewSpec.NONE;
+    /**
+     * Owner: the shots each device takes in a round.
+     */
+    private volatile Burst burst = Burst.SINGLE;
+    /**
+     * Owner: how far ahead to set each round's capture time, from how quickly we and the
+     * members were ready for the last rounds.
+     */
+    private final CaptureLeadEstimator leads = new CaptureLeadEstimator();
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
@@ -94,7 +131,7 @@ public class DeviceDetailFragment extends Fragment implements ConnectionInfoList
          * This will become the "capture Wigl" button.  Here, we must send a file to slave devices that will contain:
          *
          * <ul>
-         * <li>capture time (unix timestamp)</li>
+         * <li>capture time (on the group owner's monotonic clock)</li>
          * <li>exposure settings</li>
          * </ul>
          *
@@ -104,79 +141,255 @@ public class DeviceDetailFragment extends Fragment implements ConnectionInfoList
 
                     @Override
                     public void onClick(View v) {
-                        Uri uri = createAndSaveWiglCaptureFile();
+                        // as soon as the owner can get everyone ready
+                        captureTime = System.nanoTime();
+                        Log.d(TAG, "**** captureTime: " + captureTime);
+                        if (info.isGroupOwner) {
+                            startRound(captureTime);
+                            return;
+                        }
 
                         TextView statusText = (TextView) mView.findViewById(R.id.status_text);
-                        statusText.setText("Sending: " + uri);
-                        Log.d(TAG, "Intent: " + uri);
+                        statusText.setText("Sending capture command: " + captureTime);
 
-                        // Transfer file to group owner i.e peer using FileTransferClient.
-                        Intent clientFileTransfer = createFileTransferClientIntent(uri);
+                        // Ask the group owner to start a round; it sends the command back to every member
+                        Intent clientFileTransfer = createFileTransferClientIntent(FileTransferClient.ACTION_SEND_CAPTURE_COMMAND);
+                        clientFileTransfer.putExtra(FileTransferClient.EXTRAS_CAPTURE_TIME, captureTime);
                         getActivity().startService(clientFileTransfer);
-
-                        // For now assume the FileTransferClient is successful.  Maybe in the future have it send back a Result via LocalBroadcastManager
-                        Intent capture = Utils.createCaptureIntent(getActivity(), captureTime);
-                        startActivityForResult(capture, 0);
                     }
                 });
 
         return mView;
     }
 
-    private Uri createAndSaveWiglCaptureFile() {
-        String filename = "wiglM-" + System.currentTimeMillis();
-        File file = new File(getActivity().getFilesDir(), filename);
-        try {
-            FileOutputStream os = new FileOutputStream(file);
-            os.write(getCaptureTimestampAsBytes());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        return Uri.fromFile(file);
-    }
-
-    private byte[] getCaptureTimestampAsBytes() {
-        captureTime = System.currentTimeMillis() + CAPTURE_DELAY;
-        Log.d(TAG, "**** captureTime: " + captureTime);
-        return String.format("%d", captureTime).getBytes();
-    }
-
     @NonNull
-    private Intent createFileTransferClientIntent(Uri uri) {
+    private Intent createFileTransferClientIntent(String action) {
         Intent intent = new Intent(getActivity(), FileTransferClient.class);
-        intent.setAction(FileTransferClient.ACTION_SEND_FILE);
-        intent.putExtra(FileTransferClient.EXTRAS_FILE_PATH, uri.toString());
+        intent.setAction(action);
+        intent.putExtra(FileTransferClient.EXTRAS_DEVICE_ID, getThisDeviceId());
         intent.putExtra(FileTransferClient.EXTRAS_HOST, getServerIp());
         intent.putExtra(FileTransferClient.EXTRAS_PORT, FileTransferServer.PORT);
         return intent;
     }
 
+    /**
+     * @return this device's id for frame headers, or {@link MacAddress#UNKNOWN} before WiFi P2P reported it
+     */
+    private long getThisDeviceId() {
+        DeviceListFragment list = (DeviceListFragment) getFragmentManager().findFragmentById(R.id.frag_list);
+        WifiP2pDevice thisDevice = list == null ? null : list.getDevice();
+        if (thisDevice == null) {
+            return MacAddress.UNKNOWN;
+        }
+        long id = MacAddress.tryParse(thisDevice.deviceAddress);
+        return id < 0 ? MacAddress.UNKNOWN : id;
+    }
+
     private String getServerIp() {
         String local = Utils.getLocalIPAddress();
-        // Trick to find the ip in the file /proc/net/arp
-        String other_mac_fixed = new String(device.deviceAddress).replace("99", "19");
-        String other = Utils.getIpFromMac(other_mac_fixed);
-        return local.equals(IP_SERVER) ? other : IP_SERVER;
+        return local.equals(IP_SERVER) ? Utils.getPeerIp(device.deviceAddress) : IP_SERVER;
     }
 
     /**
-     * Executes after startActivityForResult(CaptureActivity.ACTION_CAPTURE)
+     * Called on the UI thread when a capture command reaches our server.  On the group owner it is
+     * a member asking for a round, given on our clock; on a member it is the owner starting one,
+     * already converted to our clock, with the preview it wants ahead of each picture and the
+     * shots to take.
      */
-    @Override
-    public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        Uri pictureFile = data.getData();
-        Log.i(TAG, "We can see you, " + pictureFile);
+    public void onCaptureCommand(long captureTime, PreviewSpec preview, Burst burst) {
+        if (info != null && info.isGroupOwner) {
+            startRound(captureTime);
+        } else {
+            this.preview = preview;
+            capture(captureTime, burst, DIRECT_UPLOAD);
+        }
+    }
+
+    /**
+     * Owner: whether the rounds we start from now on take a burst of shots instead of one.
+     */
+    public void setBurst(boolean on) {
+        burst = on ? new Burst(BURST_SHOTS, BURST_INTERVAL) : Burst.SINGLE;
+    }
+
+    /**
+     * Sends the capture command to every connected member and starts our own countdown once
+     * enough of them have acknowledged it.  The capture time is {@code earliest}, or later if
+     * the devices have not been ready that quickly in recent rounds.
+     */
+    private void startRound(long earliest) {
+        final TextView statusText = (TextView) mView.findViewById(R.id.status_text);
+        DeviceListFragment list = (DeviceListFragment) getFragmentManager().findFragmentById(R.id.frag_list);
+        broadcaster.setMembers(list.getConnectedPeerIds());
+        final long ownerId = getThisDeviceId();
+        List<Long> everyone = new ArrayList<>(list.getConnectedPeerIds());
+        everyone.add(ownerId);
+        leads.retain(everyone);
+        long lead = leads.getLeadNanos(everyone);
+        final long captureTime = Math.max(earliest, System.nanoTime() + lead);
+        Log.d(TAG, "Capture time " + TimeUnit.NANOSECONDS.toMillis(lead) + " ms ahead");
+        final long commandStart = Tracer.getInstance().now();
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        PreviewSpec preview = new PreviewSpec(Math.max(metrics.widthPixels, metrics.heightPixels), PREVIEW_QUALITY);
+        final Burst burst = this.burst;
+        final CaptureBroadcaster.Round round = broadcaster.broadcast(captureTime, preview, burst);
+        final int quorum = round.getMemberCount() - round.getMemberCount() / 4;
+        statusText.setText("Sending capture command to " + round.getMemberCount() + " members");
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final boolean ready;
+                try {
+                    // a quorum after the capture time is too late for the round
+                    ready = round.awaitQuorum(quorum, captureTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Tracer.getInstance().recordSince(captureTime, TraceStage.COMMAND, commandStart);
+                final Map<Long, Long> latencies = round.getAckLatencies();
+                Log.d(TAG, "Capture command acknowledged by " + latencies.size() + " of " + round.getMemberCount()
+                        + " members: " + latencies + ", failed: " + round.getFailures());
+                Activity activity = getActivity();
+                if (activity == null) {
+                    return;
+                }
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!ready) {
+                            statusText.setText("Only " + latencies.size() + " of " + round.getMemberCount() + " members are ready");
+                            return;
+                        }
+                        List<Long> devices = new ArrayList<>();
+                        devices.add(getThisDeviceId());
+                        devices.addAll(latencies.keySet());
+                        statusText.setText("Capturing with " + latencies.size() + " members");
+                        ((WiFiDirectActivity) getActivity()).startWigl(captureTime, devices, burst);
+                        leads.delivered(ownerId, System.nanoTime() - round.getStartedAt());
+                        capture(captureTime, burst, false);
+                    }
+                });
+                try {
+                    round.awaitAll(CaptureLeadEstimator.DEFAULT_MAX_LEAD_NANOS, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (Map.Entry<Long, Long> e : round.getDeliveryTimes().entrySet()) {
+                    leads.delivered(e.getKey(), e.getValue());
+                }
+            }
+        }, "DeviceDetailFragment-quorum").start();
+    }
+
+    /**
+     * Queues the shots of {@code burst} from {@code captureTime} on the warm camera; each is
+     * saved or handed off, and uploaded by members, while the next is taken.  Only the first
+     * shot is traced, as the round's.
+     *
+     * @param directUpload keep the picture in {@link WiglCamera#pictures} for
+     *                     {@link FileTransferClient} to send from memory, and write it to disk in
+     *                     the background.  Only members upload, so only they ask for this.
+     */
+    private void capture(final long captureTime, Burst burst, final boolean directUpload) {
+        final File dir = getActivity().getFilesDir();
+        WiglCamera.engine.capture(captureTime, burst, new CaptureEngine.Listener() {
+            @Override
+            public void onCaptured(CaptureEngine.Shot shot) {
+                final Tracer tracer = Tracer.getInstance();
+                final int index = shot.getIndex();
+                if (index == 0) {
+                    tracer.record(captureTime, TraceStage.LAUNCH, shot.getCommandAt(), shot.getArmedAt());
+                    tracer.record(captureTime, TraceStage.SHUTTER_WAIT, shot.getArmedAt(), shot.getFiredAt());
+                    tracer.record(captureTime, TraceStage.SHUTTER, shot.getFiredAt(), shot.getCapturedAt());
+                }
+                Log.d(TAG, "Picture captured: " + shot);
+                final File pictureFile = new File(dir, PICTURE_PREFIX + System.currentTimeMillis()
+                        + (index > 0 ? "-" + index : ""));
+
+                final PictureHandoff.Picture picture = directUpload
+                        ? WiglCamera.pictures.submit(shot.getJpeg(), pictureFile, shot.getCapturedAt()) : null;
+                if (picture != null) {
+                    Log.d(TAG, "Handed off " + picture + ", " + WiglCamera.pictures.getQueuedCount() + " queued");
+                } else {
+                    try {
+                        long saveStart = tracer.now();
+                        PictureHandoff.save(shot.getJpeg(), pictureFile);
+                        if (index == 0) {
+                            tracer.recordSince(captureTime, TraceStage.SAVE, saveStart);
+                        }
+                        Log.d(TAG, "File created: " + pictureFile.getAbsolutePath());
+                    } catch (IOException e) {
+                        Log.d(TAG, "Error accessing file: " + e.getMessage());
+                        return;
+                    }
+                }
+                final long lateNanos = shot.getLateNanos();
+                final long capturedAt = shot.getCapturedAt();
+                final Readiness readiness = index == 0 ? shot.getReadiness() : Readiness.NONE;
+                Activity activity = getActivity();
+                if (activity == null) {
+                    return;
+                }
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPictureTaken(Uri.fromFile(pictureFile), captureTime, index, lateNanos, readiness,
+                                capturedAt, picture == null ? WiglCamera.NO_PICTURE : picture.getId());
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(long captureTime, IOException e) {
+                Log.e(TAG, "Could not capture " + captureTime + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Called on the UI thread once each of our pictures for a round is in.
+     *
+     * @param shot      which shot of the round's burst it is, from 0
+     * @param pictureId the id of the picture in {@link WiglCamera#pictures}, or
+     *                  {@link WiglCamera#NO_PICTURE} if it was written to disk first
+     */
+    private void onPictureTaken(Uri pictureFile, long captureTime, int shot, long lateNanos, Readiness readiness,
+                                long capturedAt, long pictureId) {
+        Log.i(TAG, "We can see you, " + pictureFile + ", shutter " + lateNanos + " ns late");
+        if (info == null || getActivity() == null) {
+            return;
+        }
 
         if (!this.info.isGroupOwner) {
             Log.d(TAG, "I'm not the group owner and I'll send the image I just took to group owner");
             // Transfer picture to group owner i.e peer using FileTransferClient.
-            Intent clientFileTransfer = createFileTransferClientIntent(pictureFile);
+            Intent clientFileTransfer = createFileTransferClientIntent(FileTransferClient.ACTION_SEND_FILE);
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_FILE_PATH, pictureFile.toString());
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_CAPTURE_TIME, captureTime);
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_SHOT, shot);
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_LATE_NANOS, lateNanos);
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_READY_NANOS, readiness.getReadyNanos());
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_JITTER_NANOS, readiness.getJitterNanos());
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_PICTURE_ID, pictureId);
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_CAPTURED_AT, capturedAt);
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_PREVIEW_SIDE, preview.getMaxSide());
+            clientFileTransfer.putExtra(FileTransferClient.EXTRAS_PREVIEW_QUALITY, preview.getQuality());
             getActivity().startService(clientFileTransfer);
         } else {
-            ((WiFiDirectActivity) getActivity()).groupOwnerPicture(pictureFile);
+            leads.ready(getThisDeviceId(), readiness);
+            ((WiFiDirectActivity) getActivity()).groupOwnerPicture(getThisDeviceId(), captureTime, shot,
+                    pictureFile);
         }
     }
 
+    /**
+     * Called on a server worker thread when a member reports how quickly it was ready for a round.
+     */
+    public void onMemberReadiness(long deviceId, Readiness readiness) {
+        leads.ready(deviceId, readiness);
+    }
+
     /**
      * This gets executed on both devices after one of them initiates "connect".  In the future,
      * bring up the camera preview activity instead (and possibly the Server)
@@ -197,13 +410,53 @@ public class DeviceDetailFragment extends Fragment implements ConnectionInfoList
 
         // UI visibility
         mView.setVisibility(View.VISIBLE); // brings into view the DeviceDetail panel
-        mView.findViewById(R.id.btn_start_wigl).setVisibility(this.info.isGroupOwner ? View.GONE : View.VISIBLE);
+        mView.findViewById(R.id.btn_start_wigl).setVisibility(View.VISIBLE);
         mView.findViewById(R.id.btn_connect).setVisibility(View.GONE);
 
-        if (this.info.isGroupOwner) {
-            new FileTransferServer(this, mView.findViewById(R.id.status_text)).execute();
+        // connection info is delivered again on every group change; keep the one server we have.
+        // Members run one too, so the owner can reach them with capture commands
+        if (server == null) {
+            server = new FileTransferServer(this, mView.findViewById(R.id.status_text), getThisDeviceId());
+            server.start();
             Log.d(TAG, "FileTransferServer started on background thread");
         }
+        if (this.info.isGroupOwner && broadcaster == null) {
+            broadcaster = new CaptureBroadcaster(new CaptureBroadcaster.Connector() {
+                @Override
+                public TransferClient connect(long deviceId) throws IOException {
+                    String host = Utils.getPeerIp(MacAddress.format(deviceId));
+                    if (host == null) {
+                        throw new IOException("No IP for " + MacAddress.format(deviceId));
+                    }
+                    return TransferClient.connect(host, FileTransferServer.PORT, SOCKET_TIMEOUT, getThisDeviceId());
+                }
+            }, MAX_MEMBERS, CaptureBroadcaster.DEFAULT_CLOCK_SAMPLES);
+        }
+    }
+
+    /**
+     * @return the clock estimate for a member, or null on a member or for an unknown device
+     */
+    public ClockOffsetEstimator getMemberClock(long deviceId) {
+        CaptureBroadcaster b = broadcaster;
+        return b == null ? null : b.getClock(deviceId);
+    }
+
+    @Override
+    public void onDestroy() {
+        stopServer();
+        super.onDestroy();
+    }
+
+    private void stopServer() {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+        if (broadcaster != null) {
+            broadcaster.close();
+            broadcaster = null;
+        }
     }
 
     /**
@@ -220,6 +473,7 @@ public class DeviceDetailFragment extends Fragment implements ConnectionInfoList
      * Clears the UI fields after a disconnect or direct mode disable operation.
      */
     public void resetViews() {
+        stopServer();
         ((TextView) mView.findViewById(R.id.device_address)).setText(R.string.empty);
         ((TextView) mView.findViewById(R.id.device_info)).setText(R.string.empty);
         ((TextView) mView.findViewById(R.id.group_owner)).setText(R.string.empty);
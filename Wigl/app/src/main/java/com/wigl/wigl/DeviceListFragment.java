@@ -82,6 +82,20 @@ public class DeviceListFragment extends ListFragment implements PeerListListener
         return device;
     }
 
+    /**
+     * @return ids of the peers currently connected to our group
+     */
+    public List<Long> getConnectedPeerIds() {
+        List<Long> ids = new ArrayList<>();
+        for (WifiP2pDevice peer : peers) {
+            long id = MacAddress.tryParse(peer.deviceAddress);
+            if (peer.status == WifiP2pDevice.CONNECTED && id >= 0) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
     /**
      * Initiate a connection with the peer.
      */
@@ -2,78 +2,434 @@
 
 package com.wigl.wigl;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.ContentResolver;
-import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 /**
- * A service that process each file transfer request i.e Intent by opening a
- * socket connection with the WiFi Direct Group Owner and writing the file
+ * A service that turns each file transfer request i.e Intent into jobs for the
+ * {@link UploadScheduler} of the WiFi Direct Group Owner: capture commands and reports go ahead
+ * of everything, previews ahead of full-size pictures.  The schedulers keep their connections
+ * open for the life of the process, and the service stops once everything it was asked to send
+ * has been sent or has failed.
  */
-public class FileTransferClient extends IntentService {
+public class FileTransferClient extends Service {
     private static final String TAG = "FileTransferClient";
 
     private static final int SOCKET_TIMEOUT = 5000;
+    private static final int UPLOAD_ATTEMPTS = 5;
+    private static final int RETRY_DELAY = 500;
+    private static final int CLOCK_SAMPLES = 8;
+
+    /**
+     * Picture bytes queued for the owner before another picture waits to be queued; a few
+     * full-size JPEGs.
+     */
+    private static final long MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Kept for as long as the process lives, so samples from earlier capture commands improve the
+     * offset and give the drift.
+     */
+    private static final ClockOffsetEstimator ownerClock = new ClockOffsetEstimator();
+
+    /**
+     * By owner address and our device id, for as long as the process lives.
+     */
+    private static final Map<String, UploadScheduler> schedulers = new HashMap<>();
+
+    /**
+     * Takes pictures off {@link WiglCamera#pictures}, encodes their previews and queues
+     * them in capture order, waiting while the owner's scheduler is full.
+     */
+    private static final ExecutorService admission = Executors.newSingleThreadExecutor();
+
+    private final Tracer tracer = Tracer.getInstance();
     public static final String ACTION_SEND_FILE = "com.wigl.wigl.SEND_FILE";
+    public static final String ACTION_SEND_CAPTURE_COMMAND = "com.wigl.wigl.SEND_CAPTURE_COMMAND";
     public static final String EXTRAS_FILE_PATH = "file_url";
+    public static final String EXTRAS_CAPTURE_TIME = "capture_time";
+    public static final String EXTRAS_LATE_NANOS = "late_nanos";
+    public static final String EXTRAS_READY_NANOS = "ready_nanos";
+    public static final String EXTRAS_JITTER_NANOS = "jitter_nanos";
+    public static final String EXTRAS_PICTURE_ID = "picture_id";
+    public static final String EXTRAS_SHOT = "shot";
+    public static final String EXTRAS_CAPTURED_AT = "captured_at";
+    public static final String EXTRAS_PREVIEW_SIDE = "preview_side";
+    public static final String EXTRAS_PREVIEW_QUALITY = "preview_quality";
+    public static final String EXTRAS_DEVICE_ID = "device_id";
     public static final String EXTRAS_HOST = "go_host";
     public static final String EXTRAS_PORT = "go_port";
 
-    public FileTransferClient(String name) {
-        super(name);
+    private Handler handler;
+    private int pending;
+    private int lastStartId;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        handler = new Handler();
     }
 
-    public FileTransferClient() {
-        super("FileTransferClient");
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     /*
-     * After identifying a file, this is going to send that local file to WiFi P2P client
+     * After identifying a file or capture command, this is going to queue it for the WiFi P2P group owner
      */
     @Override
-    protected void onHandleIntent(Intent intent) {
-        Context context = getApplicationContext();
-        if (intent.getAction().equals(ACTION_SEND_FILE)) {
-            String fileUri = intent.getExtras().getString(EXTRAS_FILE_PATH);
-            String host = intent.getExtras().getString(EXTRAS_HOST);
-            int port = intent.getExtras().getInt(EXTRAS_PORT);
-
-            Socket socket = new Socket();
-            OutputStream os = null;
-            InputStream is = null;
-            try {
-                Log.d(TAG, "Opening client socket");
-                socket.bind(null);
-                socket.connect((new InetSocketAddress(host, port)), SOCKET_TIMEOUT);
-                Log.d(TAG, "Client connected: " + socket.isConnected());
-
-                os = socket.getOutputStream();
-                ContentResolver cr = context.getContentResolver();
-                is = cr.openInputStream(Uri.parse(fileUri));
-                Utils.copyFile(is, os);
-                Log.d(TAG, "Client data written");
-            } catch (IOException e) {
-                Log.e(TAG, e.getMessage());
-            } finally {
-                if (socket != null) {
-                    if (socket.isConnected()) {
-                        Utils.close(socket);
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        lastStartId = startId;
+        String action = intent == null ? null : intent.getAction();
+        if (!ACTION_SEND_FILE.equals(action) && !ACTION_SEND_CAPTURE_COMMAND.equals(action)) {
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+        final Bundle extras = intent.getExtras();
+        final String host = extras.getString(EXTRAS_HOST);
+        final UploadScheduler scheduler = getScheduler(host, extras.getInt(EXTRAS_PORT),
+                extras.getLong(EXTRAS_DEVICE_ID, MacAddress.UNKNOWN));
+        pending++;
+
+        if (ACTION_SEND_FILE.equals(action)) {
+            admission.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        queuePicture(scheduler, extras);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not queue picture: " + e.getMessage());
+                        finished();
                     }
                 }
+            });
+            return START_NOT_STICKY;
+        }
+
+        final long captureTime = extras.getLong(EXTRAS_CAPTURE_TIME);
+        try {
+            scheduler.submit(new UploadScheduler.Job(UploadScheduler.Priority.CONTROL, 0) {
+                @Override
+                protected void send(UploadScheduler.Link link) throws IOException {
+                    TransferClient client = link.client();
+                    client.syncClock(ownerClock, CLOCK_SAMPLES);
+                    Log.d(TAG, "Owner clock offset " + ownerClock.getOffsetNanos(System.nanoTime()) + " ns, drift "
+                            + ownerClock.getDriftPpm() + " ppm, best round trip " + ownerClock.getBestRoundTripNanos() + " ns");
+                    client.sendCaptureCommand(ownerClock.toRemote(captureTime));
+                }
+
+                @Override
+                protected void onSent() {
+                    Log.d(TAG, "Capture command acknowledged");
+                    finished();
+                }
+
+                @Override
+                protected void onFailed(IOException e) {
+                    Log.e(TAG, "Capture command failed (" + FailureCause.of(e) + "): " + e.getMessage());
+                    finished();
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Could not queue capture command: " + e.getMessage());
+            finished();
+        }
+        return START_NOT_STICKY;
+    }
+
+    private static synchronized UploadScheduler getScheduler(final String host, final int port, final long deviceId) {
+        String key = host + ":" + port + "/" + deviceId;
+        UploadScheduler scheduler = schedulers.get(key);
+        if (scheduler == null) {
+            scheduler = new UploadScheduler(new PictureUploader.Connector() {
+                @Override
+                public TransferClient connect() throws IOException {
+                    Log.d(TAG, "Opening client socket");
+                    return TransferClient.connect(host, port, SOCKET_TIMEOUT, deviceId);
+                }
+            }, TransferMetrics.getInstance(), host, MAX_QUEUED_BYTES, UPLOAD_ATTEMPTS, RETRY_DELAY, SOCKET_TIMEOUT);
+            schedulers.put(key, scheduler);
+        }
+        return scheduler;
+    }
 
-                Utils.close(is);
-                Utils.close(os);
+    /*
+     * Called from any thread once a request has been sent or has failed
+     */
+    private void finished() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                pending--;
+                stopIfIdle();
             }
+        });
+    }
+
+    private void stopIfIdle() {
+        if (pending == 0) {
+            stopSelf(lastStartId);
+        }
+    }
+
+    /*
+     * Queues the shutter jitter report, then the preview if the owner asked for one, then the
+     * picture from memory if it was handed off and it is still there, or else from
+     * its file.  What we traced of the round follows once the picture is in.  Later shots of a
+     * burst only send their preview and picture, marked with the shot; the round's report and
+     * trace are the first shot's.
+     */
+    private void queuePicture(UploadScheduler scheduler, Bundle extras) throws IOException {
+        final long round = extras.getLong(EXTRAS_CAPTURE_TIME);
+        final int shot = extras.getInt(EXTRAS_SHOT, 0);
+        final long lateNanos = extras.getLong(EXTRAS_LATE_NANOS);
+        final Readiness readiness = new Readiness(extras.getLong(EXTRAS_READY_NANOS, -1),
+                extras.getLong(EXTRAS_JITTER_NANOS, -1));
+        final long capturedAt = extras.getLong(EXTRAS_CAPTURED_AT, System.nanoTime());
+        long pictureId = extras.getLong(EXTRAS_PICTURE_ID, WiglCamera.NO_PICTURE);
+        Uri uri = Uri.parse(extras.getString(EXTRAS_FILE_PATH));
+        int previewSide = extras.getInt(EXTRAS_PREVIEW_SIDE);
+        PreviewSpec preview = previewSide > 0
+                ? new PreviewSpec(previewSide, extras.getInt(EXTRAS_PREVIEW_QUALITY)) : PreviewSpec.NONE;
+
+        if (shot == 0) {
+            scheduler.submit(new UploadScheduler.Job(UploadScheduler.Priority.CONTROL, 0) {
+                @Override
+                protected void send(UploadScheduler.Link link) throws IOException {
+                    link.client().sendCaptureReport(round, lateNanos, readiness);
+                }
+
+                @Override
+                protected void onFailed(IOException e) {
+                    Log.e(TAG, "Capture report failed (" + FailureCause.of(e) + "): " + e.getMessage());
+                }
+            });
+        }
 
+        PictureHandoff.Picture picture = pictureId == WiglCamera.NO_PICTURE ? null : WiglCamera.pictures.take(pictureId);
+        byte[] data = picture != null ? picture.getData() : null;
+        boolean previewQueued = false;
+        if (preview.isRequested()) {
+            long start = tracer.now();
+            byte[] jpeg = encodePreview(data, uri.getPath(), preview);
+            if (shot == 0) {
+                tracer.recordSince(round, TraceStage.PREVIEW, start);
+            }
+            if (jpeg != null) {
+                scheduler.submit(new PreviewJob(round, shot, jpeg, preview, capturedAt));
+                previewQueued = true;
+            }
         }
+        long length = data != null ? data.length : new File(uri.getPath()).length();
+        scheduler.submit(new PictureJob(scheduler, round, shot, data, uri, length, previewQueued, capturedAt));
+    }
+
+    private final class PreviewJob extends UploadScheduler.Job {
+        private final long round;
+        private final int shot;
+        private final PreviewSpec preview;
+        private final long capturedAt;
+        private byte[] jpeg;
+
+        PreviewJob(long round, int shot, byte[] jpeg, PreviewSpec preview, long capturedAt) {
+            super(UploadScheduler.Priority.PREVIEW, jpeg.length);
+            this.round = round;
+            this.shot = shot;
+            this.jpeg = jpeg;
+            this.preview = preview;
+            this.capturedAt = capturedAt;
+        }
+
+        @Override
+        protected void onStarted(long waitNanos) {
+            if (shot == 0) {
+                long now = tracer.now();
+                tracer.record(round, TraceStage.QUEUE, now - waitNanos, now);
+            }
+        }
+
+        @Override
+        protected void send(UploadScheduler.Link link) throws IOException {
+            long start = tracer.now();
+            TransferStats stats = link.upload(PictureSource.of(jpeg), round,
+                    FrameHeader.FLAG_PREVIEW | FrameHeader.shotFlags(shot));
+            jpeg = null;
+            if (shot == 0) {
+                tracer.recordSince(round, TraceStage.UPLOAD, start);
+            }
+            Log.d(TAG, "Sent " + preview + ": " + stats + ", at the owner "
+                    + (System.nanoTime() - capturedAt) / 1000000 + " ms after capture");
+        }
+
+        @Override
+        protected void onFailed(IOException e) {
+            jpeg = null;
+            Log.e(TAG, "Preview failed (" + FailureCause.of(e) + "): " + e.getMessage());
+        }
+    }
+
+    /*
+     * Drops the picture's bytes as soon as the owner has them, and its file once the owner has
+     * acknowledged it, then queues the trace report.  A picture that could not be sent keeps its
+     * file until the session store sweeps it away.
+     */
+    private final class PictureJob extends UploadScheduler.Job {
+        private final UploadScheduler scheduler;
+        private final long round;
+        private final int shot;
+        private final Uri uri;
+        private final boolean afterPreview;
+        private final long capturedAt;
+        private byte[] data;
+
+        PictureJob(UploadScheduler scheduler, long round, int shot, byte[] data, Uri uri, long length,
+                   boolean afterPreview, long capturedAt) {
+            super(UploadScheduler.Priority.PICTURE, length);
+            this.scheduler = scheduler;
+            this.round = round;
+            this.shot = shot;
+            this.data = data;
+            this.uri = uri;
+            this.afterPreview = afterPreview;
+            this.capturedAt = capturedAt;
+        }
+
+        @Override
+        protected void onStarted(long waitNanos) {
+            if (shot == 0) {
+                long now = tracer.now();
+                tracer.record(round, TraceStage.QUEUE, now - waitNanos, now);
+            }
+        }
+
+        @Override
+        protected void send(UploadScheduler.Link link) throws IOException {
+            long start = tracer.now();
+            boolean fromMemory = data != null;
+            TransferStats stats;
+            if (fromMemory) {
+                stats = link.upload(PictureSource.of(data), round, FrameHeader.shotFlags(shot));
+                data = null;
+            } else {
+                ContentResolver cr = getApplicationContext().getContentResolver();
+                ParcelFileDescriptor pfd = cr.openFileDescriptor(uri, "r");
+                FileInputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+                try {
+                    stats = link.upload(PictureSource.of(is.getChannel()), round, FrameHeader.shotFlags(shot));
+                } finally {
+                    Utils.close(is);
+                }
+            }
+            if (shot == 0) {
+                tracer.recordSince(round, afterPreview ? TraceStage.UPLOAD_FULL : TraceStage.UPLOAD, start);
+            }
+            Log.d(TAG, "Sent picture from " + (fromMemory ? "memory" : "disk") + ": " + stats + ", at the owner "
+                    + (System.nanoTime() - capturedAt) / 1000000 + " ms after capture");
+        }
+
+        @Override
+        protected void onSent() {
+            WiglCamera.pictures.discard(new File(uri.getPath()));
+            sendTraceReport();
+        }
+
+        @Override
+        protected void onFailed(IOException e) {
+            data = null;
+            Log.e(TAG, "Upload failed (" + FailureCause.of(e) + "): " + e.getMessage());
+            sendTraceReport();
+        }
+
+        /*
+         * Sends the owner what we traced of the round, once our part of it is done
+         */
+        private void sendTraceReport() {
+            if (shot > 0) {
+                finished();
+                return;
+            }
+            final List<TraceSpan> spans = tracer.getSpans(round);
+            try {
+                scheduler.submit(new UploadScheduler.Job(UploadScheduler.Priority.CONTROL, 0) {
+                    @Override
+                    protected void send(UploadScheduler.Link link) throws IOException {
+                        link.client().sendTraceReport(spans);
+                    }
+
+                    @Override
+                    protected void onSent() {
+                        finished();
+                    }
+
+                    @Override
+                    protected void onFailed(IOException e) {
+                        Log.e(TAG, "Trace report failed (" + FailureCause.of(e) + "): " + e.getMessage());
+                        finished();
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Could not queue trace report: " + e.getMessage());
+                finished();
+            }
+        }
+    }
+
+    /*
+     * Decodes the picture subsampled to about the preview size, scales it down the rest of the
+     * way and encodes it.  Returns null if the picture cannot be decoded; the owner then shows
+     * the full-size picture once it arrives.
+     */
+    private static byte[] encodePreview(byte[] data, String path, PreviewSpec preview) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(data, path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(TAG, "Cannot read the size of " + path + " for its preview");
+            return null;
+        }
+        float scale = preview.scale(options.outWidth, options.outHeight);
+        int width = Math.max(1, Math.round(options.outWidth * scale));
+        int height = Math.max(1, Math.round(options.outHeight * scale));
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = preview.sampleSize(options.outWidth, options.outHeight);
+        Bitmap bitmap = decode(data, path, options);
+        if (bitmap == null) {
+            Log.w(TAG, "Cannot decode " + path + " for its preview");
+            return null;
+        }
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 4);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, preview.getQuality(), out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private static Bitmap decode(byte[] data, String path, BitmapFactory.Options options) {
+        return data != null ? BitmapFactory.decodeByteArray(data, 0, data.length, options)
+                : BitmapFactory.decodeFile(path, options);
     }
-}
\ No newline at end of file
+}
@@ -2,147 +2,131 @@ package com.wigl.wigl;
 
 import android.app.Activity;
 import android.app.Fragment;
-import android.content.ContentResolver;
 import android.content.Intent;
-import android.net.Uri;
-import android.os.AsyncTask;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * A simple server socket that accepts connection and writes some data on the stream.
+ * Runs this device's {@link TransferServer} for as long as the group exists.  On the group owner
+ * it receives round requests, capture reports and pictures from members; on a member it receives
+ * the owner's capture commands.
  */
-public class FileTransferServer extends AsyncTask<Void, Void, String> {
+public class FileTransferServer implements TransferServer.Listener {
     public static final int PORT = 8988;
     private static final String TAG = "FileTransferServer";
+    /**
+     * Members keep a connection open for each {@link UploadScheduler.Priority}.
+     */
+    private static final int MAX_CLIENTS = 24;
+    /**
+     * How the files received from members are named until they go into the session store.
+     */
+    static final String RECEIVED_PREFIX = "wiglS-";
     private final Fragment fragment;
     private final Activity activity;
     private final TextView statusText;
+    private final TransferServer server;
 
-    public FileTransferServer(Fragment fragment, View statusText) {
+    public FileTransferServer(Fragment fragment, View statusText, long deviceId) {
         this.fragment = fragment;
         this.activity = fragment.getActivity();
         this.statusText = (TextView) statusText;
-    }
-
-    @Override
-    protected void onPreExecute() {
-        Log.d(TAG, "Opening a ServerSocket");
-        statusText.setText("Opening a ServerSocket");
+        this.server = new TransferServer(PORT, deviceId, activity.getFilesDir(), RECEIVED_PREFIX, MAX_CLIENTS, this);
     }
 
     /**
-     * Accept incoming captureTime file from Socket, save to local disk
+     * Binds the server socket once; members may then connect and send files until {@link #stop()}.
      */
-    @Override
-    protected String doInBackground(Void... params) {
-        ServerSocket serverSocket = null;
-        Socket client = null;
-        InputStream is = null;
-        OutputStream os = null;
-        String result = null;
+    public void start() {
+        Log.d(TAG, "Opening a ServerSocket");
+        statusText.setText("Opening a ServerSocket");
         try {
-            Log.d(TAG, "Opening server socket");
-            serverSocket = new ServerSocket(PORT);
-            client = serverSocket.accept();
-            Log.d(TAG, "Client connection open");
-            final File f = new File(activity.getFilesDir(), "wiglS-" + System.currentTimeMillis());
-
-            is = client.getInputStream();
-            os = new FileOutputStream(f);
-            Utils.copyFile(is, os);
-            Log.d(TAG, "File copied");
-            result = f.getAbsolutePath();
+            server.start();
         } catch (IOException e) {
-            Log.e(TAG, e.getMessage());
-        } finally {
-            Utils.close(serverSocket);
-            Utils.close(client);
-            Utils.close(is);
-            Utils.close(os);
-            return result;
+            Log.e(TAG, "Could not open ServerSocket: " + e.getMessage());
+            statusText.setText("Could not open ServerSocket");
         }
     }
 
+    public void stop() {
+        Log.d(TAG, "Closing ServerSocket");
+        server.stop();
+    }
+
     /*
-     * Once a file has been asynchronously transferred, do this
+     * Called on a server worker thread when a member asks for a Wigl, or the owner starts one
      */
     @Override
-    protected void onPostExecute(String result) {
-        if (result != null) {
-            Log.d(TAG, "File on disk: " + result);
-            statusText.setText("File copied: " + result);
-
-            // read the contents of the file for the Wigl capture timestamp
-            // start CaptureFragment with capture at specified time
-            long captureTime = getCaptureTime(result);
-            if (captureTime != 0) {
-                Intent intent = Utils.createCaptureIntent(activity, captureTime);
-                fragment.startActivityForResult(intent, 0);
-                Log.d(TAG, "Started CaptureActivity");
-
-                // TODO: delete file
-            } else {
-                Log.d(TAG, "Received picture file");
-                ((WiFiDirectActivity) activity).groupMemberPicture(result);
-                ((WiFiDirectActivity) activity).showWigl();
+    public void onCaptureCommand(FrameHeader header, final long captureTime, final PreviewSpec preview,
+                                 final Burst burst) {
+        Log.d(TAG, "**** Timestamp: " + captureTime + (burst.isBurst() ? ", " + burst : "") + " from " + header);
+        final long receivedAt = Tracer.getInstance().now();
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Tracer.getInstance().recordSince(captureTime, TraceStage.COMMAND_RECEIVED, receivedAt);
+                statusText.setText("Capture command received: " + captureTime);
+                ((DeviceDetailFragment) fragment).onCaptureCommand(captureTime, preview, burst);
             }
-        }
+        });
     }
 
-    private long getCaptureTime(String filename) {
-        Uri uri = Uri.parse("file://" + filename);
-        ContentResolver cr = activity.getContentResolver();
-        InputStream is = null;
-        ByteArrayOutputStream byteBuffer = null;
-        long captureTime = 0;
-        try {
-            is = cr.openInputStream(uri);
-            byteBuffer = new ByteArrayOutputStream();
-
-            // this is storage overwritten on each iteration with bytes
-            int bufferSize = 1024;
-            byte[] buffer = new byte[bufferSize];
+    /*
+     * Called on a server worker thread when a member reports how late its shutter fired and how
+     * quickly it was ready
+     */
+    @Override
+    public void onCaptureReport(FrameHeader header, long captureTime, long lateNanos, Readiness readiness) {
+        ClockOffsetEstimator clock = ((DeviceDetailFragment) fragment).getMemberClock(header.getDeviceId());
+        long roundTime = clock == null || !clock.hasEstimate() ? captureTime : clock.toLocal(captureTime);
+        Log.d(TAG, "Shutter of " + MacAddress.format(header.getDeviceId()) + " fired " + lateNanos + " ns late for "
+                + roundTime + ", " + readiness);
+        ((DeviceDetailFragment) fragment).onMemberReadiness(header.getDeviceId(), readiness);
+    }
 
-            // we need to know how may bytes were read to write them to the byteBuffer
-            int len;
-            while ((len = is.read(buffer)) != -1) {
-                byteBuffer.write(buffer, 0, len);
-            }
+    /*
+     * Called on a server worker thread when a member sends the spans it traced
+     */
+    @Override
+    public void onTraceReport(FrameHeader header, List<TraceSpan> spans) {
+        ClockOffsetEstimator clock = ((DeviceDetailFragment) fragment).getMemberClock(header.getDeviceId());
+        ((WiFiDirectActivity) activity).addMemberTrace(header.getDeviceId(), spans, clock);
+    }
 
-            // and then we can return your byte array.
-            byte[] bytes = byteBuffer.toByteArray();
-            byteBuffer.close();
-            String timestamp = new String(bytes);
-            captureTime = Long.parseLong(timestamp);
-            Log.d(TAG, "**** Timestamp: " + captureTime);
-        } catch (IOException e) {
-            Log.e(TAG, "Error processing timestamp" + e.getStackTrace());
-        } finally {
-            try {
-                if (is != null)
-                    is.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing InputStream" + e.getMessage());
+    /*
+     * Called on a server worker thread once a picture has been completely received.  The member
+     * names its round on its own clock; the picture and its trace go to our round for it, which
+     * need not be the current one.
+     */
+    @Override
+    public void onPictureReceived(final FrameHeader header, long memberRound, final File file,
+                                  final TransferStats stats) {
+        ClockOffsetEstimator clock = ((DeviceDetailFragment) fragment).getMemberClock(header.getDeviceId());
+        final long round = ((WiFiDirectActivity) activity).resolveRound(memberRound, clock);
+        Log.d(TAG, "Received picture file " + file + " from " + header + " for round " + round + ": " + stats);
+        if (round != 0) {
+            long end = Tracer.getInstance().now();
+            ((WiFiDirectActivity) activity).addTrace(header.getDeviceId(), Collections.singletonList(
+                    new TraceSpan(round, TraceStage.RECEIVE, end - stats.getElapsedNanos(), end)));
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                statusText.setText("File copied: " + file.getAbsolutePath() + ", " + stats);
+                ((WiFiDirectActivity) activity).groupMemberPicture(header.getDeviceId(), round, header.getShot(),
+                        file.getAbsolutePath(), (header.getFlags() & FrameHeader.FLAG_PREVIEW) != 0);
             }
+        });
+    }
 
-            try {
-                if (byteBuffer != null)
-                    byteBuffer.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing ByteArrayOutputStream" + e.getMessage());
-            }
-            return captureTime;
-        }
+    @Override
+    public void onError(IOException e) {
+        Log.e(TAG, "Connection failed (" + FailureCause.of(e) + "): " + e.getMessage());
     }
-}
\ No newline at end of file
+}
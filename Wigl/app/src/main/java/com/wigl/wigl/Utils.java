@@ -1,8 +1,6 @@
 package com.wigl.wigl;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,43 +18,28 @@ import android.util.Log;
 public class Utils {
     private final static String TAG = "Utils";
 
-    private final static String p2pInt = "p2p-p2p0";
+    private final static long ARP_CACHE_TTL = 5000;
+
+    private final static ArpResolver arpResolver = new ArpResolver(NetUtils.ARP_PATH, ARP_CACHE_TTL);
 
     public static String getIpFromMac(String MAC) {
-		/*
-		 * method modified from:
-		 * 
-		 * http://www.flattermann.net/2011/02/android-howto-find-the-hardware-mac-address-of-a-remote-host/
-		 * 
-		 * */
-        BufferedReader br = null;
-        try {
-            br = new BufferedReader(new FileReader("/proc/net/arp"));
-            String line;
-            while ((line = br.readLine()) != null) {
+        return arpResolver.getIpFromMac(MAC);
+    }
 
-                String[] splitted = line.split(" +");
-                if (splitted != null && splitted.length >= 4) {
-                    // Basic sanity check
-                    String device = splitted[5];
-                    if (device.matches(".*" +p2pInt+ ".*")){
-                        String mac = splitted[3];
-                        if (mac.matches(MAC)) {
-                            return splitted[0];
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                br.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return null;
+    /**
+     * @return the IP of a group peer from its WiFi P2P device address, or null if it is not in
+     *         the ARP table yet
+     */
+    public static String getPeerIp(String deviceAddress) {
+        // Trick to find the ip in the file /proc/net/arp
+        return getIpFromMac(deviceAddress.replace("99", "19"));
+    }
+
+    /**
+     * Forgets the cached ARP table; called whenever the WiFi P2P group changes.
+     */
+    public static void invalidateArpCache() {
+        arpResolver.invalidate();
     }
 
 
@@ -74,9 +57,9 @@ public class Utils {
                     InetAddress inetAddress = enumIpAddr.nextElement();
 
                     String iface = intf.getName();
-                    if(iface.matches(".*" +p2pInt+ ".*")){
+                    if(iface.matches(".*" + NetUtils.P2P_INTERFACE + ".*")){
                         if (inetAddress instanceof Inet4Address) { // fix for Galaxy Nexus. IPv4 is easy to use :-)
-                            return getDottedDecimalIP(inetAddress.getAddress());
+                            return NetUtils.getDottedDecimalIP(inetAddress.getAddress());
                         }
                     }
                 }
@@ -89,43 +72,27 @@ public class Utils {
         return null;
     }
 
-    private static String getDottedDecimalIP(byte[] ipAddr) {
-		/*
-		 * ripped from:
-		 * 
-		 * http://stackoverflow.com/questions/10053385/how-to-get-each-devices-ip-address-in-wifi-direct-scenario
-		 * 
-		 * */
-        String ipAddrStr = "";
-        for (int i=0; i<ipAddr.length; i++) {
-            if (i > 0) {
-                ipAddrStr += ".";
-            }
-            ipAddrStr += ipAddr[i]&0xFF;
-        }
-        return ipAddrStr;
-    }
-
+    /**
+     * Copies and closes both streams.  File streams are copied by the kernel through their
+     * channels, anything else through a pooled direct buffer; see {@link TransferEngine}.
+     */
     public static boolean copyFile(InputStream inputStream, OutputStream out) {
-        byte buf[] = new byte[1024];
-        int len;
         try {
-            while ((len = inputStream.read(buf)) != -1) {
-                out.write(buf, 0, len);
-            }
-            out.close();
-            inputStream.close();
+            TransferStats stats = TransferEngine.getInstance().copy(inputStream, out);
+            Log.d(TAG, "Copied " + stats);
         } catch (IOException e) {
             Log.d(TAG, e.toString());
             return false;
+        } finally {
+            close(out);
+            close(inputStream);
         }
         return true;
     }
 
-    public static Intent createCaptureIntent(Context context, long captureTime) {
+    public static Intent createViewfinderIntent(Context context) {
         Intent intent = new Intent(context, CaptureActivity.class);
         intent.setAction(CaptureActivity.ACTION_CAPTURE);
-        intent.putExtra(CaptureActivity.CAPTURE_TIME, captureTime);
         return intent;
     }
 
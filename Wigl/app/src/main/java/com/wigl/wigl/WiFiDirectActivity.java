@@ -39,7 +39,19 @@ import android.widget.Toast;
 
 import com.wigl.wigl.DeviceListFragment.DeviceActionListener;
 
-import java.util.concurrent.TimeoutException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An activity that uses WiFi Direct APIs to discover and connect with available devices. WiFi
@@ -50,6 +62,29 @@ import java.util.concurrent.TimeoutException;
 public class WiFiDirectActivity extends Activity implements ChannelListener, DeviceActionListener {
     private static final String TAG = "WiFiDirectActivity";
 
+    /**
+     * How long a round waits for its pictures after it starts, including the capture delay.
+     */
+    private static final long ROUND_TIMEOUT = 20000;
+
+    private static final int MAX_TRACED_ROUNDS = 100;
+
+    /**
+     * Previews whose full-size picture arrived, remembered for export.
+     */
+    private static final int MAX_FULL_PICTURES = 64;
+
+    /**
+     * How often the session store drops expired rounds and compacts its index.
+     */
+    private static final long STORE_MAINTENANCE_PERIOD = 10 * 60 * 1000;
+
+    /**
+     * Names of the pictures taken and received here before they go into the session store.
+     */
+    private static final String[] PICTURE_PREFIXES = {DeviceDetailFragment.PICTURE_PREFIX,
+            FileTransferServer.RECEIVED_PREFIX};
+
     private final IntentFilter intentFilter = new IntentFilter();
     private WifiP2pManager manager;
     private boolean isWifiP2pEnabled = false;
@@ -57,8 +92,19 @@ public class WiFiDirectActivity extends Activity implements ChannelListener, Dev
     private Channel channel;
     private BroadcastReceiver receiver = null;
 
-    private String ownerPicture;
-    private String memberPicture;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private volatile CaptureSession session;
+    /**
+     * Where the pictures of each round are kept, by round and device; null until it is open.
+     */
+    private volatile SessionStore store;
+    private final TraceCollector traces = new TraceCollector(MAX_TRACED_ROUNDS, TraceCollector.DEFAULT_TOLERANCE_NANOS);
+    private final Map<File, File> fullPictures = Collections.synchronizedMap(new LinkedHashMap<File, File>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, File> eldest) {
+            return size() > MAX_FULL_PICTURES;
+        }
+    });
 
     public void setIsWifiP2pEnabled(boolean isWifiP2pEnabled) {
         this.isWifiP2pEnabled = isWifiP2pEnabled;
@@ -77,6 +123,7 @@ public class WiFiDirectActivity extends Activity implements ChannelListener, Dev
 
         manager = (WifiP2pManager) getSystemService(Context.WIFI_P2P_SERVICE);
         channel = manager.initialize(this, getMainLooper(), null);
+        openStore();
     }
 
     /**
@@ -87,12 +134,57 @@ public class WiFiDirectActivity extends Activity implements ChannelListener, Dev
         super.onResume();
         receiver = new WiFiDirectBroadcastReceiver(manager, channel, this);
         registerReceiver(receiver, intentFilter);
+        WiglCamera.acquire();
     }
 
     @Override
     public void onPause() {
         super.onPause();
         unregisterReceiver(receiver);
+        WiglCamera.release();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        scheduler.shutdownNow();
+        SessionStore opened = store;
+        if (opened != null) {
+            opened.close();
+        }
+    }
+
+    /*
+     * Reads the store's index off the UI thread.  Pictures that arrive before it is open stay
+     * where they were received, as do those a member could not send, until the store sweeps
+     * them away with its maintenance.
+     */
+    private void openStore() {
+        final File files = getFilesDir();
+        final File dir = new File(files, "sessions");
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final SessionStore opened = new SessionStore(dir);
+                    opened.start(scheduler, STORE_MAINTENANCE_PERIOD);
+                    store = opened;
+                    Log.d(TAG, "Session store has " + opened.getRoundCount() + " rounds, "
+                            + opened.getTotalBytes() + " bytes");
+                    scheduler.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            int swept = opened.sweep(files, System.currentTimeMillis(), PICTURE_PREFIXES);
+                            if (swept > 0) {
+                                Log.d(TAG, "Swept " + swept + " pictures that were never stored");
+                            }
+                        }
+                    }, 0, STORE_MAINTENANCE_PERIOD, TimeUnit.MILLISECONDS);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not open the session store: " + e.getMessage());
+                }
+            }
+        });
     }
 
     @Override
@@ -143,7 +235,20 @@ public class WiFiDirectActivity extends Activity implements ChannelListener, Dev
                 return true;
 
             case R.id.test_capture:
-                startActivity(Utils.createCaptureIntent(this, 0));
+                startActivity(Utils.createViewfinderIntent(this));
+                return true;
+
+            case R.id.atn_save_gif:
+                ((AnimatedGifFragment) getFragmentById(R.id.wigl_animation)).exportGif();
+                return true;
+
+            case R.id.atn_dump_metrics:
+                dumpMetrics();
+                return true;
+
+            case R.id.atn_burst:
+                item.setChecked(!item.isChecked());
+                ((DeviceDetailFragment) getFragmentById(R.id.frag_detail)).setBurst(item.isChecked());
                 return true;
 
             default:
@@ -190,47 +295,237 @@ public class WiFiDirectActivity extends Activity implements ChannelListener, Dev
         });
     }
 
-    public void groupOwnerPicture(Uri pictureFile) {
-        Log.d(TAG, "Got owner picture: " + getFilesDir() + "/" + pictureFile.getLastPathSegment());
-        this.ownerPicture = getFilesDir() + "/" + pictureFile.getLastPathSegment();
+    /**
+     * Starts collecting the pictures of a new Wigl round, every shot of {@code burst} from every
+     * device, replacing any round still in progress.  Called on the UI thread.
+     */
+    public void startWigl(long roundId, Collection<Long> devices, Burst burst) {
+        if (session != null) {
+            session.cancel();
+        }
+        Log.d(TAG, "Waiting for " + burst.getShots() + " pictures from each of " + devices.size() + " devices, round "
+                + roundId);
+        traces.addRound(roundId);
+        session = new CaptureSession(roundId, devices, burst.getShots(), new CaptureSession.Callback() {
+            @Override
+            public void onComplete(final CaptureSession session, Map<Long, File> pictures) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showWigl(session);
+                    }
+                });
+            }
+
+            @Override
+            public void onTimeout(CaptureSession session, Map<Long, File> received, Set<Long> missing) {
+                Log.e(TAG, "Round " + session.getRoundId() + " never received pictures from " + missing.size() + " devices");
+            }
+        });
+        session.start(scheduler, ROUND_TIMEOUT + TimeUnit.NANOSECONDS.toMillis(burst.getSpanNanos()));
+    }
+
+    /**
+     * @return the round whose pictures are being collected or were shown last, or 0 before the
+     *         first round
+     */
+    public long getCurrentRound() {
+        CaptureSession current = session;
+        return current == null ? 0 : current.getRoundId();
     }
 
-    public void groupMemberPicture(String pictureFile) {
-        Log.d(TAG, "Got member picture: " + pictureFile);
-        this.memberPicture = pictureFile;
+    /**
+     * Finds our round for one a member named on its own clock, e.g. in a picture offer.  A member
+     * that does not name its rounds sends 0, and its pictures go to the current round as before.
+     * May be called from any thread.
+     *
+     * @param clock our estimate of the member's clock, or null
+     * @return the round on our clock, or 0 if it is not one of the recent rounds
+     */
+    public long resolveRound(long memberRound, ClockOffsetEstimator clock) {
+        return memberRound == 0 ? getCurrentRound() : traces.resolveRound(memberRound, clock);
     }
 
-    public void showWigl() {
-        try {
-            AnimatedGifFragment frag_animation = (AnimatedGifFragment) getFragmentById(R.id.wigl_animation);
-            frag_animation.showWigl(retrieveOwnerPictureOrError(5000), retrieveMemberPictureOrError(5000));
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
+    /**
+     * Adds spans of {@code deviceId} that are already on our clock.  May be called from any
+     * thread.
+     */
+    public void addTrace(long deviceId, List<TraceSpan> spans) {
+        traces.addOwnerSpans(deviceId, spans);
+    }
+
+    /**
+     * Adds the spans a member reported, converting them with our estimate of its clock.  May be
+     * called from any thread.
+     */
+    public void addMemberTrace(long deviceId, List<TraceSpan> spans, ClockOffsetEstimator clock) {
+        traces.addSpans(deviceId, spans, clock);
+        if (!spans.isEmpty()) {
+            RoundTrace round = traces.getRound(spans.get(0).getRound());
+            Log.d(TAG, "Trace from " + MacAddress.format(deviceId) + ": " + spans.size() + " spans"
+                    + (round != null && round.isDisplayed() ? ", round already shown" : ""));
+        }
+    }
+
+    /**
+     * Called once the Wigl of {@code roundId} plays: merges this device's spans of the round and
+     * logs its timeline and the latency percentiles of the rounds so far.  Member traces that
+     * arrive later still count towards the next report.
+     */
+    public void wiglShown(long roundId) {
+        traces.addOwnerSpans(getThisDeviceId(), Tracer.getInstance().getSpans(roundId));
+        RoundTrace round = traces.getRound(roundId);
+        if (round != null) {
+            Log.d(TAG, round.format());
+        }
+        Log.d(TAG, "Latency over " + traces.getRounds().size() + " rounds:\n" + traces.report());
+    }
+
+    /**
+     * Writes a snapshot of the transfer metrics to the app's external files directory in the
+     * background, so it can be pulled off the device after a shoot.
+     */
+    private void dumpMetrics() {
+        final MetricsSnapshot snapshot = MetricsRegistry.getInstance().snapshot();
+        File dir = getExternalFilesDir(null);
+        final File dump = new File(dir != null ? dir : getFilesDir(), "metrics-" + snapshot.getTakenAtMillis() + ".txt");
+        Log.d(TAG, "Metrics:\n" + snapshot.format());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FileWriter out = null;
+                String result;
+                try {
+                    out = new FileWriter(dump);
+                    out.write(snapshot.format());
+                    result = "Metrics written to " + dump;
+                } catch (IOException e) {
+                    result = "Could not write metrics: " + e.getMessage();
+                } finally {
+                    Utils.close(out);
+                }
+                final String message = result;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(WiFiDirectActivity.this, message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "MetricsDump").start();
+    }
+
+    private long getThisDeviceId() {
+        DeviceListFragment list = (DeviceListFragment) getFragmentById(R.id.frag_list);
+        WifiP2pDevice device = list == null ? null : list.getDevice();
+        long id = device == null ? -1 : MacAddress.tryParse(device.deviceAddress);
+        return id < 0 ? MacAddress.UNKNOWN : id;
+    }
+
+    /**
+     * @param round the round the picture was taken for
+     * @param shot  which shot of the round's burst the picture is, from 0
+     */
+    public void groupOwnerPicture(long deviceId, long round, int shot, Uri pictureFile) {
+        Log.d(TAG, "Got owner picture " + shot + ": " + getFilesDir() + "/" + pictureFile.getLastPathSegment());
+        File picture = new File(getFilesDir(), pictureFile.getLastPathSegment());
+        addPicture(deviceId, round, shot, store(round, deviceId, shot, false, picture));
+    }
+
+    /**
+     * A picture that arrives after its round is over is only stored; a full-size picture is
+     * matched with the preview of its own round, whichever round is current.
+     *
+     * @param round   the round the picture was taken for, or 0 if it is not a recent one and the
+     *                picture is dropped
+     * @param shot    which shot of the round's burst the picture is, from 0
+     * @param preview the picture is a preview; its full-size picture follows for export
+     */
+    public void groupMemberPicture(long deviceId, long round, int shot, String pictureFile, boolean preview) {
+        Log.d(TAG, "Got member " + (preview ? "preview " : "picture ") + shot + " of round " + round + ": "
+                + pictureFile);
+        if (round == 0) {
+            // for no round that is still known, so nothing would ever show or store it
+            Log.w(TAG, "Dropping " + pictureFile + " from " + MacAddress.format(deviceId)
+                    + ": not for a recent round");
+            new File(pictureFile).delete();
+            return;
+        }
+        File picture = store(round, deviceId, shot, preview, new File(pictureFile));
+        File shown = preview ? null : getPreview(round, deviceId, shot);
+        if (shown != null) {
+            fullPictures.put(shown, picture);
+            return;
+        }
+        addPicture(deviceId, round, shot, picture);
+    }
+
+    /*
+     * The picture the session of the round holds in a slot, or else the preview the store has of
+     * it; only a preview ever arrives ahead of a full-size picture
+     */
+    private File getPreview(long round, long deviceId, int shot) {
+        CaptureSession current = session;
+        if (current != null && current.getRoundId() == round) {
+            return current.getPicture(deviceId, shot);
         }
+        SessionStore opened = store;
+        SessionStore.Frame frame = opened == null || round == 0 ? null : opened.getFrame(round, deviceId, shot, true);
+        return frame == null ? null : frame.getFile();
     }
 
-    private String retrieveOwnerPictureOrError(int timeout) throws TimeoutException, InterruptedException {
-        Log.d(TAG, "Starting to wait for owner picture");
-        while (timeout > 0) {
-            if (ownerPicture != null)
-                return ownerPicture;
+    /**
+     * @return the full-size picture of a preview that was shown, or {@code shown} itself if it
+     *         is full-size or its picture has not arrived
+     */
+    public File getFullPicture(File shown) {
+        File full = fullPictures.get(shown);
+        return full != null ? full : shown;
+    }
 
-            Thread.sleep(100);
-            timeout -= 100;
+    /**
+     * Moves a picture of {@code round} into the session store.
+     *
+     * @return where the picture is now
+     */
+    private File store(long round, long deviceId, int shot, boolean preview, File picture) {
+        SessionStore opened = store;
+        if (opened == null) {
+            return picture;
+        }
+        try {
+            return opened.put(round, deviceId, shot, preview, picture).getFile();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not store " + picture + ": " + e.getMessage());
+            return picture;
         }
-        throw new TimeoutException("Never received owner picture");
     }
 
-    private String retrieveMemberPictureOrError(int timeout) throws TimeoutException, InterruptedException {
-        Log.d(TAG, "Starting to wait for member picture");
-        while (timeout > 0) {
-            if (memberPicture != null)
-                return memberPicture;
+    private void addPicture(long deviceId, long round, int shot, File picture) {
+        CaptureSession current = session;
+        if (current == null || current.getRoundId() != round) {
+            Log.w(TAG, "Picture " + picture + " from " + MacAddress.format(deviceId) + " is late for round " + round);
+        } else if (!current.addPicture(deviceId, shot, picture)) {
+            Log.w(TAG, "Picture " + picture + " from " + MacAddress.format(deviceId) + " is not part of round "
+                    + round);
+        }
+    }
 
-            Thread.sleep(100);
-            timeout -= 100;
+    /*
+     * Plays every device's first shot, then every device's second and so on
+     */
+    private void showWigl(CaptureSession completed) {
+        if (completed != session) {
+            return;
+        }
+        List<String> paths = new ArrayList<>();
+        for (int shot = 0; shot < completed.getShotCount(); shot++) {
+            for (File picture : completed.getShot(shot).values()) {
+                paths.add(picture.getAbsolutePath());
+            }
         }
-        throw new TimeoutException("Never received member picture");
+        AnimatedGifFragment frag_animation = (AnimatedGifFragment) getFragmentById(R.id.wigl_animation);
+        frag_animation.showWigl(completed.getRoundId(), paths.toArray(new String[paths.size()]));
     }
 
     @Override
@@ -75,6 +75,9 @@ public class WiFiDirectBroadcastReceiver extends BroadcastReceiver {
         } else if (WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION.equals(action)) {
             Log.d(TAG, "P2P connection changed");
 
+            // peers and their addresses may have changed with the group
+            Utils.invalidateArpCache();
+
             if (manager == null) {
                 return;
             }
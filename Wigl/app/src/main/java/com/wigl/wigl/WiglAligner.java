@@ -0,0 +1,91 @@
+package com.wigl.wigl;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.util.Log;
+
+import com.wigl.wigl.image.Affine;
+import com.wigl.wigl.image.Alignment;
+import com.wigl.wigl.image.ArgbImage;
+import com.wigl.wigl.image.FrameAligner;
+import com.wigl.wigl.image.ImageOps;
+import com.wigl.wigl.image.LumaPlane;
+import com.wigl.wigl.image.Scaler;
+import com.wigl.wigl.image.TileExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aligns decoded Wigl frames on the subject under the crosshair, and turns the result into the
+ * {@link Matrix} that draws each frame aligned and cropped.  Frames are aligned on small luma
+ * copies made by the imaging module, so the decoded bitmaps themselves are never changed.
+ */
+public class WiglAligner {
+    private static final String TAG = "WiglAligner";
+
+    /**
+     * Longer side of the planes the frames are aligned on.
+     */
+    private static final int ALIGN_SIDE = 320;
+
+    /**
+     * An alignment that would crop away more than this is assumed to have gone wrong.
+     */
+    private static final double MIN_CROP = 0.6;
+
+    /**
+     * Called on a background thread.
+     */
+    public static Alignment align(List<Bitmap> frames) {
+        Bitmap first = frames.get(0);
+        float scale = Math.min(1f, (float) ALIGN_SIDE / Math.max(first.getWidth(), first.getHeight()));
+        int width = Math.max(1, Math.round(first.getWidth() * scale));
+        int height = Math.max(1, Math.round(first.getHeight() * scale));
+        if (frames.size() < 2) {
+            return Alignment.none(frames.size(), width, height);
+        }
+        long start = System.nanoTime();
+        // already on a decode thread, and the frames are small, so the tiles run on this thread
+        TileExecutor tiles = TileExecutor.serial();
+        ArgbImage pixels = null;
+        ArgbImage small = new ArgbImage(width, height);
+        Scaler scaler = null;
+        List<LumaPlane> planes = new ArrayList<>(frames.size());
+        for (Bitmap frame : frames) {
+            int fw = frame.getWidth(), fh = frame.getHeight();
+            if (pixels == null || pixels.getWidth() != fw || pixels.getHeight() != fh) {
+                pixels = new ArgbImage(fw, fh);
+                scaler = new Scaler(fw, fh, width, height);
+            }
+            frame.getPixels(pixels.getPixels(), 0, fw, 0, 0, fw, fh);
+            scaler.scale(pixels, small, tiles);
+            LumaPlane plane = new LumaPlane(width, height);
+            ImageOps.luma(small, plane, tiles);
+            planes.add(plane);
+        }
+        Alignment alignment = FrameAligner.alignAll(planes, FrameAligner.Model.SIMILARITY);
+        Log.d(TAG, "Aligned " + frames.size() + " frames in " + (System.nanoTime() - start) / 1000000 + " ms: " + alignment);
+        if (alignment.getCrop().getWidth() < width * MIN_CROP) {
+            Log.w(TAG, "Alignment crops too much, showing frames as they are");
+            return Alignment.none(frames.size(), width, height);
+        }
+        return alignment;
+    }
+
+    /**
+     * @return the matrix that draws frame {@code index}, decoded at {@code bitmapWidth} x
+     *         {@code bitmapHeight}, aligned onto an {@code outWidth} x {@code outHeight} image of
+     *         the common crop
+     */
+    public static Matrix frameMatrix(Alignment alignment, int index, int bitmapWidth, int bitmapHeight,
+                                     int outWidth, int outHeight) {
+        Affine toOutput = alignment.outputToFrame(index, bitmapWidth, bitmapHeight, outWidth, outHeight).inverse();
+        Matrix matrix = new Matrix();
+        matrix.setValues(new float[]{
+                (float) toOutput.getM00(), (float) toOutput.getM01(), (float) toOutput.getM02(),
+                (float) toOutput.getM10(), (float) toOutput.getM11(), (float) toOutput.getM12(),
+                0, 0, 1});
+        return matrix;
+    }
+}
@@ -0,0 +1,69 @@
+package com.wigl.wigl;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+
+/**
+ * The process's camera, kept open and previewing by a {@link CaptureEngine} for as long as one
+ * of our activities is in the foreground, so a capture command only waits for its capture time.
+ */
+final class WiglCamera {
+    private static final String TAG = "WiglCamera";
+
+    /**
+     * How long the camera stays open after the last activity using it paused, so going from
+     * one of our activities to another does not reopen it.
+     */
+    private static final long RELEASE_DELAY = 2000;
+
+    /**
+     * Unclaimed pictures held in memory; a few full-size JPEGs.
+     */
+    private static final long MAX_HANDOFF_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * {@link FileTransferClient} extra value: the picture was written to disk rather than handed off.
+     */
+    static final long NO_PICTURE = -1;
+
+    static final AndroidCamera camera = new AndroidCamera(0);
+    static final CaptureEngine engine = new CaptureEngine(camera);
+    static final PictureHandoff pictures = new PictureHandoff(Executors.newSingleThreadExecutor(), MAX_HANDOFF_BYTES);
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static int users;
+
+    private static final Runnable stopIfUnused = new Runnable() {
+        @Override
+        public void run() {
+            if (users == 0) {
+                Log.d(TAG, "Releasing the camera");
+                engine.stop();
+            }
+        }
+    };
+
+    private WiglCamera() {
+    }
+
+    /**
+     * Called on the UI thread when an activity that takes or shows pictures resumes.
+     */
+    static void acquire() {
+        users++;
+        handler.removeCallbacks(stopIfUnused);
+        engine.start();
+    }
+
+    /**
+     * Called on the UI thread when that activity pauses.
+     */
+    static void release() {
+        users--;
+        handler.removeCallbacks(stopIfUnused);
+        handler.postDelayed(stopIfUnused, RELEASE_DELAY);
+    }
+}
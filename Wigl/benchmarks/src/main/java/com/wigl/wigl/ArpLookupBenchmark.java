@@ -0,0 +1,119 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving a peer's IP from its MAC address, as {@code DeviceDetailFragment.getServerIp} does
+ * on every send, against generated ARP tables.  {@code legacy*} re-reads the table with regular
+ * expressions the way {@code Utils.getIpFromMac} used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ArpLookupBenchmark {
+    @Param({"4", "64", "512"})
+    public int entries;
+
+    private File table;
+    private String firstMac;
+    private String lastMac;
+    private ArpResolver resolver;
+
+    @Setup
+    public void setUp() throws IOException {
+        table = Fixtures.writeArpTable(entries);
+        firstMac = Fixtures.arpMac(0);
+        // the last row on the p2p interface, so the whole table is scanned
+        lastMac = Fixtures.arpMac((entries - 1) & ~1);
+        resolver = new ArpResolver(table.getPath(), TimeUnit.HOURS.toMillis(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        table.delete();
+    }
+
+    @Benchmark
+    public String legacyLookupFirst() {
+        return legacyGetIpFromMac(table.getPath(), firstMac);
+    }
+
+    @Benchmark
+    public String legacyLookupLast() {
+        return legacyGetIpFromMac(table.getPath(), lastMac);
+    }
+
+    /**
+     * Every lookup parses the table, as right after a group change.
+     */
+    @Benchmark
+    public String resolverCold() {
+        resolver.invalidate();
+        return resolver.getIpFromMac(lastMac);
+    }
+
+    /**
+     * Lookups within the cache lifetime.
+     */
+    @Benchmark
+    public String resolverCached() {
+        return resolver.getIpFromMac(lastMac);
+    }
+
+    /**
+     * The lookup {@code Utils.getIpFromMac} ran before {@link ArpResolver}: re-read and regex
+     * match the whole table on every call.
+     */
+    private static String legacyGetIpFromMac(String arpPath, String MAC) {
+		/*
+		 * method modified from:
+		 * 
+		 * http://www.flattermann.net/2011/02/android-howto-find-the-hardware-mac-address-of-a-remote-host/
+		 * 
+		 * */
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(arpPath));
+            String line;
+            while ((line = br.readLine()) != null) {
+
+                String[] splitted = line.split(" +");
+                if (splitted != null && splitted.length >= 4) {
+                    // Basic sanity check
+                    String device = splitted[5];
+                    if (device.matches(".*" + NetUtils.P2P_INTERFACE + ".*")) {
+                        String mac = splitted[3];
+                        if (mac.matches(MAC)) {
+                            return splitted[0];
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            IoUtils.closeQuietly(br);
+        }
+        return null;
+    }
+}
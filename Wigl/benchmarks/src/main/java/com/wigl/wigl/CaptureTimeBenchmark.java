@@ -0,0 +1,107 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Telling a capture command from a picture.  {@code legacy*} is what
+ * {@code FileTransferServer.getCaptureTime} did before the frame protocol: read the whole
+ * received file back and try to parse it as a number.  {@code frame*} classifies the same
+ * payloads from their frame header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CaptureTimeBenchmark {
+    private static final long DEVICE = MacAddress.parse("8a:3c:1c:0f:99:e2");
+
+    @Param({"1048576", "4194304"})
+    public int pictureSize;
+
+    private File timestampFile;
+    private File pictureFile;
+    private byte[] commandFrame;
+    private byte[] pictureHeader;
+    private final byte[] headerBuf = new byte[FrameCodec.HEADER_SIZE];
+
+    @Setup
+    public void setUp() throws IOException {
+        long captureTime = 1445100000000L;
+        timestampFile = Fixtures.writeFile(String.format("%d", captureTime).getBytes("US-ASCII"), "");
+        pictureFile = Fixtures.writeFile(Fixtures.jpegPayload(pictureSize, 1), ".jpg");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] payload = FrameCodec.encodeCaptureCommand(captureTime);
+        FrameCodec.writeFrame(new DataOutputStream(bytes), new FrameHeader(MessageType.CAPTURE_COMMAND, 0, payload.length, DEVICE, 0), payload);
+        commandFrame = bytes.toByteArray();
+        pictureHeader = FrameCodec.encodeHeader(new FrameHeader(MessageType.PICTURE, 0, pictureSize, DEVICE, 1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        timestampFile.delete();
+        pictureFile.delete();
+    }
+
+    @Benchmark
+    public long legacyTimestamp() throws IOException {
+        return legacyCaptureTime(timestampFile);
+    }
+
+    @Benchmark
+    public long legacyPicture() throws IOException {
+        return legacyCaptureTime(pictureFile);
+    }
+
+    @Benchmark
+    public long frameCaptureCommand() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(commandFrame));
+        FrameHeader header = FrameCodec.readHeader(in, headerBuf);
+        return FrameCodec.decodeCaptureCommand(FrameCodec.readPayload(in, header));
+    }
+
+    @Benchmark
+    public MessageType framePicture() throws IOException {
+        return FrameCodec.readHeader(new ByteArrayInputStream(pictureHeader), headerBuf).getType();
+    }
+
+    private static long legacyCaptureTime(File f) throws IOException {
+        InputStream is = new FileInputStream(f);
+        ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                byteBuffer.write(buffer, 0, len);
+            }
+            return Long.parseLong(new String(byteBuffer.toByteArray()));
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            is.close();
+        }
+    }
+}
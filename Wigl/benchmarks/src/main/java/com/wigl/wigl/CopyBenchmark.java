@@ -0,0 +1,112 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TransferEngine} against the 1 KB heap buffer loop that {@code Utils.copyFile} used to
+ * run, for JPEG-like payloads from 1 KB to 20 MB.  Each benchmark copies the whole payload once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+    @Param({"1024", "65536", "1048576", "8388608", "20971520"})
+    public int size;
+
+    private File src;
+    private File dst;
+    private final TransferEngine engine = TransferEngine.getInstance();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        src = File.createTempFile("wigl-bench-src", ".jpg");
+        dst = File.createTempFile("wigl-bench-dst", ".jpg");
+        FileOutputStream out = new FileOutputStream(src);
+        out.write(data);
+        out.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        src.delete();
+        dst.delete();
+    }
+
+    /**
+     * The copy loop {@code Utils.copyFile} ran before it moved to {@link TransferEngine}.
+     */
+    @Benchmark
+    public long legacyCopyFile() throws IOException {
+        InputStream in = new FileInputStream(src);
+        OutputStream out = new FileOutputStream(dst);
+        byte buf[] = new byte[1024];
+        int len;
+        long total = 0;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+            total += len;
+        }
+        out.close();
+        in.close();
+        return total;
+    }
+
+    /**
+     * File to file through {@link FileChannel#transferTo}.
+     */
+    @Benchmark
+    public long engineFileToFile() throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        FileOutputStream out = new FileOutputStream(dst);
+        try {
+            return engine.transfer(in.getChannel(), 0, size, out.getChannel()).getBytes();
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    /**
+     * A source that only offers a stream, like a {@code ContentResolver} stream, into a file
+     * through {@link FileChannel#transferFrom} and the pooled direct buffer.
+     */
+    @Benchmark
+    public long engineStreamToFile() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(src));
+        FileOutputStream out = new FileOutputStream(dst);
+        try {
+            return engine.copy(in, out).getBytes();
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting the local IPv4 address, as {@code Utils.getLocalIPAddress} does for every send.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DottedDecimalBenchmark {
+    private static final int ADDRESSES = 256;
+
+    private final byte[][] addresses = new byte[ADDRESSES][4];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(49);
+        for (byte[] address : addresses) {
+            random.nextBytes(address);
+        }
+    }
+
+    @Benchmark
+    public String format() {
+        next = (next + 1) & (ADDRESSES - 1);
+        return NetUtils.getDottedDecimalIP(addresses[next]);
+    }
+}
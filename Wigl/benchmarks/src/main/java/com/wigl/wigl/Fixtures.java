@@ -0,0 +1,223 @@
+package com.wigl.wigl;
+
+import com.wigl.wigl.image.LumaPlane;
+import com.wigl.wigl.image.Similarity;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Synthetic inputs for the benchmarks, so they run the same on any machine.
+ */
+public class Fixtures {
+    public static final String ARP_HEADER =
+            "IP address       HW type     Flags       HW address            Mask     Device\n";
+
+    /**
+     * @return the MAC address of entry {@code i} in tables written by {@link #writeArpTable}
+     */
+    public static String arpMac(int i) {
+        return MacAddress.format(0x8a3c1c000000L + i);
+    }
+
+    /**
+     * Writes a {@code /proc/net/arp} lookalike with {@code entries} rows.  Every other row is on
+     * the WiFi Direct interface, the rest on {@code wlan0}, the way a group owner that is also on
+     * an access point sees it.
+     */
+    public static File writeArpTable(int entries) throws IOException {
+        File f = File.createTempFile("wigl-arp", "");
+        Writer out = new OutputStreamWriter(new FileOutputStream(f), "US-ASCII");
+        try {
+            out.write(ARP_HEADER);
+            for (int i = 0; i < entries; i++) {
+                String ip = "192.168." + (i % 2 == 0 ? 49 : 1) + "." + (2 + i % 250);
+                String device = i % 2 == 0 ? "p2p-p2p0-" + (i % 3) : "wlan0";
+                out.write(String.format("%-16s 0x1         0x2         %s     *        %s\n", ip, arpMac(i), device));
+            }
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    /**
+     * @return {@code size} random bytes wrapped in JPEG start and end of image markers
+     */
+    public static byte[] jpegPayload(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        if (size >= 4) {
+            data[0] = (byte) 0xFF;
+            data[1] = (byte) 0xD8;
+            data[size - 2] = (byte) 0xFF;
+            data[size - 1] = (byte) 0xD9;
+        }
+        return data;
+    }
+
+    /**
+     * @return a {@code size}-byte JPEG laid out the way a phone camera writes one: an EXIF block
+     *         with a real 160x120 thumbnail, a 4000x3000 frame header, and random bytes standing
+     *         in for the entropy-coded data
+     */
+    public static byte[] cameraJpeg(int size, long seed) throws IOException {
+        BufferedImage small = new BufferedImage(160, 120, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < small.getHeight(); y++) {
+            for (int x = 0; x < small.getWidth(); x++) {
+                small.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream thumbnail = new ByteArrayOutputStream();
+        ImageIO.write(small, "jpeg", thumbnail);
+
+        // TIFF header, an empty first IFD, and a second IFD pointing at the thumbnail
+        int thumbnailAt = 8 + 6 + 2 + 2 * 12 + 4;
+        ByteBuffer tiff = ByteBuffer.allocate(thumbnailAt + thumbnail.size()).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        tiff.putShort((short) 0).putInt(14);
+        tiff.putShort((short) 2);
+        tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailAt);
+        tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.size());
+        tiff.putInt(0).put(thumbnail.toByteArray());
+
+        byte[] data = jpegPayload(size, seed);
+        ByteBuffer out = ByteBuffer.wrap(data);
+        out.position(2);
+        out.put((byte) 0xFF).put((byte) 0xE1).putShort((short) (2 + 6 + tiff.capacity()));
+        out.put(new byte[]{'E', 'x', 'i', 'f', 0, 0}).put(tiff.array());
+        out.put((byte) 0xFF).put((byte) 0xC0).putShort((short) 17).put((byte) 8).putShort((short) 3000)
+                .putShort((short) 4000).put((byte) 3);
+        for (int c = 1; c <= 3; c++) {
+            out.put((byte) c).put((byte) 0x11).put((byte) 0);
+        }
+        out.put((byte) 0xFF).put((byte) 0xDA).putShort((short) 12).put((byte) 3);
+        for (int c = 1; c <= 3; c++) {
+            out.put((byte) c).put((byte) 0);
+        }
+        out.put((byte) 0).put((byte) 63).put((byte) 0);
+        return data;
+    }
+
+    /**
+     * Writes a real JPEG of a noisy gradient, so it compresses and decodes about like a photo.
+     */
+    public static File writeJpeg(int width, int height, long seed) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(24)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(24)) & 0xFF;
+                int b = ((x + y) * 127 / (width + height) + random.nextInt(24)) & 0xFF;
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        File f = File.createTempFile("wigl-bench", ".jpg");
+        if (!ImageIO.write(image, "jpeg", f)) {
+            throw new IOException("No JPEG writer");
+        }
+        return f;
+    }
+
+    /**
+     * Renders soft random blobs as seen through {@code toFrame}, so the same scene can be shifted,
+     * rotated and scaled without resampling error.
+     */
+    public static LumaPlane scene(int width, int height, Similarity toFrame, long seed) {
+        Random random = new Random(seed);
+        int blobs = 80;
+        double[] bx = new double[blobs], by = new double[blobs], radius = new double[blobs], weight = new double[blobs];
+        for (int i = 0; i < blobs; i++) {
+            bx[i] = random.nextDouble() * width * 1.4 - width * 0.2;
+            by[i] = random.nextDouble() * height * 1.4 - height * 0.2;
+            radius[i] = (4 + random.nextDouble() * 18) * width / 320;
+            weight[i] = random.nextDouble() * 160 - 60;
+        }
+        Similarity toScene = toFrame.inverse();
+        byte[] pixels = new byte[width * height];
+        for (int v = 0; v < height; v++) {
+            for (int u = 0; u < width; u++) {
+                double x = toScene.mapX(u, v), y = toScene.mapY(u, v);
+                double value = 90;
+                for (int i = 0; i < blobs; i++) {
+                    double dx = x - bx[i], dy = y - by[i];
+                    value += weight[i] * Math.exp(-(dx * dx + dy * dy) / (2 * radius[i] * radius[i]));
+                }
+                pixels[v * width + u] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+            }
+        }
+        return new LumaPlane(width, height, pixels);
+    }
+
+    public static File writeFile(byte[] data, String suffix) throws IOException {
+        File f = File.createTempFile("wigl-bench", suffix);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    public static File tempDir() throws IOException {
+        File dir = File.createTempFile("wigl-bench", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    public static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * @return a server listener that deletes every picture it receives and fails the benchmark
+     *         on any connection error
+     */
+    public static TransferServer.Listener discardingListener() {
+        return new TransferServer.Listener() {
+            @Override
+            public void onCaptureCommand(FrameHeader header, long captureTime, PreviewSpec preview, Burst burst) {
+            }
+
+            @Override
+            public void onCaptureReport(FrameHeader header, long captureTime, long lateNanos, Readiness readiness) {
+            }
+
+            @Override
+            public void onTraceReport(FrameHeader header, List<TraceSpan> spans) {
+            }
+
+            @Override
+            public void onPictureReceived(FrameHeader header, long round, File file, TransferStats stats) {
+                file.delete();
+            }
+
+            @Override
+            public void onError(IOException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+}
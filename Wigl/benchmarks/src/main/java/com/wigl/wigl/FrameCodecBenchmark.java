@@ -0,0 +1,95 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame parsing throughput: how many frames per second the receiver can classify from a buffer
+ * and from a stream of mixed capture commands, acknowledgements and small pictures.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameCodecBenchmark {
+    private static final int FRAMES = 1024;
+    private static final long DEVICE = MacAddress.parse("8a:3c:1c:0f:99:e2");
+
+    private byte[] headers;
+    private byte[] stream;
+    private final byte[] headerBuf = new byte[FrameCodec.HEADER_SIZE];
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(FRAMES * FrameCodec.HEADER_SIZE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] picture = new byte[512];
+        for (int i = 0; i < FRAMES; i++) {
+            FrameHeader header;
+            byte[] payload;
+            switch (i % 3) {
+                case 0:
+                    payload = FrameCodec.encodeCaptureCommand(1445100000000L + i);
+                    header = new FrameHeader(MessageType.CAPTURE_COMMAND, 0, payload.length, DEVICE, i);
+                    break;
+                case 1:
+                    payload = picture;
+                    header = new FrameHeader(MessageType.PICTURE, 0, payload.length, DEVICE, i);
+                    break;
+                default:
+                    payload = new byte[0];
+                    header = new FrameHeader(MessageType.ACK, 0, 0, DEVICE, i);
+                    break;
+            }
+            FrameCodec.encodeHeader(header, buf);
+            FrameCodec.writeFrame(out, header, payload);
+        }
+        headers = buf.array();
+        stream = bytes.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeHeaders(Blackhole bh) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(headers);
+        for (int i = 0; i < FRAMES; i++) {
+            bh.consume(FrameCodec.decodeHeader(buf));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void readFrames(Blackhole bh) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream));
+        FrameHeader header;
+        while ((header = FrameCodec.readHeader(in, headerBuf)) != null) {
+            if (header.getType() == MessageType.CAPTURE_COMMAND) {
+                bh.consume(FrameCodec.decodeCaptureCommand(FrameCodec.readPayload(in, header)));
+            } else {
+                in.skipBytes(header.getLength());
+                bh.consume(header);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.wigl.wigl;
+
+import com.wigl.wigl.image.FrameCache;
+import com.wigl.wigl.image.FrameDecoder;
+import com.wigl.wigl.image.FramePipeline;
+import com.wigl.wigl.image.ImageSize;
+import com.wigl.wigl.image.JpegHeader;
+import com.wigl.wigl.image.SampleSize;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decoding the pictures of one Wigl for display.  {@code legacyFullSize} decodes every picture at
+ * full size, one after another, the way {@code AnimatedGifFragment} used to on the UI thread;
+ * {@code serialSampled} adds only the header-sized downscale; {@code pipeline} is
+ * {@link FramePipeline} with two decode threads, as the app runs it; {@code pipelineReplay} shows
+ * the same Wigl again out of a {@link FrameCache}.
+ *
+ * <p>ImageIO source subsampling stands in for {@code BitmapFactory}'s {@code inSampleSize}.  It
+ * still runs the full IDCT, so it understates the CPU saving of Android's scaled decode, but the
+ * decoded frames are the same size.  Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is the
+ * heap each Wigl costs to decode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameDecodeBenchmark {
+    private static final int TARGET_WIDTH = 1080;
+    private static final int TARGET_HEIGHT = 810;
+
+    @Param({"4"})
+    public int frames;
+
+    /**
+     * An 8 MP phone picture.
+     */
+    @Param({"3264x2448"})
+    public String pictureSize;
+
+    private final List<File> files = new ArrayList<>();
+    private final FrameDecoder<BufferedImage> decoder = new ImageIoFrameDecoder();
+    private ExecutorService executor;
+    private FramePipeline<BufferedImage> pipeline;
+    private FramePipeline<BufferedImage> cachedPipeline;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] size = pictureSize.split("x");
+        for (int i = 0; i < frames; i++) {
+            files.add(Fixtures.writeJpeg(Integer.parseInt(size[0]), Integer.parseInt(size[1]), i));
+        }
+        executor = Executors.newFixedThreadPool(2);
+        pipeline = new FramePipeline<>(decoder, executor);
+        FrameCache<BufferedImage> cache = new FrameCache<>(Long.MAX_VALUE, new FrameCache.Weigher<BufferedImage>() {
+            @Override
+            public int weigh(BufferedImage value) {
+                return value.getWidth() * value.getHeight() * 3;
+            }
+        }, null);
+        cachedPipeline = new FramePipeline<>(decoder, executor, cache);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+    @Benchmark
+    public List<BufferedImage> legacyFullSize() throws IOException {
+        List<BufferedImage> decoded = new ArrayList<>(files.size());
+        for (File f : files) {
+            decoded.add(ImageIO.read(f));
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    public List<BufferedImage> serialSampled() throws IOException {
+        List<BufferedImage> decoded = new ArrayList<>(files.size());
+        for (File f : files) {
+            ImageSize size = JpegHeader.readSize(f);
+            decoded.add(decoder.decode(f, size, SampleSize.compute(size, TARGET_WIDTH, TARGET_HEIGHT)));
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    public List<BufferedImage> pipeline() throws Exception {
+        return decode(pipeline);
+    }
+
+    @Benchmark
+    public List<BufferedImage> pipelineReplay() throws Exception {
+        return decode(cachedPipeline);
+    }
+
+    private List<BufferedImage> decode(FramePipeline<BufferedImage> pipeline) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<List<BufferedImage>> result = new AtomicReference<>();
+        final AtomicReference<IOException> error = new AtomicReference<>();
+        pipeline.decode(1, files, TARGET_WIDTH, TARGET_HEIGHT, new FramePipeline.Callback<BufferedImage>() {
+            @Override
+            public void onFrames(List<BufferedImage> frames) {
+                result.set(frames);
+                done.countDown();
+            }
+
+            @Override
+            public void onError(File file, IOException e) {
+                error.set(e);
+                done.countDown();
+            }
+        });
+        done.await();
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return result.get();
+    }
+
+    static class ImageIoFrameDecoder implements FrameDecoder<BufferedImage> {
+        @Override
+        public BufferedImage decode(File file, ImageSize size, int sampleSize) throws IOException {
+            ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+            ImageInputStream in = ImageIO.createImageInputStream(file);
+            try {
+                reader.setInput(in);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.wigl.wigl;
+
+import com.wigl.wigl.image.ArgbImage;
+import com.wigl.wigl.image.GifEncoder;
+import com.wigl.wigl.image.GifExporter;
+import com.wigl.wigl.image.IndexedFrame;
+import com.wigl.wigl.image.MedianCutQuantizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exporting a Wigl as a GIF, per stage and end to end, at 0.3, 1.2 and 3.1 megapixels per frame.
+ * Divide the scores by the megapixels for a per-megapixel cost.  {@code export} runs four frames
+ * through {@link GifExporter} with two quantizer threads; with {@code -prof gc} its allocation per
+ * op is the ARGB and index buffers of each frame, of which at most two are alive at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GifEncodeBenchmark {
+    private static final int FRAMES = 4;
+
+    @Param({"640x480", "1280x960", "2048x1536"})
+    public String frameSize;
+
+    private int width;
+    private int height;
+    private int[] argb;
+    private IndexedFrame indexed;
+    private final MedianCutQuantizer quantizer = new MedianCutQuantizer();
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        String[] size = frameSize.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        argb = photo(width, height, 0);
+        indexed = quantizer.quantize(argb, width, height, 256);
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public IndexedFrame quantize() {
+        return quantizer.quantize(argb, width, height, 256);
+    }
+
+    /**
+     * LZW and framing of one already quantized frame.
+     */
+    @Benchmark
+    public long encodeFrame() throws IOException {
+        CountingSink sink = new CountingSink();
+        GifEncoder encoder = new GifEncoder(sink, width, height, GifEncoder.LOOP_FOREVER);
+        encoder.writeFrame(indexed, 10);
+        encoder.close();
+        return sink.count;
+    }
+
+    @Benchmark
+    public long export() throws IOException {
+        CountingSink sink = new CountingSink();
+        new GifExporter(executor, 2).export(new GifExporter.FrameSource() {
+            @Override
+            public int getFrameCount() {
+                return FRAMES;
+            }
+
+            @Override
+            public ArgbImage readFrame(int index, int width, int height) {
+                int[] frame = new int[width * height];
+                System.arraycopy(argb, 0, frame, 0, frame.length);
+                return new ArgbImage(width, height, frame);
+            }
+        }, width, height, 10, sink);
+        return sink.count;
+    }
+
+    /**
+     * Gradient plus noise, like an out-of-focus background: plenty of colours and little
+     * repetition for LZW to find.
+     */
+    static int[] photo(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(16)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(16)) & 0xFF;
+                int b = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xFF;
+                pixels[y * width + x] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    static class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.wigl.wigl;
+
+import com.wigl.wigl.image.Affine;
+import com.wigl.wigl.image.ArgbImage;
+import com.wigl.wigl.image.Convolver;
+import com.wigl.wigl.image.Crop;
+import com.wigl.wigl.image.ImageOps;
+import com.wigl.wigl.image.Kernel;
+import com.wigl.wigl.image.LumaPlane;
+import com.wigl.wigl.image.PlanarImage;
+import com.wigl.wigl.image.Scaler;
+import com.wigl.wigl.image.Similarity;
+import com.wigl.wigl.image.TileExecutor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code :imaging} operations at 1, 4 and 12 megapixels, on one thread and split over four
+ * tiles.  Every destination is allocated in setup, so with {@code -prof gc} the allocation per op
+ * is only the tile tasks.  {@code scaleForAlign} is the 320 pixel copy the aligner works on and
+ * {@code scaleForGif} the 480 pixel GIF frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImagingBenchmark {
+    @Param({"1152x864", "2304x1728", "4000x3000"})
+    public String frameSize;
+
+    @Param({"1", "4"})
+    public int tiles;
+
+    private ExecutorService executor;
+    private TileExecutor tileExecutor;
+    private ArgbImage image;
+    private ArgbImage cropView;
+    private ArgbImage cropped;
+    private ArgbImage alignSized;
+    private ArgbImage gifSized;
+    private ArgbImage warped;
+    private LumaPlane luma;
+    private LumaPlane blurred;
+    private PlanarImage planes;
+    private Scaler alignScaler;
+    private Scaler gifScaler;
+    private Convolver convolver;
+    private Affine rotation;
+    private final Kernel kernel = Kernel.gaussian(1.5);
+
+    @Setup
+    public void setUp() {
+        String[] size = frameSize.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        executor = tiles > 1 ? Executors.newFixedThreadPool(tiles - 1) : null;
+        tileExecutor = tiles > 1 ? new TileExecutor(executor, tiles) : TileExecutor.serial();
+        image = new ArgbImage(width, height, GifEncodeBenchmark.photo(width, height, 0));
+        Crop crop = new Crop(width / 10, height / 10, width * 8 / 10, height * 8 / 10);
+        cropView = image.crop(crop);
+        cropped = new ArgbImage(crop.getWidth(), crop.getHeight());
+        alignSized = new ArgbImage(320, 320 * height / width);
+        gifSized = new ArgbImage(480, 480 * height / width);
+        alignScaler = new Scaler(width, height, alignSized.getWidth(), alignSized.getHeight());
+        gifScaler = new Scaler(width, height, gifSized.getWidth(), gifSized.getHeight());
+        warped = new ArgbImage(width, height);
+        rotation = Affine.of(Similarity.rotation(1.5, 1.02, width / 2.0, height / 2.0));
+        luma = new LumaPlane(width, height);
+        ImageOps.luma(image, luma, TileExecutor.serial());
+        blurred = new LumaPlane(width, height);
+        planes = PlanarImage.rgb(width, height);
+        convolver = new Convolver(width, height);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public ArgbImage crop() {
+        ImageOps.copy(cropView, cropped, tileExecutor);
+        return cropped;
+    }
+
+    @Benchmark
+    public ArgbImage scaleForAlign() {
+        alignScaler.scale(image, alignSized, tileExecutor);
+        return alignSized;
+    }
+
+    @Benchmark
+    public ArgbImage scaleForGif() {
+        gifScaler.scale(image, gifSized, tileExecutor);
+        return gifSized;
+    }
+
+    @Benchmark
+    public LumaPlane luma() {
+        ImageOps.luma(image, luma, tileExecutor);
+        return luma;
+    }
+
+    @Benchmark
+    public PlanarImage split() {
+        ImageOps.split(image, planes, tileExecutor);
+        return planes;
+    }
+
+    @Benchmark
+    public LumaPlane gaussianBlur() {
+        convolver.convolve(luma, blurred, kernel, tileExecutor);
+        return blurred;
+    }
+
+    @Benchmark
+    public ArgbImage warp() {
+        ImageOps.warp(image, rotation, warped, tileExecutor);
+        return warped;
+    }
+}
@@ -0,0 +1,89 @@
+package com.wigl.wigl;
+
+import com.wigl.wigl.image.ImageSize;
+import com.wigl.wigl.image.JpegFrame;
+import com.wigl.wigl.image.JpegHeader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inspecting a stored camera JPEG.  {@code streamSize} reads the frame header through a buffered
+ * stream, as {@link JpegHeader} did for files, and {@code mappedSize} parses it in place in a
+ * mapping.  {@code streamThumbnail} reads the whole file onto the heap to get at the EXIF
+ * thumbnail, and {@code mappedThumbnail} slices it out of the mapping.  Run with
+ * {@code -prof gc}: {@code gc.alloc.rate.norm} is the heap each look at a picture costs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JpegFrameBenchmark {
+    @Param({"1048576", "4194304"})
+    public int size;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Fixtures.writeFile(Fixtures.cameraJpeg(size, 5), ".jpg");
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public ImageSize streamSize() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 4096);
+        try {
+            return JpegHeader.readSize(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public ImageSize mappedSize() throws IOException {
+        return JpegFrame.map(file).getSize();
+    }
+
+    @Benchmark
+    public ByteBuffer streamThumbnail() throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return JpegFrame.parse(ByteBuffer.wrap(data)).getThumbnail();
+    }
+
+    @Benchmark
+    public ByteBuffer mappedThumbnail() throws IOException {
+        return JpegFrame.map(file).getThumbnail();
+    }
+}
@@ -0,0 +1,79 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A member sending a picture to the owner over loopback, from the file on the member to the
+ * file on the owner, including the owner's acknowledgement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoopbackTransferBenchmark {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final long MEMBER = MacAddress.parse("02:00:00:00:00:02");
+
+    @Param({"65536", "1048576", "4194304"})
+    public int size;
+
+    private File dir;
+    private File picture;
+    private RandomAccessFile pictureOut;
+    private final ByteBuffer stamp = ByteBuffer.allocate(8);
+    private long round;
+    private TransferServer server;
+    private TransferClient client;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Fixtures.tempDir();
+        picture = Fixtures.writeFile(Fixtures.jpegPayload(size, 2), ".jpg");
+        pictureOut = new RandomAccessFile(picture, "rw");
+        server = new TransferServer(0, OWNER, dir, "wiglS-", 2, Fixtures.discardingListener());
+        server.start();
+        client = TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+        pictureOut.close();
+        picture.delete();
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long sendPicture() throws IOException {
+        // a picture the owner already holds would be skipped, so make every one new
+        stamp.clear();
+        stamp.putLong(0, ++round);
+        pictureOut.getChannel().write(stamp, 0);
+        return client.sendPicture(PictureSource.of(pictureOut.getChannel())).getBytes();
+    }
+
+    @Benchmark
+    public void sendCaptureCommand() throws IOException {
+        client.sendCaptureCommand(1445100000000L);
+    }
+}
@@ -0,0 +1,85 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the transfer metrics cost per update, to check they can stay on during a shoot: the
+ * recorder and counter themselves, a per-peer update as the transfer path makes it, the same
+ * from several threads at once, and a full snapshot.  Run with {@code -prof gc} to check that
+ * updates do not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetricsBenchmark {
+    private static final String PEER = "8a:3c:1c:0f:99:e2";
+
+    private HistogramRecorder recorder;
+    private Counter counter;
+    private TransferMetrics metrics;
+    private TransferStats stats;
+    private long value;
+
+    @Setup
+    public void setUp() {
+        MetricsRegistry registry = new MetricsRegistry();
+        recorder = registry.recorder("latency_us");
+        counter = registry.counter("bytes");
+        metrics = new TransferMetrics(registry);
+        stats = new TransferStats(3 * 1024 * 1024, 450000000);
+        for (int i = 0; i < 8; i++) {
+            String peer = "02:00:00:00:00:0" + i;
+            metrics.sent(peer, 1);
+            metrics.transferred(peer, stats);
+            metrics.failed(peer, new SocketTimeoutException());
+        }
+    }
+
+    @Benchmark
+    public void counterAdd() {
+        counter.add(65536);
+    }
+
+    @Benchmark
+    public void recorderRecord() {
+        recorder.record(value++ & 0xFFFFF);
+    }
+
+    @Benchmark
+    public void peerChunkSent() {
+        metrics.sent(PEER, 65536);
+    }
+
+    @Benchmark
+    public void peerPictureTransferred() {
+        metrics.transferred(PEER, stats);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void peerPictureTransferredContended() {
+        metrics.transferred(PEER, stats);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public MetricsSnapshot snapshot() {
+        return metrics.getRegistry().snapshot();
+    }
+}
@@ -0,0 +1,128 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capture-to-owner latency of a member's picture over loopback: from the camera handing over
+ * the JPEG to the owner acknowledging it.  {@code viaFile} writes the file and uploads from it,
+ * as CaptureActivity and FileTransferClient did; {@code direct} goes through
+ * {@link PictureHandoff}, so the write runs on the writer thread during the upload.  The wait
+ * for that write is outside the measurement, as it is off the critical path on the device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PictureHandoffBenchmark {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final long MEMBER = MacAddress.parse("02:00:00:00:00:02");
+
+    @Param({"1048576", "4194304"})
+    public int size;
+
+    private File ownerDir;
+    private File memberDir;
+    private byte[] jpeg;
+    private long round;
+    private ExecutorService writer;
+    private PictureHandoff handoff;
+    private PictureHandoff.Picture lastPicture;
+    private File lastFile;
+    private TransferServer server;
+    private TransferClient client;
+
+    @Setup
+    public void setUp() throws IOException {
+        ownerDir = Fixtures.tempDir();
+        memberDir = Fixtures.tempDir();
+        jpeg = Fixtures.jpegPayload(size, 3);
+        writer = Executors.newSingleThreadExecutor();
+        handoff = new PictureHandoff(writer, 16 * 1024 * 1024);
+        server = new TransferServer(0, OWNER, ownerDir, "wiglS-", 2, Fixtures.discardingListener());
+        server.start();
+        client = TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+        writer.shutdownNow();
+        Fixtures.deleteRecursively(ownerDir);
+        Fixtures.deleteRecursively(memberDir);
+    }
+
+    /**
+     * The camera hands over a new array for every picture; a new round number also keeps the
+     * owner from skipping a picture it already holds.
+     */
+    private byte[] capture() {
+        byte[] data = jpeg.clone();
+        long r = ++round;
+        for (int i = 0; i < 8; i++) {
+            data[i] = (byte) (r >>> (i * 8));
+        }
+        lastFile = new File(memberDir, "wiglPic-" + r);
+        return data;
+    }
+
+    @TearDown(Level.Invocation)
+    public void finishWrite() throws IOException {
+        if (lastPicture != null) {
+            lastPicture.awaitSaved();
+            lastPicture = null;
+        }
+        if (lastFile != null) {
+            lastFile.delete();
+        }
+    }
+
+    /**
+     * The part of {@code viaFile} that {@code direct} takes off the critical path.
+     */
+    @Benchmark
+    public File writeOnly() throws IOException {
+        return PictureHandoff.save(capture(), lastFile);
+    }
+
+    @Benchmark
+    public long viaFile() throws IOException {
+        byte[] data = capture();
+        PictureHandoff.save(data, lastFile);
+        FileInputStream in = new FileInputStream(lastFile);
+        try {
+            return client.sendPicture(PictureSource.of(in.getChannel())).getBytes();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public long direct() throws IOException {
+        byte[] data = capture();
+        PictureHandoff.Picture picture = handoff.submit(data, lastFile, System.nanoTime());
+        lastPicture = handoff.take(picture.getId());
+        return client.sendPicture(PictureSource.of(lastPicture.getData())).getBytes();
+    }
+}
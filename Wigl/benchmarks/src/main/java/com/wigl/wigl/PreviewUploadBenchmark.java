@@ -0,0 +1,161 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Time from a member having its picture to the owner having something to play, over a link
+ * limited to {@code linkBytesPerSecond}: the full-size picture as members sent it before,
+ * against encoding and sending a {@link PreviewSpec preview} first.  {@code encodePreview} is
+ * the encoding alone.  The bytes each puts on the wire are printed at setup.
+ *
+ * <p>ImageIO stands in for BitmapFactory here and decodes the whole picture before subsampling
+ * it, where BitmapFactory subsamples while decoding, so the encode is slower than on a phone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PreviewUploadBenchmark {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final long MEMBER = MacAddress.parse("02:00:00:00:00:02");
+
+    @Param({"1280", "1920"})
+    public int previewSide;
+
+    /**
+     * About 20 Mbit/s, what a Wi-Fi Direct group shared by a few members sustains per member.
+     */
+    @Param({"2500000"})
+    public long linkBytesPerSecond;
+
+    private File dir;
+    private byte[] picture;
+    private PreviewSpec preview;
+    private TransferServer server;
+    private ThrottledProxy proxy;
+    private TransferClient client;
+    private long round;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Fixtures.tempDir();
+        File jpeg = Fixtures.writeJpeg(4000, 3000, 19);
+        picture = Files.readAllBytes(jpeg.toPath());
+        jpeg.delete();
+        preview = new PreviewSpec(previewSide, 80);
+        server = new TransferServer(0, OWNER, dir, "wiglS-", 2, Fixtures.discardingListener());
+        server.start();
+        proxy = new ThrottledProxy(server.getLocalPort(), linkBytesPerSecond);
+        client = TransferClient.connect("127.0.0.1", proxy.getLocalPort(), 5000, MEMBER);
+        byte[] encoded = encodePreview();
+        System.out.println("Full picture " + picture.length + " bytes, preview at " + previewSide + "px "
+                + encoded.length + " bytes (" + String.format("%.1f", 100.0 * encoded.length / picture.length) + "%)");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        proxy.close();
+        server.stop();
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long fullPicture() throws IOException {
+        return client.sendPicture(PictureSource.of(stamp(picture))).getBytes();
+    }
+
+    @Benchmark
+    public long previewFirst() throws IOException {
+        PictureSource src = PictureSource.of(stamp(encodePreview()));
+        return client.sendPicture(src, PictureOffer.create(src, PictureOffer.DEFAULT_CHUNK_SIZE),
+                FrameHeader.FLAG_PREVIEW).getBytes();
+    }
+
+    @Benchmark
+    public byte[] encodePreview() throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(picture));
+        ImageReader reader = ImageIO.getImageReaders(in).next();
+        BufferedImage decoded;
+        int width;
+        int height;
+        try {
+            reader.setInput(in);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            ImageReadParam param = reader.getDefaultReadParam();
+            int sample = preview.sampleSize(width, height);
+            param.setSourceSubsampling(sample, sample, 0, 0);
+            decoded = reader.read(0, param);
+        } finally {
+            reader.dispose();
+            in.close();
+        }
+        float scale = preview.scale(width, height);
+        BufferedImage scaled = new BufferedImage(Math.round(width * scale), Math.round(height * scale), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(decoded, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+        g.dispose();
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+        try {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(preview.getQuality() / 100f);
+            writer.write(null, new IIOImage(scaled, null, null), param);
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * A picture the owner already holds would be skipped, so make every one new
+     */
+    private byte[] stamp(byte[] data) {
+        round++;
+        for (int i = 0; i < 8; i++) {
+            data[data.length - 3 - i] = (byte) (round >>> (8 * i));
+        }
+        return data;
+    }
+}
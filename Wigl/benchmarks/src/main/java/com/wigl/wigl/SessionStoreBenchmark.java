@@ -0,0 +1,137 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The session store holding {@code rounds} rounds of {@code DEVICES} pictures each.
+ * {@code openRound} finds a round's pictures through the index, and {@code scanFlatDirectory}
+ * the way the received files were kept before, all in one directory with nothing but their
+ * names to go by.  {@code reopen} is what starting the app costs, {@code compact} a full rewrite
+ * of the index, and {@code storeRound} a new round stored and the oldest trimmed away, including
+ * writing the received files it moves in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SessionStoreBenchmark {
+    private static final int DEVICES = 4;
+    private static final int PICTURE_SIZE = 16;
+
+    @Param({"20000"})
+    public int rounds;
+
+    private File dir;
+    private File root;
+    private File flat;
+    private File incoming;
+    private byte[] picture;
+    private SessionStore store;
+    private long nextRound;
+    private long lookup;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Fixtures.tempDir();
+        root = new File(dir, "sessions");
+        flat = new File(dir, "flat");
+        incoming = new File(dir, "incoming");
+        if (!flat.mkdir() || !incoming.mkdir()) {
+            throw new IOException("Could not create " + flat + " and " + incoming);
+        }
+        picture = Fixtures.jpegPayload(PICTURE_SIZE, 1);
+        store = open();
+        for (long round = 1; round <= rounds; round++) {
+            for (int device = 0; device < DEVICES; device++) {
+                store.put(round, device, 0, false, receive(incoming, round + "-" + device));
+                receive(flat, "wiglS-" + round + "-" + device);
+            }
+        }
+        nextRound = rounds + 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        Fixtures.deleteRecursively(dir);
+    }
+
+    private SessionStore open() throws IOException {
+        return new SessionStore(root, SessionStore.DEFAULT_MAX_AGE_MILLIS, (long) rounds * DEVICES * PICTURE_SIZE,
+                new MetricsRegistry());
+    }
+
+    private File receive(File directory, String name) throws IOException {
+        File f = new File(directory, name);
+        if (!Fixtures.writeFile(picture, "").renameTo(f)) {
+            throw new IOException("Could not write " + f);
+        }
+        return f;
+    }
+
+    /**
+     * @return a round the store still holds, a different one each time
+     */
+    private long anyRound() {
+        lookup = (lookup + 7919) % rounds;
+        return nextRound - rounds + lookup;
+    }
+
+    @Benchmark
+    public List<SessionStore.Frame> openRound() {
+        return store.getFrames(anyRound());
+    }
+
+    @Benchmark
+    public File[] scanFlatDirectory() {
+        final String prefix = "wiglS-" + (lookup = (lookup + 7919) % rounds + 1) + "-";
+        return flat.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+    }
+
+    @Benchmark
+    public int reopen() throws IOException {
+        store.close();
+        store = open();
+        return store.getRoundCount();
+    }
+
+    @Benchmark
+    public long compact() throws IOException {
+        store.compact();
+        return store.getIndexRecords();
+    }
+
+    @Benchmark
+    public int storeRound() throws IOException {
+        long round = nextRound++;
+        for (int device = 0; device < DEVICES; device++) {
+            store.put(round, device, 0, false, receive(incoming, round + "-" + device));
+        }
+        return store.trim(System.currentTimeMillis());
+    }
+}
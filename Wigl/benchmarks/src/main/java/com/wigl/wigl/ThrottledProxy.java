@@ -0,0 +1,99 @@
+package com.wigl.wigl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A loopback TCP proxy that forwards towards the server at a fixed rate, like the uplink of a
+ * busy Wi-Fi Direct group, so transfer benchmarks measure the bytes they put on the wire rather
+ * than how fast loopback copies them.  Replies are not limited.
+ */
+class ThrottledProxy {
+    /**
+     * How far ahead of the rate a burst may run after the link was idle.
+     */
+    private static final int BURST = 64 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final int targetPort;
+    private final long bytesPerSecond;
+
+    ThrottledProxy(int targetPort, long bytesPerSecond) throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.targetPort = targetPort;
+        this.bytesPerSecond = bytesPerSecond;
+        Thread accept = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "ThrottledProxy-accept");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void close() {
+        IoUtils.closeQuietly(serverSocket);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket("127.0.0.1", targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                pump(client, server, bytesPerSecond);
+                pump(server, client, 0);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param rate bytes per second, or 0 for no limit
+     */
+    private void pump(final Socket from, final Socket to, final long rate) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[8192];
+                double credit = BURST;
+                long last = System.nanoTime();
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        if (rate > 0) {
+                            long now = System.nanoTime();
+                            credit = Math.min(BURST, credit + (now - last) * rate / 1e9) - n;
+                            last = now;
+                            if (credit < 0) {
+                                long wait = (long) (-credit * 1e9 / rate);
+                                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                            }
+                        }
+                        out.write(buf, 0, n);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // the other direction failed first
+                } finally {
+                    IoUtils.closeQuietly(from);
+                    IoUtils.closeQuietly(to);
+                }
+            }
+        }, "ThrottledProxy-pump");
+        t.setDaemon(true);
+        t.start();
+    }
+}
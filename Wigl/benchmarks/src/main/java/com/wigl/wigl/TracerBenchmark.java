@@ -0,0 +1,56 @@
+package com.wigl.wigl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What tracing costs the capture path: recording a span, which must not allocate (check with
+ * {@code -prof gc}), against the clock read it needs anyway, and collecting a round's spans for
+ * its report.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TracerBenchmark {
+    private Tracer tracer;
+    private long round;
+
+    @Setup
+    public void setUp() {
+        tracer = new Tracer(Tracer.DEFAULT_CAPACITY, MonotonicClock.SYSTEM);
+        for (int i = 0; i < tracer.getCapacity(); i++) {
+            tracer.record(i / 10, TraceStage.values()[i % 10], i, i + 1);
+        }
+        round = tracer.getCapacity() / 10 - 1;
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public void recordSince() {
+        tracer.recordSince(round, TraceStage.UPLOAD, 0);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<TraceSpan> spansOfRound() {
+        return tracer.getSpans(round);
+    }
+}
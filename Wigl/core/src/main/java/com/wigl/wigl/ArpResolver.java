@@ -0,0 +1,150 @@
+package com.wigl.wigl;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves WiFi Direct peers' IP addresses from their MAC addresses using the kernel ARP table.
+ * The table is parsed once into a MAC to IP index and cached for a short time, so repeated
+ * sends do not re-read and re-split the file.  Rows are matched with plain string and number
+ * comparisons; nothing is compiled as a regular expression.
+ * <p>
+ * Call {@link #invalidate()} whenever the group changes so stale addresses are not returned.
+ */
+public class ArpResolver {
+    /**
+     * A miss re-reads the table, since a peer that just joined may not have been in it yet, but
+     * not more often than this.
+     */
+    static final long MISS_RELOAD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final int COLUMN_IP = 0;
+    private static final int COLUMN_MAC = 3;
+    private static final int COLUMN_DEVICE = 5;
+
+    private final String path;
+    private final long ttlNanos;
+    private final MonotonicClock clock;
+
+    private volatile Index index;
+
+    /**
+     * @param path      the ARP table, normally {@link NetUtils#ARP_PATH}
+     * @param ttlMillis how long a parsed table is reused
+     */
+    public ArpResolver(String path, long ttlMillis) {
+        this(path, ttlMillis, MonotonicClock.SYSTEM);
+    }
+
+    public ArpResolver(String path, long ttlMillis, MonotonicClock clock) {
+        this.path = path;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * @return the IP address of the peer with {@code mac} on the WiFi Direct interface, or null
+     * if it is not in the table
+     */
+    public String getIpFromMac(String mac) {
+        long key = MacAddress.tryParse(mac);
+        if (key < 0) {
+            return null;
+        }
+        long now = clock.nanoTime();
+        Index current = index;
+        if (current == null || now - current.loadedAt >= ttlNanos) {
+            current = reload(now);
+        }
+        String ip = current.ips.get(key);
+        if (ip == null && now - current.loadedAt >= MISS_RELOAD_NANOS) {
+            ip = reload(now).ips.get(key);
+        }
+        return ip;
+    }
+
+    /**
+     * Drops the cached table; the next lookup reads it again.
+     */
+    public void invalidate() {
+        index = null;
+    }
+
+    private Index reload(long now) {
+        Index fresh = new Index(read(path), now);
+        index = fresh;
+        return fresh;
+    }
+
+    /**
+     * Parses an ARP table into a map from MAC address, as returned by
+     * {@link MacAddress#parse(String)}, to IP address.  Only rows on the WiFi Direct interface
+     * are kept.  An unreadable table is treated as empty.
+     */
+    static Map<Long, String> read(String path) {
+        Map<Long, String> ips = new HashMap<>();
+        BufferedReader br = null;
+        String[] columns = new String[COLUMN_DEVICE + 1];
+        try {
+            br = new BufferedReader(new FileReader(path));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (split(line, columns) <= COLUMN_DEVICE) {
+                    continue;
+                }
+                if (!columns[COLUMN_DEVICE].contains(NetUtils.P2P_INTERFACE)) {
+                    continue;
+                }
+                // the header row and incomplete entries fail to parse or are all zero
+                long mac = MacAddress.tryParse(columns[COLUMN_MAC]);
+                if (mac > 0) {
+                    ips.put(mac, columns[COLUMN_IP]);
+                }
+            }
+        } catch (IOException e) {
+            // no table yet, e.g. before the group is formed
+        } finally {
+            IoUtils.closeQuietly(br);
+        }
+        return ips;
+    }
+
+    /**
+     * Splits {@code line} on runs of spaces into the first {@code columns.length} columns.
+     *
+     * @return the number of columns found, at most {@code columns.length}
+     */
+    private static int split(String line, String[] columns) {
+        int count = 0;
+        int i = 0;
+        int length = line.length();
+        while (i < length && count < columns.length) {
+            while (i < length && line.charAt(i) == ' ') {
+                i++;
+            }
+            int start = i;
+            while (i < length && line.charAt(i) != ' ') {
+                i++;
+            }
+            if (i > start) {
+                columns[count++] = line.substring(start, i);
+            }
+        }
+        return count;
+    }
+
+    private static final class Index {
+        final Map<Long, String> ips;
+        final long loadedAt;
+
+        Index(Map<Long, String> ips, long loadedAt) {
+            this.ips = Collections.unmodifiableMap(ips);
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.wigl.wigl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of equally sized direct buffers for copies that cannot go through
+ * {@link java.nio.channels.FileChannel#transferTo} or {@code transferFrom}.  Direct buffers are
+ * expensive to allocate and are only reclaimed by the garbage collector, so they are reused.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize size of each buffer in bytes
+     * @param maxPooled  how many released buffers are kept; extra ones are left to the GC
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return a cleared buffer of {@link #getBufferSize()} bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != bufferSize || !buf.isDirect()) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buf);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
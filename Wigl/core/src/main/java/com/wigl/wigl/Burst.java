@@ -0,0 +1,93 @@
+package com.wigl.wigl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many pictures each device takes for one capture command, and how far apart.  Shot
+ * {@code k} of a round is taken at the round's capture time plus {@code k} intervals on every
+ * device, so each shot makes a Wigl of its own, and shot {@code k} can be uploaded while
+ * shot {@code k + 1} is taken.
+ */
+public final class Burst {
+    /**
+     * Shots in a burst are told apart by {@link FrameHeader#getShot()}, which has room for this many.
+     */
+    public static final int MAX_SHOTS = 16;
+
+    /**
+     * Capture commands carry the interval in whole microseconds, in an unsigned 32-bit field.
+     */
+    public static final long MIN_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    public static final long MAX_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(0xFFFFFFFFL);
+
+    /**
+     * One picture per device; what capture commands without a burst ask for.
+     */
+    public static final Burst SINGLE = new Burst(1, 0);
+
+    private final int shots;
+    private final long intervalNanos;
+
+    /**
+     * @param shots         pictures per device, from 1 to {@link #MAX_SHOTS}
+     * @param intervalNanos between the shots, from {@link #MIN_INTERVAL_NANOS} to
+     *                      {@link #MAX_INTERVAL_NANOS}; ignored for a single shot
+     */
+    public Burst(int shots, long intervalNanos) {
+        if (shots < 1 || shots > MAX_SHOTS
+                || (shots > 1 && (intervalNanos < MIN_INTERVAL_NANOS || intervalNanos > MAX_INTERVAL_NANOS))) {
+            throw new IllegalArgumentException("Bad burst of " + shots + " every " + intervalNanos + " ns");
+        }
+        this.shots = shots;
+        this.intervalNanos = shots == 1 ? 0 : intervalNanos;
+    }
+
+    public boolean isBurst() {
+        return shots > 1;
+    }
+
+    public int getShots() {
+        return shots;
+    }
+
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * @return when shot {@code index} of the round at {@code captureTime} is taken
+     */
+    public long shotTime(long captureTime, int index) {
+        return captureTime + index * intervalNanos;
+    }
+
+    /**
+     * @return from the first shot to the last
+     */
+    public long getSpanNanos() {
+        return (shots - 1) * intervalNanos;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Burst)) {
+            return false;
+        }
+        Burst other = (Burst) o;
+        return shots == other.shots && intervalNanos == other.intervalNanos;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (31 * shots + intervalNanos);
+    }
+
+    @Override
+    public String toString() {
+        return isBurst() ? "Burst{" + shots + " every " + TimeUnit.NANOSECONDS.toMillis(intervalNanos) + " ms}"
+                : "Burst{single}";
+    }
+}
@@ -0,0 +1,45 @@
+package com.wigl.wigl;
+
+import java.io.IOException;
+
+/**
+ * The camera as the {@link CaptureEngine} drives it, so the engine can be run against a fake
+ * camera in tests.  Calls come from one thread at a time, but not always the same one: the
+ * shutter fires on the {@link CaptureScheduler} thread.
+ */
+public interface CameraDevice {
+    interface PictureCallback {
+        /**
+         * Called once the JPEG is ready, on whatever thread the camera delivers it.
+         */
+        void onPictureTaken(byte[] jpeg);
+    }
+
+    /**
+     * Opens the camera; does nothing if it is already open.
+     */
+    void open() throws IOException;
+
+    /**
+     * Starts the preview, which must be running for {@link #takePicture} to fire.
+     */
+    void startPreview() throws IOException;
+
+    void stopPreview();
+
+    /**
+     * Locks exposure and white balance where supported, so the shot does not wait for them to
+     * settle; unlocking lets the preview follow the light again between shots.
+     */
+    void lockExposure(boolean locked);
+
+    /**
+     * Fires the shutter.  The preview stops until {@link #startPreview} is called again.
+     */
+    void takePicture(PictureCallback callback) throws IOException;
+
+    /**
+     * Releases the camera; it may be opened again.
+     */
+    void close();
+}
@@ -0,0 +1,312 @@
+package com.wigl.wigl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends capture commands from the group owner to every member at once.  Each member is reached
+ * over a persistent {@link TransferClient} link to the {@link TransferServer} it runs; links are
+ * opened on first use and reopened once if a kept connection turns out to be dead.
+ * <p>
+ * Before every command the link measures the member's clock, so each member is sent the capture
+ * time already converted to its own monotonic clock.
+ */
+public class CaptureBroadcaster implements Closeable {
+    public static final int DEFAULT_CLOCK_SAMPLES = 4;
+
+    public interface Connector {
+        /**
+         * Opens a connection to the server of member {@code deviceId}.
+         */
+        TransferClient connect(long deviceId) throws IOException;
+    }
+
+    private final Connector connector;
+    private final int clockSamples;
+    private final ExecutorService senders;
+    private final Map<Long, MemberLink> links = new HashMap<>();
+    private final TransferMetrics metrics = TransferMetrics.getInstance();
+
+    /**
+     * @param connector    opens links to members
+     * @param maxMembers   number of members sent to concurrently
+     * @param clockSamples clock round trips per member before every command
+     */
+    public CaptureBroadcaster(Connector connector, int maxMembers, int clockSamples) {
+        this.connector = connector;
+        this.clockSamples = clockSamples;
+        this.senders = Executors.newFixedThreadPool(maxMembers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CaptureBroadcaster-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Replaces the set of members, closing the links of members that left the group.
+     */
+    public synchronized void setMembers(Collection<Long> deviceIds) {
+        Set<Long> keep = new HashSet<>(deviceIds);
+        for (Iterator<Map.Entry<Long, MemberLink>> it = links.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, MemberLink> e = it.next();
+            if (!keep.contains(e.getKey())) {
+                e.getValue().close();
+                it.remove();
+            }
+        }
+        for (Long deviceId : keep) {
+            if (!links.containsKey(deviceId)) {
+                links.put(deviceId, new MemberLink(deviceId));
+            }
+        }
+    }
+
+    public synchronized Set<Long> getMembers() {
+        return Collections.unmodifiableSet(new HashSet<>(links.keySet()));
+    }
+
+    /**
+     * @return the clock estimate for a member, or null if it is not a member
+     */
+    public synchronized ClockOffsetEstimator getClock(long deviceId) {
+        MemberLink link = links.get(deviceId);
+        return link == null ? null : link.clock;
+    }
+
+    /**
+     * Sends a capture command to every member concurrently and returns straight away.
+     *
+     * @param captureTime on this device's monotonic clock
+     */
+    public Round broadcast(long captureTime) {
+        return broadcast(captureTime, PreviewSpec.NONE);
+    }
+
+    /**
+     * Like {@link #broadcast(long)}, asking every member for {@code preview} ahead of its picture.
+     */
+    public Round broadcast(long captureTime, PreviewSpec preview) {
+        return broadcast(captureTime, preview, Burst.SINGLE);
+    }
+
+    /**
+     * Like {@link #broadcast(long, PreviewSpec)}, asking every member for {@code burst} pictures.
+     */
+    public Round broadcast(long captureTime, PreviewSpec preview, Burst burst) {
+        Collection<MemberLink> members;
+        synchronized (this) {
+            members = new HashSet<>(links.values());
+        }
+        final Round round = new Round(captureTime, preview, burst, members.size());
+        for (final MemberLink link : members) {
+            senders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    link.send(round);
+                }
+            });
+        }
+        return round;
+    }
+
+    @Override
+    public synchronized void close() {
+        senders.shutdownNow();
+        for (MemberLink link : links.values()) {
+            link.close();
+        }
+        links.clear();
+    }
+
+    /**
+     * The acknowledgements of one broadcast as they come in.
+     */
+    public static final class Round {
+        private final long captureTime;
+        private final PreviewSpec preview;
+        private final Burst burst;
+        private final int members;
+        private final long startedAt = System.nanoTime();
+        private final Map<Long, Long> latencies = new ConcurrentHashMap<>();
+        private final Map<Long, Long> deliveries = new ConcurrentHashMap<>();
+        private final Map<Long, IOException> failures = new ConcurrentHashMap<>();
+
+        Round(long captureTime, PreviewSpec preview, Burst burst, int members) {
+            this.captureTime = captureTime;
+            this.preview = preview;
+            this.burst = burst;
+            this.members = members;
+        }
+
+        public long getCaptureTime() {
+            return captureTime;
+        }
+
+        public PreviewSpec getPreview() {
+            return preview;
+        }
+
+        public Burst getBurst() {
+            return burst;
+        }
+
+        public int getMemberCount() {
+            return members;
+        }
+
+        /**
+         * Waits until at least {@code quorum} members have acknowledged the command.
+         *
+         * @return false if that can no longer happen, or the timeout passed first
+         */
+        public synchronized boolean awaitQuorum(int quorum, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (latencies.size() < quorum) {
+                long remaining = deadline - System.nanoTime();
+                if (members - failures.size() < quorum || remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        /**
+         * Waits until every member has either acknowledged or failed.
+         *
+         * @return false if the timeout passed first
+         */
+        public synchronized boolean awaitAll(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (latencies.size() + failures.size() < members) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        /**
+         * @return nanoseconds from sending the command to its acknowledgement, by member
+         */
+        public Map<Long, Long> getAckLatencies() {
+            return Collections.unmodifiableMap(new HashMap<>(latencies));
+        }
+
+        /**
+         * @return nanoseconds from the broadcast to each member's acknowledgement, including
+         *         waiting for a sender, measuring the member's clock and any reconnect
+         */
+        public Map<Long, Long> getDeliveryTimes() {
+            return Collections.unmodifiableMap(new HashMap<>(deliveries));
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} of the broadcast
+         */
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        public Map<Long, IOException> getFailures() {
+            return Collections.unmodifiableMap(new HashMap<>(failures));
+        }
+
+        synchronized void acknowledged(long deviceId, long latencyNanos) {
+            deliveries.put(deviceId, System.nanoTime() - startedAt);
+            latencies.put(deviceId, latencyNanos);
+            notifyAll();
+        }
+
+        synchronized void failed(long deviceId, IOException e) {
+            failures.put(deviceId, e);
+            notifyAll();
+        }
+    }
+
+    /**
+     * The persistent connection to one member.  Commands to the same member are sent one at a
+     * time; closing the link does not wait for a command in flight but makes it fail.
+     */
+    private final class MemberLink {
+        final long deviceId;
+        final String peer;
+        final ClockOffsetEstimator clock = new ClockOffsetEstimator();
+        private volatile TransferClient client;
+        private volatile boolean closed;
+
+        MemberLink(long deviceId) {
+            this.deviceId = deviceId;
+            this.peer = MacAddress.format(deviceId);
+        }
+
+        synchronized void send(Round round) {
+            boolean reused = client != null;
+            try {
+                round.acknowledged(deviceId, sendCommand(round));
+            } catch (IOException e) {
+                closeClient();
+                metrics.failed(peer, e);
+                if (!reused) {
+                    round.failed(deviceId, e);
+                    return;
+                }
+                // the kept connection may have died while idle; try a fresh one once
+                metrics.retried(peer);
+                try {
+                    round.acknowledged(deviceId, sendCommand(round));
+                } catch (IOException retry) {
+                    closeClient();
+                    metrics.failed(peer, retry);
+                    round.failed(deviceId, retry);
+                }
+            }
+        }
+
+        private long sendCommand(Round round) throws IOException {
+            if (closed) {
+                throw new IOException("Link to " + MacAddress.format(deviceId) + " is closed");
+            }
+            TransferClient c = client;
+            if (c == null) {
+                long connectStart = System.nanoTime();
+                client = c = connector.connect(deviceId);
+                metrics.connected(peer, System.nanoTime() - connectStart);
+            }
+            c.syncClock(clock, clockSamples);
+            long start = System.nanoTime();
+            c.sendCaptureCommand(clock.toRemote(round.getCaptureTime()), round.getPreview(), round.getBurst());
+            return System.nanoTime() - start;
+        }
+
+        void close() {
+            closed = true;
+            IoUtils.closeQuietly(client);
+        }
+
+        private void closeClient() {
+            IoUtils.closeQuietly(client);
+            client = null;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.wigl.wigl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the camera open and previewing between rounds, so a capture command only has to wait
+ * for its capture time.  Commands go through an in-process queue and run one at a time on the
+ * engine thread: {@link #start} opens the camera and starts the preview, {@link #capture} fires
+ * at a capture time on the {@link CaptureScheduler} and starts the preview again as soon as the
+ * JPEG is in, for the next shot of a {@link Burst} or the next command, and {@link #stop}
+ * releases the camera.  A capture that finds the camera closed opens it first, and a failure
+ * closes it so the next command starts over.
+ *
+ * <p>Recorded in the {@link MetricsRegistry} under {@code camera.}: {@code warm_up_us}, opening
+ * the camera and starting the preview; {@code rearm_us}, restarting the preview after a shot;
+ * {@code armed_after_command_us}, from a command being queued to the camera being ready for it,
+ * which is the queue wait when the camera is warm; {@code late_us}, how late the shutter fired;
+ * {@code shutter_us}, from firing to the JPEG; and the count of {@code failures}.
+ */
+public class CaptureEngine {
+    public static final long DEFAULT_SHOT_TIMEOUT_MILLIS = 5000;
+
+    public interface Listener {
+        /**
+         * Called on the camera's callback thread as soon as the JPEG is in.
+         */
+        void onCaptured(Shot shot);
+
+        /**
+         * Called on the engine thread when the camera could not take a shot; the rest of a burst
+         * is not taken.
+         */
+        void onFailed(long captureTime, IOException e);
+    }
+
+    /**
+     * A picture and when it was taken, as {@link System#nanoTime()} values.
+     */
+    public static final class Shot {
+        private final long captureTime;
+        private final int index;
+        private final byte[] jpeg;
+        private final long commandAt;
+        private final long armedAt;
+        private final long firedAt;
+        private final long capturedAt;
+        private final long lateNanos;
+        private final boolean warm;
+
+        Shot(long captureTime, int index, byte[] jpeg, long commandAt, long armedAt, long firedAt, long capturedAt,
+             long lateNanos, boolean warm) {
+            this.captureTime = captureTime;
+            this.index = index;
+            this.jpeg = jpeg;
+            this.commandAt = commandAt;
+            this.armedAt = armedAt;
+            this.firedAt = firedAt;
+            this.capturedAt = capturedAt;
+            this.lateNanos = lateNanos;
+            this.warm = warm;
+        }
+
+        /**
+         * @return when this shot was to be taken; for shot {@code k} of a burst, {@code k}
+         *         intervals after the round's capture time
+         */
+        public long getCaptureTime() {
+            return captureTime;
+        }
+
+        /**
+         * @return which shot of its burst this is, from 0
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public byte[] getJpeg() {
+            return jpeg;
+        }
+
+        /**
+         * @return when {@link #capture} was called
+         */
+        public long getCommandAt() {
+            return commandAt;
+        }
+
+        /**
+         * @return when the camera was ready for the shot, after the commands ahead of it and, if
+         *         it was not warm, opening it
+         */
+        public long getArmedAt() {
+            return armedAt;
+        }
+
+        public long getFiredAt() {
+            return firedAt;
+        }
+
+        /**
+         * @return when the JPEG reached the engine
+         */
+        public long getCapturedAt() {
+            return capturedAt;
+        }
+
+        /**
+         * @return how long after the capture time the shutter fired
+         */
+        public long getLateNanos() {
+            return lateNanos;
+        }
+
+        /**
+         * @return whether the camera was previewing when the command reached the front of the queue
+         */
+        public boolean isWarm() {
+            return warm;
+        }
+
+        /**
+         * @return how quickly the camera was ready after the command, and how late the shutter
+         *         fired once both it and the capture time were there; only the first shot of a
+         *         burst says how ready the device was for the command
+         */
+        public Readiness getReadiness() {
+            return new Readiness(armedAt - commandAt, firedAt - Math.max(captureTime, armedAt));
+        }
+
+        @Override
+        public String toString() {
+            return "Shot{" + captureTime + (index > 0 ? " #" + index : "") + ", " + jpeg.length + " bytes, "
+                    + lateNanos + " ns late" + (warm ? "" : ", cold") + "}";
+        }
+    }
+
+    private final CameraDevice camera;
+    private final CaptureScheduler scheduler;
+    private final long shotTimeoutNanos;
+    private final ExecutorService commands = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CaptureEngine");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final HistogramRecorder warmUp;
+    private final HistogramRecorder rearm;
+    private final HistogramRecorder armedAfterCommand;
+    private final HistogramRecorder late;
+    private final HistogramRecorder shutter;
+    private final Counter failures;
+
+    /*
+     * Only touched on the engine thread
+     */
+    private boolean open;
+    private boolean previewing;
+    private volatile boolean ready;
+
+    public CaptureEngine(CameraDevice camera) {
+        this(camera, new CaptureScheduler(), MetricsRegistry.getInstance(), DEFAULT_SHOT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param scheduler         fires the shutter; shut down by {@link #shutdown()}
+     * @param shotTimeoutMillis how long after firing to wait for the JPEG before giving up on
+     *                          the camera
+     */
+    public CaptureEngine(CameraDevice camera, CaptureScheduler scheduler, MetricsRegistry metrics, long shotTimeoutMillis) {
+        this.camera = camera;
+        this.scheduler = scheduler;
+        this.shotTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(shotTimeoutMillis);
+        warmUp = metrics.recorder("camera.warm_up_us");
+        rearm = metrics.recorder("camera.rearm_us");
+        armedAfterCommand = metrics.recorder("camera.armed_after_command_us");
+        late = metrics.recorder("camera.late_us");
+        shutter = metrics.recorder("camera.shutter_us");
+        failures = metrics.counter("camera.failures");
+    }
+
+    /**
+     * Queues opening the camera and starting the preview.
+     */
+    public void start() {
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    arm(true);
+                } catch (IOException e) {
+                    failures.increment();
+                    close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a shot at {@code captureTime}, a {@link System#nanoTime()} value.  It fires late if
+     * the commands ahead of it or opening the camera take it past that time.
+     */
+    public void capture(long captureTime, Listener listener) {
+        capture(captureTime, Burst.SINGLE, listener);
+    }
+
+    /**
+     * Queues the shots of {@code burst} from {@code captureTime}.  Each is handed to the listener
+     * as soon as its JPEG is in, while the camera gets ready for the next; exposure stays locked
+     * from the first shot to the last.  A shot the camera is not ready for in time fires late
+     * without moving the ones after it, so the devices of a round stay in step shot by shot.
+     */
+    public void capture(final long captureTime, final Burst burst, final Listener listener) {
+        final long commandAt = System.nanoTime();
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < burst.getShots(); i++) {
+                        shoot(burst.shotTime(captureTime, i), i, i < burst.getShots() - 1, commandAt, listener);
+                    }
+                } catch (IOException e) {
+                    failures.increment();
+                    close();
+                    listener.onFailed(captureTime, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues stopping the preview and starting it again if it is running, so a change to where
+     * the camera draws it takes effect.
+     */
+    public void restartPreview() {
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!previewing) {
+                    return;
+                }
+                camera.stopPreview();
+                previewing = false;
+                ready = false;
+                try {
+                    arm(true);
+                } catch (IOException e) {
+                    failures.increment();
+                    close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues releasing the camera, for when the app goes to the background; {@link #start} or
+     * {@link #capture} opens it again.
+     */
+    public void stop() {
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Releases the camera after the commands already queued and stops the engine for good.
+     */
+    public void shutdown() {
+        stop();
+        commands.shutdown();
+        try {
+            commands.awaitTermination(shotTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler.shutdown();
+    }
+
+    /**
+     * @return whether the camera is previewing, so a command queued now only waits for its time
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @param unlockExposure let the preview follow the light again, unless the exposure locked
+     *                       for the last shot must hold for the next one of a burst
+     */
+    private void arm(boolean unlockExposure) throws IOException {
+        if (previewing) {
+            return;
+        }
+        long start = System.nanoTime();
+        boolean wasOpen = open;
+        if (!open) {
+            camera.open();
+            open = true;
+        }
+        if (unlockExposure) {
+            camera.lockExposure(false);
+        }
+        camera.startPreview();
+        previewing = true;
+        ready = true;
+        (wasOpen ? rearm : warmUp).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * @param more another shot of the burst follows
+     */
+    private void shoot(final long captureTime, final int index, boolean more, final long commandAt,
+                       final Listener listener) throws IOException {
+        final boolean warm = previewing;
+        arm(index == 0);
+        final long armedAt = System.nanoTime();
+        if (index == 0) {
+            armedAfterCommand.record(TimeUnit.NANOSECONDS.toMicros(armedAt - commandAt));
+        }
+
+        final CountDownLatch taken = new CountDownLatch(1);
+        final IOException[] failure = new IOException[1];
+        final long[] firedAt = new long[1];
+        final CameraDevice.PictureCallback callback = new CameraDevice.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] jpeg) {
+                long capturedAt = System.nanoTime();
+                shutter.record(TimeUnit.NANOSECONDS.toMicros(capturedAt - firedAt[0]));
+                taken.countDown();
+                listener.onCaptured(new Shot(captureTime, index, jpeg, commandAt, armedAt, firedAt[0], capturedAt,
+                        firedAt[0] - captureTime, warm));
+            }
+        };
+        Future<Long> fired = scheduler.schedule(captureTime, new CaptureScheduler.Action() {
+            @Override
+            public void prepare() {
+                camera.lockExposure(true);
+            }
+
+            @Override
+            public void fire(long lateNanos) {
+                firedAt[0] = System.nanoTime();
+                try {
+                    camera.takePicture(callback);
+                } catch (IOException e) {
+                    failure[0] = e;
+                    taken.countDown();
+                }
+            }
+        });
+        try {
+            late.record(TimeUnit.NANOSECONDS.toMicros(fired.get()));
+            previewing = false;
+            ready = false;
+            if (!taken.await(shotTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new IOException("No picture " + TimeUnit.NANOSECONDS.toMillis(shotTimeoutNanos)
+                        + " ms after firing for " + captureTime);
+            }
+        } catch (InterruptedException e) {
+            fired.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while capturing " + captureTime);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not fire for " + captureTime, e.getCause());
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        try {
+            arm(!more);
+        } catch (IOException e) {
+            if (more) {
+                throw e;
+            }
+            // the shot is in; the next command opens the camera again
+            failures.increment();
+            close();
+        }
+    }
+
+    private void close() {
+        ready = false;
+        previewing = false;
+        if (open) {
+            open = false;
+            camera.close();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.wigl.wigl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses how far ahead of now the owner sets a round's capture time.  For every device in the
+ * round, the lead has to cover the command reaching it, its camera getting ready and its
+ * scheduler's jitter; the owner measures the first itself ({@link CaptureBroadcaster.Round#getDeliveryTimes()})
+ * and devices report the other two with their shot ({@link Readiness}).  The owner counts as a
+ * device too: its delivery is how long it waited for the quorum before queueing its own shot.
+ * <p>
+ * The last {@code window} samples of each are kept per device, and the device's lead is the sum
+ * of their {@code quantile}s, which is never less than the same quantile of the total.  The
+ * round's lead is the slowest device's plus a fixed safety margin, between a minimum and a
+ * maximum.  A device without enough history yet gets the maximum, so the first rounds of a
+ * group run with the old fixed delay.
+ * <p>
+ * Each lead chosen is recorded as {@code capture.lead_us}.
+ */
+public class CaptureLeadEstimator {
+    public static final int DEFAULT_WINDOW = 32;
+    public static final double DEFAULT_QUANTILE = 0.95;
+    public static final long DEFAULT_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    public static final long DEFAULT_MIN_LEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    public static final long DEFAULT_MAX_LEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(5000);
+
+    /**
+     * Samples of each kind a device needs before its own lead is trusted.
+     */
+    static final int MIN_SAMPLES = 3;
+
+    private final int window;
+    private final double quantile;
+    private final long marginNanos;
+    private final long minLeadNanos;
+    private final long maxLeadNanos;
+    private final HistogramRecorder leads;
+    private final Map<Long, Device> devices = new HashMap<>();
+
+    public CaptureLeadEstimator() {
+        this(DEFAULT_WINDOW, DEFAULT_QUANTILE, DEFAULT_MARGIN_NANOS, DEFAULT_MIN_LEAD_NANOS, DEFAULT_MAX_LEAD_NANOS,
+                MetricsRegistry.getInstance());
+    }
+
+    /**
+     * @param window       samples of each kind kept per device
+     * @param quantile     of each kind of sample that the lead covers, from 0 to 1
+     * @param marginNanos  added to the slowest device's lead
+     * @param minLeadNanos lower bound of the lead
+     * @param maxLeadNanos upper bound of the lead, and the lead while a device has no history
+     */
+    public CaptureLeadEstimator(int window, double quantile, long marginNanos, long minLeadNanos, long maxLeadNanos,
+                                MetricsRegistry metrics) {
+        if (window < MIN_SAMPLES) {
+            throw new IllegalArgumentException("window must be at least " + MIN_SAMPLES);
+        }
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("quantile must be between 0 and 1");
+        }
+        if (minLeadNanos > maxLeadNanos) {
+            throw new IllegalArgumentException("minimum lead is more than the maximum");
+        }
+        this.window = window;
+        this.quantile = quantile;
+        this.marginNanos = marginNanos;
+        this.minLeadNanos = minLeadNanos;
+        this.maxLeadNanos = maxLeadNanos;
+        this.leads = metrics.recorder("capture.lead_us");
+    }
+
+    /**
+     * The capture command of a round took {@code nanos} to reach {@code deviceId}.
+     */
+    public synchronized void delivered(long deviceId, long nanos) {
+        device(deviceId).delivery.add(nanos);
+    }
+
+    /**
+     * {@code deviceId} reported how quickly it was ready for a round; unmeasured reports are
+     * ignored.
+     */
+    public synchronized void ready(long deviceId, Readiness readiness) {
+        if (!readiness.isMeasured()) {
+            return;
+        }
+        Device device = device(deviceId);
+        device.ready.add(readiness.getReadyNanos());
+        device.jitter.add(readiness.getJitterNanos());
+    }
+
+    /**
+     * Drops the history of devices that left the group.
+     */
+    public synchronized void retain(Collection<Long> deviceIds) {
+        devices.keySet().retainAll(deviceIds);
+    }
+
+    /**
+     * @return the lead for a round with {@code deviceIds}, including the owner
+     */
+    public long getLeadNanos(Collection<Long> deviceIds) {
+        long slowest = 0;
+        synchronized (this) {
+            for (Long id : deviceIds) {
+                Device device = devices.get(id);
+                long lead = device == null ? -1 : device.lead();
+                if (lead < 0) {
+                    slowest = maxLeadNanos;
+                    break;
+                }
+                slowest = Math.max(slowest, lead);
+            }
+        }
+        long lead = Math.max(minLeadNanos, Math.min(maxLeadNanos, slowest + marginNanos));
+        leads.record(TimeUnit.NANOSECONDS.toMicros(lead));
+        return lead;
+    }
+
+    /**
+     * @return the lead {@code deviceId} alone needs, without the margin, or -1 until it has
+     *         enough history
+     */
+    public synchronized long getDeviceLeadNanos(long deviceId) {
+        Device device = devices.get(deviceId);
+        return device == null ? -1 : device.lead();
+    }
+
+    private Device device(long deviceId) {
+        Device device = devices.get(deviceId);
+        if (device == null) {
+            device = new Device();
+            devices.put(deviceId, device);
+        }
+        return device;
+    }
+
+    private final class Device {
+        final Window delivery = new Window(window);
+        final Window ready = new Window(window);
+        final Window jitter = new Window(window);
+
+        long lead() {
+            if (delivery.count < MIN_SAMPLES || ready.count < MIN_SAMPLES) {
+                return -1;
+            }
+            return delivery.quantile(quantile) + ready.quantile(quantile) + jitter.quantile(quantile);
+        }
+    }
+
+    /**
+     * The most recent samples of one kind.
+     */
+    private static final class Window {
+        final long[] samples;
+        final long[] sorted;
+        int count;
+        int next;
+
+        Window(int size) {
+            samples = new long[size];
+            sorted = new long[size];
+        }
+
+        void add(long sample) {
+            samples[next] = Math.max(0, sample);
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        long quantile(double q) {
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            int index = (int) Math.ceil(q * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.wigl.wigl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fires captures at {@link System#nanoTime()} deadlines.  The scheduler thread sleeps until
+ * shortly before the deadline, then spins for the last stretch, since sleeps on a phone overshoot
+ * by milliseconds.  Shortly before that, the action gets a chance to prepare the camera so the
+ * shot itself starts as soon as it fires.
+ * <p>
+ * Captures run one at a time on a single high-priority thread, in the order they were scheduled.
+ */
+public class CaptureScheduler {
+    public static final long DEFAULT_SPIN_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    public static final long DEFAULT_PREPARE_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+    public interface Action {
+        /**
+         * Called on the scheduler thread about the prepare lead before the deadline, or straight
+         * away if the capture was scheduled later than that.
+         */
+        void prepare();
+
+        /**
+         * Called on the scheduler thread at the deadline.
+         *
+         * @param lateNanos how long after the deadline this call started; never negative
+         */
+        void fire(long lateNanos);
+    }
+
+    private final long spinNanos;
+    private final long prepareNanos;
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CaptureScheduler");
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+        }
+    });
+
+    public CaptureScheduler() {
+        this(DEFAULT_SPIN_NANOS, DEFAULT_PREPARE_NANOS);
+    }
+
+    /**
+     * @param spinNanos    how long before the deadline to stop sleeping and start spinning
+     * @param prepareNanos how long before the deadline to call {@link Action#prepare()}
+     */
+    public CaptureScheduler(long spinNanos, long prepareNanos) {
+        this.spinNanos = spinNanos;
+        this.prepareNanos = prepareNanos;
+    }
+
+    /**
+     * @return completes with how late the action fired, in nanoseconds; cancelling it before the
+     *         deadline stops the capture
+     */
+    public Future<Long> schedule(final long deadlineNanos, final Action action) {
+        return thread.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws InterruptedException {
+                sleepUntil(deadlineNanos - prepareNanos);
+                action.prepare();
+                sleepUntil(deadlineNanos - spinNanos);
+                long now;
+                while ((now = System.nanoTime()) - deadlineNanos < 0) {
+                    // spin
+                }
+                long late = now - deadlineNanos;
+                action.fire(late);
+                return late;
+            }
+        });
+    }
+
+    /**
+     * Stops the scheduler thread; captures still waiting never fire.
+     */
+    public void shutdown() {
+        thread.shutdownNow();
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+}
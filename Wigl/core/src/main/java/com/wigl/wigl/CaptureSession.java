@@ -0,0 +1,219 @@
+package com.wigl.wigl;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the pictures of one Wigl round: one per device, or for a {@link Burst}, one per device
+ * and shot.  The {@link Callback} is called exactly once: as soon as the last expected picture
+ * arrives, or when the round's deadline passes with pictures still missing.  Pictures may be
+ * added from any thread.
+ */
+public class CaptureSession {
+    public interface Callback {
+        /**
+         * Every expected picture arrived.  {@code pictures} is in the order the devices were
+         * given to the session; for a burst it holds the first shot, and {@link #getShot} the
+         * others.
+         */
+        void onComplete(CaptureSession session, Map<Long, File> pictures);
+
+        /**
+         * The deadline passed first.  {@code received} holds the first pictures that did arrive,
+         * and {@code missing} the devices that did not send every shot.
+         */
+        void onTimeout(CaptureSession session, Map<Long, File> received, Set<Long> missing);
+    }
+
+    private final long roundId;
+    private final Set<Long> expected;
+    private final int shots;
+    private final Callback callback;
+    private final Map<Long, File[]> pictures = new LinkedHashMap<>();
+    private int missing;
+    private ScheduledFuture<?> deadline;
+    private boolean done;
+
+    /**
+     * @param roundId  identifies the round, for callers juggling more than one
+     * @param devices  ids of the devices expected to send a picture
+     * @param callback told when the round completes or times out
+     */
+    public CaptureSession(long roundId, Collection<Long> devices, Callback callback) {
+        this(roundId, devices, 1, callback);
+    }
+
+    /**
+     * @param shots pictures expected from each device
+     */
+    public CaptureSession(long roundId, Collection<Long> devices, int shots, Callback callback) {
+        if (devices.isEmpty()) {
+            throw new IllegalArgumentException("A capture session needs at least one device");
+        }
+        if (shots < 1) {
+            throw new IllegalArgumentException("A capture session needs at least one shot");
+        }
+        this.roundId = roundId;
+        this.expected = Collections.unmodifiableSet(new LinkedHashSet<>(devices));
+        this.shots = shots;
+        this.callback = callback;
+        for (Long device : expected) {
+            pictures.put(device, new File[shots]);
+        }
+        missing = expected.size() * shots;
+    }
+
+    /**
+     * Times the round out {@code timeoutMillis} from now.
+     */
+    public void start(ScheduledExecutorService scheduler, long timeoutMillis) {
+        ScheduledFuture<?> future = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            if (deadline != null) {
+                future.cancel(false);
+                throw new IllegalStateException("Capture session " + roundId + " already started");
+            }
+            deadline = future;
+            if (done) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @return false if the device is not part of this round, already sent its picture, or the
+     *         round is over
+     */
+    public boolean addPicture(long deviceId, File picture) {
+        return addPicture(deviceId, 0, picture);
+    }
+
+    /**
+     * Adds shot {@code shot} of a burst; shots may arrive in any order.
+     *
+     * @return false if the device is not part of this round, already sent that shot, there is
+     *         no such shot, or the round is over
+     */
+    public boolean addPicture(long deviceId, int shot, File picture) {
+        Map<Long, File> complete;
+        synchronized (this) {
+            File[] frames = pictures.get(deviceId);
+            if (done || frames == null || shot < 0 || shot >= shots || frames[shot] != null) {
+                return false;
+            }
+            frames[shot] = picture;
+            if (--missing > 0) {
+                return true;
+            }
+            done = true;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            complete = shotLocked(0);
+        }
+        callback.onComplete(this, complete);
+        return true;
+    }
+
+    /**
+     * Ends the round without calling the callback.
+     */
+    public synchronized void cancel() {
+        done = true;
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     * @return the picture {@code deviceId} sent for this round, or null if none arrived yet
+     */
+    public synchronized File getPicture(long deviceId) {
+        return getPicture(deviceId, 0);
+    }
+
+    /**
+     * @return shot {@code shot} of {@code deviceId}, or null if it has not arrived
+     */
+    public synchronized File getPicture(long deviceId, int shot) {
+        File[] frames = pictures.get(deviceId);
+        return frames == null || shot < 0 || shot >= shots ? null : frames[shot];
+    }
+
+    /**
+     * @return the pictures of shot {@code shot} that arrived so far, in device order: one Wigl
+     *         of a burst
+     */
+    public synchronized Map<Long, File> getShot(int shot) {
+        if (shot < 0 || shot >= shots) {
+            throw new IllegalArgumentException("Round " + roundId + " has no shot " + shot);
+        }
+        return shotLocked(shot);
+    }
+
+    public int getShotCount() {
+        return shots;
+    }
+
+    public long getRoundId() {
+        return roundId;
+    }
+
+    public Set<Long> getExpectedDevices() {
+        return expected;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    private void expire() {
+        Map<Long, File> received = new LinkedHashMap<>();
+        Set<Long> missing = new LinkedHashSet<>();
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            for (Map.Entry<Long, File[]> e : pictures.entrySet()) {
+                if (Arrays.asList(e.getValue()).contains(null)) {
+                    missing.add(e.getKey());
+                }
+                if (e.getValue()[0] != null) {
+                    received.put(e.getKey(), e.getValue()[0]);
+                }
+            }
+        }
+        callback.onTimeout(this, Collections.unmodifiableMap(received), Collections.unmodifiableSet(missing));
+    }
+
+    private Map<Long, File> shotLocked(int shot) {
+        Map<Long, File> frames = new LinkedHashMap<>();
+        for (Map.Entry<Long, File[]> e : pictures.entrySet()) {
+            if (e.getValue()[shot] != null) {
+                frames.put(e.getKey(), e.getValue()[shot]);
+            }
+        }
+        return Collections.unmodifiableMap(frames);
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureSession[" + roundId + ", " + expected.size() + " devices"
+                + (shots > 1 ? ", " + shots + " shots" : "") + "]";
+    }
+}
@@ -0,0 +1,167 @@
+package com.wigl.wigl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Estimates the offset between this device's monotonic clock and a peer's from NTP-style round
+ * trips.  Each sample is four timestamps: request sent (t1, local), request received (t2,
+ * remote), reply sent (t3, remote) and reply received (t4, local).  The sample's offset is
+ * {@code ((t2 - t1) + (t3 - t4)) / 2}, exact when both legs of the trip take equally long.
+ * <p>
+ * Queueing delay is what makes the legs unequal, so only the lowest-RTT quarter of the recent
+ * samples is used.  When those span long enough a least-squares line through them also gives
+ * the drift between the two oscillators, and offsets are extrapolated along it.
+ */
+public class ClockOffsetEstimator {
+    public static final int DEFAULT_WINDOW = 64;
+
+    /**
+     * The best samples must be spread over at least this long before drift is estimated, since
+     * a line through one burst of samples is dominated by their jitter.
+     */
+    static final long MIN_DRIFT_SPAN_NANOS = 2000000000L;
+
+    private final long[] times;
+    private final long[] offsets;
+    private final long[] rtts;
+    private final Integer[] order;
+    private int count;
+    private int next;
+
+    // the current estimate: offset = intercept + slope * (local - reference)
+    private long reference;
+    private long intercept;
+    private double slope;
+    private long bestRtt = -1;
+
+    public ClockOffsetEstimator() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window number of most recent samples kept
+     */
+    public ClockOffsetEstimator(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        times = new long[window];
+        offsets = new long[window];
+        rtts = new long[window];
+        order = new Integer[window];
+    }
+
+    /**
+     * @param t1 local time the request was sent
+     * @param t2 remote time the request was received
+     * @param t3 remote time the reply was sent
+     * @param t4 local time the reply was received
+     */
+    public synchronized void addSample(long t1, long t2, long t3, long t4) {
+        long rtt = (t4 - t1) - (t3 - t2);
+        if (rtt < 0) {
+            // the peer spent longer than the whole round trip; one of the clocks is broken
+            return;
+        }
+        times[next] = t1 + (t4 - t1) / 2;
+        offsets[next] = ((t2 - t1) + (t3 - t4)) / 2;
+        rtts[next] = rtt;
+        next = (next + 1) % times.length;
+        count = Math.min(count + 1, times.length);
+        estimate();
+    }
+
+    public synchronized boolean hasEstimate() {
+        return count > 0;
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * @return remote minus local clock at local time {@code localNanos}
+     */
+    public synchronized long getOffsetNanos(long localNanos) {
+        checkEstimate();
+        return intercept + Math.round(slope * (localNanos - reference));
+    }
+
+    /**
+     * @return the remote clock's drift relative to ours, in parts per million
+     */
+    public synchronized double getDriftPpm() {
+        return slope * 1e6;
+    }
+
+    /**
+     * @return the shortest round trip in the window, or -1 before the first sample
+     */
+    public synchronized long getBestRoundTripNanos() {
+        return bestRtt;
+    }
+
+    /**
+     * Converts a local monotonic time into the peer's clock.
+     */
+    public synchronized long toRemote(long localNanos) {
+        return localNanos + getOffsetNanos(localNanos);
+    }
+
+    /**
+     * Converts a time on the peer's clock into our own monotonic clock.
+     */
+    public synchronized long toLocal(long remoteNanos) {
+        checkEstimate();
+        // remote = local + intercept + slope * (local - reference), solved for local
+        return reference + Math.round((remoteNanos - reference - intercept) / (1 + slope));
+    }
+
+    private void checkEstimate() {
+        if (count == 0) {
+            throw new IllegalStateException("No clock samples yet");
+        }
+    }
+
+    private void estimate() {
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, 0, count, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return rtts[a] < rtts[b] ? -1 : rtts[a] == rtts[b] ? 0 : 1;
+            }
+        });
+        bestRtt = rtts[order[0]];
+        int best = Math.max(1, count / 4);
+
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        for (int i = 0; i < best; i++) {
+            minTime = Math.min(minTime, times[order[i]]);
+            maxTime = Math.max(maxTime, times[order[i]]);
+        }
+        reference = minTime + (maxTime - minTime) / 2;
+
+        // work relative to the first chosen offset so the sums stay small enough for doubles
+        long base = offsets[order[0]];
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        for (int i = 0; i < best; i++) {
+            double x = times[order[i]] - reference;
+            double y = offsets[order[i]] - base;
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+        double meanX = sumX / best;
+        double meanY = sumY / best;
+        if (maxTime - minTime >= MIN_DRIFT_SPAN_NANOS) {
+            slope = (sumXY - best * meanX * meanY) / (sumXX - best * meanX * meanX);
+        }
+        // otherwise keep the drift from the last estimate that had the span for it
+        intercept = base + Math.round(meanY - slope * meanX);
+    }
+}
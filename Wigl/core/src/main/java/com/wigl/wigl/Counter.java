@@ -0,0 +1,27 @@
+package com.wigl.wigl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that any thread may add to without locking.
+ */
+public final class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(value.get());
+    }
+}
@@ -0,0 +1,71 @@
+package com.wigl.wigl;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum on every picture chunk.  {@code java.util.zip.CRC32C} only
+ * exists from Java 9, so this is a table driven implementation that processes eight bytes per
+ * step.
+ */
+public final class Crc32c implements Checksum {
+    private static final int POLY = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLES[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLES[0][n];
+            for (int t = 1; t < 8; t++) {
+                crc = TABLES[0][crc & 0xFF] ^ (crc >>> 8);
+                TABLES[t][n] = crc;
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public static int compute(byte[] b, int off, int len) {
+        Crc32c c = new Crc32c();
+        c.update(b, off, len);
+        return (int) c.getValue();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = TABLES[0][(crc ^ b) & 0xFF] ^ (crc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        int end = off + len;
+        while (end - off >= 8) {
+            int lo = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+            c = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                    ^ t3[b[off + 4] & 0xFF] ^ t2[b[off + 5] & 0xFF] ^ t1[b[off + 6] & 0xFF] ^ t0[b[off + 7] & 0xFF];
+            off += 8;
+        }
+        while (off < end) {
+            c = t0[(c ^ b[off++]) & 0xFF] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -0,0 +1,89 @@
+package com.wigl.wigl;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Why a transfer failed, as far as its exception tells.
+ */
+public enum FailureCause {
+    /**
+     * Nothing listened on the peer's port.
+     */
+    REFUSED,
+
+    /**
+     * The peer's address could not be reached or resolved: usually the group went away.
+     */
+    UNREACHABLE,
+
+    /**
+     * A connect or read timed out.
+     */
+    TIMEOUT,
+
+    /**
+     * The connection was closed under the transfer, by a stall watchdog or on shutdown.
+     */
+    CLOSED,
+
+    /**
+     * The peer reset the connection or it broke.
+     */
+    RESET,
+
+    /**
+     * The peer closed the connection in the middle of a frame.
+     */
+    EOF,
+
+    /**
+     * A malformed frame, a failed checksum or digest, or an unexpected reply.
+     */
+    PROTOCOL,
+
+    /**
+     * A local file could not be opened.
+     */
+    FILE,
+
+    OTHER;
+
+    public static FailureCause of(IOException e) {
+        if (e instanceof ConnectException) {
+            return REFUSED;
+        }
+        if (e instanceof NoRouteToHostException || e instanceof PortUnreachableException
+                || e instanceof UnknownHostException) {
+            return UNREACHABLE;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return TIMEOUT;
+        }
+        if (e instanceof ClosedChannelException) {
+            return CLOSED;
+        }
+        if (e instanceof SocketException) {
+            return RESET;
+        }
+        if (e instanceof EOFException) {
+            return EOF;
+        }
+        if (e instanceof ProtocolException) {
+            return PROTOCOL;
+        }
+        if (e instanceof FileNotFoundException) {
+            return FILE;
+        }
+        return OTHER;
+    }
+}
@@ -0,0 +1,389 @@
+package com.wigl.wigl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes frames on the transfer channel.  Every frame is a fixed
+ * {@value #HEADER_SIZE} byte big-endian header followed by {@code length} payload bytes:
+ *
+ * <pre>
+ *  0      1        2     3      4        8          16         20
+ * +------+--------+-----+------+--------+----------+----------+---------
+ * | 'W'  | version| type| flags| length | deviceId | sequence | payload
+ * +------+--------+-----+------+--------+----------+----------+---------
+ * </pre>
+ *
+ * The receiver dispatches on the header alone; payloads never have to be scanned to find out
+ * what they are.
+ */
+public class FrameCodec {
+    public static final int HEADER_SIZE = 20;
+    public static final int MAGIC = 'W';
+    public static final int VERSION = 1;
+
+    /**
+     * Largest payload accepted, so a corrupt header cannot make the receiver allocate or wait
+     * for gigabytes.
+     */
+    public static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+
+    public static final int CAPTURE_COMMAND_SIZE = 8;
+    public static final int CAPTURE_COMMAND_PREVIEW_SIZE = CAPTURE_COMMAND_SIZE + 5;
+    public static final int CAPTURE_COMMAND_BURST_SIZE = CAPTURE_COMMAND_PREVIEW_SIZE + 5;
+    public static final int RESUME_SIZE = 8;
+    public static final int TIME_REQUEST_SIZE = 8;
+    public static final int TIME_RESPONSE_SIZE = 24;
+    public static final int CAPTURE_REPORT_SIZE = 16;
+    public static final int CAPTURE_REPORT_READINESS_SIZE = CAPTURE_REPORT_SIZE + 16;
+    public static final int TRACE_SPAN_SIZE = 25;
+
+    /**
+     * Offset and checksum at the start of every {@link MessageType#CHUNK} payload.
+     */
+    public static final int CHUNK_HEADER_SIZE = 12;
+
+    public static void encodeHeader(FrameHeader header, ByteBuffer dst) {
+        dst.put((byte) MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) header.getType().code);
+        dst.put((byte) header.getFlags());
+        dst.putInt(header.getLength());
+        dst.putLong(header.getDeviceId());
+        dst.putInt(header.getSequence());
+    }
+
+    public static byte[] encodeHeader(FrameHeader header) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        encodeHeader(header, buf);
+        return buf.array();
+    }
+
+    /**
+     * Decodes the header at the buffer's position and advances past it.
+     *
+     * @throws ProtocolException if the bytes are not a valid header
+     */
+    public static FrameHeader decodeHeader(ByteBuffer src) throws ProtocolException {
+        if (src.remaining() < HEADER_SIZE) {
+            throw new ProtocolException("Truncated header: " + src.remaining() + " bytes");
+        }
+        int magic = src.get() & 0xFF;
+        int version = src.get() & 0xFF;
+        int code = src.get() & 0xFF;
+        int flags = src.get() & 0xFF;
+        int length = src.getInt();
+        long deviceId = src.getLong();
+        int sequence = src.getInt();
+        if (magic != MAGIC) {
+            throw new ProtocolException("Bad frame magic " + magic);
+        }
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+        MessageType type = MessageType.fromCode(code);
+        if (type == null) {
+            throw new ProtocolException("Unknown message type " + code);
+        }
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new ProtocolException("Bad payload length " + length);
+        }
+        return new FrameHeader(type, flags, length, deviceId, sequence);
+    }
+
+    /**
+     * Reads the next header from {@code in}.
+     *
+     * @param buf scratch space of at least {@link #HEADER_SIZE} bytes
+     * @return the header, or null if the stream ended cleanly before a new frame
+     */
+    public static FrameHeader readHeader(InputStream in, byte[] buf) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        buf[0] = (byte) first;
+        readFully(in, buf, 1, HEADER_SIZE - 1);
+        return decodeHeader(ByteBuffer.wrap(buf, 0, HEADER_SIZE));
+    }
+
+    public static byte[] readPayload(InputStream in, FrameHeader header) throws IOException {
+        byte[] payload = new byte[header.getLength()];
+        readFully(in, payload, 0, payload.length);
+        return payload;
+    }
+
+    /**
+     * Reads the next header straight from a channel, without read-ahead into the payload.
+     *
+     * @param buf scratch space of at least {@link #HEADER_SIZE} bytes
+     * @return the header, or null if the channel ended cleanly before a new frame
+     */
+    public static FrameHeader readHeader(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        buf.clear();
+        buf.limit(HEADER_SIZE);
+        if (in.read(buf) == -1) {
+            return null;
+        }
+        readFully(in, buf);
+        buf.flip();
+        return decodeHeader(buf);
+    }
+
+    public static byte[] readPayload(ReadableByteChannel in, FrameHeader header) throws IOException {
+        byte[] payload = new byte[header.getLength()];
+        readFully(in, ByteBuffer.wrap(payload));
+        return payload;
+    }
+
+    /**
+     * Writes the header and payload with a single gathering write.
+     */
+    public static void writeFrame(GatheringByteChannel out, FrameHeader header, byte[] payload) throws IOException {
+        if (payload.length != header.getLength()) {
+            throw new IllegalArgumentException("Payload is " + payload.length + " bytes, header says " + header.getLength());
+        }
+        ByteBuffer[] frame = {ByteBuffer.wrap(encodeHeader(header)), ByteBuffer.wrap(payload)};
+        while (frame[0].hasRemaining() || frame[1].hasRemaining()) {
+            out.write(frame);
+        }
+    }
+
+    public static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    public static void readFully(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) == -1) {
+                throw new EOFException("Frame truncated");
+            }
+        }
+    }
+
+    public static void writeFrame(DataOutputStream out, FrameHeader header, byte[] payload) throws IOException {
+        if (payload.length != header.getLength()) {
+            throw new IllegalArgumentException("Payload is " + payload.length + " bytes, header says " + header.getLength());
+        }
+        out.write(encodeHeader(header));
+        out.write(payload);
+    }
+
+    public static byte[] encodeCaptureCommand(long captureTime) {
+        return ByteBuffer.allocate(CAPTURE_COMMAND_SIZE).putLong(captureTime).array();
+    }
+
+    /**
+     * @param preview appended only if {@link PreviewSpec#isRequested() requested}
+     */
+    public static byte[] encodeCaptureCommand(long captureTime, PreviewSpec preview) {
+        if (!preview.isRequested()) {
+            return encodeCaptureCommand(captureTime);
+        }
+        return ByteBuffer.allocate(CAPTURE_COMMAND_PREVIEW_SIZE).putLong(captureTime)
+                .putInt(preview.getMaxSide()).put((byte) preview.getQuality()).array();
+    }
+
+    /**
+     * @param burst appended only if it is a {@link Burst#isBurst() burst}, after the preview,
+     *              which is then sent even if it is not requested
+     */
+    public static byte[] encodeCaptureCommand(long captureTime, PreviewSpec preview, Burst burst) {
+        if (!burst.isBurst()) {
+            return encodeCaptureCommand(captureTime, preview);
+        }
+        return ByteBuffer.allocate(CAPTURE_COMMAND_BURST_SIZE).putLong(captureTime)
+                .putInt(preview.getMaxSide()).put((byte) preview.getQuality())
+                .put((byte) burst.getShots()).putInt((int) TimeUnit.NANOSECONDS.toMicros(burst.getIntervalNanos()))
+                .array();
+    }
+
+    public static long decodeCaptureCommand(byte[] payload) throws ProtocolException {
+        if (payload.length != CAPTURE_COMMAND_SIZE && payload.length != CAPTURE_COMMAND_PREVIEW_SIZE
+                && payload.length != CAPTURE_COMMAND_BURST_SIZE) {
+            throw new ProtocolException("Bad capture command length " + payload.length);
+        }
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    /**
+     * @return the preview asked for in a capture command, or {@link PreviewSpec#NONE}
+     */
+    public static PreviewSpec decodeCapturePreview(byte[] payload) throws ProtocolException {
+        if (payload.length == CAPTURE_COMMAND_SIZE) {
+            return PreviewSpec.NONE;
+        }
+        if (payload.length != CAPTURE_COMMAND_PREVIEW_SIZE && payload.length != CAPTURE_COMMAND_BURST_SIZE) {
+            throw new ProtocolException("Bad capture command length " + payload.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(payload, CAPTURE_COMMAND_SIZE, 5);
+        int maxSide = buf.getInt();
+        int quality = buf.get() & 0xFF;
+        if (maxSide == 0 && quality == 0 && payload.length == CAPTURE_COMMAND_BURST_SIZE) {
+            return PreviewSpec.NONE;
+        }
+        if (maxSide <= 0 || quality < 1 || quality > 100) {
+            throw new ProtocolException("Bad preview " + maxSide + " at quality " + quality);
+        }
+        return new PreviewSpec(maxSide, quality);
+    }
+
+    /**
+     * @return the burst asked for in a capture command, or {@link Burst#SINGLE}
+     */
+    public static Burst decodeCaptureBurst(byte[] payload) throws ProtocolException {
+        if (payload.length == CAPTURE_COMMAND_SIZE || payload.length == CAPTURE_COMMAND_PREVIEW_SIZE) {
+            return Burst.SINGLE;
+        }
+        if (payload.length != CAPTURE_COMMAND_BURST_SIZE) {
+            throw new ProtocolException("Bad capture command length " + payload.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(payload, CAPTURE_COMMAND_PREVIEW_SIZE, 5);
+        int shots = buf.get() & 0xFF;
+        long intervalMicros = buf.getInt() & 0xFFFFFFFFL;
+        if (shots < 2 || shots > Burst.MAX_SHOTS || intervalMicros == 0) {
+            throw new ProtocolException("Bad burst of " + shots + " every " + intervalMicros + " us");
+        }
+        return new Burst(shots, TimeUnit.MICROSECONDS.toNanos(intervalMicros));
+    }
+
+    public static byte[] encodeCaptureReport(long captureTime, long lateNanos) {
+        return ByteBuffer.allocate(CAPTURE_REPORT_SIZE).putLong(captureTime).putLong(lateNanos).array();
+    }
+
+    /**
+     * @param readiness appended only if {@link Readiness#isMeasured() measured}
+     */
+    public static byte[] encodeCaptureReport(long captureTime, long lateNanos, Readiness readiness) {
+        if (!readiness.isMeasured()) {
+            return encodeCaptureReport(captureTime, lateNanos);
+        }
+        return ByteBuffer.allocate(CAPTURE_REPORT_READINESS_SIZE).putLong(captureTime).putLong(lateNanos)
+                .putLong(readiness.getReadyNanos()).putLong(readiness.getJitterNanos()).array();
+    }
+
+    /**
+     * @return the capture time and how late the shutter fired, in that order
+     */
+    public static long[] decodeCaptureReport(byte[] payload) throws ProtocolException {
+        if (payload.length != CAPTURE_REPORT_SIZE && payload.length != CAPTURE_REPORT_READINESS_SIZE) {
+            throw new ProtocolException("Bad capture report length " + payload.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        return new long[]{buf.getLong(), buf.getLong()};
+    }
+
+    /**
+     * @return the readiness in a capture report, or {@link Readiness#NONE}
+     */
+    public static Readiness decodeCaptureReadiness(byte[] payload) throws ProtocolException {
+        if (payload.length == CAPTURE_REPORT_SIZE) {
+            return Readiness.NONE;
+        }
+        if (payload.length != CAPTURE_REPORT_READINESS_SIZE) {
+            throw new ProtocolException("Bad capture report length " + payload.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(payload, CAPTURE_REPORT_SIZE, 16);
+        long ready = buf.getLong();
+        long jitter = buf.getLong();
+        if (ready < 0 || jitter < 0) {
+            throw new ProtocolException("Bad readiness " + ready + ", " + jitter);
+        }
+        return new Readiness(ready, jitter);
+    }
+
+    public static byte[] encodeTraceReport(List<TraceSpan> spans) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + spans.size() * TRACE_SPAN_SIZE).putInt(spans.size());
+        for (TraceSpan span : spans) {
+            buf.putLong(span.getRound()).put((byte) span.getStage().code)
+                    .putLong(span.getStartNanos()).putLong(span.getEndNanos());
+        }
+        return buf.array();
+    }
+
+    public static List<TraceSpan> decodeTraceReport(byte[] payload) throws ProtocolException {
+        if (payload.length < 4) {
+            throw new ProtocolException("Bad trace report length " + payload.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        int count = buf.getInt();
+        if (count < 0 || (long) count * TRACE_SPAN_SIZE != payload.length - 4) {
+            throw new ProtocolException("Trace report of " + payload.length + " bytes cannot hold " + count + " spans");
+        }
+        List<TraceSpan> spans = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long round = buf.getLong();
+            TraceStage stage = TraceStage.fromCode(buf.get());
+            if (stage == null) {
+                throw new ProtocolException("Unknown trace stage " + (payload[buf.position() - 1] & 0xFF));
+            }
+            spans.add(new TraceSpan(round, stage, buf.getLong(), buf.getLong()));
+        }
+        return spans;
+    }
+
+    public static byte[] encodeResume(long offset) {
+        return ByteBuffer.allocate(RESUME_SIZE).putLong(offset).array();
+    }
+
+    public static long decodeResume(byte[] payload) throws ProtocolException {
+        if (payload.length != RESUME_SIZE) {
+            throw new ProtocolException("Bad resume length " + payload.length);
+        }
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    public static byte[] encodeTimeRequest(long sentNanos) {
+        return ByteBuffer.allocate(TIME_REQUEST_SIZE).putLong(sentNanos).array();
+    }
+
+    public static long decodeTimeRequest(byte[] payload) throws ProtocolException {
+        if (payload.length != TIME_REQUEST_SIZE) {
+            throw new ProtocolException("Bad time request length " + payload.length);
+        }
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    public static byte[] encodeTimeResponse(long requestNanos, long receivedNanos, long sentNanos) {
+        return ByteBuffer.allocate(TIME_RESPONSE_SIZE).putLong(requestNanos).putLong(receivedNanos).putLong(sentNanos).array();
+    }
+
+    /**
+     * @return the request, receive and send times of a time response, in that order
+     */
+    public static long[] decodeTimeResponse(byte[] payload) throws ProtocolException {
+        if (payload.length != TIME_RESPONSE_SIZE) {
+            throw new ProtocolException("Bad time response length " + payload.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        return new long[]{buf.getLong(), buf.getLong(), buf.getLong()};
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+        if (in instanceof DataInputStream) {
+            ((DataInputStream) in).readFully(buf, off, len);
+            return;
+        }
+        while (len > 0) {
+            int n = in.read(buf, off, len);
+            if (n == -1) {
+                throw new EOFException("Frame truncated");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.wigl.wigl;
+
+/**
+ * The fixed size header in front of every frame.  See {@link FrameCodec} for the wire layout.
+ */
+public final class FrameHeader {
+    /**
+     * On a {@link MessageType#PICTURE} offer: the picture is the scaled-down preview of a
+     * full-size picture that follows.
+     */
+    public static final int FLAG_PREVIEW = 0x01;
+
+    /**
+     * On a {@link MessageType#PICTURE} offer, the upper four flag bits hold which shot of a
+     * {@link Burst} the picture is; see {@link #shotFlags(int)}.
+     */
+    public static final int SHOT_SHIFT = 4;
+
+    private final MessageType type;
+    private final int flags;
+    private final int length;
+    private final long deviceId;
+    private final int sequence;
+
+    public FrameHeader(MessageType type, int flags, int length, long deviceId, int sequence) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative payload length " + length);
+        }
+        this.type = type;
+        this.flags = flags & 0xFF;
+        this.length = length;
+        this.deviceId = deviceId;
+        this.sequence = sequence;
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return the payload length in bytes, not counting the header
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the sender's device id, see {@link MacAddress#parse(String)}
+     */
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the shot of a burst a picture offer carries, 0 for single pictures
+     */
+    public int getShot() {
+        return flags >>> SHOT_SHIFT;
+    }
+
+    /**
+     * @return the flags that mark a picture as shot {@code shot} of a burst, to be or-ed with
+     *         any others
+     */
+    public static int shotFlags(int shot) {
+        if (shot < 0 || shot >= Burst.MAX_SHOTS) {
+            throw new IllegalArgumentException("Bad shot " + shot);
+        }
+        return shot << SHOT_SHIFT;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FrameHeader)) return false;
+        FrameHeader that = (FrameHeader) o;
+        return type == that.type && flags == that.flags && length == that.length
+                && deviceId == that.deviceId && sequence == that.sequence;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = type.hashCode();
+        result = 31 * result + flags;
+        result = 31 * result + length;
+        result = 31 * result + (int) (deviceId ^ (deviceId >>> 32));
+        result = 31 * result + sequence;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return type + "[seq=" + sequence + ", device=" + MacAddress.format(deviceId)
+                + ", length=" + length + ", flags=" + flags + "]";
+    }
+}
@@ -0,0 +1,79 @@
+package com.wigl.wigl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records non-negative values, such as latencies, into log-linear buckets the way HdrHistogram
+ * does: every power of two is split into {@value #SUB_BUCKETS} equal buckets, so any value is
+ * kept to within about 3% over the whole range of a long in a fixed {@value #BUCKETS} counts.
+ * Recording is a few atomic adds with no locks or allocation, and may happen from any thread
+ * while another takes a {@link #snapshot()}.
+ */
+public class HistogramRecorder {
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value clamped to 0 if negative
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the counts so far.  Values recorded while the snapshot is taken may be in some of
+     *         its totals and not others.
+     */
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new HistogramSnapshot(copy, count, sum.get(), max.get());
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the smallest value that goes into bucket {@code index}
+     */
+    static long lowestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return the largest value that goes into bucket {@code index}
+     */
+    static long highestValue(int index) {
+        int shift = index < SUB_BUCKETS ? 0 : index / SUB_BUCKETS - 1;
+        return lowestValue(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,60 @@
+package com.wigl.wigl;
+
+/**
+ * The counts of a {@link HistogramRecorder} at one point in time.
+ */
+public final class HistogramSnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the value that {@code percentile} percent of the recorded values are at or below,
+     *         to within the recorder's precision, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(HistogramRecorder.highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count %d, mean %.1f, p50 %d, p95 %d, p99 %d, max %d", count, getMean(),
+                getValueAtPercentile(50), getValueAtPercentile(95), getValueAtPercentile(99), max);
+    }
+}
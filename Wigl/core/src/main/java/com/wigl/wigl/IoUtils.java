@@ -0,0 +1,21 @@
+package com.wigl.wigl;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Stream helpers shared by the transfer client and server.  Kept free of Android classes so
+ * they can be exercised on a plain JVM.
+ */
+public class IoUtils {
+    public static final int BUFFER_SIZE = 8192;
+
+    public static void closeQuietly(Closeable c) {
+        try {
+            if (c != null)
+                c.close();
+        } catch (IOException e) {
+            // nothing useful to do
+        }
+    }
+}
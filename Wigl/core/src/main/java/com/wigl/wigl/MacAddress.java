@@ -0,0 +1,62 @@
+package com.wigl.wigl;
+
+/**
+ * Converts between textual MAC addresses and the 48 bit value used as a device id on the wire.
+ */
+public class MacAddress {
+    /**
+     * Device id used when the local MAC address is not known yet.
+     */
+    public static final long UNKNOWN = 0;
+
+    /**
+     * Parses {@code aa:bb:cc:dd:ee:ff} (or {@code -} separated, any case) into a 48 bit value.
+     *
+     * @throws IllegalArgumentException if {@code mac} is not a MAC address
+     */
+    public static long parse(String mac) {
+        long value = tryParse(mac);
+        if (value < 0) {
+            throw new IllegalArgumentException("Not a MAC address: " + mac);
+        }
+        return value;
+    }
+
+    /**
+     * Like {@link #parse(String)} but returns -1 instead of throwing.
+     */
+    public static long tryParse(CharSequence mac) {
+        if (mac == null || mac.length() != 17) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = mac.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':' && c != '-') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    public static String format(long mac) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (mac >>> (40 - 8 * i)) & 0xFF;
+            chars[i * 3] = Character.forDigit(b >>> 4, 16);
+            chars[i * 3 + 1] = Character.forDigit(b & 0xF, 16);
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,89 @@
+package com.wigl.wigl;
+
+/**
+ * The kinds of frame exchanged between {@link TransferClient} and {@link TransferServer}.  The
+ * code is what goes on the wire, so existing codes must never be renumbered.
+ */
+public enum MessageType {
+    /**
+     * Payload is the capture time as an 8 byte big-endian long, in nanoseconds on the
+     * receiver's monotonic clock.  The owner may follow it with the {@link PreviewSpec} it wants
+     * from members: the 4 byte longest side and the 1 byte JPEG quality.  After that may come a
+     * {@link Burst}: the 1 byte number of shots and the 4 byte interval between them in
+     * microseconds, with a zero preview if none is wanted.
+     */
+    CAPTURE_COMMAND(1),
+
+    /**
+     * Payload is a {@link PictureOffer}.  The owner answers with {@link #RESUME}; the picture
+     * itself follows as {@link #CHUNK} frames and is acknowledged once its digest has been
+     * verified.  {@link FrameHeader#FLAG_PREVIEW} marks the preview sent ahead of the full-size
+     * picture, and {@link FrameHeader#getShot()} which shot of a burst it is.
+     */
+    PICTURE(2),
+
+    /**
+     * Empty payload; the header sequence number is the one of the frame being acknowledged.
+     */
+    ACK(3),
+
+    /**
+     * Reply to a {@link #PICTURE} offer.  Payload is the 8 byte offset the owner already holds,
+     * from which the member continues.
+     */
+    RESUME(4),
+
+    /**
+     * One chunk of the offered picture: an 8 byte offset and the 4 byte CRC-32C of the data,
+     * followed by the data.  Chunks are not acknowledged individually.
+     */
+    CHUNK(5),
+
+    /**
+     * Payload is the 8 byte monotonic time the member sent it at.  Answered immediately with
+     * {@link #TIME_RESPONSE} rather than an ACK.
+     */
+    TIME_REQUEST(6),
+
+    /**
+     * Payload is the echoed request time followed by the owner's monotonic receive and send
+     * times, 8 bytes each.
+     */
+    TIME_RESPONSE(7),
+
+    /**
+     * Payload is the 8 byte capture time the member was sent, on its own clock, followed by how
+     * many nanoseconds after it the member's shutter fired.  Members may follow it with their
+     * {@link Readiness}: how long their camera took to be ready after the command and how late
+     * their scheduler fired, 8 bytes each.
+     */
+    CAPTURE_REPORT(8),
+
+    /**
+     * Payload is a 4 byte span count followed by that many {@link TraceSpan spans} of the
+     * member's rounds, each its round, stage code, start and end: 8, 1, 8 and 8 bytes, on the
+     * member's clock.
+     */
+    TRACE_REPORT(9);
+
+    private static final MessageType[] BY_CODE = new MessageType[256];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    public final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the type for {@code code}, or null if it is not a known type
+     */
+    public static MessageType fromCode(int code) {
+        return BY_CODE[code & 0xFF];
+    }
+}
@@ -0,0 +1,64 @@
+package com.wigl.wigl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named {@link Counter counters} and {@link HistogramRecorder recorders}, created on first use
+ * and kept for the life of the registry.  Callers on a hot path should look a metric up once and
+ * keep it; updating it then costs an atomic add.
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, HistogramRecorder> recorders = new ConcurrentHashMap<>();
+
+    /**
+     * @return the registry of this process
+     */
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public HistogramRecorder recorder(String name) {
+        HistogramRecorder recorder = recorders.get(name);
+        if (recorder == null) {
+            HistogramRecorder created = new HistogramRecorder();
+            recorder = recorders.putIfAbsent(name, created);
+            if (recorder == null) {
+                recorder = created;
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * @return every metric's value now, without stopping anyone from updating them
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, HistogramSnapshot> histograms = new TreeMap<>();
+        for (Map.Entry<String, HistogramRecorder> entry : recorders.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), counts, histograms);
+    }
+}
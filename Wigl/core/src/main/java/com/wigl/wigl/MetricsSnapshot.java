@@ -0,0 +1,75 @@
+package com.wigl.wigl;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The values of a {@link MetricsRegistry} at one point in time, sorted by name.
+ */
+public final class MetricsSnapshot {
+    private final long takenAtMillis;
+    private final Map<String, Long> counters;
+    private final Map<String, HistogramSnapshot> histograms;
+
+    MetricsSnapshot(long takenAtMillis, Map<String, Long> counters, Map<String, HistogramSnapshot> histograms) {
+        this.takenAtMillis = takenAtMillis;
+        this.counters = Collections.unmodifiableMap(counters);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * @return wall clock time of the snapshot
+     */
+    public long getTakenAtMillis() {
+        return takenAtMillis;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, HistogramSnapshot> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * @return the counter's value, or 0 if it was never used
+     */
+    public long getCounter(String name) {
+        Long value = counters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * @return the sum of every counter whose name starts with {@code prefix} and ends with
+     *         {@code suffix}, such as one metric over all peers
+     */
+    public long sumCounters(String prefix, String suffix) {
+        long sum = 0;
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            if (entry.getKey().startsWith(prefix) && entry.getKey().endsWith(suffix)) {
+                sum += entry.getValue();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return one line per metric, for a log or a dump file
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{" + counters.size() + " counters, " + histograms.size() + " histograms}";
+    }
+}
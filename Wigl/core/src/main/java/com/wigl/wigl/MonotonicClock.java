@@ -0,0 +1,19 @@
+package com.wigl.wigl;
+
+/**
+ * A source of monotonic time, so components that measure or wait on time can be driven by a
+ * fake clock in tests.
+ */
+public interface MonotonicClock {
+    MonotonicClock SYSTEM = new MonotonicClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * @return nanoseconds from an arbitrary origin; only differences are meaningful
+     */
+    long nanoTime();
+}
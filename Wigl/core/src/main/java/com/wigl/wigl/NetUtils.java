@@ -0,0 +1,28 @@
+package com.wigl.wigl;
+
+/**
+ * The parts of {@code Utils} that deal with addresses and do not need Android, so they can be
+ * benchmarked on a plain JVM.  Peer lookups by MAC address live in {@link ArpResolver}.
+ */
+public class NetUtils {
+    public static final String ARP_PATH = "/proc/net/arp";
+
+    public static final String P2P_INTERFACE = "p2p-p2p0";
+
+    public static String getDottedDecimalIP(byte[] ipAddr) {
+		/*
+		 * ripped from:
+		 * 
+		 * http://stackoverflow.com/questions/10053385/how-to-get-each-devices-ip-address-in-wifi-direct-scenario
+		 * 
+		 * */
+        String ipAddrStr = "";
+        for (int i=0; i<ipAddr.length; i++) {
+            if (i > 0) {
+                ipAddrStr += ".";
+            }
+            ipAddrStr += ipAddr[i]&0xFF;
+        }
+        return ipAddrStr;
+    }
+}
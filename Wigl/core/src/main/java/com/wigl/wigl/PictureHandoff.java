@@ -0,0 +1,224 @@
+package com.wigl.wigl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands captured JPEGs from the camera callback to the uploader in memory, so a member's picture
+ * does not go to flash and back before the first byte is sent.  {@link #submit} queues the bytes
+ * and starts writing them to disk on the writer executor; the uploader claims them by id with
+ * {@link #take} and sends them straight from the array.
+ *
+ * <p>The queue is bounded in bytes.  To make room, unclaimed pictures whose write has finished
+ * are dropped oldest first: the uploader of one that is on disk falls back to the file, and that
+ * of one that could not be written fails as it would have without the handoff.  A picture whose
+ * write failed and that is never claimed would otherwise hold its bytes for good.  When that is
+ * not enough {@code submit} returns null and the caller writes the file itself.
+ */
+public class PictureHandoff {
+    /**
+     * A captured picture.  Its bytes must not be changed once submitted.
+     */
+    public static final class Picture {
+        private final long id;
+        private final byte[] data;
+        private final File file;
+        private final long capturedAt;
+        private volatile Future<File> saved;
+
+        Picture(long id, byte[] data, File file, long capturedAt) {
+            this.id = id;
+            this.data = data;
+            this.file = file;
+            this.capturedAt = capturedAt;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return where the picture is being written; it only exists once {@link #isSaved()}
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} the camera handed the picture over
+         */
+        public long getCapturedAt() {
+            return capturedAt;
+        }
+
+        /**
+         * @return whether the disk copy has been written or has failed
+         */
+        boolean isSaveDone() {
+            Future<File> f = saved;
+            return f != null && f.isDone();
+        }
+
+        public boolean isSaved() {
+            Future<File> f = saved;
+            if (f == null || !f.isDone()) {
+                return false;
+            }
+            try {
+                f.get();
+                return true;
+            } catch (ExecutionException | InterruptedException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Waits for the disk copy.
+         *
+         * @return the file
+         * @throws IOException if it could not be written
+         */
+        public File awaitSaved() throws IOException {
+            try {
+                return saved.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while saving " + file);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Picture{" + id + ", " + data.length + " bytes, " + file.getName() + "}";
+        }
+    }
+
+    private final ExecutorService writer;
+    private final long maxBytes;
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, Picture> queued = new LinkedHashMap<>();
+    private long queuedBytes;
+
+    /**
+     * @param writer   writes the pictures to disk; a single thread keeps them in capture order
+     * @param maxBytes how many bytes of unclaimed pictures to hold
+     */
+    public PictureHandoff(ExecutorService writer, long maxBytes) {
+        this.writer = writer;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Queues {@code data} for the uploader and starts writing it to {@code file}.  The file is
+     * written under a temporary name and renamed, so it is never seen half written.
+     *
+     * @param capturedAt the {@link System#nanoTime()} the camera handed the picture over
+     * @return the queued picture, or null if there is no room and nothing was started
+     */
+    public Picture submit(byte[] data, File file, long capturedAt) {
+        final Picture picture = new Picture(ids.incrementAndGet(), data, file, capturedAt);
+        synchronized (this) {
+            if (!makeRoom(data.length)) {
+                return null;
+            }
+            queued.put(picture.id, picture);
+            queuedBytes += data.length;
+        }
+        picture.saved = writer.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return save(picture.data, picture.file);
+            }
+        });
+        return picture;
+    }
+
+    /**
+     * Claims a queued picture for upload.  Its bytes no longer count against the queue.
+     *
+     * @return null if the picture was dropped to make room, never queued, or already claimed
+     */
+    public synchronized Picture take(long id) {
+        Picture picture = queued.remove(id);
+        if (picture != null) {
+            queuedBytes -= picture.data.length;
+        }
+        return picture;
+    }
+
+    /**
+     * Deletes a picture's file that is no longer needed, such as one the owner has acknowledged,
+     * on the writer.  With a single writer thread that is after any write of it started before,
+     * and the caller does not wait for either.
+     *
+     * @return whether the file was deleted
+     */
+    public Future<Boolean> discard(final File file) {
+        return writer.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return file.delete();
+            }
+        });
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queued.size();
+    }
+
+    private boolean makeRoom(long bytes) {
+        if (bytes > maxBytes) {
+            return false;
+        }
+        for (Iterator<Picture> it = queued.values().iterator(); it.hasNext() && queuedBytes + bytes > maxBytes; ) {
+            Picture oldest = it.next();
+            if (oldest.isSaveDone()) {
+                it.remove();
+                queuedBytes -= oldest.data.length;
+            }
+        }
+        return queuedBytes + bytes <= maxBytes;
+    }
+
+    /**
+     * Writes {@code data} to {@code file} through a temporary file in the same directory.
+     */
+    public static File save(byte[] data, File file) throws IOException {
+        File part = new File(file.getPath() + ".part");
+        FileOutputStream out = new FileOutputStream(part);
+        try {
+            out.write(data);
+            out.close();
+        } catch (IOException e) {
+            IoUtils.closeQuietly(out);
+            part.delete();
+            throw e;
+        }
+        if (!part.renameTo(file)) {
+            part.delete();
+            throw new IOException("Could not rename " + part + " to " + file);
+        }
+        return file;
+    }
+}
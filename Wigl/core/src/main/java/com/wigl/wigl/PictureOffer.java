@@ -0,0 +1,180 @@
+package com.wigl.wigl;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The payload of a {@link MessageType#PICTURE} frame: announces an upload before any of its
+ * {@link MessageType#CHUNK chunks} are sent.  The transfer id is derived from the picture's
+ * digest, so a member that reconnects after a dropped link offers the same transfer again and
+ * the owner can resume it.
+ *
+ * <p>An offer may also name the round the picture was taken for, as the sender knows it: the
+ * capture time it was sent, on its own clock.  It follows the other fields, so an offer without
+ * it is {@value #SIZE} bytes and one with it {@value #ROUND_SIZE}.
+ */
+public final class PictureOffer {
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    public static final int DIGEST_SIZE = 32;
+    public static final int SIZE = 8 + 8 + 4 + DIGEST_SIZE;
+    public static final int ROUND_SIZE = SIZE + 8;
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private final long transferId;
+    private final long length;
+    private final int chunkSize;
+    private final byte[] digest;
+    private final int[] chunkCrcs;
+    private final long round;
+
+    public PictureOffer(long transferId, long length, int chunkSize, byte[] digest) {
+        this(transferId, length, chunkSize, digest, null, 0);
+    }
+
+    private PictureOffer(long transferId, long length, int chunkSize, byte[] digest, int[] chunkCrcs, long round) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+        }
+        if (digest.length != DIGEST_SIZE) {
+            throw new IllegalArgumentException("Bad digest length " + digest.length);
+        }
+        this.transferId = transferId;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.digest = digest;
+        this.chunkCrcs = chunkCrcs;
+        this.round = round;
+    }
+
+    /**
+     * Reads the whole picture once to compute its digest and the CRC-32C of every chunk.
+     */
+    public static PictureOffer create(PictureSource src, int chunkSize) throws IOException {
+        MessageDigest md = newDigest();
+        long length = src.length();
+        int[] crcs = new int[chunkCount(length, chunkSize)];
+        byte[] chunk = new byte[chunkSize];
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        for (int i = 0; i < crcs.length; i++) {
+            buf.clear();
+            buf.limit((int) Math.min(chunkSize, length - (long) i * chunkSize));
+            int n = src.read(buf, (long) i * chunkSize);
+            if (n != buf.limit()) {
+                throw new IOException("Picture changed while it was being read");
+            }
+            md.update(chunk, 0, n);
+            crcs[i] = Crc32c.compute(chunk, 0, n);
+        }
+        byte[] digest = md.digest();
+        return new PictureOffer(ByteBuffer.wrap(digest).getLong(), length, chunkSize, digest, crcs, 0);
+    }
+
+    /**
+     * @param round the capture time of the round the picture was taken for, on the sender's
+     *              clock, or 0 to leave it out
+     * @return this offer naming {@code round}
+     */
+    public PictureOffer withRound(long round) {
+        return new PictureOffer(transferId, length, chunkSize, digest, chunkCrcs, round);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is always available", e);
+        }
+    }
+
+    public static int chunkCount(long length, int chunkSize) {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public byte[] getDigest() {
+        return digest.clone();
+    }
+
+    /**
+     * @return the round the sender took the picture for, on its clock, or 0 if it did not say
+     */
+    public long getRound() {
+        return round;
+    }
+
+    public boolean matchesDigest(byte[] other) {
+        return MessageDigest.isEqual(digest, other);
+    }
+
+    /**
+     * @return the CRC-32C of chunk {@code index}; only known on the sending side
+     */
+    public int getChunkCrc(int index) {
+        if (chunkCrcs == null) {
+            throw new IllegalStateException("Chunk checksums are only known to the sender");
+        }
+        return chunkCrcs[index];
+    }
+
+    public byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(round != 0 ? ROUND_SIZE : SIZE);
+        buf.putLong(transferId).putLong(length).putInt(chunkSize).put(digest);
+        if (round != 0) {
+            buf.putLong(round);
+        }
+        return buf.array();
+    }
+
+    public static PictureOffer decode(byte[] payload) throws ProtocolException {
+        if (payload.length != SIZE && payload.length != ROUND_SIZE) {
+            throw new ProtocolException("Bad picture offer length " + payload.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        long transferId = buf.getLong();
+        long length = buf.getLong();
+        int chunkSize = buf.getInt();
+        byte[] digest = new byte[DIGEST_SIZE];
+        buf.get(digest);
+        long round = payload.length == ROUND_SIZE ? buf.getLong() : 0;
+        if (length < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new ProtocolException("Bad picture offer: " + length + " bytes in chunks of " + chunkSize);
+        }
+        return new PictureOffer(transferId, length, chunkSize, digest, null, round);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PictureOffer)) return false;
+        PictureOffer that = (PictureOffer) o;
+        return transferId == that.transferId && length == that.length && chunkSize == that.chunkSize
+                && round == that.round && Arrays.equals(digest, that.digest);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (transferId ^ (transferId >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "PictureOffer[" + Long.toHexString(transferId) + ", " + length + " bytes, chunks of " + chunkSize
+                + (round != 0 ? ", round " + round : "") + "]";
+    }
+}
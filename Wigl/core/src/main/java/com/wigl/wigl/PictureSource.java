@@ -0,0 +1,83 @@
+package com.wigl.wigl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The bytes of a picture being uploaded.  Sources are random access so an interrupted upload can
+ * resume from any chunk.
+ */
+public abstract class PictureSource {
+    public abstract long length();
+
+    /**
+     * Reads up to {@code dst.remaining()} bytes starting at {@code position}.
+     *
+     * @return the number of bytes read
+     */
+    public abstract int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Writes {@code count} bytes starting at {@code position} to {@code dst}.
+     */
+    public abstract void transferTo(long position, long count, WritableByteChannel dst) throws IOException;
+
+    /**
+     * A picture on disk, sent to the socket by the kernel through {@link TransferEngine}.
+     */
+    public static PictureSource of(final FileChannel file) throws IOException {
+        final long length = file.size();
+        return new PictureSource() {
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public int read(ByteBuffer dst, long position) throws IOException {
+                int start = dst.position();
+                while (dst.hasRemaining()) {
+                    if (file.read(dst, position + dst.position() - start) == -1) {
+                        break;
+                    }
+                }
+                return dst.position() - start;
+            }
+
+            @Override
+            public void transferTo(long position, long count, WritableByteChannel dst) throws IOException {
+                TransferEngine.getInstance().transfer(file, position, count, dst);
+            }
+        };
+    }
+
+    /**
+     * A picture that is still in memory.
+     */
+    public static PictureSource of(final byte[] data) {
+        return new PictureSource() {
+            @Override
+            public long length() {
+                return data.length;
+            }
+
+            @Override
+            public int read(ByteBuffer dst, long position) {
+                int n = (int) Math.min(dst.remaining(), data.length - position);
+                dst.put(data, (int) position, n);
+                return n;
+            }
+
+            @Override
+            public void transferTo(long position, long count, WritableByteChannel dst) throws IOException {
+                if (position + count > data.length) {
+                    throw new EOFException("Picture is only " + data.length + " bytes");
+                }
+                FrameCodec.writeFully(dst, ByteBuffer.wrap(data, (int) position, (int) count));
+            }
+        };
+    }
+}
@@ -0,0 +1,165 @@
+package com.wigl.wigl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a picture to the owner, reconnecting after a failure and resuming from the last chunk
+ * the owner verified.  A connection that makes no progress for the stall timeout is closed,
+ * since a Wi-Fi Direct link that drops without a reset would otherwise block it forever.
+ * Connections are closed after every upload unless the connector is a {@link Pool}.
+ */
+public class PictureUploader {
+    public interface Connector {
+        TransferClient connect() throws IOException;
+    }
+
+    /**
+     * A connector that keeps its connections open: an upload that succeeds hands its connection
+     * back instead of closing it, and the pool may return it from the next {@code connect}.  The
+     * pool records its own connect times, since most of its connects open nothing.
+     */
+    public interface Pool extends Connector {
+        void release(TransferClient client);
+    }
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "PictureUploader-watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Connector connector;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    private final long stallTimeoutMillis;
+    private final TransferMetrics metrics;
+    private final String peer;
+
+    /**
+     * Records metrics in {@link TransferMetrics#getInstance()} under the peer {@code "owner"}.
+     */
+    public PictureUploader(Connector connector, int maxAttempts, long retryDelayMillis, long stallTimeoutMillis) {
+        this(connector, maxAttempts, retryDelayMillis, stallTimeoutMillis, TransferMetrics.getInstance(), "owner");
+    }
+
+    /**
+     * @param connector          opens a new connection to the owner for every attempt, or
+     *                           returns one it kept if it is a {@link Pool}
+     * @param maxAttempts        attempts before giving up
+     * @param retryDelayMillis   wait before the second attempt, doubled for every further one
+     * @param stallTimeoutMillis how long an attempt may go without sending anything
+     * @param metrics            where connects, bytes, retries and failures are counted
+     * @param peer               the owner's name in {@code metrics}
+     */
+    public PictureUploader(Connector connector, int maxAttempts, long retryDelayMillis, long stallTimeoutMillis,
+                           TransferMetrics metrics, String peer) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.connector = connector;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+        this.metrics = metrics;
+        this.peer = peer;
+    }
+
+    /**
+     * @return the bytes sent and time spent over all attempts
+     * @throws IOException the failure of the last attempt
+     */
+    public TransferStats upload(PictureSource src) throws IOException {
+        return upload(src, 0);
+    }
+
+    /**
+     * @param flags header flags of the offer, such as {@link FrameHeader#FLAG_PREVIEW}
+     * @return the bytes sent and time spent over all attempts
+     * @throws IOException the failure of the last attempt
+     */
+    public TransferStats upload(PictureSource src, int flags) throws IOException {
+        return upload(src, 0, flags);
+    }
+
+    /**
+     * @param round the round the picture was taken for, on this device's clock, or 0; see
+     *              {@link PictureOffer#getRound()}
+     * @param flags header flags of the offer, such as {@link FrameHeader#FLAG_PREVIEW}
+     * @return the bytes sent and time spent over all attempts
+     * @throws IOException the failure of the last attempt
+     */
+    public TransferStats upload(PictureSource src, long round, int flags) throws IOException {
+        PictureOffer offer = PictureOffer.create(src, PictureOffer.DEFAULT_CHUNK_SIZE).withRound(round);
+        long start = System.nanoTime();
+        long sent = 0;
+        long delay = retryDelayMillis;
+        for (int attempt = 1; ; attempt++) {
+            TransferClient client = null;
+            ScheduledFuture<?> watchdog = null;
+            try {
+                long connectStart = System.nanoTime();
+                client = connector.connect();
+                if (!(connector instanceof Pool)) {
+                    metrics.connected(peer, System.nanoTime() - connectStart);
+                }
+                watchdog = watch(client);
+                TransferStats stats = client.sendPicture(src, offer, flags);
+                sent += stats.getBytes();
+                metrics.sent(peer, stats.getBytes());
+                metrics.transferred(peer, stats);
+                if (connector instanceof Pool) {
+                    watchdog.cancel(false);
+                    ((Pool) connector).release(client);
+                    client = null;
+                }
+                return new TransferStats(sent, System.nanoTime() - start);
+            } catch (IOException e) {
+                if (client != null) {
+                    sent += client.getBytesSent();
+                    metrics.sent(peer, client.getBytesSent());
+                }
+                metrics.failed(peer, e);
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                metrics.retried(peer);
+            } finally {
+                if (watchdog != null) {
+                    watchdog.cancel(false);
+                }
+                IoUtils.closeQuietly(client);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while retrying " + offer);
+            }
+            delay *= 2;
+        }
+    }
+
+    private ScheduledFuture<?> watch(final TransferClient client) {
+        return WATCHDOG.scheduleWithFixedDelay(new Runnable() {
+            private long lastSent = client.getBytesSent();
+
+            @Override
+            public void run() {
+                long sent = client.getBytesSent();
+                if (sent == lastSent) {
+                    IoUtils.closeQuietly(client);
+                }
+                lastSent = sent;
+            }
+        }, stallTimeoutMillis, stallTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
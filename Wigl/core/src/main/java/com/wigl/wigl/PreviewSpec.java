@@ -0,0 +1,85 @@
+package com.wigl.wigl;
+
+/**
+ * The preview the owner asks members for in a capture command: a JPEG scaled so its longer side
+ * is at most {@link #getMaxSide()}, at {@link #getQuality()}.  Members send it ahead of the
+ * full-size picture so the Wigl can play before the originals, which are only needed for
+ * export, have arrived.
+ */
+public final class PreviewSpec {
+    /**
+     * No preview; members send only the full-size picture.
+     */
+    public static final PreviewSpec NONE = new PreviewSpec(0, 0);
+
+    private final int maxSide;
+    private final int quality;
+
+    /**
+     * @param maxSide longest side of the preview in pixels, or 0 for no preview
+     * @param quality JPEG quality from 1 to 100
+     */
+    public PreviewSpec(int maxSide, int quality) {
+        if (maxSide < 0 || (maxSide > 0 && (quality < 1 || quality > 100))) {
+            throw new IllegalArgumentException("Bad preview " + maxSide + " at quality " + quality);
+        }
+        this.maxSide = maxSide;
+        this.quality = quality;
+    }
+
+    public boolean isRequested() {
+        return maxSide > 0;
+    }
+
+    public int getMaxSide() {
+        return maxSide;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return the largest power of two to subsample a {@code width} by {@code height} picture by
+     *         while decoding that still leaves its longer side at least {@link #getMaxSide()}
+     */
+    public int sampleSize(int width, int height) {
+        int side = Math.max(width, height);
+        int sample = 1;
+        while (maxSide > 0 && side / (sample * 2) >= maxSide) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    /**
+     * @return the factor that brings a {@code width} by {@code height} picture down to the
+     *         preview size; never more than 1
+     */
+    public float scale(int width, int height) {
+        int side = Math.max(width, height);
+        return maxSide <= 0 || side <= maxSide ? 1f : (float) maxSide / side;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PreviewSpec)) {
+            return false;
+        }
+        PreviewSpec other = (PreviewSpec) o;
+        return maxSide == other.maxSide && quality == other.quality;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * maxSide + quality;
+    }
+
+    @Override
+    public String toString() {
+        return isRequested() ? "PreviewSpec{" + maxSide + "px, q" + quality + "}" : "PreviewSpec{none}";
+    }
+}
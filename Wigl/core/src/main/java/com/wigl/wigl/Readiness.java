@@ -0,0 +1,62 @@
+package com.wigl.wigl;
+
+/**
+ * How quickly a device was ready for one round, as it reports along with its shutter lateness:
+ * how long its camera took to be ready for the shot after the command reached it, and how late
+ * its {@link CaptureScheduler} fired once the camera was ready and the capture time had come.
+ * The owner keeps these in a {@link CaptureLeadEstimator} to choose how far ahead to set the
+ * capture time of the next round.
+ */
+public final class Readiness {
+    /**
+     * Not measured; sent by members that do not report their readiness.
+     */
+    public static final Readiness NONE = new Readiness(-1, -1);
+
+    private final long readyNanos;
+    private final long jitterNanos;
+
+    /**
+     * @param readyNanos  from receiving the command to the camera being ready for it
+     * @param jitterNanos from the later of the capture time and the camera being ready to the
+     *                    shutter firing
+     */
+    public Readiness(long readyNanos, long jitterNanos) {
+        this.readyNanos = readyNanos;
+        this.jitterNanos = jitterNanos;
+    }
+
+    public boolean isMeasured() {
+        return readyNanos >= 0 && jitterNanos >= 0;
+    }
+
+    public long getReadyNanos() {
+        return readyNanos;
+    }
+
+    public long getJitterNanos() {
+        return jitterNanos;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Readiness)) {
+            return false;
+        }
+        Readiness other = (Readiness) o;
+        return readyNanos == other.readyNanos && jitterNanos == other.jitterNanos;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (31 * readyNanos + jitterNanos);
+    }
+
+    @Override
+    public String toString() {
+        return isMeasured() ? "Readiness{ready " + readyNanos + " ns, jitter " + jitterNanos + " ns}" : "Readiness{none}";
+    }
+}
@@ -0,0 +1,127 @@
+package com.wigl.wigl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every traced span of one round, from all devices, on the owner's clock.
+ */
+public final class RoundTrace {
+    private final long round;
+    private final Map<Long, List<TraceSpan>> spans = new LinkedHashMap<>();
+
+    RoundTrace(long round) {
+        this.round = round;
+    }
+
+    void add(long deviceId, TraceSpan span) {
+        List<TraceSpan> device = spans.get(deviceId);
+        if (device == null) {
+            device = new ArrayList<>();
+            spans.put(deviceId, device);
+        }
+        if (!device.contains(span)) {
+            device.add(span);
+        }
+    }
+
+    /**
+     * @return the capture time on the owner's clock
+     */
+    public long getRound() {
+        return round;
+    }
+
+    public Map<Long, List<TraceSpan>> getSpans() {
+        return Collections.unmodifiableMap(spans);
+    }
+
+    /**
+     * @return the spans of {@code stage} from every device
+     */
+    public List<TraceSpan> getSpans(TraceStage stage) {
+        List<TraceSpan> result = new ArrayList<>();
+        for (List<TraceSpan> device : spans.values()) {
+            for (TraceSpan span : device) {
+                if (span.getStage() == stage) {
+                    result.add(span);
+                }
+            }
+        }
+        return result;
+    }
+
+    public long getStartNanos() {
+        long start = Long.MAX_VALUE;
+        for (List<TraceSpan> device : spans.values()) {
+            for (TraceSpan span : device) {
+                start = Math.min(start, span.getStartNanos());
+            }
+        }
+        return start;
+    }
+
+    public long getEndNanos() {
+        long end = Long.MIN_VALUE;
+        for (List<TraceSpan> device : spans.values()) {
+            for (TraceSpan span : device) {
+                end = Math.max(end, span.getEndNanos());
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return true once the Wigl of this round was shown
+     */
+    public boolean isDisplayed() {
+        return !getSpans(TraceStage.DISPLAY).isEmpty();
+    }
+
+    /**
+     * @return from the first span starting to the last one ending: once the round is
+     *         {@link #isDisplayed() displayed}, its capture-to-display latency
+     */
+    public long getTotalNanos() {
+        return spans.isEmpty() ? 0 : getEndNanos() - getStartNanos();
+    }
+
+    /**
+     * @return one line per span in the order they started, with its offset into the round and
+     *         its duration in milliseconds
+     */
+    public String format() {
+        final long start = getStartNanos();
+        List<Object[]> rows = new ArrayList<>();
+        for (Map.Entry<Long, List<TraceSpan>> device : spans.entrySet()) {
+            for (TraceSpan span : device.getValue()) {
+                rows.add(new Object[]{device.getKey(), span});
+            }
+        }
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                long sa = ((TraceSpan) a[1]).getStartNanos(), sb = ((TraceSpan) b[1]).getStartNanos();
+                return sa < sb ? -1 : sa > sb ? 1 : 0;
+            }
+        });
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Round %d: %.1f ms%s%n", round, getTotalNanos() / 1e6,
+                isDisplayed() ? " capture to display" : " so far"));
+        for (Object[] row : rows) {
+            TraceSpan span = (TraceSpan) row[1];
+            out.append(String.format("  %-16s %s %+9.1f ms %9.1f ms%n", span.getStage(), MacAddress.format((Long) row[0]),
+                    (span.getStartNanos() - start) / 1e6, span.getDurationNanos() / 1e6));
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "RoundTrace{" + round + ", " + spans.size() + " devices}";
+    }
+}
@@ -0,0 +1,638 @@
+package com.wigl.wigl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the pictures of past rounds on disk, one directory per round with a file per device and
+ * shot, and an index of them in memory so a round's pictures are found without listing any
+ * directory.  The index is rebuilt on open from an append-only file of fixed-size records: one
+ * for every picture stored and one for every round dropped.  A record torn by a crash fails its
+ * checksum and is cut off, along with anything after it.
+ *
+ * <p>Rounds are kept until they are older than the maximum age or the store holds more than
+ * the maximum bytes, and then dropped oldest first; the round stored last is always kept, since
+ * its pictures may still be arriving.  Dropped rounds leave dead records behind, and once they
+ * outnumber the live ones the index file is rewritten with only the live records.  The rewrite
+ * runs without holding up {@link #put}: records appended meanwhile are copied over before the
+ * new file replaces the old.  {@link #start} runs both on a scheduler.
+ *
+ * <p>Pictures that never made it into the store, received while it was not open or taken for no
+ * round, are deleted by {@link #sweep} once they are as old as a round would be when dropped.
+ *
+ * <p>Recorded in the {@link MetricsRegistry} under {@code store.}: {@code compact_us}, rewriting
+ * the index, and the counts of {@code rounds_dropped}, {@code bytes_dropped} and
+ * {@code strays_dropped}.
+ */
+public class SessionStore {
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    static final String INDEX_NAME = "index";
+    static final int MAGIC = 0x5769474c;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    /**
+     * op (1), shot (1), flags (1), reserved (1), length (4), round (8), device (8),
+     * stored at (8), CRC32C of the rest (4)
+     */
+    static final int RECORD_SIZE = 36;
+    /**
+     * Dead records the index carries before a rewrite is worth it, however few the live ones.
+     */
+    static final int MIN_DEAD_RECORDS = 1024;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DROP = 2;
+    private static final byte FLAG_PREVIEW = 1;
+    private static final String INDEX_TEMP_SUFFIX = ".compact";
+
+    /**
+     * A stored picture.
+     */
+    public static final class Frame {
+        private final long roundId;
+        private final long deviceId;
+        private final int shot;
+        private final boolean preview;
+        private final long length;
+        private final long storedAt;
+        private final File file;
+
+        Frame(long roundId, long deviceId, int shot, boolean preview, long length, long storedAt, File file) {
+            this.roundId = roundId;
+            this.deviceId = deviceId;
+            this.shot = shot;
+            this.preview = preview;
+            this.length = length;
+            this.storedAt = storedAt;
+            this.file = file;
+        }
+
+        public long getRoundId() {
+            return roundId;
+        }
+
+        public long getDeviceId() {
+            return deviceId;
+        }
+
+        public int getShot() {
+            return shot;
+        }
+
+        /**
+         * @return whether this is the preview of the device's shot, rather than the picture
+         */
+        public boolean isPreview() {
+            return preview;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return when the picture was stored, as {@link System#currentTimeMillis()}
+         */
+        public long getStoredAt() {
+            return storedAt;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        boolean sameSlot(long deviceId, int shot, boolean preview) {
+            return this.deviceId == deviceId && this.shot == shot && this.preview == preview;
+        }
+
+        @Override
+        public String toString() {
+            return "Frame{" + roundId + " " + MacAddress.format(deviceId) + " #" + shot + (preview ? " preview" : "")
+                    + ", " + length + " bytes}";
+        }
+    }
+
+    private static final class Round {
+        final List<Frame> frames = new ArrayList<>();
+        long bytes;
+        long lastStoredAt;
+    }
+
+    private final File root;
+    private final File indexFile;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+    private final HistogramRecorder compactTime;
+    private final Counter roundsDropped;
+    private final Counter bytesDropped;
+    private final Counter straysDropped;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final Object compactLock = new Object();
+
+    /*
+     * Guarded by this; rounds are in the order they were first stored
+     */
+    private final LinkedHashMap<Long, Round> rounds = new LinkedHashMap<>();
+    private long newestRound;
+    private int liveFrames;
+    private long totalBytes;
+    private long indexRecords;
+    private RandomAccessFile index;
+    private ScheduledFuture<?> maintenance;
+
+    public SessionStore(File root) throws IOException {
+        this(root, DEFAULT_MAX_AGE_MILLIS, DEFAULT_MAX_BYTES, MetricsRegistry.getInstance());
+    }
+
+    /**
+     * Opens the store in {@code root}, creating it if needed, and reads its index.
+     *
+     * @param maxAgeMillis how long after its last picture a round is dropped
+     * @param maxBytes     how much the pictures may take before the oldest rounds are dropped
+     */
+    public SessionStore(File root, long maxAgeMillis, long maxBytes, MetricsRegistry metrics) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Could not create " + root);
+        }
+        this.root = root;
+        this.indexFile = new File(root, INDEX_NAME);
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+        compactTime = metrics.recorder("store.compact_us");
+        roundsDropped = metrics.counter("store.rounds_dropped");
+        bytesDropped = metrics.counter("store.bytes_dropped");
+        straysDropped = metrics.counter("store.strays_dropped");
+        // a rewrite interrupted before it replaced the index
+        new File(root, INDEX_NAME + INDEX_TEMP_SUFFIX).delete();
+        long valid = replay();
+        index = new RandomAccessFile(indexFile, "rw");
+        try {
+            if (valid < HEADER_SIZE) {
+                index.setLength(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(index.getChannel(), header);
+            } else if (index.length() > valid) {
+                index.setLength(valid);
+            }
+            index.seek(index.length());
+        } catch (IOException e) {
+            IoUtils.closeQuietly(index);
+            throw e;
+        }
+    }
+
+    /**
+     * Moves {@code picture} into the store as {@code deviceId}'s shot of {@code roundId},
+     * replacing the one stored before, if any.
+     *
+     * @param preview the picture is a preview of the shot, kept apart from its full-size picture
+     * @return where the picture is now
+     */
+    public synchronized Frame put(long roundId, long deviceId, int shot, boolean preview, File picture)
+            throws IOException {
+        ensureOpen();
+        File dir = roundDir(roundId);
+        if (!dir.isDirectory() && !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File file = frameFile(dir, deviceId, shot, preview);
+        long length = picture.length();
+        if (!picture.renameTo(file)) {
+            throw new IOException("Could not move " + picture + " to " + file);
+        }
+        long storedAt = System.currentTimeMillis();
+        append(OP_PUT, roundId, deviceId, shot, preview, length, storedAt);
+        Frame frame = new Frame(roundId, deviceId, shot, preview, length, storedAt, file);
+        add(frame);
+        return frame;
+    }
+
+    /**
+     * @return the pictures of {@code roundId} in the order they were stored, or an empty list if
+     *         the store does not have the round
+     */
+    public synchronized List<Frame> getFrames(long roundId) {
+        Round round = rounds.get(roundId);
+        return round == null ? Collections.<Frame>emptyList() : new ArrayList<>(round.frames);
+    }
+
+    /**
+     * @return the picture, or null if the store does not have it
+     */
+    public synchronized Frame getFrame(long roundId, long deviceId, int shot, boolean preview) {
+        Round round = rounds.get(roundId);
+        if (round != null) {
+            for (Frame frame : round.frames) {
+                if (frame.sameSlot(deviceId, shot, preview)) {
+                    return frame;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the rounds in the store, oldest first
+     */
+    public synchronized List<Long> getRoundIds() {
+        return new ArrayList<>(rounds.keySet());
+    }
+
+    public synchronized int getRoundCount() {
+        return rounds.size();
+    }
+
+    /**
+     * @return the bytes of the pictures in the store
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the records in the index file, live and dead
+     */
+    public synchronized long getIndexRecords() {
+        return indexRecords;
+    }
+
+    /**
+     * Drops {@code roundId} and deletes its pictures.
+     *
+     * @return false if the store did not have it
+     */
+    public boolean drop(long roundId) throws IOException {
+        List<Frame> dropped;
+        synchronized (this) {
+            ensureOpen();
+            dropped = dropRound(roundId);
+        }
+        if (dropped == null) {
+            return false;
+        }
+        delete(roundId, dropped);
+        return true;
+    }
+
+    /**
+     * Drops the oldest rounds while they are older than the maximum age at {@code nowMillis} or
+     * the store is over its maximum bytes, keeping the round stored last.
+     *
+     * @return the number of rounds dropped
+     */
+    public int trim(long nowMillis) throws IOException {
+        Map<Long, List<Frame>> dropped = new LinkedHashMap<>();
+        synchronized (this) {
+            ensureOpen();
+            Iterator<Map.Entry<Long, Round>> it = rounds.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Round> e = it.next();
+                long roundId = e.getKey();
+                if (roundId == newestRound) {
+                    break;
+                }
+                boolean expired = nowMillis - e.getValue().lastStoredAt > maxAgeMillis;
+                if (!expired && totalBytes <= maxBytes) {
+                    break;
+                }
+                List<Frame> frames = e.getValue().frames;
+                append(OP_DROP, roundId, 0, 0, false, 0, nowMillis);
+                it.remove();
+                dropped(e.getValue());
+                dropped.put(roundId, frames);
+            }
+        }
+        for (Map.Entry<Long, List<Frame>> e : dropped.entrySet()) {
+            delete(e.getKey(), e.getValue());
+        }
+        return dropped.size();
+    }
+
+    /**
+     * @return whether the index carries enough dead records for {@link #compact} to be worth it
+     */
+    public synchronized boolean needsCompaction() {
+        long dead = indexRecords - liveFrames;
+        return dead >= MIN_DEAD_RECORDS && dead > liveFrames;
+    }
+
+    /**
+     * Rewrites the index file with only the records of pictures still in the store.  Pictures
+     * may be stored and rounds dropped while it runs.
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            long start = System.nanoTime();
+            File temp = new File(root, INDEX_NAME + INDEX_TEMP_SUFFIX);
+            ByteBuffer live;
+            long copiedUpTo;
+            synchronized (this) {
+                ensureOpen();
+                live = ByteBuffer.allocate(HEADER_SIZE + liveFrames * RECORD_SIZE);
+                live.putInt(MAGIC).putInt(VERSION);
+                ByteBuffer r = ByteBuffer.allocate(RECORD_SIZE);
+                for (Round round : rounds.values()) {
+                    for (Frame frame : round.frames) {
+                        encode(r, OP_PUT, frame.roundId, frame.deviceId, frame.shot, frame.preview, frame.length,
+                                frame.storedAt);
+                        live.put(r);
+                    }
+                }
+                live.flip();
+                copiedUpTo = index.length();
+            }
+
+            RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            boolean replaced = false;
+            try {
+                out.setLength(0);
+                writeFully(out.getChannel(), live);
+                out.getChannel().force(false);
+                synchronized (this) {
+                    ensureOpen();
+                    // what was appended while the live records were written
+                    FileChannel in = index.getChannel();
+                    long end = index.length();
+                    for (long pos = copiedUpTo; pos < end; ) {
+                        pos += in.transferTo(pos, end - pos, out.getChannel());
+                    }
+                    out.getChannel().force(false);
+                    out.close();
+                    if (!temp.renameTo(indexFile)) {
+                        throw new IOException("Could not replace " + indexFile);
+                    }
+                    replaced = true;
+                    IoUtils.closeQuietly(index);
+                    index = new RandomAccessFile(indexFile, "rw");
+                    index.seek(index.length());
+                    indexRecords = (index.length() - HEADER_SIZE) / RECORD_SIZE;
+                }
+            } finally {
+                if (!replaced) {
+                    IoUtils.closeQuietly(out);
+                    temp.delete();
+                }
+            }
+            compactTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Deletes the files directly in {@code dir} whose names start with one of {@code prefixes}
+     * and that were last written longer than the maximum age before {@code nowMillis}.
+     *
+     * @return how many were deleted
+     */
+    public int sweep(File dir, long nowMillis, String... prefixes) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File f : files) {
+            if (f.isFile() && startsWithAny(f.getName(), prefixes)
+                    && nowMillis - f.lastModified() > maxAgeMillis && f.delete()) {
+                deleted++;
+            }
+        }
+        straysDropped.add(deleted);
+        return deleted;
+    }
+
+    private static boolean startsWithAny(String name, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Trims the store and compacts its index every {@code periodMillis} on {@code scheduler},
+     * until {@link #close}.
+     */
+    public synchronized void start(ScheduledExecutorService scheduler, long periodMillis) {
+        if (maintenance != null) {
+            throw new IllegalStateException("Session store maintenance already started");
+        }
+        maintenance = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    trim(System.currentTimeMillis());
+                    if (needsCompaction()) {
+                        compact();
+                    }
+                } catch (IOException e) {
+                    // tried again next period; the index on disk is still whole
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the maintenance and flushes and closes the index.  The pictures stay where they are.
+     */
+    public synchronized void close() {
+        if (maintenance != null) {
+            maintenance.cancel(false);
+        }
+        if (index != null) {
+            try {
+                index.getChannel().force(false);
+            } catch (IOException e) {
+                // the records were written; only their durability is in doubt
+            }
+            IoUtils.closeQuietly(index);
+            index = null;
+        }
+    }
+
+    /**
+     * @return the directory of {@code roundId}'s pictures, which need not exist
+     */
+    public File roundDir(long roundId) {
+        return new File(root, Long.toString(roundId));
+    }
+
+    private static File frameFile(File dir, long deviceId, int shot, boolean preview) {
+        return new File(dir, Long.toHexString(deviceId) + "-" + shot + (preview ? "-preview" : "") + ".jpg");
+    }
+
+    /*
+     * Rebuilds the rounds from the index file
+     *
+     * @return the length of the file up to the last whole record, or 0 if it is missing or has
+     *         no header
+     */
+    private long replay() throws IOException {
+        if (!indexFile.exists() || indexFile.length() < HEADER_SIZE) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile),
+                IoUtils.BUFFER_SIZE * 8));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(indexFile + " is not a session index");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unknown session index version " + version);
+            }
+            long valid = HEADER_SIZE;
+            byte[] b = new byte[RECORD_SIZE];
+            ByteBuffer r = ByteBuffer.wrap(b);
+            while (true) {
+                try {
+                    in.readFully(b);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (Crc32c.compute(b, 0, RECORD_SIZE - 4) != r.getInt(RECORD_SIZE - 4)) {
+                    break;
+                }
+                byte op = r.get(0);
+                int shot = r.get(1) & 0xFF;
+                boolean preview = (r.get(2) & FLAG_PREVIEW) != 0;
+                long length = r.getInt(4) & 0xFFFFFFFFL;
+                long roundId = r.getLong(8);
+                long deviceId = r.getLong(16);
+                long storedAt = r.getLong(24);
+                if (op == OP_PUT) {
+                    add(new Frame(roundId, deviceId, shot, preview, length, storedAt,
+                            frameFile(roundDir(roundId), deviceId, shot, preview)));
+                } else if (op == OP_DROP) {
+                    Round round = rounds.remove(roundId);
+                    if (round != null) {
+                        forget(round);
+                    }
+                } else {
+                    break;
+                }
+                indexRecords++;
+                valid += RECORD_SIZE;
+            }
+            return valid;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void add(Frame frame) {
+        Round round = rounds.get(frame.roundId);
+        if (round == null) {
+            round = new Round();
+            rounds.put(frame.roundId, round);
+        }
+        for (Iterator<Frame> it = round.frames.iterator(); it.hasNext(); ) {
+            Frame old = it.next();
+            if (old.sameSlot(frame.deviceId, frame.shot, frame.preview)) {
+                it.remove();
+                round.bytes -= old.length;
+                totalBytes -= old.length;
+                liveFrames--;
+                break;
+            }
+        }
+        round.frames.add(frame);
+        round.bytes += frame.length;
+        round.lastStoredAt = Math.max(round.lastStoredAt, frame.storedAt);
+        totalBytes += frame.length;
+        liveFrames++;
+        newestRound = frame.roundId;
+    }
+
+    private List<Frame> dropRound(long roundId) throws IOException {
+        Round round = rounds.get(roundId);
+        if (round == null) {
+            return null;
+        }
+        append(OP_DROP, roundId, 0, 0, false, 0, System.currentTimeMillis());
+        rounds.remove(roundId);
+        dropped(round);
+        return round.frames;
+    }
+
+    private void forget(Round round) {
+        totalBytes -= round.bytes;
+        liveFrames -= round.frames.size();
+    }
+
+    private void dropped(Round round) {
+        forget(round);
+        roundsDropped.increment();
+        bytesDropped.add(round.bytes);
+    }
+
+    /*
+     * Deletes a dropped round's pictures, and anything else left in its directory by a put
+     * whose record never made it to the index
+     */
+    private void delete(long roundId, List<Frame> frames) {
+        for (Frame frame : frames) {
+            frame.file.delete();
+        }
+        File dir = roundDir(roundId);
+        synchronized (this) {
+            // stored again since it was dropped
+            if (rounds.containsKey(roundId)) {
+                return;
+            }
+            File[] left = dir.listFiles();
+            if (left != null) {
+                for (File f : left) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private void append(byte op, long roundId, long deviceId, int shot, boolean preview, long length, long storedAt)
+            throws IOException {
+        encode(record, op, roundId, deviceId, shot, preview, length, storedAt);
+        writeFully(index.getChannel(), record);
+        indexRecords++;
+    }
+
+    private static void encode(ByteBuffer r, byte op, long roundId, long deviceId, int shot, boolean preview,
+                               long length, long storedAt) {
+        r.clear();
+        r.put(op).put((byte) shot).put(preview ? FLAG_PREVIEW : 0).put((byte) 0);
+        r.putInt((int) length).putLong(roundId).putLong(deviceId).putLong(storedAt);
+        r.putInt(Crc32c.compute(r.array(), 0, RECORD_SIZE - 4));
+        r.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (index == null) {
+            throw new IOException("Session store is closed");
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.wigl.wigl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the spans of the owner and its members into one timeline per round, on the owner's
+ * clock, and summarises the rounds it holds as percentiles per stage.
+ *
+ * <p>Members know a round by its capture time on their own clock, which the owner sent them
+ * converted through its {@link ClockOffsetEstimator} for that member.  Converting it back gives
+ * the owner's capture time to within the estimate's error, so a member's spans join the owner
+ * round nearest to it within the tolerance.
+ */
+public class TraceCollector {
+    public static final long DEFAULT_TOLERANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    private final int maxRounds;
+    private final long toleranceNanos;
+    private final TreeMap<Long, RoundTrace> rounds = new TreeMap<>();
+
+    /**
+     * @param maxRounds how many of the latest rounds to keep
+     */
+    public TraceCollector(int maxRounds, long toleranceNanos) {
+        if (maxRounds < 1) {
+            throw new IllegalArgumentException("Bad maxRounds " + maxRounds);
+        }
+        this.maxRounds = maxRounds;
+        this.toleranceNanos = toleranceNanos;
+    }
+
+    /**
+     * Starts a round at the owner's capture time, so member spans join it even when they arrive
+     * before any of the owner's own.
+     */
+    public synchronized void addRound(long round) {
+        find(round, true);
+        trim();
+    }
+
+    /**
+     * Adds spans already on the owner's clock: its own, or ones it measured for a member.
+     */
+    public void addOwnerSpans(long deviceId, List<TraceSpan> spans) {
+        addSpans(deviceId, spans, null);
+    }
+
+    /**
+     * Adds spans recorded on a member, moving them onto the owner's clock.
+     *
+     * @param clock the owner's estimate of that member's clock; without an estimate the spans
+     *              are taken to be on the owner's clock already
+     */
+    public synchronized void addSpans(long deviceId, List<TraceSpan> spans, ClockOffsetEstimator clock) {
+        boolean convert = clock != null && clock.hasEstimate();
+        for (TraceSpan span : spans) {
+            long round = convert ? clock.toLocal(span.getRound()) : span.getRound();
+            long start = convert ? clock.toLocal(span.getStartNanos()) : span.getStartNanos();
+            RoundTrace trace = find(round, !convert);
+            trace.add(deviceId, new TraceSpan(trace.getRound(), span.getStage(), start,
+                    start + span.getDurationNanos()));
+        }
+        trim();
+    }
+
+    private void trim() {
+        while (rounds.size() > maxRounds) {
+            rounds.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Finds the owner's round that a member knows by {@code round}, the capture time it was sent
+     * on its own clock, e.g. to file a picture it uploaded under the right round.
+     *
+     * @param clock the owner's estimate of that member's clock; without an estimate the round is
+     *              taken to be on the owner's clock already
+     * @return the round on the owner's clock, or 0 if none is within the tolerance
+     */
+    public synchronized long resolveRound(long round, ClockOffsetEstimator clock) {
+        RoundTrace trace = clock != null && clock.hasEstimate() ? nearest(clock.toLocal(round)) : rounds.get(round);
+        return trace == null ? 0 : trace.getRound();
+    }
+
+    private RoundTrace find(long round, boolean exact) {
+        RoundTrace trace = exact ? rounds.get(round) : nearest(round);
+        if (trace == null) {
+            trace = new RoundTrace(round);
+            rounds.put(round, trace);
+        }
+        return trace;
+    }
+
+    private RoundTrace nearest(long round) {
+        RoundTrace trace = rounds.get(round);
+        if (trace == null) {
+            Map.Entry<Long, RoundTrace> below = rounds.floorEntry(round);
+            Map.Entry<Long, RoundTrace> above = rounds.ceilingEntry(round);
+            long best = toleranceNanos;
+            if (below != null && round - below.getKey() <= best) {
+                trace = below.getValue();
+                best = round - below.getKey();
+            }
+            if (above != null && above.getKey() - round <= best) {
+                trace = above.getValue();
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * @return the round at {@code round} on the owner's clock, or null if none was traced
+     */
+    public synchronized RoundTrace getRound(long round) {
+        return rounds.get(round);
+    }
+
+    public synchronized List<RoundTrace> getRounds() {
+        return new ArrayList<>(rounds.values());
+    }
+
+    /**
+     * @return the 50th, 95th and 99th percentile of {@code values} by nearest rank, or zeros if
+     *         there are none
+     */
+    public static long[] percentiles(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        long[] result = new long[PERCENTILES.length];
+        for (int i = 0; i < PERCENTILES.length && sorted.length > 0; i++) {
+            int rank = (int) Math.ceil(PERCENTILES[i] / 100 * sorted.length);
+            result[i] = sorted[Math.max(0, rank - 1)];
+        }
+        return result;
+    }
+
+    /**
+     * @return for every stage, and for the capture-to-display latency of displayed rounds, how
+     *         many spans there were and their p50, p95, p99 and maximum in milliseconds
+     */
+    public synchronized String report() {
+        Map<TraceStage, List<Long>> durations = new EnumMap<>(TraceStage.class);
+        List<Long> totals = new ArrayList<>();
+        for (RoundTrace trace : rounds.values()) {
+            for (TraceStage stage : TraceStage.values()) {
+                for (TraceSpan span : trace.getSpans(stage)) {
+                    List<Long> list = durations.get(stage);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        durations.put(stage, list);
+                    }
+                    list.add(span.getDurationNanos());
+                }
+            }
+            if (trace.isDisplayed()) {
+                totals.add(trace.getTotalNanos());
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-16s %6s %9s %9s %9s %9s%n", "stage (ms)", "count", "p50", "p95", "p99", "max"));
+        for (Map.Entry<TraceStage, List<Long>> entry : durations.entrySet()) {
+            appendRow(out, entry.getKey().toString(), entry.getValue());
+        }
+        appendRow(out, "CAPTURE_TO_SHOW", totals);
+        return out.toString();
+    }
+
+    private static void appendRow(StringBuilder out, String name, List<Long> values) {
+        long[] array = new long[values.size()];
+        long max = 0;
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+            max = Math.max(max, array[i]);
+        }
+        long[] p = percentiles(array);
+        out.append(String.format("%-16s %6d %9.1f %9.1f %9.1f %9.1f%n", name, array.length,
+                p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, max / 1e6));
+    }
+}
@@ -0,0 +1,68 @@
+package com.wigl.wigl;
+
+/**
+ * One traced {@link TraceStage} of a round on one device, in nanoseconds on that device's
+ * monotonic clock until a {@link TraceCollector} moves it onto the owner's.
+ */
+public final class TraceSpan {
+    private final long round;
+    private final TraceStage stage;
+    private final long startNanos;
+    private final long endNanos;
+
+    public TraceSpan(long round, TraceStage stage, long startNanos, long endNanos) {
+        this.round = round;
+        this.stage = stage;
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+    }
+
+    /**
+     * @return the round's capture time on the clock of the device that recorded the span
+     */
+    public long getRound() {
+        return round;
+    }
+
+    public TraceStage getStage() {
+        return stage;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    public long getDurationNanos() {
+        return endNanos - startNanos;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TraceSpan)) {
+            return false;
+        }
+        TraceSpan other = (TraceSpan) o;
+        return round == other.round && stage == other.stage && startNanos == other.startNanos
+                && endNanos == other.endNanos;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = (int) (round ^ (round >>> 32));
+        h = 31 * h + stage.hashCode();
+        h = 31 * h + (int) (startNanos ^ (startNanos >>> 32));
+        return 31 * h + (int) (endNanos ^ (endNanos >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return stage + "{round=" + round + ", " + startNanos + "+" + getDurationNanos() + " ns}";
+    }
+}
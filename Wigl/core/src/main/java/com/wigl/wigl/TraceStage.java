@@ -0,0 +1,99 @@
+package com.wigl.wigl;
+
+/**
+ * The parts of a Wigl round that are traced, in the order they happen.  The code is what goes
+ * on the wire in a {@link MessageType#TRACE_REPORT}, so existing codes must never be renumbered.
+ */
+public enum TraceStage {
+    /**
+     * Owner: from deciding the capture time to enough members acknowledging the command.
+     */
+    COMMAND(1),
+
+    /**
+     * Member: from the capture command reaching the server to the UI thread handling it.
+     */
+    COMMAND_RECEIVED(2),
+
+    /**
+     * From queueing the capture command to the camera being ready for it; only long when the
+     * camera had to be opened.
+     */
+    LAUNCH(3),
+
+    /**
+     * From the camera being ready to firing the shutter; ends after the capture time when it fires late.
+     */
+    SHUTTER_WAIT(4),
+
+    /**
+     * From firing the shutter to the JPEG reaching the picture callback.
+     */
+    SHUTTER(5),
+
+    /**
+     * Writing the picture to disk while the capture waits for it; not traced when the write is
+     * handed off to the background.
+     */
+    SAVE(6),
+
+    /**
+     * Member: opening a connection to the owner for the upload, one span per attempt.  Uploads
+     * now keep their connections open across rounds, so connects are only counted in
+     * {@link TransferMetrics} and this is no longer traced.
+     */
+    CONNECT(7),
+
+    /**
+     * Member: sending the picture until the owner acknowledges it, retries included; the
+     * preview when the owner asked for one.
+     */
+    UPLOAD(8),
+
+    /**
+     * Owner: receiving one member's picture, on the connection that completed it.
+     */
+    RECEIVE(9),
+
+    /**
+     * Owner: from the round's pictures all being in to the Wigl playing: decode, alignment and
+     * the first frame.
+     */
+    DISPLAY(10),
+
+    /**
+     * Member: decoding the picture scaled down and encoding it as the preview.
+     */
+    PREVIEW(11),
+
+    /**
+     * Member: sending the full-size picture after its preview, at background priority.
+     */
+    UPLOAD_FULL(12),
+
+    /**
+     * Member: a preview or picture waiting in the {@link UploadScheduler} for a lane.
+     */
+    QUEUE(13);
+
+    private static final TraceStage[] BY_CODE = new TraceStage[256];
+
+    static {
+        for (TraceStage stage : values()) {
+            BY_CODE[stage.code] = stage;
+        }
+    }
+
+    public final int code;
+
+    TraceStage(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the stage for {@code code}, or null if it is not a known stage
+     */
+    public static TraceStage fromCode(int code) {
+        return BY_CODE[code & 0xFF];
+    }
+}
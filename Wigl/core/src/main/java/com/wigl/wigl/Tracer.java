@@ -0,0 +1,111 @@
+package com.wigl.wigl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the {@link TraceStage spans} of this device's rounds into a fixed ring buffer, so
+ * tracing allocates nothing and its memory stays bounded however long the app runs.  Once the
+ * ring is full the oldest spans are overwritten.  Spans may be recorded from any thread.
+ */
+public class Tracer {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Tracer INSTANCE = new Tracer(DEFAULT_CAPACITY, MonotonicClock.SYSTEM);
+
+    private final MonotonicClock clock;
+    private final int mask;
+    private final long[] rounds;
+    private final long[] starts;
+    private final long[] ends;
+    private final TraceStage[] stages;
+    private long recorded;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public Tracer(int capacity, MonotonicClock clock) {
+        if (capacity < 1 || capacity > 1 << 20) {
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.clock = clock;
+        this.mask = size - 1;
+        this.rounds = new long[size];
+        this.starts = new long[size];
+        this.ends = new long[size];
+        this.stages = new TraceStage[size];
+    }
+
+    /**
+     * @return the tracer of this process
+     */
+    public static Tracer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the time to start or end a span with
+     */
+    public long now() {
+        return clock.nanoTime();
+    }
+
+    /**
+     * @param round the round's capture time on this device's clock
+     */
+    public synchronized void record(long round, TraceStage stage, long startNanos, long endNanos) {
+        int slot = (int) (recorded++ & mask);
+        rounds[slot] = round;
+        stages[slot] = stage;
+        starts[slot] = startNanos;
+        ends[slot] = endNanos;
+    }
+
+    /**
+     * Records a span that ends now.
+     */
+    public void recordSince(long round, TraceStage stage, long startNanos) {
+        record(round, stage, startNanos, clock.nanoTime());
+    }
+
+    /**
+     * @return the spans of {@code round} still in the ring, oldest first
+     */
+    public synchronized List<TraceSpan> getSpans(long round) {
+        List<TraceSpan> spans = new ArrayList<>();
+        for (long i = Math.max(0, recorded - rounds.length); i < recorded; i++) {
+            int slot = (int) (i & mask);
+            if (rounds[slot] == round) {
+                spans.add(new TraceSpan(round, stages[slot], starts[slot], ends[slot]));
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * @return every span still in the ring, oldest first
+     */
+    public synchronized List<TraceSpan> getSpans() {
+        List<TraceSpan> spans = new ArrayList<>();
+        for (long i = Math.max(0, recorded - rounds.length); i < recorded; i++) {
+            int slot = (int) (i & mask);
+            spans.add(new TraceSpan(rounds[slot], stages[slot], starts[slot], ends[slot]));
+        }
+        return spans;
+    }
+
+    public int getCapacity() {
+        return rounds.length;
+    }
+
+    /**
+     * @return how many spans were recorded in all, including overwritten ones
+     */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+}
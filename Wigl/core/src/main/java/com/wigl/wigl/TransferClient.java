@@ -0,0 +1,235 @@
+package com.wigl.wigl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * The member side of a {@link TransferServer} connection.  One client can send any number of
+ * frames over the same socket; every send blocks until the owner has acknowledged it.
+ */
+public class TransferClient implements Closeable {
+    /**
+     * Called before every chunk of a picture, so the sender can hold the picture back while
+     * something more urgent uses the link.
+     */
+    public interface ChunkGate {
+        void awaitTurn() throws IOException;
+    }
+
+    private final SocketChannel channel;
+    private final long deviceId;
+    private final MonotonicClock clock = MonotonicClock.SYSTEM;
+    private final ByteBuffer headerBuf = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+    private final ByteBuffer chunkHeaderBuf = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + FrameCodec.CHUNK_HEADER_SIZE);
+    private int sequence;
+    private volatile long bytesSent;
+    private ChunkGate gate;
+
+    /**
+     * @param channel  a connected, blocking channel
+     * @param deviceId this device's id, sent in the header of every frame
+     */
+    public TransferClient(SocketChannel channel, long deviceId) {
+        this.channel = channel;
+        this.deviceId = deviceId;
+    }
+
+    public static TransferClient connect(String host, int port, int timeout, long deviceId) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), timeout);
+            return new TransferClient(channel, deviceId);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Measures the owner's clock against ours with {@code samples} round trips.
+     */
+    public void syncClock(ClockOffsetEstimator estimator, int samples) throws IOException {
+        for (int i = 0; i < samples; i++) {
+            long t1 = clock.nanoTime();
+            byte[] payload = FrameCodec.encodeTimeRequest(t1);
+            FrameHeader header = nextHeader(MessageType.TIME_REQUEST, payload.length);
+            FrameCodec.writeFrame(channel, header, payload);
+            FrameHeader reply = FrameCodec.readHeader(channel, headerBuf);
+            long t4 = clock.nanoTime();
+            if (reply == null) {
+                throw new ProtocolException("Connection closed before " + header + " was answered");
+            }
+            if (reply.getType() != MessageType.TIME_RESPONSE || reply.getSequence() != header.getSequence()) {
+                throw new ProtocolException("Expected TIME_RESPONSE for " + header + " but got " + reply);
+            }
+            long[] times = FrameCodec.decodeTimeResponse(FrameCodec.readPayload(channel, reply));
+            if (times[0] != t1) {
+                throw new ProtocolException("Time response for " + times[0] + " does not match request " + t1);
+            }
+            estimator.addSample(t1, times[1], times[2], t4);
+        }
+    }
+
+    /**
+     * Asks the owner to take a picture at {@code captureTime}, on the owner's monotonic clock.
+     */
+    public void sendCaptureCommand(long captureTime) throws IOException {
+        sendCaptureCommand(captureTime, PreviewSpec.NONE);
+    }
+
+    /**
+     * Tells a member to take a picture at {@code captureTime}, on the member's monotonic clock,
+     * and to send {@code preview} ahead of it.
+     */
+    public void sendCaptureCommand(long captureTime, PreviewSpec preview) throws IOException {
+        sendCaptureCommand(captureTime, preview, Burst.SINGLE);
+    }
+
+    /**
+     * Like {@link #sendCaptureCommand(long, PreviewSpec)}, for {@code burst} pictures starting
+     * at {@code captureTime}.
+     */
+    public void sendCaptureCommand(long captureTime, PreviewSpec preview, Burst burst) throws IOException {
+        byte[] payload = FrameCodec.encodeCaptureCommand(captureTime, preview, burst);
+        FrameHeader header = nextHeader(MessageType.CAPTURE_COMMAND, payload.length);
+        FrameCodec.writeFrame(channel, header, payload);
+        awaitAck(header);
+    }
+
+    /**
+     * Tells the owner how late this device's shutter fired for the round at {@code captureTime}.
+     */
+    public void sendCaptureReport(long captureTime, long lateNanos) throws IOException {
+        sendCaptureReport(captureTime, lateNanos, Readiness.NONE);
+    }
+
+    /**
+     * Like {@link #sendCaptureReport(long, long)}, with how quickly this device was ready for
+     * the round so the owner can set the next capture time closer.
+     */
+    public void sendCaptureReport(long captureTime, long lateNanos, Readiness readiness) throws IOException {
+        byte[] payload = FrameCodec.encodeCaptureReport(captureTime, lateNanos, readiness);
+        FrameHeader header = nextHeader(MessageType.CAPTURE_REPORT, payload.length);
+        FrameCodec.writeFrame(channel, header, payload);
+        awaitAck(header);
+    }
+
+    /**
+     * Sends the owner this device's trace of one or more rounds, on this device's clock.
+     */
+    public void sendTraceReport(List<TraceSpan> spans) throws IOException {
+        byte[] payload = FrameCodec.encodeTraceReport(spans);
+        FrameHeader header = nextHeader(MessageType.TRACE_REPORT, payload.length);
+        FrameCodec.writeFrame(channel, header, payload);
+        awaitAck(header);
+    }
+
+    /**
+     * Offers {@code src} with the default chunk size and sends whatever the owner is missing.
+     */
+    public TransferStats sendPicture(PictureSource src) throws IOException {
+        return sendPicture(src, PictureOffer.create(src, PictureOffer.DEFAULT_CHUNK_SIZE));
+    }
+
+    /**
+     * Offers a picture, then sends every chunk from the offset the owner asks to resume at and
+     * waits until the owner has verified the whole file.  Offering the same picture again on a
+     * new connection after a failure only sends the chunks that did not make it.
+     *
+     * @return the bytes sent on this connection
+     */
+    public TransferStats sendPicture(PictureSource src, PictureOffer offer) throws IOException {
+        return sendPicture(src, offer, 0);
+    }
+
+    /**
+     * @param flags header flags of the offer, such as {@link FrameHeader#FLAG_PREVIEW}
+     */
+    public TransferStats sendPicture(PictureSource src, PictureOffer offer, int flags) throws IOException {
+        long start = System.nanoTime();
+        byte[] payload = offer.encode();
+        FrameHeader header = new FrameHeader(MessageType.PICTURE, flags, payload.length, deviceId, sequence++);
+        FrameCodec.writeFrame(channel, header, payload);
+        long offset = awaitResume(header, offer);
+
+        int chunkSize = offer.getChunkSize();
+        long sent = 0;
+        for (int index = (int) (offset / chunkSize); offset < offer.getLength(); index++) {
+            if (gate != null) {
+                gate.awaitTurn();
+            }
+            int length = (int) Math.min(chunkSize, offer.getLength() - offset);
+            chunkHeaderBuf.clear();
+            FrameCodec.encodeHeader(nextHeader(MessageType.CHUNK, FrameCodec.CHUNK_HEADER_SIZE + length), chunkHeaderBuf);
+            chunkHeaderBuf.putLong(offset).putInt(offer.getChunkCrc(index));
+            chunkHeaderBuf.flip();
+            FrameCodec.writeFully(channel, chunkHeaderBuf);
+            src.transferTo(offset, length, channel);
+            offset += length;
+            sent += length;
+            bytesSent += length;
+        }
+        awaitAck(header);
+        return new TransferStats(sent, System.nanoTime() - start);
+    }
+
+    /**
+     * @param gate asked before every chunk of every picture, or null to send them straight away
+     */
+    public void setChunkGate(ChunkGate gate) {
+        this.gate = gate;
+    }
+
+    /**
+     * @return the picture bytes written to this connection so far, for watching its progress
+     *         from another thread
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private FrameHeader nextHeader(MessageType type, int length) {
+        return new FrameHeader(type, 0, length, deviceId, sequence++);
+    }
+
+    private long awaitResume(FrameHeader sent, PictureOffer offer) throws IOException {
+        FrameHeader reply = FrameCodec.readHeader(channel, headerBuf);
+        if (reply == null) {
+            throw new ProtocolException("Connection closed before " + sent + " was answered");
+        }
+        if (reply.getType() != MessageType.RESUME || reply.getSequence() != sent.getSequence()) {
+            throw new ProtocolException("Expected RESUME for " + sent + " but got " + reply);
+        }
+        long offset = FrameCodec.decodeResume(FrameCodec.readPayload(channel, reply));
+        if (offset < 0 || offset > offer.getLength()
+                || (offset % offer.getChunkSize() != 0 && offset != offer.getLength())) {
+            throw new ProtocolException("Cannot resume " + offer + " at " + offset);
+        }
+        return offset;
+    }
+
+    private void awaitAck(FrameHeader sent) throws IOException {
+        FrameHeader reply = FrameCodec.readHeader(channel, headerBuf);
+        if (reply == null) {
+            throw new ProtocolException("Connection closed before " + sent + " was acknowledged");
+        }
+        if (reply.getType() != MessageType.ACK || reply.getSequence() != sent.getSequence()) {
+            throw new ProtocolException("Expected ACK for " + sent + " but got " + reply);
+        }
+        FrameCodec.readPayload(channel, reply);
+    }
+}
@@ -0,0 +1,199 @@
+package com.wigl.wigl;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Moves bytes between files, sockets and streams with as few copies as the endpoints allow.
+ * When one side is a {@link FileChannel} the kernel does the copy through
+ * {@link FileChannel#transferTo} or {@link FileChannel#transferFrom}; anything else goes through
+ * a pooled direct buffer instead of a small heap array.
+ * <p>
+ * None of the methods close the channels or streams they are given.
+ */
+public class TransferEngine {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static TransferEngine instance;
+
+    private final BufferPool pool;
+
+    public TransferEngine(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the engine shared by the transfer client and server
+     */
+    public static synchronized TransferEngine getInstance() {
+        if (instance == null) {
+            instance = new TransferEngine(new BufferPool(DEFAULT_BUFFER_SIZE, 8));
+        }
+        return instance;
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code src} starting at {@code position} to {@code dst}.
+     *
+     * @throws EOFException if the file holds fewer than {@code position + count} bytes
+     */
+    public TransferStats transfer(FileChannel src, long position, long count, WritableByteChannel dst) throws IOException {
+        long start = System.nanoTime();
+        long done = 0;
+        while (done < count) {
+            long n = src.transferTo(position + done, count - done, dst);
+            if (n <= 0) {
+                if (position + done >= src.size()) {
+                    throw new EOFException("File ended " + (count - done) + " bytes short of " + count);
+                }
+                // some channels make no progress on a single call; finish through a buffer
+                done += copy(src, position + done, count - done, dst);
+                break;
+            }
+            done += n;
+        }
+        return new TransferStats(done, System.nanoTime() - start);
+    }
+
+    /**
+     * Receives exactly {@code count} bytes from {@code src} into {@code dst} at {@code position}.
+     *
+     * @throws EOFException if {@code src} ends before {@code count} bytes were read
+     */
+    public TransferStats transfer(ReadableByteChannel src, FileChannel dst, long position, long count) throws IOException {
+        long start = System.nanoTime();
+        long done = 0;
+        ByteBuffer buf = null;
+        try {
+            while (done < count) {
+                long n = dst.transferFrom(src, position + done, count - done);
+                if (n > 0) {
+                    done += n;
+                    continue;
+                }
+                // transferFrom cannot tell an idle source from a closed one; read to find out
+                if (buf == null) {
+                    buf = pool.acquire();
+                }
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), count - done));
+                if (src.read(buf) == -1) {
+                    throw new EOFException("Stream ended " + (count - done) + " bytes short of " + count);
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    done += dst.write(buf, position + done);
+                }
+            }
+        } finally {
+            pool.release(buf);
+        }
+        return new TransferStats(done, System.nanoTime() - start);
+    }
+
+    /**
+     * Copies exactly {@code count} bytes between two arbitrary channels through a pooled direct
+     * buffer.
+     *
+     * @throws EOFException if {@code src} ends before {@code count} bytes were read
+     */
+    public TransferStats transfer(ReadableByteChannel src, WritableByteChannel dst, long count) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer buf = pool.acquire();
+        long done = 0;
+        try {
+            while (done < count) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), count - done));
+                if (src.read(buf) == -1) {
+                    throw new EOFException("Stream ended " + (count - done) + " bytes short of " + count);
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    done += dst.write(buf);
+                }
+            }
+        } finally {
+            pool.release(buf);
+        }
+        return new TransferStats(done, System.nanoTime() - start);
+    }
+
+    /**
+     * Copies everything {@code in} holds to {@code out}, using the file channels underneath
+     * either stream when there are any.
+     */
+    public TransferStats copy(InputStream in, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        long done;
+        if (in instanceof FileInputStream) {
+            FileChannel src = ((FileInputStream) in).getChannel();
+            long position = src.position();
+            long count = src.size() - position;
+            transfer(src, position, count, channelFor(out));
+            src.position(position + count);
+            done = count;
+        } else if (out instanceof FileOutputStream) {
+            FileChannel dst = ((FileOutputStream) out).getChannel();
+            done = drain(Channels.newChannel(in), dst);
+        } else {
+            done = drain(Channels.newChannel(in), Channels.newChannel(out));
+        }
+        out.flush();
+        return new TransferStats(done, System.nanoTime() - start);
+    }
+
+    private static WritableByteChannel channelFor(OutputStream out) {
+        if (out instanceof FileOutputStream) {
+            return ((FileOutputStream) out).getChannel();
+        }
+        return Channels.newChannel(out);
+    }
+
+    private long copy(FileChannel src, long position, long count, WritableByteChannel dst) throws IOException {
+        ByteBuffer buf = pool.acquire();
+        long done = 0;
+        try {
+            while (done < count) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), count - done));
+                if (src.read(buf, position + done) == -1) {
+                    throw new EOFException("File ended " + (count - done) + " bytes short of " + count);
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    done += dst.write(buf);
+                }
+            }
+        } finally {
+            pool.release(buf);
+        }
+        return done;
+    }
+
+    private long drain(ReadableByteChannel src, WritableByteChannel dst) throws IOException {
+        ByteBuffer buf = pool.acquire();
+        long done = 0;
+        try {
+            while (src.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    done += dst.write(buf);
+                }
+                buf.clear();
+            }
+        } finally {
+            pool.release(buf);
+        }
+        return done;
+    }
+}
@@ -0,0 +1,141 @@
+package com.wigl.wigl;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The transfer metrics of each peer, kept in a {@link MetricsRegistry} under
+ * {@code peer.<peer>.<metric>}:
+ *
+ * <ul>
+ * <li>{@code bytes_sent}, {@code bytes_received}: payload bytes, including those of attempts
+ * that failed</li>
+ * <li>{@code connect_us}: time to open a connection</li>
+ * <li>{@code transfer_us}, {@code throughput_kbps}: per completed picture, on the connection
+ * that completed it, throughput in KiB per second</li>
+ * <li>{@code retries}: attempts started again after a failure</li>
+ * <li>{@code failures.<cause>}: failed attempts by {@link FailureCause}</li>
+ * <li>{@code connections_reused}: uploads sent on a connection kept open from an earlier one</li>
+ * <li>{@code queue_depth}, {@code queue_bytes}: frames an {@link UploadScheduler} holds for the
+ * peer and not started yet, and the picture bytes it holds including those being sent; these go
+ * down as well as up</li>
+ * <li>{@code queue_wait_us.<priority>}: time from submitting a frame to starting it</li>
+ * </ul>
+ *
+ * Peers are named by the caller: the owner names members by their MAC address, members name the
+ * owner by its host.
+ */
+public class TransferMetrics {
+    public static final String PREFIX = "peer.";
+
+    private static final TransferMetrics INSTANCE = new TransferMetrics(MetricsRegistry.getInstance());
+
+    private final MetricsRegistry registry;
+    private final ConcurrentMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+    public TransferMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @return the transfer metrics of this process, in {@link MetricsRegistry#getInstance()}
+     */
+    public static TransferMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    public void connected(String peer, long elapsedNanos) {
+        peer(peer).connect.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+    }
+
+    public void sent(String peer, long bytes) {
+        peer(peer).sent.add(bytes);
+    }
+
+    public void received(String peer, long bytes) {
+        peer(peer).received.add(bytes);
+    }
+
+    /**
+     * Records the time and throughput of a completed picture.
+     */
+    public void transferred(String peer, TransferStats stats) {
+        Peer p = peer(peer);
+        p.transfer.record(TimeUnit.NANOSECONDS.toMicros(stats.getElapsedNanos()));
+        p.throughput.record(Math.round(stats.getBytesPerSecond() / 1024));
+    }
+
+    public void reused(String peer) {
+        peer(peer).reused.increment();
+    }
+
+    /**
+     * Adds to the scheduler queue of {@code peer}; negative when frames leave it.
+     */
+    public void queued(String peer, int frames, long bytes) {
+        Peer p = peer(peer);
+        p.queueDepth.add(frames);
+        p.queueBytes.add(bytes);
+    }
+
+    public void waited(String peer, UploadScheduler.Priority priority, long elapsedNanos) {
+        registry.recorder(PREFIX + peer + ".queue_wait_us." + priority.name().toLowerCase(Locale.US))
+                .record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+    }
+
+    public void retried(String peer) {
+        peer(peer).retries.increment();
+    }
+
+    /**
+     * @return the cause the failure was counted under
+     */
+    public FailureCause failed(String peer, IOException e) {
+        FailureCause cause = FailureCause.of(e);
+        registry.counter(PREFIX + peer + ".failures." + cause.name().toLowerCase(Locale.US)).increment();
+        return cause;
+    }
+
+    private Peer peer(String name) {
+        Peer peer = peers.get(name);
+        if (peer == null) {
+            Peer created = new Peer(registry, PREFIX + name + ".");
+            peer = peers.putIfAbsent(name, created);
+            if (peer == null) {
+                peer = created;
+            }
+        }
+        return peer;
+    }
+
+    private static final class Peer {
+        final Counter sent;
+        final Counter received;
+        final Counter retries;
+        final Counter reused;
+        final Counter queueDepth;
+        final Counter queueBytes;
+        final HistogramRecorder connect;
+        final HistogramRecorder transfer;
+        final HistogramRecorder throughput;
+
+        Peer(MetricsRegistry registry, String prefix) {
+            sent = registry.counter(prefix + "bytes_sent");
+            received = registry.counter(prefix + "bytes_received");
+            retries = registry.counter(prefix + "retries");
+            reused = registry.counter(prefix + "connections_reused");
+            queueDepth = registry.counter(prefix + "queue_depth");
+            queueBytes = registry.counter(prefix + "queue_bytes");
+            connect = registry.recorder(prefix + "connect_us");
+            transfer = registry.recorder(prefix + "transfer_us");
+            throughput = registry.recorder(prefix + "throughput_kbps");
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package com.wigl.wigl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived server socket for the group owner.  It binds once, accepts any number of group
+ * members and serves each connection on a bounded worker pool.  A connection carries any number
+ * of {@link FrameCodec frames} until the member closes it; capture commands and pictures are
+ * acknowledged with an {@link MessageType#ACK} once they have been handled.
+ * <p>
+ * Pictures arrive as checksummed {@link MessageType#CHUNK chunks} after a {@link PictureOffer}.
+ * Verified chunks are kept on disk when a connection drops, and a member that offers the same
+ * picture again resumes from the first missing chunk.  A picture is only handed to the
+ * {@link Listener}, on the worker thread that completed it, once its whole-file digest matches;
+ * corrupt or truncated files are never reported.
+ * <p>
+ * {@link MessageType#TIME_REQUEST Time requests} are answered straight away with this device's
+ * monotonic clock, which is the clock capture times are given in.
+ */
+public class TransferServer {
+    static final String PARTIAL_SUFFIX = ".part";
+
+    /**
+     * Recently completed transfers remembered so an offer repeated after a lost acknowledgement
+     * is not delivered twice.
+     */
+    private static final int MAX_COMPLETED = 64;
+
+    public interface Listener {
+        /**
+         * A picture is to be taken at {@code captureTime}, in nanoseconds on this device's
+         * {@link System#nanoTime()} clock.  From the owner, {@code preview} is the preview to
+         * send ahead of the picture, and {@code burst} how many pictures to take from then on;
+         * from a member they are {@link PreviewSpec#NONE} and {@link Burst#SINGLE}.
+         */
+        void onCaptureCommand(FrameHeader header, long captureTime, PreviewSpec preview, Burst burst);
+
+        /**
+         * A member's shutter fired {@code lateNanos} after {@code captureTime}, the capture time
+         * it was sent on its own clock.  {@code readiness} is how quickly it was ready for the
+         * round, or {@link Readiness#NONE} if it did not say.
+         */
+        void onCaptureReport(FrameHeader header, long captureTime, long lateNanos, Readiness readiness);
+
+        /**
+         * A member sent the spans it traced, with rounds and times on its own clock.
+         */
+        void onTraceReport(FrameHeader header, List<TraceSpan> spans);
+
+        /**
+         * A picture was received completely and its digest verified.  {@code round} is the round
+         * the member took it for, on the member's clock, or 0 if its offer did not say; see
+         * {@link PictureOffer#getRound()}.  {@code stats} covers the bytes received on the
+         * connection that completed it.
+         */
+        void onPictureReceived(FrameHeader header, long round, File file, TransferStats stats);
+
+        /**
+         * A connection failed.  The server keeps accepting other connections.
+         */
+        void onError(IOException e);
+    }
+
+    private final int port;
+    private final long deviceId;
+    private final File directory;
+    private final String prefix;
+    private final Listener listener;
+    private final MonotonicClock clock = MonotonicClock.SYSTEM;
+    private final TransferMetrics metrics = TransferMetrics.getInstance();
+    private final Semaphore slots;
+    private final ExecutorService workers;
+    private final AtomicInteger fileCounter = new AtomicInteger();
+    private final Set<SocketChannel> clients = Collections.newSetFromMap(new ConcurrentHashMap<SocketChannel, Boolean>());
+    private final Map<String, PartialPicture> partials = new HashMap<>();
+    private final Map<String, Boolean> completed = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_COMPLETED;
+        }
+    };
+
+    private volatile ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+
+    /**
+     * @param port       port to listen on, or 0 for an ephemeral port
+     * @param deviceId   this device's id, sent in the header of every acknowledgement
+     * @param directory  where received files are written
+     * @param prefix     file name prefix for received files
+     * @param maxClients number of connections served concurrently; further members wait in the
+     *                   listen backlog until a worker frees up
+     * @param listener   receives completed files and connection errors
+     */
+    public TransferServer(int port, long deviceId, File directory, String prefix, int maxClients, Listener listener) {
+        this.port = port;
+        this.deviceId = deviceId;
+        this.directory = directory;
+        this.prefix = prefix;
+        this.listener = listener;
+        this.slots = new Semaphore(maxClients);
+        this.workers = Executors.newFixedThreadPool(maxClients, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "TransferServer-worker-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Binds the server socket and starts accepting connections in the background.
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("TransferServer already started");
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            IoUtils.closeQuietly(channel);
+            throw e;
+        }
+        serverChannel = channel;
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "TransferServer-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * @return the port the server is bound to, or -1 if it has not been started
+     */
+    public int getLocalPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel == null ? -1 : channel.socket().getLocalPort();
+    }
+
+    public boolean isRunning() {
+        ServerSocketChannel channel = serverChannel;
+        return channel != null && channel.isOpen();
+    }
+
+    /**
+     * Closes the server socket and every open connection.  Pictures in flight stay on disk as
+     * partial files and resume when their members offer them again.
+     */
+    public synchronized void stop() {
+        IoUtils.closeQuietly(serverChannel);
+        if (acceptThread != null) {
+            acceptThread.interrupt();
+        }
+        for (SocketChannel client : clients) {
+            IoUtils.closeQuietly(client);
+        }
+        workers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        ServerSocketChannel channel = serverChannel;
+        while (channel.isOpen()) {
+            final SocketChannel client;
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                client = channel.accept();
+            } catch (IOException e) {
+                slots.release();
+                if (channel.isOpen()) {
+                    listener.onError(e);
+                }
+                continue;
+            }
+            clients.add(client);
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(client);
+                    } catch (IOException e) {
+                        if (isRunning()) {
+                            listener.onError(e);
+                        }
+                    } finally {
+                        clients.remove(client);
+                        IoUtils.closeQuietly(client);
+                        slots.release();
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(SocketChannel client) throws IOException {
+        ByteBuffer headerBuf = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+        Upload upload = null;
+        FrameHeader header;
+        long peer = MacAddress.UNKNOWN;
+        try {
+            while ((header = FrameCodec.readHeader(client, headerBuf)) != null) {
+                long receivedNanos = clock.nanoTime();
+                peer = header.getDeviceId();
+                switch (header.getType()) {
+                    case TIME_REQUEST:
+                        long requestNanos = FrameCodec.decodeTimeRequest(FrameCodec.readPayload(client, header));
+                        byte[] payload = FrameCodec.encodeTimeResponse(requestNanos, receivedNanos, clock.nanoTime());
+                        FrameCodec.writeFrame(client, new FrameHeader(MessageType.TIME_RESPONSE, 0, payload.length, deviceId, header.getSequence()), payload);
+                        break;
+                    case CAPTURE_COMMAND:
+                        byte[] command = FrameCodec.readPayload(client, header);
+                        listener.onCaptureCommand(header, FrameCodec.decodeCaptureCommand(command),
+                                FrameCodec.decodeCapturePreview(command), FrameCodec.decodeCaptureBurst(command));
+                        ack(client, headerBuf, header);
+                        break;
+                    case CAPTURE_REPORT:
+                        byte[] reportPayload = FrameCodec.readPayload(client, header);
+                        long[] report = FrameCodec.decodeCaptureReport(reportPayload);
+                        listener.onCaptureReport(header, report[0], report[1],
+                                FrameCodec.decodeCaptureReadiness(reportPayload));
+                        ack(client, headerBuf, header);
+                        break;
+                    case TRACE_REPORT:
+                        listener.onTraceReport(header, FrameCodec.decodeTraceReport(FrameCodec.readPayload(client, header)));
+                        ack(client, headerBuf, header);
+                        break;
+                    case PICTURE:
+                        if (upload != null) {
+                            abandon(upload, client);
+                        }
+                        upload = offer(client, headerBuf, header);
+                        if (upload.partial == null) {
+                            // already delivered; the member never saw the acknowledgement
+                            ack(client, headerBuf, header);
+                            upload = null;
+                        } else if (upload.partial.offset == upload.partial.offer.getLength()) {
+                            finish(client, headerBuf, upload);
+                            upload = null;
+                        }
+                        break;
+                    case CHUNK:
+                        if (upload == null) {
+                            throw new ProtocolException("Chunk without a picture offer: " + header);
+                        }
+                        receiveChunk(client, header, upload);
+                        if (upload.partial.offset == upload.partial.offer.getLength()) {
+                            finish(client, headerBuf, upload);
+                            upload = null;
+                        }
+                        break;
+                    case ACK:
+                    case RESUME:
+                    case TIME_RESPONSE:
+                        // members do not expect anything acknowledged back
+                        FrameCodec.readPayload(client, header);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            if (isRunning()) {
+                metrics.failed(MacAddress.format(peer), e);
+            }
+            throw e;
+        } finally {
+            if (upload != null) {
+                abandon(upload, client);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes of a picture the connection stopped sending and releases it.
+     */
+    private void abandon(Upload upload, SocketChannel client) {
+        metrics.received(MacAddress.format(upload.header.getDeviceId()), upload.bytes);
+        release(upload.partial, client);
+    }
+
+    private void ack(SocketChannel client, ByteBuffer headerBuf, FrameHeader header) throws IOException {
+        headerBuf.clear();
+        FrameCodec.encodeHeader(new FrameHeader(MessageType.ACK, 0, 0, deviceId, header.getSequence()), headerBuf);
+        headerBuf.flip();
+        FrameCodec.writeFully(client, headerBuf);
+    }
+
+    /**
+     * Looks up or starts the partial picture for an offer and tells the member where to resume.
+     * A connection that still owns the transfer is a link the member has already given up on,
+     * so it is closed.
+     */
+    private Upload offer(SocketChannel client, ByteBuffer headerBuf, FrameHeader header) throws IOException {
+        PictureOffer offer = PictureOffer.decode(FrameCodec.readPayload(client, header));
+        String key = Long.toHexString(header.getDeviceId()) + "-" + Long.toHexString(offer.getTransferId());
+        PartialPicture partial = null;
+        SocketChannel previous = null;
+        long offset;
+        synchronized (partials) {
+            if (completed.containsKey(key)) {
+                offset = offer.getLength();
+            } else {
+                partial = partials.get(key);
+                if (partial != null && !partial.offer.equals(offer)) {
+                    synchronized (partial) {
+                        previous = partial.owner;
+                        partial.owner = null;
+                    }
+                    partials.remove(key);
+                    partial.close();
+                    partial = null;
+                }
+                if (partial == null) {
+                    partial = PartialPicture.open(key, offer, new File(directory, prefix + key + PARTIAL_SUFFIX));
+                    partials.put(key, partial);
+                }
+                synchronized (partial) {
+                    if (partial.owner != null) {
+                        previous = partial.owner;
+                    }
+                    partial.owner = client;
+                    offset = partial.offset;
+                }
+            }
+        }
+        if (previous != null && previous != client) {
+            IoUtils.closeQuietly(previous);
+        }
+
+        byte[] payload = FrameCodec.encodeResume(offset);
+        FrameCodec.writeFrame(client, new FrameHeader(MessageType.RESUME, 0, payload.length, deviceId, header.getSequence()), payload);
+        return new Upload(header, partial);
+    }
+
+    private void receiveChunk(SocketChannel client, FrameHeader header, Upload upload) throws IOException {
+        PartialPicture partial = upload.partial;
+        int length = header.getLength() - FrameCodec.CHUNK_HEADER_SIZE;
+        if (length < 0 || length > partial.offer.getChunkSize()) {
+            throw new ProtocolException("Bad chunk length " + header.getLength() + " for " + partial.offer);
+        }
+        upload.chunk.clear();
+        upload.chunk.limit(FrameCodec.CHUNK_HEADER_SIZE + length);
+        FrameCodec.readFully(client, upload.chunk);
+        upload.chunk.flip();
+        long offset = upload.chunk.getLong();
+        int crc = upload.chunk.getInt();
+        byte[] data = upload.chunk.array();
+        if (Crc32c.compute(data, FrameCodec.CHUNK_HEADER_SIZE, length) != crc) {
+            throw new ProtocolException("Chunk at " + offset + " of " + partial.offer + " failed its checksum");
+        }
+        synchronized (partial) {
+            if (partial.owner != client) {
+                throw new ProtocolException(partial.offer + " was resumed on another connection");
+            }
+            long end = offset + length;
+            if (offset != partial.offset || end > partial.offer.getLength()
+                    || (length < partial.offer.getChunkSize() && end != partial.offer.getLength())) {
+                throw new ProtocolException("Unexpected chunk " + offset + "+" + length + ", holding " + partial.offset);
+            }
+            partial.write(data, FrameCodec.CHUNK_HEADER_SIZE, length);
+        }
+        upload.bytes += length;
+    }
+
+    /**
+     * Checks the digest of a fully received picture and hands it to the listener.  A picture
+     * whose digest does not match is deleted, so the member starts it again from the beginning.
+     */
+    private void finish(SocketChannel client, ByteBuffer headerBuf, Upload upload) throws IOException {
+        PartialPicture partial = upload.partial;
+        File f;
+        synchronized (partials) {
+            partials.remove(partial.key);
+            partial.close();
+            if (!partial.offer.matchesDigest(partial.digest.digest())) {
+                partial.file.delete();
+                throw new ProtocolException(partial.offer + " does not match its digest");
+            }
+            f = new File(directory, prefix + System.currentTimeMillis() + "-" + fileCounter.incrementAndGet());
+            if (!partial.file.renameTo(f)) {
+                throw new IOException("Could not rename " + partial.file + " to " + f);
+            }
+            completed.put(partial.key, Boolean.TRUE);
+        }
+        TransferStats stats = new TransferStats(upload.bytes, System.nanoTime() - upload.startNanos);
+        String peer = MacAddress.format(upload.header.getDeviceId());
+        metrics.received(peer, upload.bytes);
+        metrics.transferred(peer, stats);
+        listener.onPictureReceived(upload.header, partial.offer.getRound(), f, stats);
+        ack(client, headerBuf, upload.header);
+    }
+
+    /**
+     * Called when a connection stops sending a picture.  The verified prefix stays on disk for
+     * the next offer of the same transfer.
+     */
+    private void release(PartialPicture partial, SocketChannel client) {
+        synchronized (partials) {
+            synchronized (partial) {
+                if (partial.owner != client) {
+                    return;
+                }
+                partial.owner = null;
+            }
+            if (partials.get(partial.key) == partial) {
+                partials.remove(partial.key);
+            }
+            partial.close();
+        }
+    }
+
+    /**
+     * A picture offer being received on one connection.
+     */
+    private static final class Upload {
+        final FrameHeader header;
+        final PartialPicture partial;
+        final ByteBuffer chunk;
+        final long startNanos = System.nanoTime();
+        long bytes;
+
+        Upload(FrameHeader header, PartialPicture partial) {
+            this.header = header;
+            this.partial = partial;
+            this.chunk = partial == null ? null
+                    : ByteBuffer.allocate(FrameCodec.CHUNK_HEADER_SIZE + partial.offer.getChunkSize());
+        }
+    }
+
+    /**
+     * The verified prefix of a picture, on disk under a name derived from the sender and the
+     * transfer id so it survives both dropped connections and a restart of the server.
+     */
+    private static final class PartialPicture {
+        final String key;
+        final PictureOffer offer;
+        final File file;
+        final RandomAccessFile raf;
+        final MessageDigest digest = PictureOffer.newDigest();
+        long offset;
+        SocketChannel owner;
+
+        private PartialPicture(String key, PictureOffer offer, File file) throws IOException {
+            this.key = key;
+            this.offer = offer;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+        }
+
+        /**
+         * Opens or creates the partial file.  Whatever is already there is cut back to a whole
+         * number of chunks, since a crash may have left the last one half written, and hashed
+         * again; the final digest check covers it.
+         */
+        static PartialPicture open(String key, PictureOffer offer, File file) throws IOException {
+            PartialPicture partial = new PartialPicture(key, offer, file);
+            try {
+                long existing = Math.min(partial.raf.length(), offer.getLength());
+                long offset = existing == offer.getLength() ? existing
+                        : existing / offer.getChunkSize() * offer.getChunkSize();
+                partial.raf.setLength(offset);
+                byte[] buf = new byte[IoUtils.BUFFER_SIZE];
+                partial.raf.seek(0);
+                for (long left = offset; left > 0; ) {
+                    int n = partial.raf.read(buf, 0, (int) Math.min(buf.length, left));
+                    partial.digest.update(buf, 0, n);
+                    left -= n;
+                }
+                partial.offset = offset;
+                return partial;
+            } catch (IOException e) {
+                partial.close();
+                throw e;
+            }
+        }
+
+        void write(byte[] data, int off, int len) throws IOException {
+            raf.seek(offset);
+            raf.write(data, off, len);
+            digest.update(data, off, len);
+            offset += len;
+        }
+
+        void close() {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+}
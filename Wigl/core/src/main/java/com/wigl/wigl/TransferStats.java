@@ -0,0 +1,35 @@
+package com.wigl.wigl;
+
+/**
+ * The outcome of one {@link TransferEngine} copy.
+ */
+public final class TransferStats {
+    private final long bytes;
+    private final long elapsedNanos;
+
+    public TransferStats(long bytes, long elapsedNanos) {
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return throughput in bytes per second, or 0 if no time was measured
+     */
+    public double getBytesPerSecond() {
+        return elapsedNanos <= 0 ? 0 : bytes * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return bytes + " bytes in " + (elapsedNanos / 1000) + " us ("
+                + String.format("%.1f", getBytesPerSecond() / (1024 * 1024)) + " MB/s)";
+    }
+}
@@ -0,0 +1,489 @@
+package com.wigl.wigl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends a member's frames to one peer, most urgent first, over connections it keeps open.
+ * Jobs wait in one queue ordered by {@link Priority}, then by submission.  Every priority has a
+ * lane, a thread with its own connection that takes the most urgent job it may serve: the
+ * control lane only sends control messages, so they never wait behind a picture; the preview
+ * lane sends previews, and control messages while the control lane is busy; the picture lane
+ * sends pictures, and anything else while the other lanes are busy.  A picture being sent waits between
+ * chunks while anything more urgent is queued or being sent, for at most a quarter of the stall
+ * timeout at a time so the upload watchdog does not take the pause for a dead link.
+ *
+ * <p>The picture bytes held for the peer, queued or being sent, are bounded: {@link #submit}
+ * waits for room and {@link #offer} refuses when there is none.  Control messages never wait for
+ * room, and a picture larger than the bound is taken once nothing else is held.  The scheduler
+ * lets go of a job before telling it how it went, so the job only has to drop its own source.
+ *
+ * <p>A lane closes its connection after {@link #IDLE_TIMEOUT_MILLIS} without work, so members
+ * do not hold the owner's connection slots between rounds.
+ */
+public class UploadScheduler implements Closeable {
+    public static final long IDLE_TIMEOUT_MILLIS = 30 * 1000;
+
+    public enum Priority {
+        /**
+         * Capture commands, capture and trace reports: a few bytes, needed for the next round.
+         */
+        CONTROL,
+
+        /**
+         * Previews, which the owner shows as soon as it has them all.
+         */
+        PREVIEW,
+
+        /**
+         * Full-size pictures, which are only needed for export.
+         */
+        PICTURE
+    }
+
+    /**
+     * What a job sends with: the connection of the lane it runs on.
+     */
+    public interface Link {
+        /**
+         * @return the lane's connection, opened if it is not open
+         */
+        TransferClient client() throws IOException;
+
+        /**
+         * Sends a picture on the lane's connection, reconnecting and resuming after a failure.
+         *
+         * @param round the round it was taken for, see {@link PictureUploader#upload(PictureSource, long, int)}
+         */
+        TransferStats upload(PictureSource src, long round, int flags) throws IOException;
+    }
+
+    /**
+     * Something to send.  Exactly one of {@link #onSent} and {@link #onFailed} is called, on the
+     * lane thread or, for jobs still queued, on the thread that closes the scheduler.
+     */
+    public abstract static class Job {
+        private final Priority priority;
+        private final long bytes;
+        private long sequence;
+        private long submittedAt;
+
+        /**
+         * @param bytes picture bytes the job holds until it is sent; ignored for
+         *              {@link Priority#CONTROL} jobs
+         */
+        protected Job(Priority priority, long bytes) {
+            this.priority = priority;
+            this.bytes = priority == Priority.CONTROL ? 0 : bytes;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Called on the lane thread when the job leaves the queue.
+         *
+         * @param waitNanos time since it was submitted
+         */
+        protected void onStarted(long waitNanos) {
+        }
+
+        protected abstract void send(Link link) throws IOException;
+
+        protected void onSent() {
+        }
+
+        protected void onFailed(IOException e) {
+        }
+    }
+
+    private static final Comparator<Job> ORDER = new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+            int c = a.priority.compareTo(b.priority);
+            return c != 0 ? c : a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+        }
+    };
+
+    private final PictureUploader.Connector connector;
+    private final TransferMetrics metrics;
+    private final String peer;
+    private final long maxBytes;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    private final long stallTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Job> queue = new PriorityQueue<>(16, ORDER);
+    private final List<Lane> lanes = new ArrayList<>();
+    private long heldBytes;
+    private long sequence;
+    private boolean closed;
+
+    /**
+     * Starts a lane for every priority.
+     *
+     * @param connector          opens a new connection to the peer
+     * @param metrics            where connects, bytes, queueing and failures are counted
+     * @param peer               the peer's name in {@code metrics}
+     * @param maxBytes           picture bytes to hold for the peer before {@link #submit} waits
+     * @param maxAttempts        attempts at every picture before giving up on it
+     * @param retryDelayMillis   wait before a picture's second attempt, doubled for every further one
+     * @param stallTimeoutMillis how long a picture's attempt may go without sending anything
+     */
+    public UploadScheduler(PictureUploader.Connector connector, TransferMetrics metrics, String peer, long maxBytes,
+                           int maxAttempts, long retryDelayMillis, long stallTimeoutMillis) {
+        this.connector = connector;
+        this.metrics = metrics;
+        this.peer = peer;
+        this.maxBytes = maxBytes;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+        for (Priority priority : Priority.values()) {
+            final Lane lane = new Lane(priority);
+            lanes.add(lane);
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    lane.run();
+                }
+            }, "UploadScheduler-" + priority.name().toLowerCase(Locale.US));
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Queues {@code job}, first waiting for room if it is a picture.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     * @throws IOException            if the scheduler is closed
+     */
+    public void submit(Job job) throws IOException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            while (!closed && !hasRoom(job)) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to queue " + job.bytes + " bytes");
+                }
+            }
+            enqueue(job, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues {@code job} if there is room for it.
+     *
+     * @return false if the picture bytes held for the peer leave no room
+     * @throws IOException if the scheduler is closed
+     */
+    public boolean offer(Job job) throws IOException {
+        lock.lock();
+        try {
+            if (!closed && !hasRoom(job)) {
+                return false;
+            }
+            enqueue(job, System.nanoTime());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return jobs queued and not started yet
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return picture bytes of the jobs queued or being sent
+     */
+    public long getHeldBytes() {
+        lock.lock();
+        try {
+            return heldBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the lanes and closes their connections, failing whatever is being sent.  Jobs still
+     * queued fail on the calling thread.
+     */
+    @Override
+    public void close() {
+        List<Job> dropped;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            dropped = new ArrayList<>(queue);
+            for (Job job : dropped) {
+                heldBytes -= job.bytes;
+                metrics.queued(peer, -1, -job.bytes);
+            }
+            queue.clear();
+            for (Lane lane : lanes) {
+                lane.disconnect();
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Job job : dropped) {
+            job.onFailed(new IOException("Upload scheduler for " + peer + " closed"));
+        }
+    }
+
+    private boolean hasRoom(Job job) {
+        return job.bytes == 0 || heldBytes == 0 || heldBytes + job.bytes <= maxBytes;
+    }
+
+    private void enqueue(Job job, long submittedAt) throws IOException {
+        if (closed) {
+            throw new IOException("Upload scheduler for " + peer + " closed");
+        }
+        job.sequence = sequence++;
+        job.submittedAt = submittedAt;
+        queue.add(job);
+        heldBytes += job.bytes;
+        metrics.queued(peer, 1, job.bytes);
+        changed.signalAll();
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Whether a job of this priority should hold back for a more urgent one.  Called with the
+     * lock held.
+     */
+    private boolean moreUrgentThan(Priority priority, Lane self) {
+        Job head = queue.peek();
+        if (head != null && head.priority.compareTo(priority) < 0) {
+            return true;
+        }
+        for (Lane lane : lanes) {
+            Job current = lane.current;
+            if (lane != self && current != null && current.priority.compareTo(priority) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class Lane implements Link, PictureUploader.Pool, TransferClient.ChunkGate {
+        private final Priority priority;
+        private final PictureUploader uploader;
+        private volatile TransferClient client;
+        private Job current;
+
+        Lane(Priority priority) {
+            this.priority = priority;
+            this.uploader = new PictureUploader(this, maxAttempts, retryDelayMillis, stallTimeoutMillis, metrics, peer);
+        }
+
+        void run() {
+            while (true) {
+                Job job = take();
+                if (job == null) {
+                    return;
+                }
+                long waitNanos = System.nanoTime() - job.submittedAt;
+                metrics.waited(peer, job.priority, waitNanos);
+                job.onStarted(waitNanos);
+                IOException failure = null;
+                try {
+                    send(job);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    disconnect();
+                    failure = new IOException("Job failed on the " + priority + " lane", e);
+                }
+                lock.lock();
+                try {
+                    current = null;
+                    heldBytes -= job.bytes;
+                    metrics.queued(peer, 0, -job.bytes);
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (failure == null) {
+                    job.onSent();
+                } else {
+                    job.onFailed(failure);
+                }
+            }
+        }
+
+        /*
+         * Waits for a job this lane may send, closing the connection while idle
+         */
+        private Job take() {
+            lock.lock();
+            try {
+                long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
+                while (!closed) {
+                    if (mayTake(queue.peek())) {
+                        current = queue.poll();
+                        metrics.queued(peer, -1, 0);
+                        // the next job may now be for a lane that was waiting for this one to be busy
+                        changed.signalAll();
+                        return current;
+                    }
+                    if (idle <= 0) {
+                        disconnect();
+                        idle = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
+                    }
+                    try {
+                        idle = changed.awaitNanos(idle);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /*
+         * A lane takes jobs of its own priority, and more urgent ones only while their own lanes
+         * are busy, so every lane keeps using the same connection for the same kind of frame.
+         * Called with the lock held.
+         */
+        private boolean mayTake(Job head) {
+            if (head == null || head.priority.compareTo(priority) > 0) {
+                return false;
+            }
+            for (int i = head.priority.ordinal(); i < priority.ordinal(); i++) {
+                if (lanes.get(i).current == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * A control message that fails on a kept connection may only have found it closed by
+         * the peer, so it gets one more try on a new one; pictures retry in the uploader.
+         */
+        private void send(Job job) throws IOException {
+            boolean kept = isOpen();
+            try {
+                job.send(this);
+            } catch (IOException e) {
+                disconnect();
+                if (!kept || job.priority != Priority.CONTROL || isClosed()) {
+                    throw e;
+                }
+                metrics.retried(peer);
+                job.send(this);
+            }
+        }
+
+        @Override
+        public TransferClient client() throws IOException {
+            try {
+                return connect();
+            } catch (IOException e) {
+                metrics.failed(peer, e);
+                throw e;
+            }
+        }
+
+        @Override
+        public TransferStats upload(PictureSource src, long round, int flags) throws IOException {
+            return uploader.upload(src, round, flags);
+        }
+
+        @Override
+        public TransferClient connect() throws IOException {
+            TransferClient c = client;
+            if (c != null && c.isConnected()) {
+                metrics.reused(peer);
+                return c;
+            }
+            if (isClosed()) {
+                throw new IOException("Upload scheduler for " + peer + " closed");
+            }
+            long start = System.nanoTime();
+            c = connector.connect();
+            metrics.connected(peer, System.nanoTime() - start);
+            c.setChunkGate(this);
+            client = c;
+            return c;
+        }
+
+        @Override
+        public void release(TransferClient client) {
+            // kept for the next job
+        }
+
+        @Override
+        public void awaitTurn() throws IOException {
+            lock.lock();
+            try {
+                long pause = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis) / 4;
+                while (pause > 0 && !closed && current != null && moreUrgentThan(current.priority, this)) {
+                    pause = changed.awaitNanos(pause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while holding back " + current);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isOpen() {
+            TransferClient c = client;
+            return c != null && c.isConnected();
+        }
+
+        void disconnect() {
+            IoUtils.closeQuietly(client);
+            client = null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ArpResolverTest {
+    private static final String TABLE =
+            "IP address       HW type     Flags       HW address            Mask     Device\n"
+            + "192.168.1.1      0x1         0x2         a0:63:91:2b:4c:10     *        wlan0\n"
+            + "192.168.49.155   0x1         0x2         8a:3c:1c:0f:19:e2     *        p2p-p2p0-1\n"
+            + "192.168.49.200   0x1         0x0         00:00:00:00:00:00     *        p2p-p2p0-1\n"
+            + "192.168.49.17    0x1         0x2         8a:3c:1c:0f:19:e3     *        p2p-p2p0-1\n";
+
+    private File table;
+    private long now;
+    private ArpResolver resolver;
+
+    @Before
+    public void setUp() throws IOException {
+        table = File.createTempFile("wigl-arp", "");
+        write(TABLE);
+        resolver = new ArpResolver(table.getPath(), 5000, new MonotonicClock() {
+            @Override
+            public long nanoTime() {
+                return now;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        table.delete();
+    }
+
+    @Test
+    public void resolvesPeersOnTheP2pInterfaceOnly() {
+        assertEquals("192.168.49.155", resolver.getIpFromMac("8a:3c:1c:0f:19:e2"));
+        assertEquals("192.168.49.17", resolver.getIpFromMac("8A:3C:1C:0F:19:E3"));
+        assertNull(resolver.getIpFromMac("a0:63:91:2b:4c:10"));
+        assertNull(resolver.getIpFromMac("00:00:00:00:00:00"));
+        assertNull(resolver.getIpFromMac("not a mac"));
+    }
+
+    @Test
+    public void servesCachedTableUntilTtlExpires() throws IOException {
+        assertEquals("192.168.49.155", resolver.getIpFromMac("8a:3c:1c:0f:19:e2"));
+        write(TABLE.replace("192.168.49.155", "192.168.49.156"));
+
+        now += TimeUnit.MILLISECONDS.toNanos(4999);
+        assertEquals("192.168.49.155", resolver.getIpFromMac("8a:3c:1c:0f:19:e2"));
+
+        now += TimeUnit.MILLISECONDS.toNanos(1);
+        assertEquals("192.168.49.156", resolver.getIpFromMac("8a:3c:1c:0f:19:e2"));
+    }
+
+    @Test
+    public void invalidateForcesReload() throws IOException {
+        assertEquals("192.168.49.155", resolver.getIpFromMac("8a:3c:1c:0f:19:e2"));
+        write(TABLE.replace("192.168.49.155", "192.168.49.156"));
+        resolver.invalidate();
+        assertEquals("192.168.49.156", resolver.getIpFromMac("8a:3c:1c:0f:19:e2"));
+    }
+
+    @Test
+    public void missRereadsTableForNewPeers() throws IOException {
+        assertNull(resolver.getIpFromMac("8a:3c:1c:0f:19:e4"));
+        write(TABLE + "192.168.49.18    0x1         0x2         8a:3c:1c:0f:19:e4     *        p2p-p2p0-1\n");
+
+        // a second miss right away is served from the cache
+        assertNull(resolver.getIpFromMac("8a:3c:1c:0f:19:e4"));
+
+        now += ArpResolver.MISS_RELOAD_NANOS;
+        assertEquals("192.168.49.18", resolver.getIpFromMac("8a:3c:1c:0f:19:e4"));
+    }
+
+    @Test
+    public void missingTableResolvesNothing() {
+        assertTrue(table.delete());
+        assertNull(resolver.getIpFromMac("8a:3c:1c:0f:19:e2"));
+    }
+
+    private void write(String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(table);
+        try {
+            out.write(contents.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * A burst end to end over loopback: the owner broadcasts one command, each member's engine
+ * takes every shot on a fake camera and queues its upload as soon as it is in, and the owner
+ * sorts what arrives into a session by device and shot.
+ */
+public class BurstCaptureTest {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final List<Long> MEMBERS = Arrays.asList(MacAddress.parse("02:00:00:00:00:02"),
+            MacAddress.parse("02:00:00:00:00:03"));
+    private static final long MS = 1000000L;
+
+    private final Map<Long, Member> members = new HashMap<>();
+    /*
+     * When each picture reached the owner, by device and shot
+     */
+    private final Map<String, Long> receivedAt = new ConcurrentHashMap<>();
+    /*
+     * The round each picture's offer named, by device and shot
+     */
+    private final Map<String, Long> rounds = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Map<Long, File>> completed = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor();
+    private volatile CaptureSession session;
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+    private File dir;
+    private TransferServer owner;
+    private CaptureBroadcaster broadcaster;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.getRoot();
+        owner = new TransferServer(0, OWNER, dir, "wiglS-", 8, new TransferListenerAdapter() {
+            @Override
+            public void onPictureReceived(FrameHeader header, long round, File file, TransferStats stats) {
+                receivedAt.put(key(header.getDeviceId(), header.getShot()), System.nanoTime());
+                rounds.put(key(header.getDeviceId(), header.getShot()), round);
+                session.addPicture(header.getDeviceId(), header.getShot(), file);
+            }
+        });
+        owner.start();
+        for (Long id : MEMBERS) {
+            members.put(id, new Member(id));
+        }
+        broadcaster = new CaptureBroadcaster(new CaptureBroadcaster.Connector() {
+            @Override
+            public TransferClient connect(long deviceId) throws IOException {
+                return TransferClient.connect("127.0.0.1", members.get(deviceId).server.getLocalPort(), 5000, OWNER);
+            }
+        }, 4, 2);
+        broadcaster.setMembers(MEMBERS);
+    }
+
+    @After
+    public void tearDown() {
+        broadcaster.close();
+        for (Member member : members.values()) {
+            member.close();
+        }
+        owner.stop();
+        timeouts.shutdownNow();
+    }
+
+    @Test
+    public void oneCommandGivesEveryDeviceEveryShotWhileUploadsOverlapCapture() throws Exception {
+        Burst burst = new Burst(4, 200 * MS);
+        long captureTime = System.nanoTime() + 300 * MS;
+        session = new CaptureSession(captureTime, MEMBERS, burst.getShots(), new CaptureSession.Callback() {
+            @Override
+            public void onComplete(CaptureSession session, Map<Long, File> pictures) {
+                completed.add(pictures);
+            }
+
+            @Override
+            public void onTimeout(CaptureSession session, Map<Long, File> received, Set<Long> missing) {
+            }
+        });
+        session.start(timeouts, 10000);
+
+        CaptureBroadcaster.Round round = broadcaster.broadcast(captureTime, PreviewSpec.NONE, burst);
+        assertTrue(round.awaitAll(5, TimeUnit.SECONDS));
+        assertTrue(round.getFailures().isEmpty());
+        assertNotNull("burst never completed", completed.poll(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < burst.getShots(); i++) {
+            assertEquals(MEMBERS, new ArrayList<>(session.getShot(i).keySet()));
+        }
+        for (Long id : MEMBERS) {
+            List<CaptureEngine.Shot> shots = members.get(id).shots;
+            assertEquals(burst.getShots(), shots.size());
+            for (int i = 0; i < shots.size(); i++) {
+                CaptureEngine.Shot shot = shots.get(i);
+                assertEquals(i, shot.getIndex());
+                // every member is on this machine's clock, so shot i is at the same time on all
+                assertEquals(burst.shotTime(captureTime, i), shot.getCaptureTime(), 5 * MS);
+                assertTrue("late " + shot.getLateNanos(), shot.getLateNanos() < 30 * MS);
+                // every shot names the round, not its own capture time
+                assertEquals(captureTime, rounds.get(key(id, i)), 5 * MS);
+                if (i + 1 < shots.size()) {
+                    // shot i was with the owner before shot i + 1 was taken, not after the burst
+                    assertTrue(receivedAt.get(key(id, i)) < shots.get(i + 1).getFiredAt());
+                }
+            }
+        }
+    }
+
+    private static String key(long deviceId, int shot) {
+        return deviceId + "/" + shot;
+    }
+
+    /**
+     * A member's engine, uploader and command server
+     */
+    private class Member {
+        final List<CaptureEngine.Shot> shots = new ArrayList<>();
+        final CaptureEngine engine = new CaptureEngine(new FakeCamera(50, 40, 30), new CaptureScheduler(2 * MS, 5 * MS),
+                new MetricsRegistry(), 1000);
+        final UploadScheduler uploader;
+        final TransferServer server;
+
+        Member(final long id) throws IOException {
+            engine.start();
+            uploader = new UploadScheduler(new PictureUploader.Connector() {
+                @Override
+                public TransferClient connect() throws IOException {
+                    return TransferClient.connect("127.0.0.1", owner.getLocalPort(), 5000, id);
+                }
+            }, new TransferMetrics(new MetricsRegistry()), "owner", 16 * 1024 * 1024, 3, 10, 20 * 1000);
+            server = new TransferServer(0, id, dir, "member-", 2, new TransferListenerAdapter() {
+                @Override
+                public void onCaptureCommand(FrameHeader header, final long captureTime, PreviewSpec preview,
+                                             Burst burst) {
+                    engine.capture(captureTime, burst, new CaptureEngine.Listener() {
+                        @Override
+                        public void onCaptured(CaptureEngine.Shot shot) {
+                            synchronized (shots) {
+                                shots.add(shot);
+                            }
+                            try {
+                                uploader.submit(upload(captureTime, shot));
+                            } catch (IOException e) {
+                                throw new AssertionError(e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailed(long captureTime, IOException e) {
+                        }
+                    });
+                }
+            });
+            server.start();
+        }
+
+        private UploadScheduler.Job upload(final long round, final CaptureEngine.Shot shot) {
+            return new UploadScheduler.Job(UploadScheduler.Priority.PICTURE, shot.getJpeg().length) {
+                @Override
+                protected void send(UploadScheduler.Link link) throws IOException {
+                    link.upload(PictureSource.of(shot.getJpeg()), round, FrameHeader.shotFlags(shot.getIndex()));
+                }
+            };
+        }
+
+        void close() {
+            engine.shutdown();
+            uploader.close();
+            server.stop();
+        }
+    }
+}
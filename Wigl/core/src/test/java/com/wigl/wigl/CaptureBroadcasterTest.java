@@ -0,0 +1,156 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CaptureBroadcasterTest {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final long SLOW = 100;
+    private static final long DEAD = 200;
+    private static final long MS = 1000000L;
+
+    private final Map<Long, TransferServer> members = new HashMap<>();
+    private final Map<Long, Long> commands = new ConcurrentHashMap<>();
+    private final Map<Long, PreviewSpec> previews = new ConcurrentHashMap<>();
+    private final AtomicInteger connects = new AtomicInteger();
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+    private File dir;
+    private CaptureBroadcaster broadcaster;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.getRoot();
+        for (long id = 1; id <= 5; id++) {
+            startMember(id, 0);
+        }
+        startMember(SLOW, 300);
+
+        broadcaster = new CaptureBroadcaster(new CaptureBroadcaster.Connector() {
+            @Override
+            public TransferClient connect(long deviceId) throws IOException {
+                connects.incrementAndGet();
+                TransferServer member = members.get(deviceId);
+                if (member == null) {
+                    throw new ConnectException("No route to " + deviceId);
+                }
+                return TransferClient.connect("127.0.0.1", member.getLocalPort(), 5000, OWNER);
+            }
+        }, 8, CaptureBroadcaster.DEFAULT_CLOCK_SAMPLES);
+        List<Long> ids = new ArrayList<>(members.keySet());
+        ids.add(DEAD);
+        broadcaster.setMembers(ids);
+    }
+
+    @After
+    public void tearDown() {
+        broadcaster.close();
+        for (TransferServer member : members.values()) {
+            member.stop();
+        }
+    }
+
+    @Test
+    public void quorumIsReachedWithoutWaitingForSlowMembers() throws Exception {
+        long captureTime = System.nanoTime() + 1000 * MS;
+        long start = System.nanoTime();
+        CaptureBroadcaster.Round round = broadcaster.broadcast(captureTime);
+        assertEquals(7, round.getMemberCount());
+
+        assertTrue(round.awaitQuorum(5, 5, TimeUnit.SECONDS));
+        assertTrue("quorum took " + (System.nanoTime() - start) / MS + " ms", System.nanoTime() - start < 250 * MS);
+        assertFalse(round.getAckLatencies().containsKey(SLOW));
+
+        assertTrue(round.awaitAll(5, TimeUnit.SECONDS));
+        Map<Long, Long> latencies = round.getAckLatencies();
+        assertEquals(6, latencies.size());
+        assertTrue(latencies.get(SLOW) >= 300 * MS);
+        // delivery also covers measuring the clock ahead of the command
+        Map<Long, Long> deliveries = round.getDeliveryTimes();
+        assertEquals(latencies.keySet(), deliveries.keySet());
+        for (Long id : latencies.keySet()) {
+            assertTrue(deliveries.get(id) >= latencies.get(id));
+        }
+        assertEquals(Arrays.asList(DEAD), new ArrayList<>(round.getFailures().keySet()));
+
+        // every member runs on this machine's clock, so each was sent the same capture time
+        for (long id = 1; id <= 5; id++) {
+            assertEquals(captureTime, commands.get(id), 5 * MS);
+        }
+    }
+
+    @Test
+    public void previewSpecReachesEveryMember() throws Exception {
+        broadcaster.setMembers(Arrays.asList(1L, 2L));
+        PreviewSpec preview = new PreviewSpec(1280, 80);
+        CaptureBroadcaster.Round round = broadcaster.broadcast(System.nanoTime(), preview);
+        assertTrue(round.awaitAll(5, TimeUnit.SECONDS));
+        assertEquals(preview, previews.get(1L));
+        assertEquals(preview, previews.get(2L));
+
+        assertTrue(broadcaster.broadcast(System.nanoTime()).awaitAll(5, TimeUnit.SECONDS));
+        assertEquals(PreviewSpec.NONE, previews.get(1L));
+    }
+
+    @Test
+    public void quorumFailsOnceTooManyMembersFail() throws Exception {
+        broadcaster.setMembers(Arrays.asList(1L, DEAD));
+        CaptureBroadcaster.Round round = broadcaster.broadcast(System.nanoTime());
+        assertFalse(round.awaitQuorum(2, 5, TimeUnit.SECONDS));
+        assertTrue(round.awaitAll(5, TimeUnit.SECONDS));
+        assertEquals(1, round.getAckLatencies().size());
+    }
+
+    @Test
+    public void linksArePersistentAndReopenedAfterADrop() throws Exception {
+        broadcaster.setMembers(Arrays.asList(1L, 2L));
+        assertTrue(broadcaster.broadcast(System.nanoTime()).awaitAll(5, TimeUnit.SECONDS));
+        assertTrue(broadcaster.broadcast(System.nanoTime()).awaitAll(5, TimeUnit.SECONDS));
+        assertEquals(2, connects.get());
+        assertEquals(8, broadcaster.getClock(1).getSampleCount());
+
+        // member 2 restarts; the kept connection is dead but the next round reconnects
+        members.remove(2L).stop();
+        startMember(2, 0);
+        CaptureBroadcaster.Round round = broadcaster.broadcast(System.nanoTime());
+        assertTrue(round.awaitAll(5, TimeUnit.SECONDS));
+        assertEquals(2, round.getAckLatencies().size());
+        assertEquals(3, connects.get());
+    }
+
+    private void startMember(final long id, final long ackDelayMillis) throws IOException {
+        TransferServer member = new TransferServer(0, id, dir, "member-", 2, new TransferListenerAdapter() {
+            @Override
+            public void onCaptureCommand(FrameHeader header, long captureTime, PreviewSpec preview, Burst burst) {
+                commands.put(id, captureTime);
+                previews.put(id, preview);
+                if (ackDelayMillis > 0) {
+                    try {
+                        Thread.sleep(ackDelayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        member.start();
+        members.put(id, member);
+    }
+}
@@ -0,0 +1,208 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CaptureEngineTest {
+    private static final long MS = 1000000L;
+
+    private final FakeCamera camera = new FakeCamera(400, 100, 30);
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final CaptureEngine engine = new CaptureEngine(camera, new CaptureScheduler(2 * MS, 5 * MS), metrics, 1000);
+    private final LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<>();
+    private final CaptureEngine.Listener listener = new CaptureEngine.Listener() {
+        @Override
+        public void onCaptured(CaptureEngine.Shot shot) {
+            results.add(shot);
+        }
+
+        @Override
+        public void onFailed(long captureTime, IOException e) {
+            results.add(e);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Test
+    public void warmCameraFiresOnTimeRoundAfterRound() throws Exception {
+        engine.start();
+        awaitReady();
+
+        for (int round = 0; round < 3; round++) {
+            // far less than the camera takes to open
+            long captureTime = System.nanoTime() + 20 * MS;
+            engine.capture(captureTime, listener);
+            CaptureEngine.Shot shot = (CaptureEngine.Shot) results.poll(1, TimeUnit.SECONDS);
+            assertEquals(captureTime, shot.getCaptureTime());
+            assertTrue(shot.isWarm());
+            assertTrue("late " + shot.getLateNanos(), shot.getLateNanos() >= 0 && shot.getLateNanos() < 15 * MS);
+            assertTrue(shot.getCapturedAt() - shot.getFiredAt() >= 30 * MS);
+            awaitReady();
+        }
+
+        assertEquals(1, camera.opens.get());
+        assertEquals(4, camera.previews.get());
+        assertEquals(0, camera.closes.get());
+        assertFalse(camera.isExposureLocked());
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getHistograms().get("camera.warm_up_us").getCount());
+        assertEquals(3, snapshot.getHistograms().get("camera.rearm_us").getCount());
+    }
+
+    @Test
+    public void coldCameraOpensForTheCommandAndFiresLate() throws Exception {
+        long captureTime = System.nanoTime() + 20 * MS;
+        engine.capture(captureTime, listener);
+
+        CaptureEngine.Shot shot = (CaptureEngine.Shot) results.poll(2, TimeUnit.SECONDS);
+        assertFalse(shot.isWarm());
+        assertTrue("late " + shot.getLateNanos(), shot.getLateNanos() >= 450 * MS);
+        // the lateness is the camera's, not the scheduler's
+        assertTrue(shot.getReadiness().getReadyNanos() >= 450 * MS);
+        assertTrue(shot.getReadiness().getJitterNanos() < 15 * MS);
+        assertEquals(1, camera.opens.get());
+    }
+
+    @Test
+    public void commandsRunInTheOrderQueued() throws Exception {
+        engine.start();
+        long first = System.nanoTime() + 600 * MS;
+        engine.capture(first, listener);
+        engine.capture(first + 200 * MS, listener);
+
+        assertEquals(first, ((CaptureEngine.Shot) results.poll(2, TimeUnit.SECONDS)).getCaptureTime());
+        CaptureEngine.Shot second = (CaptureEngine.Shot) results.poll(2, TimeUnit.SECONDS);
+        assertEquals(first + 200 * MS, second.getCaptureTime());
+        // the first shot and the restarted preview took less than the gap
+        assertTrue(second.isWarm());
+        assertTrue("late " + second.getLateNanos(), second.getLateNanos() < 15 * MS);
+    }
+
+    @Test
+    public void failedShotClosesCameraAndNextCommandReopensIt() throws Exception {
+        engine.start();
+        awaitReady();
+        camera.failShots = 1;
+        engine.capture(System.nanoTime() + 10 * MS, listener);
+        assertTrue(results.poll(1, TimeUnit.SECONDS) instanceof IOException);
+        assertFalse(engine.isReady());
+        assertEquals(1, camera.closes.get());
+
+        engine.capture(System.nanoTime() + 10 * MS, listener);
+        assertTrue(results.poll(2, TimeUnit.SECONDS) instanceof CaptureEngine.Shot);
+        assertEquals(2, camera.opens.get());
+        assertEquals(1, metrics.snapshot().getCounter("camera.failures"));
+    }
+
+    @Test
+    public void restartedPreviewIsReadyForTheNextShot() throws Exception {
+        engine.start();
+        engine.restartPreview();
+        long captureTime = System.nanoTime() + 700 * MS;
+        engine.capture(captureTime, listener);
+
+        CaptureEngine.Shot shot = (CaptureEngine.Shot) results.poll(2, TimeUnit.SECONDS);
+        assertTrue(shot.isWarm());
+        assertTrue(shot.getArmedAt() - shot.getCommandAt() >= 0);
+        awaitReady();
+        assertEquals(1, camera.opens.get());
+        // started, restarted, and started again after the shot
+        assertEquals(3, camera.previews.get());
+    }
+
+    @Test
+    public void burstFiresEveryShotOnItsOwnTimeWithExposureHeld() throws Exception {
+        engine.start();
+        awaitReady();
+        final Burst burst = new Burst(4, 200 * MS);
+        long captureTime = System.nanoTime() + 20 * MS;
+        final LinkedBlockingQueue<Boolean> locked = new LinkedBlockingQueue<>();
+        engine.capture(captureTime, burst, new CaptureEngine.Listener() {
+            @Override
+            public void onCaptured(CaptureEngine.Shot shot) {
+                locked.add(camera.isExposureLocked());
+                listener.onCaptured(shot);
+            }
+
+            @Override
+            public void onFailed(long captureTime, IOException e) {
+                listener.onFailed(captureTime, e);
+            }
+        });
+
+        for (int i = 0; i < burst.getShots(); i++) {
+            CaptureEngine.Shot shot = (CaptureEngine.Shot) results.poll(2, TimeUnit.SECONDS);
+            assertEquals(i, shot.getIndex());
+            assertEquals(burst.shotTime(captureTime, i), shot.getCaptureTime());
+            assertTrue("late " + shot.getLateNanos(), shot.getLateNanos() >= 0 && shot.getLateNanos() < 15 * MS);
+            boolean lockedDuringCallback = locked.poll();
+            if (i < burst.getShots() - 1) {
+                // after the last shot the engine may already be unlocking it
+                assertTrue(lockedDuringCallback);
+            }
+        }
+        awaitReady();
+        assertFalse(camera.isExposureLocked());
+        assertEquals(1, camera.opens.get());
+        assertEquals(5, camera.previews.get());
+    }
+
+    @Test
+    public void burstFasterThanTheCameraFiresLateWithoutDrifting() throws Exception {
+        engine.start();
+        awaitReady();
+        Burst burst = new Burst(3, 50 * MS);
+        long captureTime = System.nanoTime() + 20 * MS;
+        engine.capture(captureTime, burst, listener);
+
+        for (int i = 0; i < burst.getShots(); i++) {
+            CaptureEngine.Shot shot = (CaptureEngine.Shot) results.poll(2, TimeUnit.SECONDS);
+            assertEquals(burst.shotTime(captureTime, i), shot.getCaptureTime());
+            if (i > 0) {
+                // the shutter and restarting the preview take 130 ms
+                assertTrue("late " + shot.getLateNanos(), shot.getLateNanos() >= 60 * MS);
+            }
+        }
+    }
+
+    @Test
+    public void failedShotEndsTheBurst() throws Exception {
+        engine.start();
+        awaitReady();
+        camera.failShots = 1;
+        engine.capture(System.nanoTime() + 10 * MS, new Burst(3, 100 * MS), listener);
+        assertTrue(results.poll(2, TimeUnit.SECONDS) instanceof IOException);
+        assertNull(results.poll(400, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void stopReleasesCamera() throws Exception {
+        engine.start();
+        awaitReady();
+        engine.stop();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (camera.closes.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, camera.closes.get());
+        assertFalse(engine.isReady());
+    }
+
+    private void awaitReady() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!engine.isReady()) {
+            assertTrue("camera never became ready", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
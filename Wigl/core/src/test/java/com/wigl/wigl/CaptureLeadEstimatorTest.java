@@ -0,0 +1,177 @@
+package com.wigl.wigl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CaptureLeadEstimatorTest {
+    private static final long MS = 1000000L;
+    private static final long OWNER = 1;
+    private static final long MEMBER = 2;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    @Test
+    public void devicesWithoutHistoryGetTheMaximumLead() {
+        CaptureLeadEstimator estimator = new CaptureLeadEstimator(4, 1.0, 10 * MS, 50 * MS, 5000 * MS, metrics);
+        assertEquals(5000 * MS, estimator.getLeadNanos(Arrays.asList(OWNER, MEMBER)));
+
+        feed(estimator, OWNER, 20 * MS, 30 * MS, MS, 4);
+        assertEquals(5000 * MS, estimator.getLeadNanos(Arrays.asList(OWNER, MEMBER)));
+        assertEquals(61 * MS, estimator.getLeadNanos(Collections.singletonList(OWNER)));
+    }
+
+    @Test
+    public void leadCoversTheSlowestDevicePlusMargin() {
+        CaptureLeadEstimator estimator = new CaptureLeadEstimator(4, 1.0, 10 * MS, 50 * MS, 5000 * MS, metrics);
+        feed(estimator, OWNER, 20 * MS, 30 * MS, MS, 4);
+        feed(estimator, MEMBER, 40 * MS, 100 * MS, 2 * MS, 4);
+
+        assertEquals(51 * MS, estimator.getDeviceLeadNanos(OWNER));
+        assertEquals(142 * MS, estimator.getDeviceLeadNanos(MEMBER));
+        assertEquals(152 * MS, estimator.getLeadNanos(Arrays.asList(OWNER, MEMBER)));
+        assertEquals(1, metrics.snapshot().getHistograms().get("capture.lead_us").getCount());
+    }
+
+    @Test
+    public void slowRoundsLeaveTheWindow() {
+        CaptureLeadEstimator estimator = new CaptureLeadEstimator(4, 1.0, 0, 0, 5000 * MS, metrics);
+        feed(estimator, MEMBER, 10 * MS, 600 * MS, 0, 1);
+        feed(estimator, MEMBER, 10 * MS, 10 * MS, 0, 3);
+        assertEquals(610 * MS, estimator.getDeviceLeadNanos(MEMBER));
+
+        feed(estimator, MEMBER, 10 * MS, 10 * MS, 0, 1);
+        assertEquals(20 * MS, estimator.getDeviceLeadNanos(MEMBER));
+    }
+
+    @Test
+    public void leadStaysWithinBounds() {
+        CaptureLeadEstimator estimator = new CaptureLeadEstimator(4, 1.0, 10 * MS, 200 * MS, 1000 * MS, metrics);
+        feed(estimator, MEMBER, MS, MS, 0, 4);
+        assertEquals(200 * MS, estimator.getLeadNanos(Collections.singletonList(MEMBER)));
+
+        feed(estimator, MEMBER, 900 * MS, 900 * MS, 0, 4);
+        assertEquals(1000 * MS, estimator.getLeadNanos(Collections.singletonList(MEMBER)));
+    }
+
+    @Test
+    public void unmeasuredReportsAndLeftDevicesHaveNoHistory() {
+        CaptureLeadEstimator estimator = new CaptureLeadEstimator(4, 1.0, 0, 0, 5000 * MS, metrics);
+        for (int i = 0; i < 4; i++) {
+            estimator.delivered(MEMBER, 10 * MS);
+            estimator.ready(MEMBER, Readiness.NONE);
+        }
+        assertEquals(-1, estimator.getDeviceLeadNanos(MEMBER));
+
+        feed(estimator, MEMBER, 10 * MS, 10 * MS, 0, 4);
+        assertEquals(20 * MS, estimator.getDeviceLeadNanos(MEMBER));
+        estimator.retain(Collections.singletonList(OWNER));
+        assertEquals(-1, estimator.getDeviceLeadNanos(MEMBER));
+    }
+
+    /**
+     * Back-to-back rounds of an owner and eight members, one of them on a worse link, with the
+     * lead fixed at the old 5 s and chosen by the estimator at several margins.  A shot is
+     * missed when its device's command delivery, camera readiness and scheduler jitter add up
+     * to more than the lead.  Autofocus hunting stretches the readiness past the quantile often
+     * enough for the margin to matter; a camera opened again is past any margin but the fixed
+     * lead.
+     */
+    @Test
+    public void simulatedRoundsTradeShotRateForMissedShots() {
+        int rounds = 2000;
+        long[] margins = {-1, 0, 50 * MS, CaptureLeadEstimator.DEFAULT_MARGIN_NANOS, 200 * MS};
+        double[] shotsPerMinute = new double[margins.length];
+        double[] missed = new double[margins.length];
+        StringBuilder report = new StringBuilder();
+        for (int m = 0; m < margins.length; m++) {
+            CaptureLeadEstimator estimator = margins[m] < 0
+                    ? new CaptureLeadEstimator(CaptureLeadEstimator.DEFAULT_WINDOW, 1.0, 0,
+                    CaptureLeadEstimator.DEFAULT_MAX_LEAD_NANOS, CaptureLeadEstimator.DEFAULT_MAX_LEAD_NANOS, metrics)
+                    : new CaptureLeadEstimator(CaptureLeadEstimator.DEFAULT_WINDOW, CaptureLeadEstimator.DEFAULT_QUANTILE,
+                    margins[m], CaptureLeadEstimator.DEFAULT_MIN_LEAD_NANOS, CaptureLeadEstimator.DEFAULT_MAX_LEAD_NANOS,
+                    metrics);
+            long[] result = simulate(estimator, new Random(42), rounds);
+            shotsPerMinute[m] = rounds * 60e9 / result[0];
+            missed[m] = 100.0 * result[1] / (rounds * 9);
+            report.append(String.format("; %s: %.1f shots/min, %.2f%% missed",
+                    margins[m] < 0 ? "fixed 5000 ms" : "margin " + margins[m] / MS + " ms", shotsPerMinute[m], missed[m]));
+        }
+        System.out.printf("Capture lead over %d rounds of 9 devices%s%n", rounds, report);
+
+        assertEquals(0, missed[0], 0);
+        for (int m = 2; m < margins.length; m++) {
+            assertTrue("margin " + margins[m] / MS + " ms missed " + missed[m] + "%", missed[m] < missed[m - 1]);
+            assertTrue(shotsPerMinute[m] < shotsPerMinute[m - 1]);
+        }
+        assertTrue(missed[4] < 0.8 * missed[1]);
+        // the default margin
+        assertTrue("missed " + missed[3] + "%", missed[3] < 1.0);
+        assertTrue(shotsPerMinute[3] > 3 * shotsPerMinute[0]);
+    }
+
+    /**
+     * @return the total time of the rounds and the number of missed shots
+     */
+    private static long[] simulate(CaptureLeadEstimator estimator, Random random, int rounds) {
+        // after the capture time: the shutter, the preview upload and the user pressing again
+        long roundOverhead = 700 * MS;
+        List<Long> devices = new ArrayList<>();
+        for (long id = OWNER; id <= 9; id++) {
+            devices.add(id);
+        }
+        long elapsed = 0;
+        long missed = 0;
+        long[] deliveries = new long[devices.size()];
+        for (int r = 0; r < rounds; r++) {
+            long lead = estimator.getLeadNanos(devices);
+            for (int i = 1; i < deliveries.length; i++) {
+                boolean slowLink = i == deliveries.length - 1;
+                deliveries[i] = (slowLink ? 25 * MS : 8 * MS) + exponential(random, slowLink ? 15 * MS : 4 * MS)
+                        + (random.nextDouble() < 0.02 ? 80 * MS : 0);
+            }
+            // the owner queues its shot once three quarters of the members acknowledged
+            long[] members = Arrays.copyOfRange(deliveries, 1, deliveries.length);
+            Arrays.sort(members);
+            deliveries[0] = members[members.length - members.length / 4 - 1];
+
+            for (int i = 0; i < deliveries.length; i++) {
+                long ready = 3 * MS + exponential(random, 4 * MS);
+                if (random.nextDouble() < 0.05) {
+                    // the autofocus hunted
+                    ready += exponential(random, 60 * MS);
+                }
+                if (random.nextDouble() < 0.005) {
+                    // the camera had failed and is opened again
+                    ready += 400 * MS + (long) (random.nextDouble() * 300 * MS);
+                }
+                long jitter = exponential(random, MS / 2) + (random.nextDouble() < 0.01 ? 15 * MS : 0);
+                if (deliveries[i] + ready + jitter > lead) {
+                    missed++;
+                }
+                estimator.delivered(devices.get(i), deliveries[i]);
+                estimator.ready(devices.get(i), new Readiness(ready, jitter));
+            }
+            elapsed += lead + roundOverhead;
+        }
+        return new long[]{elapsed, missed};
+    }
+
+    private static long exponential(Random random, long mean) {
+        return (long) (-Math.log(1 - random.nextDouble()) * mean);
+    }
+
+    private static void feed(CaptureLeadEstimator estimator, long deviceId, long delivery, long ready, long jitter,
+                             int times) {
+        for (int i = 0; i < times; i++) {
+            estimator.delivered(deviceId, delivery);
+            estimator.ready(deviceId, new Readiness(ready, jitter));
+        }
+    }
+}
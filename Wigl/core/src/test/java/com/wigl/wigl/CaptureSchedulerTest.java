@@ -0,0 +1,127 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CaptureSchedulerTest {
+    private static final long MS = 1000000L;
+
+    private final CaptureScheduler scheduler = new CaptureScheduler(2 * MS, 5 * MS);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void preparesBeforeFiring() throws Exception {
+        final AtomicLong prepared = new AtomicLong();
+        final AtomicLong fired = new AtomicLong();
+        long deadline = System.nanoTime() + 20 * MS;
+        long late = scheduler.schedule(deadline, new CaptureScheduler.Action() {
+            @Override
+            public void prepare() {
+                prepared.set(System.nanoTime());
+            }
+
+            @Override
+            public void fire(long lateNanos) {
+                fired.set(System.nanoTime());
+            }
+        }).get(1, TimeUnit.SECONDS);
+
+        assertTrue(late >= 0);
+        assertTrue(prepared.get() >= deadline - 6 * MS && prepared.get() < deadline);
+        assertTrue(fired.get() >= deadline);
+    }
+
+    @Test
+    public void pastDeadlineFiresImmediately() throws Exception {
+        long late = scheduler.schedule(System.nanoTime() - 50 * MS, new Recorder(null)).get(1, TimeUnit.SECONDS);
+        assertTrue(late >= 50 * MS);
+    }
+
+    @Test
+    public void cancelledCaptureNeverFires() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        Future<Long> capture = scheduler.schedule(System.nanoTime() + 50 * MS, new Recorder(fired));
+        assertTrue(capture.cancel(true));
+        assertFalse(fired.await(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Measures how late captures fire against a {@link Timer} scheduled the way CaptureActivity
+     * used to, and reports both distributions.  The scheduler wins on the median; its tail is
+     * only bounded.
+     */
+    @Test
+    public void fireErrorDistribution() throws Exception {
+        int shots = 100;
+        long[] errors = new long[shots];
+        long[] timerErrors = new long[shots];
+        Random random = new Random(9);
+        for (int i = 0; i < shots; i++) {
+            long deadline = System.nanoTime() + (5 + random.nextInt(10)) * MS;
+            errors[i] = scheduler.schedule(deadline, new Recorder(null)).get(1, TimeUnit.SECONDS);
+        }
+        Timer timer = new Timer();
+        try {
+            for (int i = 0; i < shots; i++) {
+                final long deadline = System.nanoTime() + (5 + random.nextInt(10)) * MS;
+                final long[] fired = new long[1];
+                final CountDownLatch done = new CountDownLatch(1);
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        fired[0] = System.nanoTime();
+                        done.countDown();
+                    }
+                }, Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                done.await();
+                timerErrors[i] = fired[0] - deadline;
+            }
+        } finally {
+            timer.cancel();
+        }
+        Arrays.sort(errors);
+        Arrays.sort(timerErrors);
+        System.out.printf("Capture fire error over %d shots (us): p50 %d, p95 %d, max %d; Timer: p50 %d, p95 %d, max %d%n",
+                shots, errors[shots / 2] / 1000, errors[shots * 95 / 100] / 1000, errors[shots - 1] / 1000,
+                timerErrors[shots / 2] / 1000, timerErrors[shots * 95 / 100] / 1000, timerErrors[shots - 1] / 1000);
+        assertTrue(errors[0] >= 0);
+        assertTrue("median error " + errors[shots / 2] + " ns", errors[shots / 2] < MS / 2);
+        // the tail is the thread being descheduled near the deadline, which spinning cannot
+        // prevent; it is no better than the Timer's, but it must stay within about a frame
+        assertTrue("p95 error " + errors[shots * 95 / 100] + " ns", errors[shots * 95 / 100] < 30 * MS);
+    }
+
+    private static class Recorder implements CaptureScheduler.Action {
+        private final CountDownLatch fired;
+
+        Recorder(CountDownLatch fired) {
+            this.fired = fired;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void fire(long lateNanos) {
+            if (fired != null) {
+                fired.countDown();
+            }
+        }
+    }
+}
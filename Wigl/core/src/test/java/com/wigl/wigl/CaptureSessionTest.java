@@ -0,0 +1,157 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CaptureSessionTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final LinkedBlockingQueue<Map<Long, File>> completed = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Set<Long>> timedOut = new LinkedBlockingQueue<>();
+    private final AtomicInteger callbacks = new AtomicInteger();
+
+    private final CaptureSession.Callback callback = new CaptureSession.Callback() {
+        @Override
+        public void onComplete(CaptureSession session, Map<Long, File> pictures) {
+            callbacks.incrementAndGet();
+            completed.add(pictures);
+        }
+
+        @Override
+        public void onTimeout(CaptureSession session, Map<Long, File> received, Set<Long> missing) {
+            callbacks.incrementAndGet();
+            timedOut.add(missing);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void completesOnceWhenEveryDeviceDelivers() throws Exception {
+        final int devices = 8;
+        Long[] ids = new Long[devices];
+        for (int i = 0; i < devices; i++) {
+            ids[i] = (long) i + 1;
+        }
+        final CaptureSession session = new CaptureSession(1, Arrays.asList(ids), callback);
+        session.start(scheduler, 10000);
+
+        final CountDownLatch go = new CountDownLatch(1);
+        for (int i = devices - 1; i >= 0; i--) {
+            final long id = ids[i];
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    session.addPicture(id, new File("picture-" + id));
+                }
+            }).start();
+        }
+        go.countDown();
+
+        Map<Long, File> pictures = completed.poll(5, TimeUnit.SECONDS);
+        assertNotNull(pictures);
+        assertEquals(Arrays.asList(ids), new ArrayList<>(pictures.keySet()));
+        assertEquals(new File("picture-3"), pictures.get(3L));
+        assertTrue(session.isDone());
+        Thread.sleep(50);
+        assertEquals(1, callbacks.get());
+    }
+
+    @Test
+    public void completesAsSoonAsTheLastPictureArrives() throws Exception {
+        CaptureSession session = new CaptureSession(2, Arrays.asList(1L, 2L), callback);
+        session.start(scheduler, 10000);
+        assertTrue(session.addPicture(1, new File("a")));
+        assertNull(completed.poll(20, TimeUnit.MILLISECONDS));
+
+        long start = System.nanoTime();
+        assertTrue(session.addPicture(2, new File("b")));
+        assertNotNull(completed.poll(0, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void timesOutWithTheMissingDevices() throws Exception {
+        CaptureSession session = new CaptureSession(3, Arrays.asList(1L, 2L, 3L), callback);
+        session.start(scheduler, 50);
+        session.addPicture(2, new File("b"));
+
+        assertEquals(new HashSet<>(Arrays.asList(1L, 3L)), timedOut.poll(5, TimeUnit.SECONDS));
+        assertFalse(session.addPicture(1, new File("a")));
+        assertEquals(1, callbacks.get());
+    }
+
+    @Test
+    public void rejectsUnexpectedAndDuplicatePictures() {
+        CaptureSession session = new CaptureSession(4, Arrays.asList(1L, 2L), callback);
+        assertFalse(session.addPicture(9, new File("x")));
+        assertTrue(session.addPicture(1, new File("a")));
+        assertFalse(session.addPicture(1, new File("again")));
+        assertEquals(0, callbacks.get());
+    }
+
+    @Test
+    public void burstCompletesWithEveryShotOfEveryDevice() throws Exception {
+        CaptureSession session = new CaptureSession(6, Arrays.asList(1L, 2L), 3, callback);
+        session.start(scheduler, 10000);
+        for (int shot = 2; shot >= 0; shot--) {
+            assertTrue(session.addPicture(2, shot, new File("b" + shot)));
+        }
+        assertTrue(session.addPicture(1, 0, new File("a0")));
+        assertTrue(session.addPicture(1, 2, new File("a2")));
+        assertFalse(session.addPicture(1, 3, new File("a3")));
+        assertFalse(session.addPicture(1, 2, new File("again")));
+        assertNull(completed.poll(20, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonMap(2L, new File("b1")), session.getShot(1));
+
+        assertTrue(session.addPicture(1, 1, new File("a1")));
+        Map<Long, File> first = completed.poll(0, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(new File("a0"), new File("b0")), new ArrayList<>(first.values()));
+        assertEquals(Arrays.asList(new File("a2"), new File("b2")), new ArrayList<>(session.getShot(2).values()));
+        assertEquals(new File("a1"), session.getPicture(1, 1));
+    }
+
+    @Test
+    public void burstMissingAShotTimesOut() throws Exception {
+        CaptureSession session = new CaptureSession(7, Arrays.asList(1L, 2L), 2, callback);
+        session.start(scheduler, 50);
+        session.addPicture(1, 0, new File("a0"));
+        session.addPicture(1, 1, new File("a1"));
+        session.addPicture(2, 0, new File("b0"));
+
+        assertEquals(Collections.singleton(2L), timedOut.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelledSessionNeverCallsBack() throws Exception {
+        CaptureSession session = new CaptureSession(5, Collections.singleton(1L), callback);
+        session.start(scheduler, 20);
+        session.cancel();
+        assertFalse(session.addPicture(1, new File("a")));
+        Thread.sleep(60);
+        assertEquals(0, callbacks.get());
+    }
+}
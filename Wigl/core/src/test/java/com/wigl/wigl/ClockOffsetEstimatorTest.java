@@ -0,0 +1,117 @@
+package com.wigl.wigl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClockOffsetEstimatorTest {
+    private static final long MS = 1000000L;
+    private static final long SECOND = 1000 * MS;
+
+    @Test
+    public void symmetricSampleGivesExactOffset() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        // remote is 1000 ahead, 10 each way, 5 spent on the remote side
+        estimator.addSample(0, 1010, 1015, 25);
+        assertEquals(1000, estimator.getOffsetNanos(0));
+        assertEquals(20, estimator.getBestRoundTripNanos());
+        assertEquals(6000, estimator.toRemote(5000));
+        assertEquals(5000, estimator.toLocal(6000));
+    }
+
+    @Test
+    public void prefersLowRoundTripSamples() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator(8);
+        // a congested sample whose reply leg took 100 longer than the request leg
+        estimator.addSample(0, 1010, 1010, 120);
+        for (int i = 0; i < 4; i++) {
+            estimator.addSample(200 + i, 1210 + i, 1210 + i, 220 + i);
+        }
+        assertEquals(1000, estimator.getOffsetNanos(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noEstimateWithoutSamples() {
+        new ClockOffsetEstimator().toLocal(0);
+    }
+
+    /**
+     * Two phones whose clocks differ by seconds and drift apart at 80 ppm, synchronising in
+     * bursts over a jittery link, then converting a capture time five seconds ahead.
+     */
+    @Test
+    public void simulatedSkewAndJitter() {
+        int runs = 200;
+        double[] errors = new double[runs];
+        double[] naive = new double[runs];
+        Random random = new Random(8);
+        for (int run = 0; run < runs; run++) {
+            SimulatedLink link = new SimulatedLink(random, (random.nextDouble() - 0.5) * 1e4 * SECOND, 80e-6);
+            ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+            long local = 0;
+            for (int burst = 0; burst < 12; burst++) {
+                for (int i = 0; i < 8; i++) {
+                    local = link.exchange(estimator, local) + 20 * MS;
+                }
+                local += 10 * SECOND;
+            }
+            assertEquals(80, estimator.getDriftPpm(), 40);
+            long captureLocal = local + 5 * SECOND;
+            errors[run] = Math.abs(estimator.toLocal(link.remote(captureLocal)) - captureLocal) / (double) MS;
+
+            ClockOffsetEstimator single = new ClockOffsetEstimator(1);
+            link.exchange(single, local);
+            naive[run] = Math.abs(single.toLocal(link.remote(captureLocal)) - captureLocal) / (double) MS;
+        }
+        Arrays.sort(errors);
+        Arrays.sort(naive);
+        System.out.printf("Clock alignment error over %d runs (ms): p50 %.3f, p95 %.3f, max %.3f; one sample: p50 %.3f, p95 %.3f, max %.3f%n",
+                runs, errors[runs / 2], errors[runs * 95 / 100], errors[runs - 1],
+                naive[runs / 2], naive[runs * 95 / 100], naive[runs - 1]);
+        assertTrue("p95 error " + errors[runs * 95 / 100] + " ms", errors[runs * 95 / 100] < 1.0);
+        assertTrue(errors[runs / 2] < naive[runs / 2]);
+    }
+
+    /**
+     * A remote clock {@code remote = local * (1 + drift) + skew} behind a link whose legs each
+     * take 1 ms plus exponential queueing delay, with occasional 40 ms stalls.
+     */
+    private static class SimulatedLink {
+        private final Random random;
+        private final double skew;
+        private final double drift;
+
+        SimulatedLink(Random random, double skew, double drift) {
+            this.random = random;
+            this.skew = skew;
+            this.drift = drift;
+        }
+
+        long remote(long local) {
+            return Math.round(local * (1 + drift) + skew);
+        }
+
+        /**
+         * @return local time the reply arrived
+         */
+        long exchange(ClockOffsetEstimator estimator, long t1) {
+            long arrive = t1 + leg();
+            long t2 = remote(arrive);
+            long t3 = t2 + 50000;
+            long t4 = arrive + 50000 + leg();
+            estimator.addSample(t1, t2, t3, t4);
+            return t4;
+        }
+
+        private long leg() {
+            double delay = 1 * MS - Math.log(1 - random.nextDouble()) * 3 * MS;
+            if (random.nextInt(20) == 0) {
+                delay += 40 * MS;
+            }
+            return Math.round(delay);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.wigl.wigl;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+    @Test
+    public void matchesKnownVectors() {
+        assertEquals(0xE3069283L, crc("123456789".getBytes(Charset.forName("US-ASCII"))));
+        assertEquals(0x8A9136AAL, crc(new byte[32]));
+        assertEquals(0L, crc(new byte[0]));
+    }
+
+    @Test
+    public void incrementalUpdatesMatchOneShot() {
+        byte[] data = new byte[1027];
+        new Random(3).nextBytes(data);
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, 5);
+        crc.update(data[5]);
+        crc.update(data, 6, data.length - 6);
+        assertEquals(crc(data), crc.getValue());
+        crc.reset();
+        crc.update(data, 0, data.length);
+        assertEquals(crc(data), crc.getValue());
+    }
+
+    private static long crc(byte[] data) {
+        return Crc32c.compute(data, 0, data.length) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,102 @@
+package com.wigl.wigl;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link CameraDevice} that takes as long as a phone's camera to open, preview and shoot, and
+ * fails like one when it is misused.
+ */
+class FakeCamera implements CameraDevice {
+    final AtomicInteger opens = new AtomicInteger();
+    final AtomicInteger closes = new AtomicInteger();
+    final AtomicInteger previews = new AtomicInteger();
+    final AtomicInteger shots = new AtomicInteger();
+    volatile int failShots;
+
+    private final long openMillis;
+    private final long previewMillis;
+    private final long shutterMillis;
+    private final ScheduledExecutorService callbacks = Executors.newSingleThreadScheduledExecutor();
+    private volatile boolean open;
+    private volatile boolean previewing;
+    private volatile boolean locked;
+
+    FakeCamera(long openMillis, long previewMillis, long shutterMillis) {
+        this.openMillis = openMillis;
+        this.previewMillis = previewMillis;
+        this.shutterMillis = shutterMillis;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (open) {
+            return;
+        }
+        sleep(openMillis);
+        opens.incrementAndGet();
+        open = true;
+    }
+
+    @Override
+    public void startPreview() throws IOException {
+        if (!open) {
+            throw new IOException("Camera is not open");
+        }
+        sleep(previewMillis);
+        previews.incrementAndGet();
+        previewing = true;
+    }
+
+    @Override
+    public void stopPreview() {
+        previewing = false;
+    }
+
+    @Override
+    public void lockExposure(boolean locked) {
+        this.locked = locked;
+    }
+
+    boolean isExposureLocked() {
+        return locked;
+    }
+
+    @Override
+    public void takePicture(final PictureCallback callback) throws IOException {
+        if (!previewing) {
+            throw new IOException("takePicture failed: preview is not running");
+        }
+        previewing = false;
+        if (failShots > 0) {
+            failShots--;
+            throw new IOException("takePicture failed");
+        }
+        final byte[] jpeg = new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) shots.incrementAndGet(), (byte) 0xFF, (byte) 0xD9};
+        callbacks.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPictureTaken(jpeg);
+            }
+        }, shutterMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        previewing = false;
+        closes.incrementAndGet();
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
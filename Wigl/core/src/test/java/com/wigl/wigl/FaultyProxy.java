@@ -0,0 +1,102 @@
+package com.wigl.wigl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A loopback TCP proxy that breaks the first few connections through it: once a connection has
+ * forwarded a given number of bytes towards the server it is either killed or silently stalled,
+ * like a Wi-Fi Direct link going away mid-transfer.
+ */
+class FaultyProxy {
+    enum Fault {KILL, STALL}
+
+    private final ServerSocket serverSocket;
+    private final int targetPort;
+    private final Fault fault;
+    private final long faultAfter;
+    private final AtomicInteger faultyConnections;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    FaultyProxy(int targetPort, Fault fault, long faultAfter, int faultyConnections) throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.targetPort = targetPort;
+        this.fault = fault;
+        this.faultAfter = faultAfter;
+        this.faultyConnections = new AtomicInteger(faultyConnections);
+        Thread accept = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "FaultyProxy-accept");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    void close() {
+        IoUtils.closeQuietly(serverSocket);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket("127.0.0.1", targetPort);
+                connections.incrementAndGet();
+                long limit = faultyConnections.getAndDecrement() > 0 ? faultAfter : Long.MAX_VALUE;
+                pump(client, server, limit);
+                pump(server, client, Long.MAX_VALUE);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void pump(final Socket from, final Socket to, final long limit) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[4096];
+                long forwarded = 0;
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int n;
+                    while ((n = in.read(buf, 0, (int) Math.min(buf.length, limit - forwarded))) > 0) {
+                        out.write(buf, 0, n);
+                        forwarded += n;
+                        if (forwarded == limit) {
+                            break;
+                        }
+                    }
+                    if (forwarded == limit && fault == Fault.STALL) {
+                        // keep both sockets open and swallow everything else
+                        while (in.read(buf) != -1) {
+                        }
+                    }
+                } catch (IOException e) {
+                    // the other direction failed first
+                } finally {
+                    IoUtils.closeQuietly(from);
+                    IoUtils.closeQuietly(to);
+                }
+            }
+        }, "FaultyProxy-pump");
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,213 @@
+package com.wigl.wigl;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+    private static final long DEVICE = MacAddress.parse("8a:3c:1c:0f:99:e2");
+
+    @Test
+    public void headerRoundTrip() throws Exception {
+        for (MessageType type : MessageType.values()) {
+            FrameHeader header = new FrameHeader(type, 0x81, 123456, DEVICE, -7);
+            byte[] bytes = FrameCodec.encodeHeader(header);
+            assertEquals(FrameCodec.HEADER_SIZE, bytes.length);
+            assertEquals(header, FrameCodec.decodeHeader(ByteBuffer.wrap(bytes)));
+        }
+    }
+
+    @Test
+    public void framesRoundTripThroughStreams() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] command = FrameCodec.encodeCaptureCommand(1445100000000L);
+        FrameCodec.writeFrame(out, new FrameHeader(MessageType.CAPTURE_COMMAND, 0, command.length, DEVICE, 1), command);
+        byte[] picture = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, (byte) 0xFF, (byte) 0xD9};
+        FrameCodec.writeFrame(out, new FrameHeader(MessageType.PICTURE, 0, picture.length, DEVICE, 2), picture);
+        FrameCodec.writeFrame(out, new FrameHeader(MessageType.ACK, 0, 0, DEVICE, 2), new byte[0]);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        byte[] buf = new byte[FrameCodec.HEADER_SIZE];
+
+        FrameHeader header = FrameCodec.readHeader(in, buf);
+        assertEquals(MessageType.CAPTURE_COMMAND, header.getType());
+        assertEquals(1445100000000L, FrameCodec.decodeCaptureCommand(FrameCodec.readPayload(in, header)));
+
+        header = FrameCodec.readHeader(in, buf);
+        assertEquals(MessageType.PICTURE, header.getType());
+        assertEquals(DEVICE, header.getDeviceId());
+        assertEquals(2, header.getSequence());
+        assertArrayEquals(picture, FrameCodec.readPayload(in, header));
+
+        header = FrameCodec.readHeader(in, buf);
+        assertEquals(MessageType.ACK, header.getType());
+        assertEquals(0, header.getLength());
+
+        assertNull(FrameCodec.readHeader(in, buf));
+    }
+
+    @Test
+    public void emptyPayloadStillWritesTheHeaderToAChannel() throws Exception {
+        Pipe pipe = Pipe.open();
+        try {
+            FrameCodec.writeFrame(pipe.sink(), new FrameHeader(MessageType.ACK, 0, 0, DEVICE, 9), new byte[0]);
+            pipe.sink().close();
+
+            FrameHeader header = FrameCodec.readHeader(pipe.source(), ByteBuffer.allocate(FrameCodec.HEADER_SIZE));
+            assertNotNull(header);
+            assertEquals(MessageType.ACK, header.getType());
+            assertEquals(9, header.getSequence());
+            assertEquals(0, header.getLength());
+        } finally {
+            pipe.source().close();
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsBadMagic() throws Exception {
+        byte[] bytes = FrameCodec.encodeHeader(new FrameHeader(MessageType.ACK, 0, 0, DEVICE, 0));
+        bytes[0] = 'X';
+        FrameCodec.decodeHeader(ByteBuffer.wrap(bytes));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsUnknownType() throws Exception {
+        byte[] bytes = FrameCodec.encodeHeader(new FrameHeader(MessageType.ACK, 0, 0, DEVICE, 0));
+        bytes[2] = (byte) 200;
+        FrameCodec.decodeHeader(ByteBuffer.wrap(bytes));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsOversizedPayload() throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(FrameCodec.encodeHeader(new FrameHeader(MessageType.PICTURE, 0, 0, DEVICE, 0)));
+        buf.putInt(4, FrameCodec.MAX_PAYLOAD + 1);
+        FrameCodec.decodeHeader(buf);
+    }
+
+    @Test
+    public void captureCommandCarriesPreviewOnlyWhenRequested() throws Exception {
+        byte[] plain = FrameCodec.encodeCaptureCommand(1445100000000L, PreviewSpec.NONE);
+        assertEquals(FrameCodec.CAPTURE_COMMAND_SIZE, plain.length);
+        assertEquals(1445100000000L, FrameCodec.decodeCaptureCommand(plain));
+        assertEquals(PreviewSpec.NONE, FrameCodec.decodeCapturePreview(plain));
+
+        byte[] preview = FrameCodec.encodeCaptureCommand(1445100000000L, new PreviewSpec(1280, 85));
+        assertEquals(FrameCodec.CAPTURE_COMMAND_PREVIEW_SIZE, preview.length);
+        assertEquals(1445100000000L, FrameCodec.decodeCaptureCommand(preview));
+        assertEquals(new PreviewSpec(1280, 85), FrameCodec.decodeCapturePreview(preview));
+    }
+
+    @Test
+    public void captureCommandCarriesBurstWithOrWithoutPreview() throws Exception {
+        Burst burst = new Burst(4, 250000000L);
+        byte[] plain = FrameCodec.encodeCaptureCommand(1445100000000L, new PreviewSpec(1280, 85), Burst.SINGLE);
+        assertEquals(FrameCodec.CAPTURE_COMMAND_PREVIEW_SIZE, plain.length);
+        assertEquals(Burst.SINGLE, FrameCodec.decodeCaptureBurst(plain));
+
+        byte[] noPreview = FrameCodec.encodeCaptureCommand(1445100000000L, PreviewSpec.NONE, burst);
+        assertEquals(FrameCodec.CAPTURE_COMMAND_BURST_SIZE, noPreview.length);
+        assertEquals(1445100000000L, FrameCodec.decodeCaptureCommand(noPreview));
+        assertEquals(PreviewSpec.NONE, FrameCodec.decodeCapturePreview(noPreview));
+        assertEquals(burst, FrameCodec.decodeCaptureBurst(noPreview));
+
+        byte[] both = FrameCodec.encodeCaptureCommand(1445100000000L, new PreviewSpec(1280, 85), burst);
+        assertEquals(new PreviewSpec(1280, 85), FrameCodec.decodeCapturePreview(both));
+        assertEquals(burst, FrameCodec.decodeCaptureBurst(both));
+        assertEquals(burst.getSpanNanos() + 1445100000000L, burst.shotTime(1445100000000L, 3));
+    }
+
+    @Test
+    public void burstIntervalFitsTheCommandAtBothBounds() throws Exception {
+        for (long interval : new long[]{Burst.MIN_INTERVAL_NANOS, Burst.MAX_INTERVAL_NANOS}) {
+            Burst burst = new Burst(2, interval);
+            byte[] payload = FrameCodec.encodeCaptureCommand(1445100000000L, PreviewSpec.NONE, burst);
+            assertEquals(burst, FrameCodec.decodeCaptureBurst(payload));
+        }
+        for (long interval : new long[]{Burst.MIN_INTERVAL_NANOS - 1, Burst.MAX_INTERVAL_NANOS + 1}) {
+            try {
+                new Burst(2, interval);
+                fail("Expected IllegalArgumentException for " + interval + " ns");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void shotIndexSharesFlagsWithPreview() {
+        FrameHeader header = new FrameHeader(MessageType.PICTURE, FrameHeader.FLAG_PREVIEW | FrameHeader.shotFlags(15),
+                10, DEVICE, 1);
+        assertEquals(15, header.getShot());
+        assertEquals(FrameHeader.FLAG_PREVIEW, header.getFlags() & FrameHeader.FLAG_PREVIEW);
+        assertEquals(0, new FrameHeader(MessageType.PICTURE, FrameHeader.FLAG_PREVIEW, 10, DEVICE, 1).getShot());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsPreviewWithBadQuality() throws Exception {
+        byte[] payload = FrameCodec.encodeCaptureCommand(1, new PreviewSpec(640, 50));
+        payload[payload.length - 1] = 0;
+        FrameCodec.decodeCapturePreview(payload);
+    }
+
+    @Test
+    public void captureReportCarriesReadinessOnlyWhenMeasured() throws Exception {
+        byte[] plain = FrameCodec.encodeCaptureReport(1445100000000L, 1500, Readiness.NONE);
+        assertEquals(FrameCodec.CAPTURE_REPORT_SIZE, plain.length);
+        assertArrayEquals(new long[]{1445100000000L, 1500}, FrameCodec.decodeCaptureReport(plain));
+        assertEquals(Readiness.NONE, FrameCodec.decodeCaptureReadiness(plain));
+
+        byte[] measured = FrameCodec.encodeCaptureReport(1445100000000L, 1500, new Readiness(30000000, 250000));
+        assertEquals(FrameCodec.CAPTURE_REPORT_READINESS_SIZE, measured.length);
+        assertArrayEquals(new long[]{1445100000000L, 1500}, FrameCodec.decodeCaptureReport(measured));
+        assertEquals(new Readiness(30000000, 250000), FrameCodec.decodeCaptureReadiness(measured));
+    }
+
+    @Test
+    public void previewSpecSampleSizeKeepsLongerSideAtLeastMaxSide() {
+        PreviewSpec preview = new PreviewSpec(1280, 80);
+        assertEquals(2, preview.sampleSize(4000, 3000));
+        assertEquals(2, preview.sampleSize(3000, 4000));
+        assertEquals(4, preview.sampleSize(5120, 3840));
+        assertEquals(1, preview.sampleSize(1920, 1080));
+        assertEquals(1, preview.sampleSize(640, 480));
+        assertEquals(0.32f, preview.scale(4000, 3000), 1e-6);
+        assertEquals(1f, preview.scale(640, 480), 0);
+        assertEquals(1, PreviewSpec.NONE.sampleSize(4000, 3000));
+    }
+
+    @Test
+    public void traceReportRoundTrip() throws Exception {
+        List<TraceSpan> spans = Arrays.asList(new TraceSpan(1445100000000L, TraceStage.SHUTTER_WAIT, -5, 7),
+                new TraceSpan(1445100000000L, TraceStage.DISPLAY, Long.MAX_VALUE - 1, Long.MAX_VALUE));
+        byte[] payload = FrameCodec.encodeTraceReport(spans);
+        assertEquals(4 + 2 * FrameCodec.TRACE_SPAN_SIZE, payload.length);
+        assertEquals(spans, FrameCodec.decodeTraceReport(payload));
+        assertTrue(FrameCodec.decodeTraceReport(FrameCodec.encodeTraceReport(new ArrayList<TraceSpan>())).isEmpty());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTraceReportWithUnknownStage() throws Exception {
+        byte[] payload = FrameCodec.encodeTraceReport(Arrays.asList(new TraceSpan(1, TraceStage.UPLOAD, 2, 3)));
+        payload[4 + 8] = (byte) 200;
+        FrameCodec.decodeTraceReport(payload);
+    }
+
+    @Test
+    public void macAddressRoundTrip() {
+        assertEquals("8a:3c:1c:0f:99:e2", MacAddress.format(DEVICE));
+        assertEquals(DEVICE, MacAddress.parse("8A-3C-1C-0F-99-E2"));
+        assertEquals(-1, MacAddress.tryParse("8a:3c:1c:0f:99"));
+        assertEquals(-1, MacAddress.tryParse("8a:3c:1c:0f:99:zz"));
+    }
+}
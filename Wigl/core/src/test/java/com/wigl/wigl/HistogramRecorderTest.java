@@ -0,0 +1,79 @@
+package com.wigl.wigl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class HistogramRecorderTest {
+    @Test
+    public void bucketsCoverEveryValueContiguously() {
+        assertEquals(0, HistogramRecorder.index(0));
+        assertEquals(31, HistogramRecorder.index(31));
+        assertEquals(32, HistogramRecorder.index(32));
+        assertEquals(HistogramRecorder.BUCKETS - 1, HistogramRecorder.index(Long.MAX_VALUE));
+        for (int i = 1; i < HistogramRecorder.BUCKETS; i++) {
+            assertEquals(HistogramRecorder.highestValue(i - 1) + 1, HistogramRecorder.lowestValue(i));
+            assertEquals(i, HistogramRecorder.index(HistogramRecorder.lowestValue(i)));
+            assertEquals(i, HistogramRecorder.index(HistogramRecorder.highestValue(i)));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinPrecision() {
+        HistogramRecorder recorder = new HistogramRecorder();
+        Random random = new Random(3);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            // log-normal, like connect and transfer times
+            values[i] = Math.round(Math.exp(8 + 1.5 * random.nextGaussian()));
+            recorder.record(values[i]);
+        }
+        Arrays.sort(values);
+        HistogramSnapshot snapshot = recorder.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+        for (double p : new double[]{50, 90, 95, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long estimate = snapshot.getValueAtPercentile(p);
+            assertTrue("p" + p + " " + estimate + " vs " + exact, estimate >= exact && estimate <= exact * 1.032);
+        }
+        assertEquals(values[values.length - 1], snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        HistogramRecorder recorder = new HistogramRecorder();
+        assertEquals(0, recorder.snapshot().getValueAtPercentile(99));
+        recorder.record(-5);
+        assertEquals(1, recorder.snapshot().getCount());
+        assertEquals(0, recorder.snapshot().getMax());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        final HistogramRecorder recorder = new HistogramRecorder();
+        final int threads = 4;
+        final int perThread = 50000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int base = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        recorder.record(base * 1000 + i % 1000);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        HistogramSnapshot snapshot = recorder.snapshot();
+        assertEquals(threads * perThread, snapshot.getCount());
+        assertEquals((threads - 1) * 1000 + 999, snapshot.getMax());
+    }
+}
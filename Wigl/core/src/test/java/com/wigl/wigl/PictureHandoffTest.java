@@ -0,0 +1,160 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class PictureHandoffTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+    private File dir;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setUp() {
+        dir = tmp.getRoot();
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdownNow();
+    }
+
+    private static byte[] picture(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    @Test
+    public void uploaderTakesTheBytesWhileTheyAreSaved() throws IOException {
+        PictureHandoff handoff = new PictureHandoff(writer, 1 << 20);
+        byte[] data = picture(50000, 1);
+        File file = new File(dir, "wiglPic-1");
+        PictureHandoff.Picture picture = handoff.submit(data, file, 123);
+        assertNotNull(picture);
+        assertEquals(50000, handoff.getQueuedBytes());
+
+        PictureHandoff.Picture taken = handoff.take(picture.getId());
+        assertSame(picture, taken);
+        assertSame(data, taken.getData());
+        assertEquals(123, taken.getCapturedAt());
+        assertEquals(0, handoff.getQueuedBytes());
+        assertNull("Claimed twice", handoff.take(picture.getId()));
+
+        assertEquals(file, taken.awaitSaved());
+        assertTrue(taken.isSaved());
+        assertArrayEquals(data, read(file));
+        assertFalse(new File(dir, "wiglPic-1.part").exists());
+    }
+
+    @Test
+    public void savedPicturesAreDroppedToMakeRoom() throws Exception {
+        PictureHandoff handoff = new PictureHandoff(writer, 100000);
+        PictureHandoff.Picture first = handoff.submit(picture(60000, 1), new File(dir, "a"), 0);
+        first.awaitSaved();
+        PictureHandoff.Picture second = handoff.submit(picture(60000, 2), new File(dir, "b"), 0);
+        assertNotNull(second);
+        assertEquals(1, handoff.getQueuedCount());
+        // the uploader of the first one falls back to its file
+        assertNull(handoff.take(first.getId()));
+        assertTrue(first.getFile().exists());
+        assertSame(second, handoff.take(second.getId()));
+    }
+
+    @Test
+    public void unsavedPicturesAreNeverDropped() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        PictureHandoff handoff = new PictureHandoff(writer, 100000);
+        PictureHandoff.Picture first = handoff.submit(picture(60000, 1), new File(dir, "a"), 0);
+        assertNull(handoff.submit(picture(60000, 2), new File(dir, "b"), 0));
+        assertNull(handoff.submit(picture(200000, 3), new File(dir, "c"), 0));
+        assertFalse(first.isSaved());
+        blocked.countDown();
+        first.awaitSaved();
+        assertFalse(new File(dir, "b").exists());
+        assertSame(first, handoff.take(first.getId()));
+    }
+
+    @Test
+    public void failedSaveIsReported() {
+        PictureHandoff handoff = new PictureHandoff(writer, 1 << 20);
+        PictureHandoff.Picture picture = handoff.submit(picture(1000, 1), new File(new File(dir, "missing"), "a"), 0);
+        try {
+            picture.awaitSaved();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        assertFalse(picture.isSaved());
+        // still in memory, so the upload does not depend on the disk
+        assertSame(picture, handoff.take(picture.getId()));
+    }
+
+    @Test
+    public void failedSaveIsDroppedToMakeRoom() throws Exception {
+        PictureHandoff handoff = new PictureHandoff(writer, 100000);
+        PictureHandoff.Picture failed = handoff.submit(picture(60000, 1), new File(new File(dir, "missing"), "a"), 0);
+        try {
+            failed.awaitSaved();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        // never claimed, it must not hold its bytes for good
+        PictureHandoff.Picture next = handoff.submit(picture(60000, 2), new File(dir, "b"), 0);
+        assertNotNull(next);
+        assertEquals(60000, handoff.getQueuedBytes());
+        assertNull(handoff.take(failed.getId()));
+        assertSame(next, handoff.take(next.getId()));
+    }
+
+    @Test
+    public void discardDeletesTheFileOnceItIsWritten() throws Exception {
+        PictureHandoff handoff = new PictureHandoff(writer, 1 << 20);
+        File file = new File(dir, "wiglPic-1");
+        PictureHandoff.Picture picture = handoff.submit(picture(50000, 1), file, 0);
+        assertSame(picture, handoff.take(picture.getId()));
+        // queued behind the write, not racing it
+        assertTrue(handoff.discard(file).get());
+        assertFalse(file.exists());
+        assertFalse(new File(dir, "wiglPic-1.part").exists());
+
+        File missing = new File(new File(dir, "missing"), "a");
+        handoff.submit(picture(1000, 2), missing, 0);
+        assertFalse(handoff.discard(missing).get());
+    }
+}
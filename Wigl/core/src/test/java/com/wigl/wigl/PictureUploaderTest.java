@@ -0,0 +1,119 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PictureUploaderTest {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final long MEMBER = MacAddress.parse("02:00:00:00:00:02");
+    private static final int SIZE = 1000 * 1000;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+    private File dir;
+    private TransferServer server;
+    private FaultyProxy proxy;
+    private final LinkedBlockingQueue<File> received = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<TransferStats> stats = new LinkedBlockingQueue<>();
+    private final TransferMetrics metrics = new TransferMetrics(new MetricsRegistry());
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.getRoot();
+        server = new TransferServer(0, OWNER, dir, "wiglS-", 4, new TransferListenerAdapter() {
+            @Override
+            public void onPictureReceived(FrameHeader header, long round, File file, TransferStats s) {
+                stats.add(s);
+                received.add(file);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (proxy != null) {
+            proxy.close();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void resumesAfterConnectionIsKilledMidStream() throws Exception {
+        byte[] picture = picture();
+        proxy = new FaultyProxy(server.getLocalPort(), FaultyProxy.Fault.KILL, SIZE / 2, 1);
+
+        uploader(5000).upload(PictureSource.of(picture));
+
+        assertArrayEquals(picture, read(received.poll(5, TimeUnit.SECONDS)));
+        assertEquals(2, proxy.getConnections());
+        // the second connection only carried what the owner had not verified yet
+        long resumed = stats.poll().getBytes();
+        assertTrue("resent " + resumed, resumed <= SIZE / 2 + PictureOffer.DEFAULT_CHUNK_SIZE);
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void resumesAfterConnectionStalls() throws Exception {
+        byte[] picture = picture();
+        proxy = new FaultyProxy(server.getLocalPort(), FaultyProxy.Fault.STALL, SIZE / 3, 2);
+
+        uploader(300).upload(PictureSource.of(picture));
+
+        assertArrayEquals(picture, read(received.poll(5, TimeUnit.SECONDS)));
+        assertEquals(3, proxy.getConnections());
+        MetricsSnapshot snapshot = metrics.getRegistry().snapshot();
+        assertEquals(2, snapshot.getCounter("peer.owner.retries"));
+        assertEquals(2, snapshot.sumCounters("peer.owner.failures.", ""));
+        assertEquals(3, snapshot.getHistograms().get("peer.owner.connect_us").getCount());
+        assertEquals(1, snapshot.getHistograms().get("peer.owner.transfer_us").getCount());
+        assertTrue(snapshot.getCounter("peer.owner.bytes_sent") >= SIZE);
+    }
+
+    @Test(expected = IOException.class)
+    public void givesUpAfterMaxAttempts() throws Exception {
+        proxy = new FaultyProxy(server.getLocalPort(), FaultyProxy.Fault.KILL, 1000, Integer.MAX_VALUE);
+        uploader(5000).upload(PictureSource.of(picture()));
+    }
+
+    private PictureUploader uploader(long stallTimeout) {
+        return new PictureUploader(new PictureUploader.Connector() {
+            @Override
+            public TransferClient connect() throws IOException {
+                return TransferClient.connect("127.0.0.1", proxy.getLocalPort(), 5000, MEMBER);
+            }
+        }, 3, 10, stallTimeout, metrics, "owner");
+    }
+
+    private static byte[] picture() {
+        byte[] picture = new byte[SIZE];
+        new Random(11).nextBytes(picture);
+        return picture;
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int off = 0;
+            while (off < bytes.length) {
+                off += in.read(bytes, off, bytes.length - off);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
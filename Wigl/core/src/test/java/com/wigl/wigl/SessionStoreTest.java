@@ -0,0 +1,234 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SessionStoreTest {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final long MEMBER = MacAddress.parse("02:00:00:00:00:02");
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+    private File dir;
+    private File root;
+    private int received;
+    private SessionStore store;
+
+    @Before
+    public void setUp() {
+        dir = tmp.getRoot();
+        root = new File(dir, "sessions");
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * @return a file where the server would have received it
+     */
+    private File received(int size) throws IOException {
+        File f = new File(dir, "wiglS-" + ++received);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private SessionStore open(long maxAgeMillis, long maxBytes) throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        store = new SessionStore(root, maxAgeMillis, maxBytes, metrics);
+        return store;
+    }
+
+    @Test
+    public void picturesAreLaidOutByRoundAndDeviceAndSurviveAReopen() throws IOException {
+        open(DAY, Long.MAX_VALUE);
+        File picture = received(100);
+        SessionStore.Frame frame = store.put(1000, MEMBER, 0, false, picture);
+        store.put(1000, MEMBER, 0, true, received(10));
+        store.put(1000, OWNER, 1, false, received(200));
+        store.put(2000, OWNER, 0, false, received(300));
+
+        assertFalse(picture.exists());
+        assertEquals(store.roundDir(1000), frame.getFile().getParentFile());
+        assertEquals(100, frame.getFile().length());
+
+        open(DAY, Long.MAX_VALUE);
+        assertEquals(Arrays.asList(1000L, 2000L), store.getRoundIds());
+        List<SessionStore.Frame> frames = store.getFrames(1000);
+        assertEquals(3, frames.size());
+        assertEquals(frame.getFile(), frames.get(0).getFile());
+        assertEquals(100, frames.get(0).getLength());
+        assertTrue(frames.get(1).isPreview());
+        assertEquals(1, frames.get(2).getShot());
+        assertEquals(OWNER, store.getFrame(2000, OWNER, 0, false).getDeviceId());
+        assertNull(store.getFrame(2000, MEMBER, 0, false));
+        assertTrue(store.getFrames(3000).isEmpty());
+        assertEquals(610, store.getTotalBytes());
+    }
+
+    @Test
+    public void storingAShotAgainReplacesIt() throws IOException {
+        open(DAY, Long.MAX_VALUE);
+        store.put(1000, MEMBER, 0, false, received(100));
+        store.put(1000, MEMBER, 0, false, received(150));
+        assertEquals(1, store.getFrames(1000).size());
+        assertEquals(150, store.getTotalBytes());
+
+        open(DAY, Long.MAX_VALUE);
+        assertEquals(150, store.getFrame(1000, MEMBER, 0, false).getFile().length());
+        assertEquals(150, store.getTotalBytes());
+    }
+
+    @Test
+    public void tornRecordIsCutOffOnOpen() throws IOException {
+        open(DAY, Long.MAX_VALUE);
+        store.put(1000, MEMBER, 0, false, received(100));
+        store.put(2000, MEMBER, 0, false, received(100));
+        store.close();
+        store = null;
+
+        File index = new File(root, SessionStore.INDEX_NAME);
+        RandomAccessFile raf = new RandomAccessFile(index, "rw");
+        try {
+            // the second record half written, then a few bytes of a third
+            raf.seek(SessionStore.HEADER_SIZE + SessionStore.RECORD_SIZE + 20);
+            raf.write(new byte[]{1, 2, 3});
+            raf.seek(raf.length());
+            raf.write(new byte[]{9, 9, 9, 9, 9});
+        } finally {
+            raf.close();
+        }
+
+        open(DAY, Long.MAX_VALUE);
+        assertEquals(Arrays.asList(1000L), store.getRoundIds());
+        assertEquals(SessionStore.HEADER_SIZE + SessionStore.RECORD_SIZE, index.length());
+        store.put(3000, MEMBER, 0, false, received(100));
+        open(DAY, Long.MAX_VALUE);
+        assertEquals(Arrays.asList(1000L, 3000L), store.getRoundIds());
+    }
+
+    @Test
+    public void trimDropsExpiredRoundsButKeepsTheNewest() throws IOException {
+        open(DAY, Long.MAX_VALUE);
+        store.put(1000, MEMBER, 0, false, received(100));
+        store.put(2000, MEMBER, 0, false, received(100));
+        File dropped = store.roundDir(1000);
+        long now = System.currentTimeMillis();
+
+        assertEquals(0, store.trim(now));
+        assertEquals(1, store.trim(now + 2 * DAY));
+        assertEquals(Arrays.asList(2000L), store.getRoundIds());
+        assertFalse(dropped.exists());
+        assertEquals(1, metrics.counter("store.rounds_dropped").get());
+
+        open(DAY, Long.MAX_VALUE);
+        assertEquals(Arrays.asList(2000L), store.getRoundIds());
+        assertEquals(100, store.getTotalBytes());
+    }
+
+    @Test
+    public void trimDropsOldestRoundsUntilUnderTheByteLimit() throws IOException {
+        open(DAY, 250);
+        for (long round = 1; round <= 4; round++) {
+            store.put(round, OWNER, 0, false, received(60));
+            store.put(round, MEMBER, 0, false, received(40));
+        }
+        assertEquals(2, store.trim(System.currentTimeMillis()));
+        assertEquals(Arrays.asList(3L, 4L), store.getRoundIds());
+        assertEquals(200, store.getTotalBytes());
+        assertEquals(200, metrics.counter("store.bytes_dropped").get());
+
+        // the newest round stays even when it alone is over the limit
+        store.put(5, OWNER, 0, false, received(400));
+        assertEquals(2, store.trim(System.currentTimeMillis()));
+        assertEquals(Arrays.asList(5L), store.getRoundIds());
+    }
+
+    @Test
+    public void compactionKeepsTheLiveRecordsAndThoseAppendedMeanwhile() throws Exception {
+        open(DAY, Long.MAX_VALUE);
+        int rounds = SessionStore.MIN_DEAD_RECORDS + 100;
+        for (long round = 1; round <= rounds; round++) {
+            store.put(round, MEMBER, 0, false, received(1));
+        }
+        for (long round = 1; round <= rounds - 10; round++) {
+            assertTrue(store.drop(round));
+        }
+        assertTrue(store.needsCompaction());
+
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (long round = 100000; round < 100200; round++) {
+                        store.put(round, OWNER, 0, false, received(1));
+                    }
+                    store.drop(100000);
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writer.start();
+        store.compact();
+        writer.join();
+        assertNull(failure.get());
+        store.compact();
+
+        assertFalse(store.needsCompaction());
+        assertEquals(10 + 199, store.getIndexRecords());
+        List<Long> before = store.getRoundIds();
+        open(DAY, Long.MAX_VALUE);
+        assertEquals(before, store.getRoundIds());
+        assertEquals(10 + 199, store.getRoundCount());
+        assertEquals(1, store.getFrames(100199).size());
+        assertEquals(2, metrics.snapshot().getHistograms().get("store.compact_us").getCount());
+    }
+
+    @Test
+    public void sweepDeletesOnlyOldStrayPictures() throws IOException {
+        open(DAY, Long.MAX_VALUE);
+        store.put(1000, MEMBER, 0, false, received(100));
+        long now = System.currentTimeMillis();
+        File old = received(10);
+        File recent = received(10);
+        File other = new File(dir, "metrics-1.txt");
+        assertTrue(other.createNewFile());
+        assertTrue(old.setLastModified(now - 2 * DAY));
+        assertTrue(other.setLastModified(now - 2 * DAY));
+
+        assertEquals(1, store.sweep(dir, now, "wiglS-", "wiglPic-"));
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        assertTrue(other.exists());
+        assertEquals(1, store.getFrames(1000).size());
+        assertEquals(1, metrics.counter("store.strays_dropped").get());
+    }
+}
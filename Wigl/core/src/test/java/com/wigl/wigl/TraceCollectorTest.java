@@ -0,0 +1,125 @@
+package com.wigl.wigl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TraceCollectorTest {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final long MEMBER = MacAddress.parse("02:00:00:00:00:02");
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * An owner estimate of a member whose clock reads {@code offset} more than the owner's.
+     */
+    private static ClockOffsetEstimator memberClock(long offset) {
+        ClockOffsetEstimator clock = new ClockOffsetEstimator();
+        clock.addSample(0, offset + 5 * MS, offset + 5 * MS, 10 * MS);
+        return clock;
+    }
+
+    @Test
+    public void mergesMemberSpansOntoOwnerClock() {
+        long offset = 3600000 * MS;
+        long round = 500 * MS;
+        TraceCollector collector = new TraceCollector(8, TraceCollector.DEFAULT_TOLERANCE_NANOS);
+        collector.addOwnerSpans(OWNER, Arrays.asList(new TraceSpan(round, TraceStage.COMMAND, 0, 40 * MS),
+                new TraceSpan(round, TraceStage.SHUTTER, round, round + 80 * MS)));
+        // the member's capture time is a little off after the round trip through its estimate
+        long memberRound = round + offset + 3 * MS;
+        collector.addSpans(MEMBER, Arrays.asList(
+                new TraceSpan(memberRound, TraceStage.SHUTTER, memberRound, memberRound + 120 * MS),
+                new TraceSpan(memberRound, TraceStage.UPLOAD, memberRound + 150 * MS, memberRound + 450 * MS)), memberClock(offset));
+        collector.addOwnerSpans(OWNER, Arrays.asList(new TraceSpan(round, TraceStage.DISPLAY, round + 480 * MS, round + 700 * MS)));
+
+        assertEquals(1, collector.getRounds().size());
+        RoundTrace trace = collector.getRound(round);
+        assertEquals(2, trace.getSpans().size());
+        assertEquals(3, trace.getSpans().get(OWNER).size());
+        List<TraceSpan> member = trace.getSpans().get(MEMBER);
+        assertEquals(round, member.get(0).getRound());
+        assertEquals(round + 3 * MS, member.get(0).getStartNanos());
+        assertEquals(120 * MS, member.get(0).getDurationNanos());
+        assertEquals(round + 153 * MS, member.get(1).getStartNanos());
+        assertTrue(trace.isDisplayed());
+        assertEquals(0, trace.getStartNanos());
+        assertEquals(round + 700 * MS, trace.getTotalNanos());
+        assertTrue(trace.format(), trace.format().contains("UPLOAD"));
+    }
+
+    @Test
+    public void memberSpansFarFromAnyRoundStartTheirOwn() {
+        TraceCollector collector = new TraceCollector(8, TraceCollector.DEFAULT_TOLERANCE_NANOS);
+        collector.addOwnerSpans(OWNER, Arrays.asList(new TraceSpan(1000 * MS, TraceStage.COMMAND, 900 * MS, 950 * MS)));
+        collector.addSpans(MEMBER, Arrays.asList(new TraceSpan(2000 * MS, TraceStage.SHUTTER, 2000 * MS, 2100 * MS)), memberClock(0));
+        assertEquals(2, collector.getRounds().size());
+        assertNotNull(collector.getRound(2000 * MS));
+    }
+
+    @Test
+    public void memberSpansJoinStartedRoundBeforeOwnerSpans() {
+        TraceCollector collector = new TraceCollector(8, TraceCollector.DEFAULT_TOLERANCE_NANOS);
+        collector.addRound(1000 * MS);
+        collector.addSpans(MEMBER, Arrays.asList(new TraceSpan(998 * MS, TraceStage.UPLOAD, 1100 * MS, 1300 * MS)), memberClock(0));
+        collector.addOwnerSpans(OWNER, Arrays.asList(new TraceSpan(1000 * MS, TraceStage.DISPLAY, 1300 * MS, 1400 * MS)));
+        assertEquals(1, collector.getRounds().size());
+        assertEquals(300 * MS, collector.getRound(1000 * MS).getTotalNanos());
+    }
+
+    @Test
+    public void resolvesAMemberRoundToTheNearestOwnerRound() {
+        long offset = 3600000 * MS;
+        TraceCollector collector = new TraceCollector(8, TraceCollector.DEFAULT_TOLERANCE_NANOS);
+        collector.addRound(1000 * MS);
+        collector.addRound(3000 * MS);
+        assertEquals(1000 * MS, collector.resolveRound(1000 * MS + offset - 4 * MS, memberClock(offset)));
+        assertEquals(3000 * MS, collector.resolveRound(3000 * MS + offset + 2 * MS, memberClock(offset)));
+        // a round the owner never started, or one it no longer holds, is not made up
+        assertEquals(0, collector.resolveRound(2000 * MS + offset, memberClock(offset)));
+        assertEquals(2, collector.getRounds().size());
+        // without an estimate only the exact round matches
+        assertEquals(3000 * MS, collector.resolveRound(3000 * MS, null));
+        assertEquals(0, collector.resolveRound(3000 * MS + 1, new ClockOffsetEstimator()));
+    }
+
+    @Test
+    public void keepsOnlyLatestRounds() {
+        TraceCollector collector = new TraceCollector(3, TraceCollector.DEFAULT_TOLERANCE_NANOS);
+        for (int i = 0; i < 10; i++) {
+            collector.addOwnerSpans(OWNER, Arrays.asList(new TraceSpan(i * 1000 * MS, TraceStage.DISPLAY, 0, MS)));
+        }
+        List<RoundTrace> rounds = collector.getRounds();
+        assertEquals(3, rounds.size());
+        assertEquals(7000 * MS, rounds.get(0).getRound());
+        assertEquals(9000 * MS, rounds.get(2).getRound());
+    }
+
+    @Test
+    public void percentilesByNearestRank() {
+        long[] values = new long[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 100 - i;
+        }
+        assertArrayEquals(new long[]{50, 95, 99}, TraceCollector.percentiles(values));
+        assertArrayEquals(new long[]{7, 7, 7}, TraceCollector.percentiles(new long[]{7}));
+        assertArrayEquals(new long[]{0, 0, 0}, TraceCollector.percentiles(new long[0]));
+    }
+
+    @Test
+    public void reportCoversEveryStageAndTotal() {
+        TraceCollector collector = new TraceCollector(8, TraceCollector.DEFAULT_TOLERANCE_NANOS);
+        for (int i = 1; i <= 4; i++) {
+            long round = i * 10000 * MS;
+            collector.addOwnerSpans(OWNER, Arrays.asList(new TraceSpan(round, TraceStage.SHUTTER, round, round + i * 100 * MS),
+                    new TraceSpan(round, TraceStage.DISPLAY, round + 1000 * MS, round + 1200 * MS)));
+        }
+        String report = collector.report();
+        assertTrue(report, report.matches("(?s).*SHUTTER +4 +200\\.0 +400\\.0 +400\\.0 +400\\.0.*"));
+        assertTrue(report, report.matches("(?s).*CAPTURE_TO_SHOW +4 +1200\\.0.*"));
+        assertFalse(report, report.contains("UPLOAD"));
+    }
+}
@@ -0,0 +1,61 @@
+package com.wigl.wigl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(1, new Tracer(1, MonotonicClock.SYSTEM).getCapacity());
+        assertEquals(8, new Tracer(5, MonotonicClock.SYSTEM).getCapacity());
+        assertEquals(1024, new Tracer(1024, MonotonicClock.SYSTEM).getCapacity());
+    }
+
+    @Test
+    public void returnsSpansOfOneRoundInOrder() {
+        Tracer tracer = new Tracer(16, MonotonicClock.SYSTEM);
+        tracer.record(100, TraceStage.LAUNCH, 1, 2);
+        tracer.record(200, TraceStage.LAUNCH, 3, 4);
+        tracer.record(100, TraceStage.SHUTTER, 5, 9);
+
+        assertEquals(Arrays.asList(new TraceSpan(100, TraceStage.LAUNCH, 1, 2), new TraceSpan(100, TraceStage.SHUTTER, 5, 9)),
+                tracer.getSpans(100));
+        assertEquals(1, tracer.getSpans(200).size());
+        assertTrue(tracer.getSpans(300).isEmpty());
+        assertEquals(3, tracer.getSpans().size());
+    }
+
+    @Test
+    public void overwritesOldestSpansOnceFull() {
+        Tracer tracer = new Tracer(4, MonotonicClock.SYSTEM);
+        for (int i = 0; i < 10; i++) {
+            tracer.record(i, TraceStage.UPLOAD, i, i + 1);
+        }
+        List<TraceSpan> spans = tracer.getSpans();
+        assertEquals(4, spans.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(6 + i, spans.get(i).getRound());
+        }
+        assertTrue(tracer.getSpans(5).isEmpty());
+        assertEquals(10, tracer.getRecordedCount());
+    }
+
+    @Test
+    public void recordSinceEndsAtClockTime() {
+        final long[] now = {1000};
+        Tracer tracer = new Tracer(4, new MonotonicClock() {
+            @Override
+            public long nanoTime() {
+                return now[0];
+            }
+        });
+        long start = tracer.now();
+        now[0] = 1750;
+        tracer.recordSince(7, TraceStage.SAVE, start);
+        assertEquals(750, tracer.getSpans(7).get(0).getDurationNanos());
+    }
+}
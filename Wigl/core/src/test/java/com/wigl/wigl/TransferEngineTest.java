@@ -0,0 +1,120 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TransferEngineTest {
+    private final TransferEngine engine = new TransferEngine(new BufferPool(4096, 2));
+    private final byte[] data = new byte[100003];
+    private File src;
+    private File dst;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(7).nextBytes(data);
+        src = File.createTempFile("wigl-src", "");
+        dst = File.createTempFile("wigl-dst", "");
+        FileOutputStream out = new FileOutputStream(src);
+        out.write(data);
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        src.delete();
+        dst.delete();
+    }
+
+    @Test
+    public void fileToChannel() throws IOException {
+        FileChannel in = new FileInputStream(src).getChannel();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransferStats stats = engine.transfer(in, 3, data.length - 3, Channels.newChannel(out));
+        in.close();
+        assertEquals(data.length - 3, stats.getBytes());
+        assertArrayEquals(Arrays.copyOfRange(data, 3, data.length), out.toByteArray());
+    }
+
+    @Test
+    public void channelToFile() throws IOException {
+        FileChannel out = new RandomAccessFile(dst, "rw").getChannel();
+        TransferStats stats = engine.transfer(Channels.newChannel(new ByteArrayInputStream(data)), out, 0, data.length);
+        out.close();
+        assertEquals(data.length, stats.getBytes());
+        assertArrayEquals(data, read(dst));
+    }
+
+    @Test(expected = EOFException.class)
+    public void channelToFileFailsOnShortSource() throws IOException {
+        FileChannel out = new RandomAccessFile(dst, "rw").getChannel();
+        try {
+            engine.transfer(Channels.newChannel(new ByteArrayInputStream(data)), out, 0, data.length + 1);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void streamCopiesUseWhicheverSideIsAFile() throws IOException {
+        // file to stream
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(src);
+        assertEquals(data.length, engine.copy(in, bytes).getBytes());
+        in.close();
+        assertArrayEquals(data, bytes.toByteArray());
+
+        // stream to file
+        FileOutputStream out = new FileOutputStream(dst);
+        assertEquals(data.length, engine.copy(new ByteArrayInputStream(data), out).getBytes());
+        out.close();
+        assertArrayEquals(data, read(dst));
+
+        // stream to stream, through the pooled buffer
+        bytes.reset();
+        assertEquals(data.length, engine.copy(new ByteArrayInputStream(data), bytes).getBytes());
+        assertArrayEquals(data, bytes.toByteArray());
+    }
+
+    @Test
+    public void poolReusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(1024, 1);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        assertTrue(a.isDirect());
+        pool.release(a);
+        pool.release(b);
+        assertSame(a, pool.acquire());
+        assertNotSame(b, pool.acquire());
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int off = 0;
+            while (off < bytes.length) {
+                off += in.read(bytes, off, bytes.length - off);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,31 @@
+package com.wigl.wigl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link TransferServer.Listener} that ignores everything, for tests to override only the
+ * callbacks they watch.
+ */
+class TransferListenerAdapter implements TransferServer.Listener {
+    @Override
+    public void onCaptureCommand(FrameHeader header, long captureTime, PreviewSpec preview, Burst burst) {
+    }
+
+    @Override
+    public void onCaptureReport(FrameHeader header, long captureTime, long lateNanos, Readiness readiness) {
+    }
+
+    @Override
+    public void onTraceReport(FrameHeader header, List<TraceSpan> spans) {
+    }
+
+    @Override
+    public void onPictureReceived(FrameHeader header, long round, File file, TransferStats stats) {
+    }
+
+    @Override
+    public void onError(IOException e) {
+    }
+}
@@ -0,0 +1,55 @@
+package com.wigl.wigl;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.AsynchronousCloseException;
+
+import static org.junit.Assert.*;
+
+public class TransferMetricsTest {
+    @Test
+    public void classifiesFailures() {
+        assertEquals(FailureCause.REFUSED, FailureCause.of(new ConnectException("refused")));
+        assertEquals(FailureCause.UNREACHABLE, FailureCause.of(new NoRouteToHostException()));
+        assertEquals(FailureCause.TIMEOUT, FailureCause.of(new SocketTimeoutException()));
+        assertEquals(FailureCause.CLOSED, FailureCause.of(new AsynchronousCloseException()));
+        assertEquals(FailureCause.RESET, FailureCause.of(new SocketException("Connection reset")));
+        assertEquals(FailureCause.EOF, FailureCause.of(new EOFException()));
+        assertEquals(FailureCause.PROTOCOL, FailureCause.of(new ProtocolException("bad digest")));
+        assertEquals(FailureCause.OTHER, FailureCause.of(new IOException()));
+    }
+
+    @Test
+    public void snapshotHasEveryPeerMetric() {
+        TransferMetrics metrics = new TransferMetrics(new MetricsRegistry());
+        metrics.connected("a", 2000000);
+        metrics.sent("a", 1000);
+        metrics.sent("a", 500);
+        metrics.received("b", 42);
+        metrics.transferred("a", new TransferStats(1024 * 1024, 1000000000));
+        metrics.retried("a");
+        metrics.failed("a", new SocketTimeoutException());
+        metrics.failed("b", new SocketTimeoutException());
+        metrics.failed("b", new EOFException());
+
+        MetricsSnapshot snapshot = metrics.getRegistry().snapshot();
+        assertEquals(1500, snapshot.getCounter("peer.a.bytes_sent"));
+        assertEquals(42, snapshot.getCounter("peer.b.bytes_received"));
+        assertEquals(1, snapshot.getCounter("peer.a.retries"));
+        assertEquals(1, snapshot.getCounter("peer.b.failures.eof"));
+        assertEquals(2, snapshot.sumCounters(TransferMetrics.PREFIX, ".failures.timeout"));
+        assertEquals(2000, snapshot.getHistograms().get("peer.a.connect_us").getMax());
+        assertEquals(1024, snapshot.getHistograms().get("peer.a.throughput_kbps").getValueAtPercentile(50));
+        assertEquals(0, snapshot.getHistograms().get("peer.b.transfer_us").getCount());
+        String dump = snapshot.format();
+        assertTrue(dump, dump.contains("peer.a.bytes_sent 1500\n"));
+        assertTrue(dump, dump.contains("peer.a.connect_us count 1"));
+    }
+}
@@ -0,0 +1,289 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransferServerTest {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final long MEMBER = MacAddress.parse("02:00:00:00:00:02");
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+    private File dir;
+    private TransferServer server;
+    private final LinkedBlockingQueue<File> received = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<FrameHeader> receivedHeaders = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Long> receivedRounds = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<PreviewSpec> previews = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Long> commands = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Long> reports = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Readiness> readiness = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<List<TraceSpan>> traces = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<IOException> errors = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.getRoot();
+        server = new TransferServer(0, OWNER, dir, "wiglS-", 4, new TransferListenerAdapter() {
+            @Override
+            public void onCaptureCommand(FrameHeader header, long captureTime, PreviewSpec preview, Burst burst) {
+                commands.add(captureTime);
+                previews.add(preview);
+            }
+
+            @Override
+            public void onCaptureReport(FrameHeader header, long captureTime, long lateNanos, Readiness readiness) {
+                reports.add(lateNanos);
+                TransferServerTest.this.readiness.add(readiness);
+            }
+
+            @Override
+            public void onTraceReport(FrameHeader header, List<TraceSpan> spans) {
+                traces.add(spans);
+            }
+
+            @Override
+            public void onPictureReceived(FrameHeader header, long round, File file, TransferStats stats) {
+                assertTrue(stats.getBytes() <= file.length());
+                receivedHeaders.add(header);
+                receivedRounds.add(round);
+                received.add(file);
+            }
+
+            @Override
+            public void onError(IOException e) {
+                errors.add(e);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void receivesManyFilesFromConcurrentClients() throws Exception {
+        final int clients = 6;
+        final int filesPerClient = 3;
+        final List<byte[]> payloads = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < clients * filesPerClient; i++) {
+            byte[] payload = new byte[random.nextInt(100000)];
+            random.nextBytes(payload);
+            payloads.add(payload);
+        }
+
+        final CountDownLatch done = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        TransferClient tc = TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER + client);
+                        for (int i = 0; i < filesPerClient; i++) {
+                            byte[] payload = payloads.get(client * filesPerClient + i);
+                            tc.sendPicture(PictureSource.of(payload));
+                        }
+                        tc.close();
+                    } catch (IOException e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        List<byte[]> remaining = new ArrayList<>(payloads);
+        for (int i = 0; i < payloads.size(); i++) {
+            File f = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull("missing file " + i, f);
+            byte[] contents = read(f);
+            boolean matched = false;
+            for (int j = 0; j < remaining.size() && !matched; j++) {
+                if (Arrays.equals(remaining.get(j), contents)) {
+                    remaining.remove(j);
+                    matched = true;
+                }
+            }
+            assertTrue("unexpected contents in " + f, matched);
+        }
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void capturesAndPicturesShareOneConnection() throws Exception {
+        TransferClient tc = TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER);
+        tc.sendCaptureCommand(1234567890123L);
+        tc.sendPicture(PictureSource.of(new byte[]{9, 8, 7}));
+        tc.sendCaptureCommand(42);
+        tc.sendCaptureReport(42, 1500);
+        tc.sendCaptureReport(43, 800, new Readiness(2000, 300));
+        List<TraceSpan> spans = Arrays.asList(new TraceSpan(42, TraceStage.SHUTTER, 40, 45),
+                new TraceSpan(42, TraceStage.UPLOAD, 50, 90));
+        tc.sendTraceReport(spans);
+        tc.close();
+
+        assertEquals(Long.valueOf(1234567890123L), commands.poll(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{9, 8, 7}, read(received.poll(5, TimeUnit.SECONDS)));
+        assertEquals(Long.valueOf(42), commands.poll(5, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(1500), reports.poll(5, TimeUnit.SECONDS));
+        assertEquals(Readiness.NONE, readiness.poll());
+        assertEquals(Long.valueOf(800), reports.poll(5, TimeUnit.SECONDS));
+        assertEquals(new Readiness(2000, 300), readiness.poll());
+        assertEquals(spans, traces.poll(5, TimeUnit.SECONDS));
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void previewIsFlaggedAndFullPictureFollows() throws Exception {
+        TransferClient tc = TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER);
+        tc.sendCaptureCommand(42, new PreviewSpec(960, 75));
+        PictureSource preview = PictureSource.of(new byte[]{1, 2});
+        PictureOffer offer = PictureOffer.create(preview, PictureOffer.DEFAULT_CHUNK_SIZE).withRound(42);
+        assertEquals(PictureOffer.ROUND_SIZE, offer.encode().length);
+        assertEquals(offer, PictureOffer.decode(offer.encode()));
+        tc.sendPicture(preview, offer, FrameHeader.FLAG_PREVIEW);
+        // an offer that does not name its round is still taken
+        tc.sendPicture(PictureSource.of(new byte[]{1, 2, 3, 4}));
+        tc.close();
+
+        assertEquals(new PreviewSpec(960, 75), previews.poll(5, TimeUnit.SECONDS));
+        assertEquals(FrameHeader.FLAG_PREVIEW, receivedHeaders.poll(5, TimeUnit.SECONDS).getFlags());
+        assertEquals(Long.valueOf(42), receivedRounds.poll());
+        assertArrayEquals(new byte[]{1, 2}, read(received.poll(5, TimeUnit.SECONDS)));
+        assertEquals(0, receivedHeaders.poll(5, TimeUnit.SECONDS).getFlags());
+        assertEquals(Long.valueOf(0), receivedRounds.poll());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, read(received.poll(5, TimeUnit.SECONDS)));
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void truncatedFileIsDiscardedAndServerKeepsAccepting() throws Exception {
+        byte[] picture = new byte[1000];
+        PictureOffer offer = PictureOffer.create(PictureSource.of(picture), 100);
+        Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        FrameCodec.writeFrame(out, new FrameHeader(MessageType.PICTURE, 0, PictureOffer.SIZE, MEMBER, 0), offer.encode());
+        out.write(FrameCodec.encodeHeader(new FrameHeader(MessageType.CHUNK, 0, FrameCodec.CHUNK_HEADER_SIZE + 100, MEMBER, 1)));
+        out.writeLong(0);
+        out.writeInt(offer.getChunkCrc(0));
+        out.write(picture, 0, 10);
+        out.flush();
+        socket.close();
+
+        assertNotNull(errors.poll(5, TimeUnit.SECONDS));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+        TransferClient tc = TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER);
+        tc.sendPicture(PictureSource.of(new byte[]{1, 2, 3}));
+        tc.close();
+        File f = received.poll(5, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[]{1, 2, 3}, read(f));
+        assertEquals(1, dir.listFiles().length - partials());
+    }
+
+    @Test
+    public void corruptChunkIsRejected() throws Exception {
+        byte[] picture = new byte[300];
+        new Random(7).nextBytes(picture);
+        PictureOffer offer = PictureOffer.create(PictureSource.of(picture), 100);
+        Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        FrameCodec.writeFrame(out, new FrameHeader(MessageType.PICTURE, 0, PictureOffer.SIZE, MEMBER, 0), offer.encode());
+        for (int i = 0; i < 3; i++) {
+            out.write(FrameCodec.encodeHeader(new FrameHeader(MessageType.CHUNK, 0, FrameCodec.CHUNK_HEADER_SIZE + 100, MEMBER, i + 1)));
+            out.writeLong(i * 100);
+            out.writeInt(offer.getChunkCrc(i));
+            byte[] chunk = Arrays.copyOfRange(picture, i * 100, i * 100 + 100);
+            if (i == 1) {
+                chunk[50] ^= 1;
+            }
+            out.write(chunk);
+        }
+        out.flush();
+
+        assertNotNull(errors.poll(5, TimeUnit.SECONDS));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        socket.close();
+
+        // the first chunk was verified, so only the last two are sent again
+        TransferClient tc = TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER);
+        assertEquals(200, tc.sendPicture(PictureSource.of(picture), offer).getBytes());
+        tc.close();
+        assertArrayEquals(picture, read(received.poll(5, TimeUnit.SECONDS)));
+        assertEquals(0, partials());
+    }
+
+    @Test
+    public void repeatedOfferIsNotDeliveredTwice() throws Exception {
+        byte[] picture = {4, 5, 6};
+        TransferClient tc = TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER);
+        assertEquals(3, tc.sendPicture(PictureSource.of(picture)).getBytes());
+        assertEquals(0, tc.sendPicture(PictureSource.of(picture)).getBytes());
+        tc.close();
+        assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void clockSyncOverLoopbackFindsNoOffset() throws Exception {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        TransferClient tc = TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER);
+        tc.syncClock(estimator, 16);
+        tc.sendCaptureCommand(estimator.toRemote(System.nanoTime()));
+        tc.close();
+
+        assertEquals(16, estimator.getSampleCount());
+        // same clock on both ends, so the offset is bounded by the round trip
+        assertTrue(Math.abs(estimator.getOffsetNanos(System.nanoTime())) <= estimator.getBestRoundTripNanos());
+        assertNotNull(commands.poll(5, TimeUnit.SECONDS));
+        assertTrue(errors.isEmpty());
+    }
+
+    private int partials() {
+        int count = 0;
+        for (File f : dir.listFiles()) {
+            if (f.getName().endsWith(TransferServer.PARTIAL_SUFFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int off = 0;
+            while (off < bytes.length) {
+                off += in.read(bytes, off, bytes.length - off);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,199 @@
+package com.wigl.wigl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UploadSchedulerTest {
+    private static final long OWNER = MacAddress.parse("02:00:00:00:00:01");
+    private static final long MEMBER = MacAddress.parse("02:00:00:00:00:02");
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+    private File dir;
+    private TransferServer server;
+    private UploadScheduler scheduler;
+    private final AtomicInteger connects = new AtomicInteger();
+    private final LinkedBlockingQueue<Long> reports = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<File> received = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<String> done = new LinkedBlockingQueue<>();
+    private final TransferMetrics metrics = new TransferMetrics(new MetricsRegistry());
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.getRoot();
+        server = new TransferServer(0, OWNER, dir, "wiglS-", 8, new TransferListenerAdapter() {
+            @Override
+            public void onCaptureReport(FrameHeader header, long captureTime, long lateNanos, Readiness readiness) {
+                reports.add(captureTime);
+            }
+
+            @Override
+            public void onPictureReceived(FrameHeader header, long round, File file, TransferStats s) {
+                received.add(file);
+            }
+        });
+        server.start();
+        scheduler = new UploadScheduler(new PictureUploader.Connector() {
+            @Override
+            public TransferClient connect() throws IOException {
+                connects.incrementAndGet();
+                return TransferClient.connect("127.0.0.1", server.getLocalPort(), 5000, MEMBER);
+            }
+        }, metrics, "owner", 1000 * 1000, 3, 10, 20 * 1000);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.close();
+        server.stop();
+    }
+
+    @Test
+    public void controlMessagesReuseOneConnection() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            scheduler.submit(report(i));
+            assertEquals("report " + i, done.poll(5, TimeUnit.SECONDS));
+        }
+
+        for (long i = 1; i <= 5; i++) {
+            assertEquals(Long.valueOf(i), reports.poll());
+        }
+        assertEquals(1, connects.get());
+        MetricsSnapshot snapshot = metrics.getRegistry().snapshot();
+        assertEquals(4, snapshot.getCounter("peer.owner.connections_reused"));
+        assertEquals(5, snapshot.getHistograms().get("peer.owner.queue_wait_us.control").getCount());
+        assertEquals(0, snapshot.getCounter("peer.owner.queue_depth"));
+    }
+
+    @Test
+    public void controlAndPreviewDoNotWaitBehindPictures() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(blocking(UploadScheduler.Priority.PICTURE, 100, release));
+        scheduler.submit(picture(UploadScheduler.Priority.PICTURE, "queued picture", 1000));
+        scheduler.submit(picture(UploadScheduler.Priority.PREVIEW, "preview", 1000));
+        scheduler.submit(report(7));
+
+        assertEquals(Long.valueOf(7), reports.poll(5, TimeUnit.SECONDS));
+        assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getQueueDepth());
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void pictureHoldsBackWhileControlIsSent() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(blocking(UploadScheduler.Priority.CONTROL, 0, release));
+        scheduler.submit(picture(UploadScheduler.Priority.PICTURE, "picture", 200 * 1000));
+
+        // the picture lane is free, but does not send a chunk while the control message is out
+        assertNull(received.poll(300, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        assertEquals("picture", done.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void picturesWaitForRoom() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(blocking(UploadScheduler.Priority.PICTURE, 600 * 1000, release));
+
+        assertFalse(scheduler.offer(picture(UploadScheduler.Priority.PICTURE, "too many", 600 * 1000)));
+        assertTrue(scheduler.offer(picture(UploadScheduler.Priority.PICTURE, "small", 1000)));
+        assertTrue(scheduler.offer(report(1)));
+        assertEquals(601 * 1000, scheduler.getHeldBytes());
+
+        release.countDown();
+        // waits for the first picture to be sent
+        scheduler.submit(picture(UploadScheduler.Priority.PICTURE, "after", 600 * 1000));
+        Set<String> sent = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            sent.add(done.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("report 1", "small", "after")), sent);
+        assertEquals(0, scheduler.getHeldBytes());
+        assertEquals(0, metrics.getRegistry().snapshot().getCounter("peer.owner.queue_bytes"));
+    }
+
+    @Test
+    public void closeFailsQueuedJobs() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(blocking(UploadScheduler.Priority.PICTURE, 100, release));
+        scheduler.submit(picture(UploadScheduler.Priority.PICTURE, "queued", 1000));
+
+        scheduler.close();
+        assertEquals("failed queued", done.poll(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    private UploadScheduler.Job report(final long captureTime) {
+        return new UploadScheduler.Job(UploadScheduler.Priority.CONTROL, 0) {
+            @Override
+            protected void send(UploadScheduler.Link link) throws IOException {
+                link.client().sendCaptureReport(captureTime, 0);
+            }
+
+            @Override
+            protected void onSent() {
+                done.add("report " + captureTime);
+            }
+        };
+    }
+
+    private UploadScheduler.Job picture(UploadScheduler.Priority priority, final String name, int size) {
+        final byte[] data = new byte[size];
+        new Random(name.hashCode()).nextBytes(data);
+        return new UploadScheduler.Job(priority, size) {
+            @Override
+            protected void send(UploadScheduler.Link link) throws IOException {
+                link.upload(PictureSource.of(data), 0, 0);
+            }
+
+            @Override
+            protected void onSent() {
+                done.add(name);
+            }
+
+            @Override
+            protected void onFailed(IOException e) {
+                done.add("failed " + name);
+            }
+        };
+    }
+
+    /*
+     * Stands in for a slow upload: opens the lane's connection and holds it until released
+     */
+    private UploadScheduler.Job blocking(UploadScheduler.Priority priority, long bytes, final CountDownLatch release) {
+        return new UploadScheduler.Job(priority, bytes) {
+            @Override
+            protected void send(UploadScheduler.Link link) throws IOException {
+                link.client();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+}
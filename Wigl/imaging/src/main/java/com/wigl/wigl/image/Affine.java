@@ -0,0 +1,89 @@
+package com.wigl.wigl.image;
+
+/**
+ * A 2D affine transform, x' = m00 x + m01 y + m02 and y' = m10 x + m11 y + m12.  Unlike a
+ * {@link Similarity} it can scale the axes differently, which resampling to an output of another
+ * aspect ratio needs.
+ */
+public final class Affine {
+    public static final Affine IDENTITY = new Affine(1, 0, 0, 0, 1, 0);
+
+    private final double m00, m01, m02;
+    private final double m10, m11, m12;
+
+    public Affine(double m00, double m01, double m02, double m10, double m11, double m12) {
+        this.m00 = m00;
+        this.m01 = m01;
+        this.m02 = m02;
+        this.m10 = m10;
+        this.m11 = m11;
+        this.m12 = m12;
+    }
+
+    public static Affine of(Similarity s) {
+        return new Affine(s.getA(), -s.getB(), s.getTx(), s.getB(), s.getA(), s.getTy());
+    }
+
+    public static Affine scale(double sx, double sy) {
+        return new Affine(sx, 0, 0, 0, sy, 0);
+    }
+
+    public static Affine translation(double tx, double ty) {
+        return new Affine(1, 0, tx, 0, 1, ty);
+    }
+
+    public double mapX(double x, double y) {
+        return m00 * x + m01 * y + m02;
+    }
+
+    public double mapY(double x, double y) {
+        return m10 * x + m11 * y + m12;
+    }
+
+    /**
+     * @return this transform applied after {@code first}
+     */
+    public Affine compose(Affine first) {
+        return new Affine(
+                m00 * first.m00 + m01 * first.m10, m00 * first.m01 + m01 * first.m11, m00 * first.m02 + m01 * first.m12 + m02,
+                m10 * first.m00 + m11 * first.m10, m10 * first.m01 + m11 * first.m11, m10 * first.m02 + m11 * first.m12 + m12);
+    }
+
+    public Affine inverse() {
+        double det = m00 * m11 - m01 * m10;
+        if (det == 0) {
+            throw new IllegalStateException("Singular transform " + this);
+        }
+        return new Affine(m11 / det, -m01 / det, (m01 * m12 - m11 * m02) / det,
+                -m10 / det, m00 / det, (m10 * m02 - m00 * m12) / det);
+    }
+
+    public double getM00() {
+        return m00;
+    }
+
+    public double getM01() {
+        return m01;
+    }
+
+    public double getM02() {
+        return m02;
+    }
+
+    public double getM10() {
+        return m10;
+    }
+
+    public double getM11() {
+        return m11;
+    }
+
+    public double getM12() {
+        return m12;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Affine{[%.4f %.4f %.2f] [%.4f %.4f %.2f]}", m00, m01, m02, m10, m11, m12);
+    }
+}
@@ -0,0 +1,77 @@
+package com.wigl.wigl.image;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of aligning the frames of a Wigl: for each frame the transform from reference
+ * coordinates to its own, and the crop of the reference that every frame covers.  Coordinates
+ * are those of the planes that were aligned, so callers showing frames at another resolution
+ * scale through {@link #getWidth()} and {@link #getHeight()}.
+ */
+public final class Alignment {
+    private final int width;
+    private final int height;
+    private final int reference;
+    private final List<Similarity> transforms;
+    private final Crop crop;
+
+    public Alignment(int width, int height, int reference, List<Similarity> transforms, Crop crop) {
+        this.width = width;
+        this.height = height;
+        this.reference = reference;
+        this.transforms = Collections.unmodifiableList(new ArrayList<>(transforms));
+        this.crop = crop;
+    }
+
+    /**
+     * @return an alignment that leaves every frame where it is
+     */
+    public static Alignment none(int frames, int width, int height) {
+        return new Alignment(width, height, 0, Collections.nCopies(frames, Similarity.IDENTITY),
+                new Crop(0, 0, width, height));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getReference() {
+        return reference;
+    }
+
+    public int getFrameCount() {
+        return transforms.size();
+    }
+
+    public Similarity getTransform(int frame) {
+        return transforms.get(frame);
+    }
+
+    public Crop getCrop() {
+        return crop;
+    }
+
+    /**
+     * @return the transform from pixels of an {@code outWidth} x {@code outHeight} image of the
+     *         common crop to pixels of frame {@code index} at {@code frameWidth} x
+     *         {@code frameHeight}, which is how an aligned output frame is sampled
+     */
+    public Affine outputToFrame(int index, int frameWidth, int frameHeight, int outWidth, int outHeight) {
+        return Affine.scale((double) frameWidth / width, (double) frameHeight / height)
+                .compose(Affine.of(getTransform(index)))
+                .compose(Affine.translation(crop.getX(), crop.getY()))
+                .compose(Affine.scale((double) crop.getWidth() / outWidth, (double) crop.getHeight() / outHeight));
+    }
+
+    @Override
+    public String toString() {
+        return "Alignment{crop=" + crop + " of " + width + "x" + height + ", reference=" + reference + ", "
+                + transforms + "}";
+    }
+}
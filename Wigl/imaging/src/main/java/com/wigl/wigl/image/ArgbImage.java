@@ -0,0 +1,85 @@
+package com.wigl.wigl.image;
+
+/**
+ * Interleaved 8-bit ARGB pixels packed one per int, as {@code Bitmap.getPixels} returns them.
+ * Rows start {@code stride} ints apart, so a crop can be a view sharing the parent's array.
+ */
+public final class ArgbImage {
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private final int offset;
+    private final int stride;
+
+    public ArgbImage(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    public ArgbImage(int width, int height, int[] pixels) {
+        this(width, height, pixels, 0, width);
+    }
+
+    public ArgbImage(int width, int height, int[] pixels, int offset, int stride) {
+        if (width < 1 || height < 1 || stride < width || offset < 0
+                || offset + (long) (height - 1) * stride + width > pixels.length) {
+            throw new IllegalArgumentException("Bad " + width + "x" + height + " image, stride " + stride
+                    + " at " + offset + " in " + pixels.length + " pixels");
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    /**
+     * @return a view of {@code crop}, sharing this image's pixels
+     */
+    public ArgbImage crop(Crop crop) {
+        if (crop.getX() < 0 || crop.getY() < 0 || crop.getX() + crop.getWidth() > width
+                || crop.getY() + crop.getHeight() > height) {
+            throw new IllegalArgumentException(crop + " is outside " + width + "x" + height);
+        }
+        return new ArgbImage(crop.getWidth(), crop.getHeight(), pixels, index(crop.getX(), crop.getY()), stride);
+    }
+
+    /**
+     * @return true if the rows follow each other with no gap, so {@link #getPixels()} from
+     *         {@link #getOffset()} holds exactly {@code width * height} pixels
+     */
+    public boolean isPacked() {
+        return stride == width;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int index(int x, int y) {
+        return offset + y * stride + x;
+    }
+
+    public int get(int x, int y) {
+        return pixels[index(x, y)];
+    }
+
+    public void set(int x, int y, int argb) {
+        pixels[index(x, y)] = argb;
+    }
+}
@@ -0,0 +1,111 @@
+package com.wigl.wigl.image;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps released buffers for reuse, in power-of-two buckets by capacity, up to a byte budget.
+ * An item in bucket {@code b} holds at least {@code 2^b} bytes, so {@link #acquire} only has to
+ * look in the bucket for the request rounded up to a power of two.
+ *
+ * @param <T> the pooled type, e.g. {@code byte[]} or a mutable {@code Bitmap}
+ */
+public class BucketPool<T> {
+    public interface Sizer<T> {
+        /**
+         * @return how many bytes {@code item} can hold
+         */
+        int capacityOf(T item);
+    }
+
+    private final long maxBytes;
+    private final Sizer<T> sizer;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<T>[] buckets = new ArrayDeque[32];
+    private long sizeBytes;
+    private long hits;
+    private long misses;
+    private long drops;
+
+    public BucketPool(long maxBytes, Sizer<T> sizer) {
+        this.maxBytes = maxBytes;
+        this.sizer = sizer;
+    }
+
+    /**
+     * @return a pooled item holding at least {@code bytes}, or null if there is none
+     */
+    public synchronized T acquire(int bytes) {
+        int bucket = ceilLog2(bytes);
+        ArrayDeque<T> items = bucket < buckets.length ? buckets[bucket] : null;
+        T item = items == null ? null : items.pollLast();
+        if (item == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        sizeBytes -= sizer.capacityOf(item);
+        return item;
+    }
+
+    /**
+     * Offers {@code item} for reuse.  The caller must not touch it afterwards.
+     *
+     * @return false if the pool was full and dropped it
+     */
+    public synchronized boolean release(T item) {
+        int capacity = sizer.capacityOf(item);
+        if (capacity <= 0 || sizeBytes + capacity > maxBytes) {
+            drops++;
+            return false;
+        }
+        int bucket = 31 - Integer.numberOfLeadingZeros(capacity);
+        if (buckets[bucket] == null) {
+            buckets[bucket] = new ArrayDeque<>();
+        }
+        buckets[bucket].addLast(item);
+        sizeBytes += capacity;
+        return true;
+    }
+
+    public synchronized void clear() {
+        for (ArrayDeque<T> items : buckets) {
+            if (items != null) {
+                items.clear();
+            }
+        }
+        sizeBytes = 0;
+    }
+
+    static int ceilLog2(int bytes) {
+        return bytes <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(bytes - 1);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return how many released items were dropped because the pool was full
+     */
+    public synchronized long getDropCount() {
+        return drops;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "{" + sizeBytes + "/" + maxBytes + " bytes, hits=" + hits + ", misses="
+                + misses + ", drops=" + drops + "}";
+    }
+}
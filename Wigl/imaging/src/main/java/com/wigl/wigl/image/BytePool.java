@@ -0,0 +1,26 @@
+package com.wigl.wigl.image;
+
+/**
+ * {@link BucketPool} of byte arrays that allocates on a miss, so every array it hands out is a
+ * power of two long.
+ */
+public class BytePool extends BucketPool<byte[]> {
+    private static final Sizer<byte[]> LENGTH = new Sizer<byte[]>() {
+        @Override
+        public int capacityOf(byte[] item) {
+            return item.length;
+        }
+    };
+
+    public BytePool(long maxBytes) {
+        super(maxBytes, LENGTH);
+    }
+
+    /**
+     * @return an array of at least {@code bytes}, pooled if possible
+     */
+    public byte[] take(int bytes) {
+        byte[] buffer = acquire(bytes);
+        return buffer != null ? buffer : new byte[1 << ceilLog2(bytes)];
+    }
+}
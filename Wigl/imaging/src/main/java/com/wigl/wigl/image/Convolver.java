@@ -0,0 +1,89 @@
+package com.wigl.wigl.image;
+
+/**
+ * Convolves 8-bit planes of one size with a {@link Kernel}, first along the rows and then along
+ * the columns, clamping at the edges.  The row pass is kept with 6 extra bits of precision in a
+ * buffer allocated once, so convolving allocates nothing.  Instances are not thread safe, but
+ * one convolution is split over the {@link TileExecutor}'s threads.
+ */
+public class Convolver {
+    private static final int FRACTION = 6;
+    private static final int ROW_SHIFT = Kernel.SHIFT - FRACTION;
+    private static final int COLUMN_SHIFT = Kernel.SHIFT + FRACTION;
+
+    private final int width;
+    private final int height;
+    private final int[] rows;
+
+    public Convolver(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.rows = new int[width * height];
+    }
+
+    /**
+     * Convolves every plane of {@code src} into the matching plane of {@code dst}.
+     */
+    public void convolve(PlanarImage src, PlanarImage dst, Kernel kernel, TileExecutor tiles) {
+        if (src.getChannels() != dst.getChannels()) {
+            throw new IllegalArgumentException(src.getChannels() + " planes do not match " + dst.getChannels());
+        }
+        for (int c = 0; c < src.getChannels(); c++) {
+            convolve(src.getPlane(c), dst.getPlane(c), kernel, tiles);
+        }
+    }
+
+    /**
+     * {@code src} and {@code dst} may be the same plane.
+     */
+    public void convolve(final LumaPlane src, final LumaPlane dst, Kernel kernel, TileExecutor tiles) {
+        ImageOps.checkSize(width, height, src.getWidth(), src.getHeight());
+        ImageOps.checkSize(width, height, dst.getWidth(), dst.getHeight());
+        final int[] weights = kernel.getWeights();
+        final int radius = kernel.getRadius();
+        tiles.forRows(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                byte[] in = src.getPixels();
+                for (int y = y0; y < y1; y++) {
+                    int row = y * width;
+                    for (int x = 0; x < width; x++) {
+                        int sum = 0;
+                        if (x >= radius && x < width - radius) {
+                            for (int k = 0, i = row + x - radius; k < weights.length; k++, i++) {
+                                sum += (in[i] & 0xFF) * weights[k];
+                            }
+                        } else {
+                            for (int k = 0; k < weights.length; k++) {
+                                int i = Math.min(width - 1, Math.max(0, x + k - radius));
+                                sum += (in[row + i] & 0xFF) * weights[k];
+                            }
+                        }
+                        rows[row + x] = (sum + (1 << ROW_SHIFT - 1)) >> ROW_SHIFT;
+                    }
+                }
+            }
+        });
+        tiles.forRows(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                byte[] out = dst.getPixels();
+                for (int y = y0; y < y1; y++) {
+                    boolean inside = y >= radius && y < height - radius;
+                    for (int x = 0; x < width; x++) {
+                        int sum = 1 << COLUMN_SHIFT - 1;
+                        for (int k = 0; k < weights.length; k++) {
+                            int j = y + k - radius;
+                            if (!inside) {
+                                j = Math.min(height - 1, Math.max(0, j));
+                            }
+                            sum += rows[j * width + x] * weights[k];
+                        }
+                        int v = sum >> COLUMN_SHIFT;
+                        out[y * width + x] = (byte) (v < 0 ? 0 : v > 255 ? 255 : v);
+                    }
+                }
+            }
+        });
+    }
+}
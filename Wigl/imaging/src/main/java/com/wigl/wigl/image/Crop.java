@@ -0,0 +1,52 @@
+package com.wigl.wigl.image;
+
+/**
+ * An axis-aligned rectangle of whole pixels.
+ */
+public final class Crop {
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+
+    public Crop(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Crop)) return false;
+        Crop that = (Crop) o;
+        return x == that.x && y == that.y && width == that.width && height == that.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((x * 31 + y) * 31 + width) * 31 + height;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "+" + x + "+" + y;
+    }
+}
@@ -0,0 +1,443 @@
+package com.wigl.wigl.image;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registers the frames of a Wigl to a reference frame so that the subject under the capture
+ * crosshair stays put while the background wiggles.
+ *
+ * <p>Only the anchor, the centre of the picture that the crosshair frames, is matched.  Both
+ * images are first normalised to the anchor's mean and contrast and reduced to a pyramid of
+ * half-size levels.  A brute-force translation search on the smallest level finds the rough
+ * offset; Gauss-Newton (forward-additive Lucas-Kanade) then refines a translation or similarity
+ * level by level up to full size.  The refinement also fits a gain and bias between the two
+ * images, which absorbs both the exposure differences between phones and the slightly different
+ * normalisation that shifted anchors get.
+ *
+ * <p>All buffers are allocated up front for one frame size, so aligning a frame allocates nothing
+ * per pixel.  Instances are not thread safe.
+ */
+public class FrameAligner {
+    public enum Model {
+        TRANSLATION, SIMILARITY
+    }
+
+    /**
+     * Fraction of the width and height, around the centre, that is matched.  The crosshair ticks
+     * on the capture preview sit about this far apart.
+     */
+    public static final double DEFAULT_ANCHOR = 0.45;
+
+    private static final int MIN_LEVEL_SIZE = 24;
+    private static final int MAX_LEVELS = 6;
+    private static final int MAX_ITERATIONS = 20;
+    /**
+     * Normalised anchor contrast: one standard deviation becomes this many grey levels.
+     */
+    private static final int CONTRAST = 32;
+
+    private final int width;
+    private final int height;
+    private final Model model;
+    private final double anchor;
+    private final int levels;
+    private final int[] widths;
+    private final int[] heights;
+    private final byte[][] reference;
+    private final byte[][] frame;
+    private final short[][] frameGx;
+    private final short[][] frameGy;
+    private final int[] lut = new int[256];
+    /**
+     * Gauss-Newton state for up to four geometric parameters plus gain and bias.
+     */
+    private static final int MAX_PARAMS = 6;
+    private final double[] jacobian = new double[MAX_PARAMS];
+    private final double[] hessian = new double[MAX_PARAMS * MAX_PARAMS];
+    private final double[] gradient = new double[MAX_PARAMS];
+    private final double[] delta = new double[MAX_PARAMS];
+    private double gain;
+    private double bias;
+    private boolean hasReference;
+
+    public FrameAligner(int width, int height, Model model) {
+        this(width, height, model, DEFAULT_ANCHOR);
+    }
+
+    public FrameAligner(int width, int height, Model model, double anchor) {
+        if (anchor <= 0 || anchor > 1) {
+            throw new IllegalArgumentException("Bad anchor " + anchor);
+        }
+        this.width = width;
+        this.height = height;
+        this.model = model;
+        this.anchor = anchor;
+        int n = 1;
+        while (n < MAX_LEVELS && Math.min(width >> n, height >> n) >= MIN_LEVEL_SIZE) {
+            n++;
+        }
+        levels = n;
+        widths = new int[levels];
+        heights = new int[levels];
+        reference = new byte[levels][];
+        frame = new byte[levels][];
+        frameGx = new short[levels][];
+        frameGy = new short[levels][];
+        for (int l = 0; l < levels; l++) {
+            widths[l] = width >> l;
+            heights[l] = height >> l;
+            int size = widths[l] * heights[l];
+            reference[l] = new byte[size];
+            frame[l] = new byte[size];
+            frameGx[l] = new short[size];
+            frameGy[l] = new short[size];
+        }
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public void setReference(LumaPlane plane) {
+        load(plane, reference);
+        hasReference = true;
+    }
+
+    /**
+     * @return the transform from reference pixel coordinates to {@code plane}'s
+     */
+    public Similarity align(LumaPlane plane) {
+        if (!hasReference) {
+            throw new IllegalStateException("No reference frame");
+        }
+        load(plane, frame);
+        for (int l = 0; l < levels; l++) {
+            gradients(l);
+        }
+
+        int top = levels - 1;
+        long offset = coarseSearch(top);
+        double a = 1, b = 0;
+        double tx = (int) (offset >> 32), ty = (int) offset;
+        gain = 1;
+        bias = 0;
+        for (int l = top; l >= 0; l--) {
+            if (l != top) {
+                tx *= 2;
+                ty *= 2;
+            }
+            double cx = widths[l] / 2.0, cy = heights[l] / 2.0;
+            double norm = Math.max(cx, cy);
+            for (int i = 0; i < MAX_ITERATIONS; i++) {
+                if (!step(l, a, b, tx, ty, norm)) {
+                    break;
+                }
+                int photometric;
+                if (model == Model.SIMILARITY) {
+                    a += delta[0] / norm;
+                    b += delta[1] / norm;
+                    tx += delta[2];
+                    ty += delta[3];
+                    photometric = 4;
+                } else {
+                    tx += delta[0];
+                    ty += delta[1];
+                    photometric = 2;
+                }
+                gain += delta[photometric];
+                bias += delta[photometric + 1];
+                if (converged()) {
+                    break;
+                }
+            }
+        }
+        double cx = width / 2.0, cy = height / 2.0;
+        return new Similarity(a, b, cx - a * cx + b * cy + tx, cy - b * cx - a * cy + ty);
+    }
+
+    /**
+     * Aligns every plane to the middle one, which keeps the largest offsets smallest, and crops
+     * to their common area.  The planes must all be the same size.
+     */
+    public static Alignment alignAll(List<LumaPlane> planes, Model model) {
+        LumaPlane first = planes.get(0);
+        int width = first.getWidth(), height = first.getHeight();
+        int reference = planes.size() / 2;
+        FrameAligner aligner = new FrameAligner(width, height, model);
+        aligner.setReference(planes.get(reference));
+        List<Similarity> transforms = new ArrayList<>(planes.size());
+        for (int i = 0; i < planes.size(); i++) {
+            transforms.add(i == reference ? Similarity.IDENTITY : aligner.align(planes.get(i)));
+        }
+        return new Alignment(width, height, reference, transforms, commonCrop(transforms, width, height));
+    }
+
+    /**
+     * @return the largest crop centred on the picture, with its aspect ratio, that every frame
+     *         covers once resampled onto the reference
+     */
+    public static Crop commonCrop(List<Similarity> transforms, int width, int height) {
+        double lo = 0, hi = 1;
+        for (int i = 0; i < 30; i++) {
+            double s = (lo + hi) / 2;
+            if (covers(transforms, width, height, s)) {
+                lo = s;
+            } else {
+                hi = s;
+            }
+        }
+        int w = (int) Math.floor(width * lo);
+        int h = (int) Math.floor(height * lo);
+        return new Crop((width - w) / 2, (height - h) / 2, w, h);
+    }
+
+    private static boolean covers(List<Similarity> transforms, int width, int height, double s) {
+        double x0 = width * (1 - s) / 2, x1 = width - x0;
+        double y0 = height * (1 - s) / 2, y1 = height - y0;
+        for (Similarity t : transforms) {
+            // the frame is convex and the transform affine, so the corners are enough
+            if (!inside(t, x0, y0, width, height) || !inside(t, x1, y0, width, height)
+                    || !inside(t, x0, y1, width, height) || !inside(t, x1, y1, width, height)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean inside(Similarity t, double x, double y, int width, int height) {
+        double u = t.mapX(x, y), v = t.mapY(x, y);
+        return u >= 0 && v >= 0 && u <= width && v <= height;
+    }
+
+    /**
+     * Normalises the anchor of {@code plane} into level 0 of {@code pyramid} and fills the
+     * smaller levels by 2x2 averaging.
+     */
+    private void load(LumaPlane plane, byte[][] pyramid) {
+        if (plane.getWidth() != width || plane.getHeight() != height) {
+            throw new IllegalArgumentException("Plane is " + plane.getWidth() + "x" + plane.getHeight()
+                    + ", aligner is " + width + "x" + height);
+        }
+        byte[] src = plane.getPixels();
+        int x0 = anchorStart(width), x1 = width - x0, y0 = anchorStart(height), y1 = height - y0;
+        long sum = 0, sumSq = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0, i = y * width + x0; x < x1; x++, i++) {
+                int p = src[i] & 0xFF;
+                sum += p;
+                sumSq += p * p;
+            }
+        }
+        long count = Math.max(1, (long) (x1 - x0) * (y1 - y0));
+        double mean = (double) sum / count;
+        double std = Math.sqrt(Math.max(1, (double) sumSq / count - mean * mean));
+        for (int p = 0; p < 256; p++) {
+            lut[p] = Math.max(0, Math.min(255, (int) Math.round(128 + (p - mean) * CONTRAST / std)));
+        }
+        byte[] base = pyramid[0];
+        for (int i = 0; i < width * height; i++) {
+            base[i] = (byte) lut[src[i] & 0xFF];
+        }
+        for (int l = 1; l < levels; l++) {
+            byte[] fine = pyramid[l - 1];
+            byte[] coarse = pyramid[l];
+            int fw = widths[l - 1], w = widths[l], h = heights[l];
+            for (int y = 0; y < h; y++) {
+                int row = 2 * y * fw;
+                for (int x = 0; x < w; x++) {
+                    int i = row + 2 * x;
+                    coarse[y * w + x] = (byte) (((fine[i] & 0xFF) + (fine[i + 1] & 0xFF) + (fine[i + fw] & 0xFF)
+                            + (fine[i + fw + 1] & 0xFF) + 2) >> 2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Central differences of the frame, doubled to stay integral; the borders are left at zero.
+     */
+    private void gradients(int l) {
+        byte[] p = frame[l];
+        short[] gx = frameGx[l], gy = frameGy[l];
+        int w = widths[l], h = heights[l];
+        for (int y = 1; y < h - 1; y++) {
+            for (int x = 1, i = y * w + 1; x < w - 1; x++, i++) {
+                gx[i] = (short) ((p[i + 1] & 0xFF) - (p[i - 1] & 0xFF));
+                gy[i] = (short) ((p[i + w] & 0xFF) - (p[i - w] & 0xFF));
+            }
+        }
+    }
+
+    /**
+     * Tries every whole-pixel offset up to a quarter of the level's size and keeps the one with
+     * the lowest mean absolute difference over the anchor.
+     *
+     * @return dx in the high and dy in the low 32 bits
+     */
+    private long coarseSearch(int l) {
+        byte[] ref = reference[l], img = frame[l];
+        int w = widths[l], h = heights[l];
+        int x0 = anchorStart(w), x1 = w - x0, y0 = anchorStart(h), y1 = h - y0;
+        int radius = Math.max(2, Math.min(w, h) / 4);
+        long best = Long.MAX_VALUE;
+        int bestDx = 0, bestDy = 0;
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                long sad = 0;
+                int count = 0;
+                for (int y = Math.max(y0, -dy); y < Math.min(y1, h - dy); y++) {
+                    int xs = Math.max(x0, -dx), xe = Math.min(x1, w - dx);
+                    for (int x = xs, i = y * w + xs, j = (y + dy) * w + xs + dx; x < xe; x++, i++, j++) {
+                        sad += Math.abs((ref[i] & 0xFF) - (img[j] & 0xFF));
+                    }
+                    count += Math.max(0, xe - xs);
+                }
+                if (count == 0) {
+                    continue;
+                }
+                // compare means scaled by 2^16, so offsets that lose pixels at the border are fair
+                long score = (sad << 16) / count;
+                if (score < best || (score == best && Math.abs(dx) + Math.abs(dy) < Math.abs(bestDx) + Math.abs(bestDy))) {
+                    best = score;
+                    bestDx = dx;
+                    bestDy = dy;
+                }
+            }
+        }
+        return (long) bestDx << 32 | (bestDy & 0xFFFFFFFFL);
+    }
+
+    /**
+     * One Gauss-Newton step over the anchor of level {@code l}, minimising
+     * {@code gain * frame(W(x)) + bias - reference(x)}.  The update is left in {@link #delta}:
+     * the geometric parameters first, the similarity ones scaled by {@code norm} so all are about
+     * pixel sized, then gain and bias.
+     *
+     * @return false if too few anchor pixels land inside the frame to solve
+     */
+    private boolean step(int l, double a, double b, double tx, double ty, double norm) {
+        byte[] ref = reference[l], img = frame[l];
+        short[] gxs = frameGx[l], gys = frameGy[l];
+        int w = widths[l], h = heights[l];
+        double cx = w / 2.0, cy = h / 2.0;
+        int x0 = anchorStart(w), x1 = w - x0, y0 = anchorStart(h), y1 = h - y0;
+        boolean similarity = model == Model.SIMILARITY;
+        int n = similarity ? 6 : 4;
+        for (int i = 0; i < hessian.length; i++) {
+            hessian[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            gradient[i] = 0;
+        }
+        int used = 0;
+        for (int y = y0; y < y1; y++) {
+            double dy = y - cy;
+            for (int x = x0; x < x1; x++) {
+                double dx = x - cx;
+                double u = cx + a * dx - b * dy + tx;
+                double v = cy + b * dx + a * dy + ty;
+                // stay one pixel in so the sampled gradients are real
+                if (u < 1 || v < 1 || u >= w - 2 || v >= h - 2) {
+                    continue;
+                }
+                int iu = (int) u, iv = (int) v;
+                double fu = u - iu, fv = v - iv;
+                int i = iv * w + iu;
+                double w00 = (1 - fu) * (1 - fv), w10 = fu * (1 - fv), w01 = (1 - fu) * fv, w11 = fu * fv;
+                double value = (img[i] & 0xFF) * w00 + (img[i + 1] & 0xFF) * w10 + (img[i + w] & 0xFF) * w01
+                        + (img[i + w + 1] & 0xFF) * w11;
+                double gx = gain * (gxs[i] * w00 + gxs[i + 1] * w10 + gxs[i + w] * w01 + gxs[i + w + 1] * w11) / 2;
+                double gy = gain * (gys[i] * w00 + gys[i + 1] * w10 + gys[i + w] * w01 + gys[i + w + 1] * w11) / 2;
+                double r = gain * value + bias - (ref[y * w + x] & 0xFF);
+                int k = 0;
+                if (similarity) {
+                    jacobian[k++] = (gx * dx + gy * dy) / norm;
+                    jacobian[k++] = (gy * dx - gx * dy) / norm;
+                }
+                jacobian[k++] = gx;
+                jacobian[k++] = gy;
+                jacobian[k++] = value;
+                jacobian[k] = 1;
+                for (int row = 0; row < n; row++) {
+                    double jr = jacobian[row];
+                    gradient[row] += jr * r;
+                    for (int col = row; col < n; col++) {
+                        hessian[row * MAX_PARAMS + col] += jr * jacobian[col];
+                    }
+                }
+                used++;
+            }
+        }
+        if (used < 4 * n) {
+            return false;
+        }
+        // mirror the upper triangle
+        for (int row = 0; row < n; row++) {
+            for (int col = 0; col < row; col++) {
+                hessian[row * MAX_PARAMS + col] = hessian[col * MAX_PARAMS + row];
+            }
+        }
+        return solve(n);
+    }
+
+    /**
+     * Solves {@code hessian * delta = -gradient} by Gaussian elimination with partial pivoting,
+     * in place.
+     */
+    private boolean solve(int n) {
+        for (int i = 0; i < n; i++) {
+            delta[i] = -gradient[i];
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(hessian[row * MAX_PARAMS + col]) > Math.abs(hessian[pivot * MAX_PARAMS + col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(hessian[pivot * MAX_PARAMS + col]) < 1e-9) {
+                return false;
+            }
+            if (pivot != col) {
+                for (int k = 0; k < n; k++) {
+                    double t = hessian[col * MAX_PARAMS + k];
+                    hessian[col * MAX_PARAMS + k] = hessian[pivot * MAX_PARAMS + k];
+                    hessian[pivot * MAX_PARAMS + k] = t;
+                }
+                double t = delta[col];
+                delta[col] = delta[pivot];
+                delta[pivot] = t;
+            }
+            for (int row = col + 1; row < n; row++) {
+                double f = hessian[row * MAX_PARAMS + col] / hessian[col * MAX_PARAMS + col];
+                for (int k = col; k < n; k++) {
+                    hessian[row * MAX_PARAMS + k] -= f * hessian[col * MAX_PARAMS + k];
+                }
+                delta[row] -= f * delta[col];
+            }
+        }
+        for (int row = n - 1; row >= 0; row--) {
+            double s = delta[row];
+            for (int k = row + 1; k < n; k++) {
+                s -= hessian[row * MAX_PARAMS + k] * delta[k];
+            }
+            delta[row] = s / hessian[row * MAX_PARAMS + row];
+        }
+        return true;
+    }
+
+    private boolean converged() {
+        int n = model == Model.SIMILARITY ? 4 : 2;
+        for (int i = 0; i < n; i++) {
+            if (Math.abs(delta[i]) > 0.005) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int anchorStart(int size) {
+        return (int) Math.round(size * (1 - anchor) / 2);
+    }
+}
@@ -0,0 +1,196 @@
+package com.wigl.wigl.image;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of decoded frames, bounded by the bytes the frames hold rather than
+ * by their count, so replaying a recent Wigl needs no decode.  Frames pushed out go to the
+ * {@link EvictionListener}, typically to be returned to a {@link BucketPool}.
+ *
+ * <p>A frame handed to the listener may be written over, so the frames of a session that is
+ * displayed or still being decoded must be {@link #pin pinned}; they are never evicted, and the
+ * cache may go over its budget while they are held.
+ *
+ * @param <V> the frame type
+ */
+public class FrameCache<V> {
+    public interface Weigher<V> {
+        /**
+         * @return how many bytes {@code value} holds; must not change while it is cached
+         */
+        int weigh(V value);
+    }
+
+    public interface EvictionListener<V> {
+        /**
+         * Called with the cache locked, so it must not call back into the cache.
+         */
+        void onEvicted(FrameKey key, V value);
+    }
+
+    private final long maxBytes;
+    private final Weigher<V> weigher;
+    private final EvictionListener<V> listener;
+    private final LinkedHashMap<FrameKey, V> frames = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, Integer> pins = new HashMap<>();
+    private long sizeBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param listener may be null
+     */
+    public FrameCache(long maxBytes, Weigher<V> weigher, EvictionListener<V> listener) {
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+        this.listener = listener;
+    }
+
+    public synchronized V get(FrameKey key) {
+        V value = frames.get(key);
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+
+    /**
+     * Caches {@code value}, evicting the least recently used frames until it fits.  A frame
+     * larger than the whole budget is not cached and goes straight to the listener, unless its
+     * session is pinned.  A frame of a pinned session that {@code value} replaces may still be
+     * displayed, so it is dropped without going to the listener.
+     */
+    public synchronized void put(FrameKey key, V value) {
+        int weight = weigher.weigh(value);
+        boolean pinned = isPinned(key.getSessionId());
+        V previous = frames.remove(key);
+        if (previous != null) {
+            sizeBytes -= weigher.weigh(previous);
+            if (previous != value && !pinned) {
+                evicted(key, previous);
+            }
+        }
+        if (weight > maxBytes && !pinned) {
+            evicted(key, value);
+            return;
+        }
+        trimToSize(maxBytes - weight);
+        frames.put(key, value);
+        sizeBytes += weight;
+    }
+
+    /**
+     * Evicts the least recently used frames until at most {@code bytes} are cached, e.g. when the
+     * system reports memory pressure.  Pinned frames stay, even if that leaves more.
+     */
+    public synchronized void trimToSize(long bytes) {
+        Iterator<Map.Entry<FrameKey, V>> it = frames.entrySet().iterator();
+        while (sizeBytes > bytes && it.hasNext()) {
+            Map.Entry<FrameKey, V> eldest = it.next();
+            if (isPinned(eldest.getKey().getSessionId())) {
+                continue;
+            }
+            it.remove();
+            sizeBytes -= weigher.weigh(eldest.getValue());
+            evicted(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Evicts every frame of a session, unless it is pinned.
+     *
+     * @return how many frames were evicted
+     */
+    public synchronized int removeSession(long sessionId) {
+        if (isPinned(sessionId)) {
+            return 0;
+        }
+        List<FrameKey> keys = new ArrayList<>();
+        for (FrameKey key : frames.keySet()) {
+            if (key.getSessionId() == sessionId) {
+                keys.add(key);
+            }
+        }
+        for (FrameKey key : keys) {
+            V value = frames.remove(key);
+            sizeBytes -= weigher.weigh(value);
+            evicted(key, value);
+        }
+        return keys.size();
+    }
+
+    /**
+     * Keeps the frames of a session, those cached and those put later, from being evicted until
+     * it is {@link #unpin unpinned}.  Pins are counted, so each must be matched by one unpin.
+     */
+    public synchronized void pin(long sessionId) {
+        Integer count = pins.get(sessionId);
+        pins.put(sessionId, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Releases one pin of a session.  Once it has none left its frames may be evicted again, and
+     * are at once if the cache is over its budget.
+     */
+    public synchronized void unpin(long sessionId) {
+        Integer count = pins.get(sessionId);
+        if (count == null) {
+            throw new IllegalStateException("Session " + sessionId + " is not pinned");
+        }
+        if (count > 1) {
+            pins.put(sessionId, count - 1);
+        } else {
+            pins.remove(sessionId);
+            trimToSize(maxBytes);
+        }
+    }
+
+    public synchronized boolean isPinned(long sessionId) {
+        return pins.containsKey(sessionId);
+    }
+
+    private void evicted(FrameKey key, V value) {
+        evictions++;
+        if (listener != null) {
+            listener.onEvicted(key, value);
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized int getFrameCount() {
+        return frames.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameCache{" + frames.size() + " frames, " + sizeBytes + "/" + maxBytes + " bytes, hits=" + hits
+                + ", misses=" + misses + ", evictions=" + evictions + "}";
+    }
+}
@@ -0,0 +1,17 @@
+package com.wigl.wigl.image;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes one picture into whatever the caller displays, downscaled by a power of two.
+ *
+ * @param <T> the decoded frame type, a {@code Bitmap} on Android
+ */
+public interface FrameDecoder<T> {
+    /**
+     * @param size       the picture's full size, already read from its header
+     * @param sampleSize power-of-two downscale factor to decode at
+     */
+    T decode(File file, ImageSize size, int sampleSize) throws IOException;
+}
@@ -0,0 +1,41 @@
+package com.wigl.wigl.image;
+
+/**
+ * Identifies one decoded frame: the capture session (round) it belongs to and its position in
+ * the Wigl.
+ */
+public final class FrameKey {
+    private final long sessionId;
+    private final int frameIndex;
+
+    public FrameKey(long sessionId, int frameIndex) {
+        this.sessionId = sessionId;
+        this.frameIndex = frameIndex;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public int getFrameIndex() {
+        return frameIndex;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FrameKey)) return false;
+        FrameKey that = (FrameKey) o;
+        return sessionId == that.sessionId && frameIndex == that.frameIndex;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (sessionId ^ (sessionId >>> 32)) + frameIndex;
+    }
+
+    @Override
+    public String toString() {
+        return sessionId + "#" + frameIndex;
+    }
+}
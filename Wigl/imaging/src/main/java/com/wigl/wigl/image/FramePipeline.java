@@ -0,0 +1,133 @@
+package com.wigl.wigl.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes the pictures of a Wigl off the UI thread.  Each picture's size is read from its header
+ * first so it can be decoded at the smallest power-of-two scale that still fills the target view;
+ * the pictures are decoded in parallel on the executor given, and handed back in their original
+ * order once all of them are done.  Frames already in the {@link FrameCache} are not decoded again.
+ *
+ * @param <T> the decoded frame type
+ */
+public class FramePipeline<T> {
+    public interface Callback<T> {
+        /**
+         * Called on the executor thread that finished last.
+         */
+        void onFrames(List<T> frames);
+
+        /**
+         * Called instead of {@link #onFrames} when any picture fails to decode.
+         */
+        void onError(File file, IOException e);
+    }
+
+    /**
+     * One call to {@link #decode}.
+     */
+    public static final class Request {
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        /**
+         * Stops the callback from being called.  Pictures already being decoded still finish.
+         */
+        public void cancel() {
+            done.set(true);
+        }
+
+        public boolean isDone() {
+            return done.get();
+        }
+
+        boolean finish() {
+            return done.compareAndSet(false, true);
+        }
+    }
+
+    private final FrameDecoder<T> decoder;
+    private final ExecutorService executor;
+    private final FrameCache<T> cache;
+
+    public FramePipeline(FrameDecoder<T> decoder, ExecutorService executor) {
+        this(decoder, executor, null);
+    }
+
+    /**
+     * @param executor bounds how many pictures are decoded, and so held at full decode size, at
+     *                 the same time
+     * @param cache    may be null
+     */
+    public FramePipeline(FrameDecoder<T> decoder, ExecutorService executor, FrameCache<T> cache) {
+        this.decoder = decoder;
+        this.executor = executor;
+        this.cache = cache;
+    }
+
+    /**
+     * Decodes the pictures of one session.  If all of them are cached the callback is called
+     * before this returns.
+     *
+     * @param sessionId keys the decoded frames in the cache, together with their index in
+     *                  {@code files}
+     */
+    public Request decode(final long sessionId, List<File> files, final int targetWidth, final int targetHeight,
+                          final Callback<T> callback) {
+        final Request request = new Request();
+        final Object[] frames = new Object[files.size()];
+        final AtomicInteger remaining = new AtomicInteger(files.size());
+        List<Integer> misses = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            frames[i] = cache == null ? null : cache.get(new FrameKey(sessionId, i));
+            if (frames[i] == null) {
+                misses.add(i);
+            } else {
+                remaining.decrementAndGet();
+            }
+        }
+        if (misses.isEmpty() && request.finish()) {
+            callback.onFrames(ordered(frames));
+        }
+        for (final int index : misses) {
+            final File file = files.get(index);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (request.isDone()) {
+                        return;
+                    }
+                    try {
+                        ImageSize size = JpegHeader.readSize(file);
+                        T frame = decoder.decode(file, size, SampleSize.compute(size, targetWidth, targetHeight));
+                        frames[index] = frame;
+                        if (cache != null) {
+                            cache.put(new FrameKey(sessionId, index), frame);
+                        }
+                    } catch (IOException e) {
+                        if (request.finish()) {
+                            callback.onError(file, e);
+                        }
+                        return;
+                    }
+                    if (remaining.decrementAndGet() == 0 && request.finish()) {
+                        callback.onFrames(ordered(frames));
+                    }
+                }
+            });
+        }
+        return request;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> ordered(Object[] frames) {
+        return Collections.unmodifiableList(new ArrayList<>((List<T>) Arrays.asList(frames)));
+    }
+}
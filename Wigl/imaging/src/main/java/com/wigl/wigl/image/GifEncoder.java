@@ -0,0 +1,126 @@
+package com.wigl.wigl.image;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an animated GIF89a one frame at a time, so only the frame being written has to be in
+ * memory.  Every frame covers the whole logical screen and carries its own colour table, which
+ * is what lets each one be quantized on its own.
+ */
+public class GifEncoder implements Closeable {
+    /**
+     * {@link #GifEncoder} loop count for an animation that repeats forever.
+     */
+    public static final int LOOP_FOREVER = 0;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final LzwEncoder lzw = new LzwEncoder();
+    private int frames;
+    private boolean closed;
+
+    /**
+     * Writes the GIF header straight away.
+     *
+     * @param loopCount how many times to play the animation, or {@link #LOOP_FOREVER}
+     */
+    public GifEncoder(OutputStream out, int width, int height, int loopCount) throws IOException {
+        if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF) {
+            throw new IllegalArgumentException("Bad GIF size " + width + "x" + height);
+        }
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        writeAscii("GIF89a");
+        writeShort(width);
+        writeShort(height);
+        // no global colour table, 8 bits of colour resolution
+        out.write(0x70);
+        out.write(0); // background colour
+        out.write(0); // pixel aspect ratio
+        // NETSCAPE2.0 application extension: loop count
+        out.write(0x21);
+        out.write(0xFF);
+        out.write(11);
+        writeAscii("NETSCAPE2.0");
+        out.write(3);
+        out.write(1);
+        writeShort(loopCount);
+        out.write(0);
+    }
+
+    /**
+     * @param delayCentis how long to show the frame, in hundredths of a second
+     */
+    public void writeFrame(IndexedFrame frame, int delayCentis) throws IOException {
+        if (closed) {
+            throw new IOException("GIF already closed");
+        }
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            throw new IllegalArgumentException("Frame is " + frame.getWidth() + "x" + frame.getHeight()
+                    + ", GIF is " + width + "x" + height);
+        }
+        int depth = 1;
+        while (1 << depth < frame.getColorCount()) {
+            depth++;
+        }
+        // graphic control extension: dispose to nothing, since every frame is opaque and whole
+        out.write(0x21);
+        out.write(0xF9);
+        out.write(4);
+        out.write(1 << 2);
+        writeShort(delayCentis);
+        out.write(0); // transparent colour index, unused
+        out.write(0);
+        // image descriptor with a local colour table of 2^depth entries
+        out.write(0x2C);
+        writeShort(0);
+        writeShort(0);
+        writeShort(width);
+        writeShort(height);
+        out.write(0x80 | (depth - 1));
+        int[] palette = frame.getPalette();
+        for (int i = 0; i < 1 << depth; i++) {
+            int rgb = i < frame.getColorCount() ? palette[i] : 0;
+            out.write(rgb >> 16);
+            out.write(rgb >> 8);
+            out.write(rgb);
+        }
+        lzw.encode(frame.getPixels(), width * height, depth, out);
+        frames++;
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Writes the trailer and closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.write(0x3B);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+}
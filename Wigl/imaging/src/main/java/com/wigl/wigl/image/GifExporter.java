@@ -0,0 +1,104 @@
+package com.wigl.wigl.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Turns the pictures of a Wigl into an animated GIF.  Frames are read and quantized in parallel
+ * on the executor but at most {@code window} of them are in flight, and each is written as soon
+ * as it and the frames before it are ready, so memory stays bounded however long the Wigl is.
+ */
+public class GifExporter {
+    public interface FrameSource {
+        int getFrameCount();
+
+        /**
+         * Called on an executor thread, possibly for several frames at once.
+         *
+         * @return frame {@code index} scaled to exactly {@code width} x {@code height}
+         */
+        ArgbImage readFrame(int index, int width, int height) throws IOException;
+    }
+
+    public static final int MAX_COLORS = 256;
+
+    private final ExecutorService executor;
+    private final int window;
+    private final ThreadLocal<MedianCutQuantizer> quantizers = new ThreadLocal<MedianCutQuantizer>() {
+        @Override
+        protected MedianCutQuantizer initialValue() {
+            return new MedianCutQuantizer();
+        }
+    };
+
+    /**
+     * @param window how many frames may be read and quantized ahead of the one being written;
+     *               usually the number of executor threads
+     */
+    public GifExporter(ExecutorService executor, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Bad window " + window);
+        }
+        this.executor = executor;
+        this.window = window;
+    }
+
+    /**
+     * Writes the whole GIF and closes {@code out}.
+     *
+     * @param delayCentis how long each frame shows, in hundredths of a second
+     * @return the number of frames written
+     */
+    public int export(final FrameSource source, final int width, final int height, int delayCentis, OutputStream out)
+            throws IOException {
+        GifEncoder encoder = new GifEncoder(out, width, height, GifEncoder.LOOP_FOREVER);
+        ArrayDeque<Future<IndexedFrame>> inFlight = new ArrayDeque<>();
+        int count = source.getFrameCount();
+        int submitted = 0;
+        try {
+            while (encoder.getFrameCount() < count) {
+                while (submitted < count && inFlight.size() < window) {
+                    final int index = submitted++;
+                    inFlight.add(executor.submit(new Callable<IndexedFrame>() {
+                        @Override
+                        public IndexedFrame call() throws IOException {
+                            ArgbImage frame = source.readFrame(index, width, height);
+                            ImageOps.checkSize(width, height, frame.getWidth(), frame.getHeight());
+                            return quantizers.get().quantize(frame, MAX_COLORS);
+                        }
+                    }));
+                }
+                encoder.writeFrame(await(inFlight.poll()), delayCentis);
+            }
+        } finally {
+            for (Future<IndexedFrame> f : inFlight) {
+                f.cancel(true);
+            }
+            encoder.close();
+        }
+        return count;
+    }
+
+    private static IndexedFrame await(Future<IndexedFrame> frame) throws IOException {
+        try {
+            return frame.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.wigl.wigl.image;
+
+/**
+ * Per-pixel operations between the image types.  Each writes into a destination the caller
+ * allocated, so the same buffers can be reused frame after frame, and splits the rows over the
+ * given {@link TileExecutor}.
+ */
+public final class ImageOps {
+    private ImageOps() {
+    }
+
+    /**
+     * Copies {@code src} into {@code dst}, which must be the same size.  With a cropped view as
+     * the source this is a crop.
+     */
+    public static void copy(final ArgbImage src, final ArgbImage dst, TileExecutor tiles) {
+        checkSize(src.getWidth(), src.getHeight(), dst.getWidth(), dst.getHeight());
+        final int width = src.getWidth();
+        tiles.forRows(src.getHeight(), new TileExecutor.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    System.arraycopy(src.getPixels(), src.index(0, y), dst.getPixels(), dst.index(0, y), width);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the BT.601 luma of {@code src} into {@code dst}, which must be the same size.
+     */
+    public static void luma(final ArgbImage src, final LumaPlane dst, TileExecutor tiles) {
+        checkSize(src.getWidth(), src.getHeight(), dst.getWidth(), dst.getHeight());
+        final int width = src.getWidth();
+        tiles.forRows(src.getHeight(), new TileExecutor.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                int[] in = src.getPixels();
+                byte[] out = dst.getPixels();
+                for (int y = y0; y < y1; y++) {
+                    int i = src.index(0, y);
+                    int o = y * width;
+                    for (int end = o + width; o < end; o++, i++) {
+                        int p = in[i];
+                        out[o] = (byte) (((p >> 16 & 0xFF) * 77 + (p >> 8 & 0xFF) * 150 + (p & 0xFF) * 29) >> 8);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Splits {@code src} into the red, green and blue planes of {@code dst}; alpha is dropped.
+     */
+    public static void split(final ArgbImage src, final PlanarImage dst, TileExecutor tiles) {
+        checkSize(src.getWidth(), src.getHeight(), dst.getWidth(), dst.getHeight());
+        checkRgb(dst);
+        final int width = src.getWidth();
+        tiles.forRows(src.getHeight(), new TileExecutor.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                int[] in = src.getPixels();
+                byte[] r = dst.getPlane(PlanarImage.RED).getPixels();
+                byte[] g = dst.getPlane(PlanarImage.GREEN).getPixels();
+                byte[] b = dst.getPlane(PlanarImage.BLUE).getPixels();
+                for (int y = y0; y < y1; y++) {
+                    int i = src.index(0, y);
+                    int o = y * width;
+                    for (int end = o + width; o < end; o++, i++) {
+                        int p = in[i];
+                        r[o] = (byte) (p >> 16);
+                        g[o] = (byte) (p >> 8);
+                        b[o] = (byte) p;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Packs the red, green and blue planes of {@code src} into opaque pixels of {@code dst}.
+     */
+    public static void merge(final PlanarImage src, final ArgbImage dst, TileExecutor tiles) {
+        checkSize(src.getWidth(), src.getHeight(), dst.getWidth(), dst.getHeight());
+        checkRgb(src);
+        final int width = src.getWidth();
+        tiles.forRows(src.getHeight(), new TileExecutor.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                byte[] r = src.getPlane(PlanarImage.RED).getPixels();
+                byte[] g = src.getPlane(PlanarImage.GREEN).getPixels();
+                byte[] b = src.getPlane(PlanarImage.BLUE).getPixels();
+                int[] out = dst.getPixels();
+                for (int y = y0; y < y1; y++) {
+                    int i = y * width;
+                    int o = dst.index(0, y);
+                    for (int end = i + width; i < end; i++, o++) {
+                        out[o] = 0xFF000000 | (r[i] & 0xFF) << 16 | (g[i] & 0xFF) << 8 | (b[i] & 0xFF);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Fills {@code dst} by bilinear sampling of {@code src}, clamped at its edges.
+     *
+     * @param toSource maps {@code dst} pixel coordinates to {@code src}'s, pixel centres being at
+     *                 half-integers
+     */
+    public static void warp(final ArgbImage src, final Affine toSource, final ArgbImage dst, TileExecutor tiles) {
+        final int width = dst.getWidth();
+        // 16.16 fixed point; a source coordinate of 0 is the centre of the first pixel
+        final int dux = fixed(toSource.getM00());
+        final int dvx = fixed(toSource.getM10());
+        final int maxX = src.getWidth() - 1;
+        final int maxY = src.getHeight() - 1;
+        tiles.forRows(dst.getHeight(), new TileExecutor.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                int[] in = src.getPixels();
+                int[] out = dst.getPixels();
+                int stride = src.getStride();
+                for (int y = y0; y < y1; y++) {
+                    int u = fixed(toSource.mapX(0.5, y + 0.5) - 0.5);
+                    int v = fixed(toSource.mapY(0.5, y + 0.5) - 0.5);
+                    int o = dst.index(0, y);
+                    for (int end = o + width; o < end; o++, u += dux, v += dvx) {
+                        int x0 = u >> 16, fx = (u >> 8) & 0xFF;
+                        int yy0 = v >> 16, fy = (v >> 8) & 0xFF;
+                        int x1 = x0 + 1, yy1 = yy0 + 1;
+                        if (x0 < 0 || x1 > maxX) {
+                            x0 = x0 < 0 ? 0 : x0 > maxX ? maxX : x0;
+                            x1 = x1 < 0 ? 0 : x1 > maxX ? maxX : x1;
+                        }
+                        if (yy0 < 0 || yy1 > maxY) {
+                            yy0 = yy0 < 0 ? 0 : yy0 > maxY ? maxY : yy0;
+                            yy1 = yy1 < 0 ? 0 : yy1 > maxY ? maxY : yy1;
+                        }
+                        int row0 = src.getOffset() + yy0 * stride;
+                        int row1 = src.getOffset() + yy1 * stride;
+                        out[o] = lerp(lerp(in[row0 + x0], in[row0 + x1], fx), lerp(in[row1 + x0], in[row1 + x1], fx), fy);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Blends all four channels of two packed pixels, two channels per multiply.
+     *
+     * @param f weight of {@code q}, out of 256
+     */
+    static int lerp(int p, int q, int f) {
+        int g = 256 - f;
+        int rb = (((p & 0xFF00FF) * g + (q & 0xFF00FF) * f) >>> 8) & 0xFF00FF;
+        int ag = ((p >>> 8 & 0xFF00FF) * g + (q >>> 8 & 0xFF00FF) * f) & 0xFF00FF00;
+        return ag | rb;
+    }
+
+    private static int fixed(double value) {
+        return (int) Math.round(value * 65536);
+    }
+
+    static void checkSize(int width, int height, int otherWidth, int otherHeight) {
+        if (width != otherWidth || height != otherHeight) {
+            throw new IllegalArgumentException(width + "x" + height + " does not match " + otherWidth + "x" + otherHeight);
+        }
+    }
+
+    private static void checkRgb(PlanarImage image) {
+        if (image.getChannels() < 3) {
+            throw new IllegalArgumentException("Need 3 planes, got " + image.getChannels());
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.wigl.wigl.image;
+
+/**
+ * Width and height of an image in pixels.
+ */
+public final class ImageSize {
+    private final int width;
+    private final int height;
+
+    public ImageSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ImageSize)) return false;
+        ImageSize that = (ImageSize) o;
+        return width == that.width && height == that.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * width + height;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height;
+    }
+}
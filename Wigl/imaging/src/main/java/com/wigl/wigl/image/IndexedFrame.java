@@ -0,0 +1,54 @@
+package com.wigl.wigl.image;
+
+/**
+ * A frame reduced to at most 256 colours: one palette index per pixel, row by row, and the
+ * palette itself as {@code 0xRRGGBB} values.
+ */
+public final class IndexedFrame {
+    private final int width;
+    private final int height;
+    private final byte[] pixels;
+    private final int[] palette;
+    private final int colorCount;
+
+    public IndexedFrame(int width, int height, byte[] pixels, int[] palette, int colorCount) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Need " + width * height + " pixels, got " + pixels.length);
+        }
+        if (colorCount < 1 || colorCount > 256 || colorCount > palette.length) {
+            throw new IllegalArgumentException("Bad colour count " + colorCount);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.palette = palette;
+        this.colorCount = colorCount;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    public int[] getPalette() {
+        return palette;
+    }
+
+    public int getColorCount() {
+        return colorCount;
+    }
+
+    /**
+     * @return the colour of pixel ({@code x}, {@code y}) as {@code 0xRRGGBB}
+     */
+    public int getRgb(int x, int y) {
+        return palette[pixels[y * width + x] & 0xFF];
+    }
+}
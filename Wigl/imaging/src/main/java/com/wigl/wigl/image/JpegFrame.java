@@ -0,0 +1,272 @@
+package com.wigl.wigl.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A JPEG whose markers have been parsed where it lies, in a memory-mapped file or any other
+ * buffer.  The header, a segment's payload, the EXIF block and the thumbnail inside it are
+ * handed out as read-only slices of that buffer, so nothing is copied and the entropy-coded data
+ * is never touched; a mapped file only pages in what is read.
+ *
+ * <p>A mapping stays valid after its file is closed and is released when the buffer is
+ * collected, so frames should not be held longer than they are needed.
+ */
+public final class JpegFrame {
+    public static final int APP1 = 0xE1;
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final byte[] EXIF_ID = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int TIFF_MAGIC = 42;
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+
+    private final ByteBuffer data;
+    private final ImageSize size;
+    /*
+     * Marker, payload offset and payload length of each segment before the scan
+     */
+    private final int[] markers;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int segments;
+    private final int headerLength;
+
+    private JpegFrame(ByteBuffer data, ImageSize size, int[] markers, int[] offsets, int[] lengths, int segments,
+                      int headerLength) {
+        this.data = data;
+        this.size = size;
+        this.markers = markers;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.segments = segments;
+        this.headerLength = headerLength;
+    }
+
+    /**
+     * Maps {@code file} read-only and parses its header.
+     */
+    public static JpegFrame map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Parses the markers of the JPEG between {@code jpeg}'s position and limit, up to the start
+     * of scan, without copying it or moving its position.
+     */
+    public static JpegFrame parse(ByteBuffer jpeg) throws IOException {
+        ByteBuffer data = jpeg.slice().asReadOnlyBuffer();
+        int limit = data.limit();
+        if (limit < 2 || (data.get(0) & 0xFF) != 0xFF || (data.get(1) & 0xFF) != SOI) {
+            throw new IOException("Not a JPEG");
+        }
+        int[] markers = new int[8];
+        int[] offsets = new int[8];
+        int[] lengths = new int[8];
+        int segments = 0;
+        ImageSize size = null;
+        int pos = 2;
+        while (true) {
+            if (pos >= limit || (data.get(pos) & 0xFF) != 0xFF) {
+                throw new IOException(pos >= limit ? "JPEG truncated" : "Expected a JPEG marker at " + pos);
+            }
+            // any number of 0xFF fill bytes may precede the marker code
+            while (pos < limit && (data.get(pos) & 0xFF) == 0xFF) {
+                pos++;
+            }
+            if (pos >= limit) {
+                throw new IOException("JPEG truncated");
+            }
+            int marker = data.get(pos++) & 0xFF;
+            if (marker == EOI) {
+                throw new IOException("JPEG has no frame header");
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // markers without a length
+                continue;
+            }
+            if (pos + 2 > limit) {
+                throw new IOException("JPEG truncated");
+            }
+            int length = data.getShort(pos) & 0xFFFF;
+            if (length < 2) {
+                throw new IOException("Bad JPEG segment length " + length);
+            }
+            int payload = pos + 2;
+            int end = pos + length;
+            if (end > limit) {
+                throw new IOException("JPEG truncated");
+            }
+            if (marker == SOS) {
+                if (size == null) {
+                    throw new IOException("JPEG has no frame header");
+                }
+                return new JpegFrame(data, size, markers, offsets, lengths, segments, end);
+            }
+            if (size == null && isStartOfFrame(marker)) {
+                if (length < 7) {
+                    throw new IOException("JPEG frame header too short");
+                }
+                int height = data.getShort(payload + 1) & 0xFFFF;
+                int width = data.getShort(payload + 3) & 0xFFFF;
+                if (width == 0 || height == 0) {
+                    throw new IOException("JPEG frame header has no size");
+                }
+                size = new ImageSize(width, height);
+            }
+            if (segments == markers.length) {
+                markers = Arrays.copyOf(markers, segments * 2);
+                offsets = Arrays.copyOf(offsets, segments * 2);
+                lengths = Arrays.copyOf(lengths, segments * 2);
+            }
+            markers[segments] = marker;
+            offsets[segments] = payload;
+            lengths[segments] = length - 2;
+            segments++;
+            pos = end;
+        }
+    }
+
+    public ImageSize getSize() {
+        return size;
+    }
+
+    /**
+     * @return the bytes of the whole JPEG
+     */
+    public int getLength() {
+        return data.limit();
+    }
+
+    /**
+     * @return everything from the start of image to the end of the start of scan segment: the
+     *         tables and metadata a decoder needs before the entropy-coded data
+     */
+    public ByteBuffer getHeader() {
+        return slice(data, 0, headerLength);
+    }
+
+    /**
+     * @return the payload of the first segment with {@code marker} before the scan, without its
+     *         marker and length, or null if there is none
+     */
+    public ByteBuffer getSegment(int marker) {
+        for (int i = 0; i < segments; i++) {
+            if (markers[i] == marker) {
+                return slice(data, offsets[i], lengths[i]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the TIFF structure of the EXIF block, from its byte order mark, or null if the
+     *         JPEG has none
+     */
+    public ByteBuffer getExif() {
+        for (int i = 0; i < segments; i++) {
+            if (markers[i] == APP1 && lengths[i] >= EXIF_ID.length && startsWith(offsets[i], EXIF_ID)) {
+                return slice(data, offsets[i] + EXIF_ID.length, lengths[i] - EXIF_ID.length);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the JPEG thumbnail the camera embedded in the EXIF block, or null if there is none
+     *         or the block does not hold together
+     */
+    public ByteBuffer getThumbnail() {
+        ByteBuffer tiff = getExif();
+        if (tiff == null || tiff.limit() < 8) {
+            return null;
+        }
+        int order = tiff.getShort(0);
+        if (order == 0x4949) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (order != 0x4D4D) {
+            return null;
+        }
+        if ((tiff.getShort(2) & 0xFFFF) != TIFF_MAGIC) {
+            return null;
+        }
+        // the thumbnail is described by the second IFD, which follows the first
+        int ifd0 = tiff.getInt(4);
+        int ifd1 = ifd0 < 8 || ifd0 > tiff.limit() - 2 ? -1 : nextIfd(tiff, ifd0);
+        if (ifd1 < 8 || ifd1 > tiff.limit() - 2) {
+            return null;
+        }
+        int entries = tiff.getShort(ifd1) & 0xFFFF;
+        if (ifd1 + 2 + (long) entries * IFD_ENTRY_SIZE > tiff.limit()) {
+            return null;
+        }
+        long offset = -1;
+        long length = -1;
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd1 + 2 + i * IFD_ENTRY_SIZE;
+            int tag = tiff.getShort(entry) & 0xFFFF;
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                offset = value(tiff, entry);
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                length = value(tiff, entry);
+            }
+        }
+        if (offset < 8 || length <= 0 || offset + length > tiff.limit()) {
+            return null;
+        }
+        return slice(tiff, (int) offset, (int) length);
+    }
+
+    private boolean startsWith(int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * @return the offset of the IFD after the one at {@code ifd}, or -1
+     */
+    private static int nextIfd(ByteBuffer tiff, int ifd) {
+        int entries = tiff.getShort(ifd) & 0xFFFF;
+        long next = ifd + 2 + (long) entries * IFD_ENTRY_SIZE;
+        return next > tiff.limit() - 4 ? -1 : tiff.getInt((int) next);
+    }
+
+    /*
+     * The unsigned value of a SHORT or LONG entry that fits in its value field
+     */
+    private static long value(ByteBuffer tiff, int entry) {
+        int type = tiff.getShort(entry + 2) & 0xFFFF;
+        return type == TYPE_SHORT ? tiff.getShort(entry + 8) & 0xFFFF : tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+        ByteBuffer b = buf.duplicate();
+        b.limit(offset + length);
+        b.position(offset);
+        return b.slice();
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0-SOF15 except DHT (C4), JPG (C8) and DAC (CC)
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+}
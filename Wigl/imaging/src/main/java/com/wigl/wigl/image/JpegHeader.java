@@ -0,0 +1,95 @@
+package com.wigl.wigl.image;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the dimensions of a JPEG from its frame header without decoding any pixels, so the
+ * decode can be sized before it starts.
+ */
+public final class JpegHeader {
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+
+    private JpegHeader() {
+    }
+
+    public static ImageSize readSize(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 4096);
+        try {
+            return readSize(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads markers up to the first start-of-frame.  Only the header is consumed.
+     */
+    public static ImageSize readSize(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != SOI) {
+            throw new IOException("Not a JPEG");
+        }
+        while (true) {
+            int marker = nextMarker(in);
+            if (marker == EOI || marker == SOS) {
+                throw new IOException("JPEG has no frame header");
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // markers without a length
+                continue;
+            }
+            int length = in.readUnsignedShort();
+            if (length < 2) {
+                throw new IOException("Bad JPEG segment length " + length);
+            }
+            if (isStartOfFrame(marker)) {
+                in.readUnsignedByte(); // sample precision
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                if (width == 0 || height == 0) {
+                    throw new IOException("JPEG frame header has no size");
+                }
+                return new ImageSize(width, height);
+            }
+            skipFully(in, length - 2);
+        }
+    }
+
+    private static int nextMarker(DataInputStream in) throws IOException {
+        int b = in.readUnsignedByte();
+        if (b != 0xFF) {
+            throw new IOException("Expected a JPEG marker but got " + b);
+        }
+        // any number of 0xFF fill bytes may precede the marker code
+        while (b == 0xFF) {
+            b = in.readUnsignedByte();
+        }
+        return b;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0-SOF15 except DHT (C4), JPG (C8) and DAC (CC)
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("JPEG truncated");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
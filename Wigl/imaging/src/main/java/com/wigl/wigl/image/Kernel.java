@@ -0,0 +1,73 @@
+package com.wigl.wigl.image;
+
+import java.util.Arrays;
+
+/**
+ * A 1D convolution kernel of odd length, in fixed point, that {@link Convolver} applies along
+ * both axes.
+ */
+public final class Kernel {
+    static final int SHIFT = 12;
+    /**
+     * Keeps both passes of {@link Convolver} within an int.
+     */
+    static final int MAX_MAGNITUDE = 4;
+
+    private final int[] weights;
+
+    /**
+     * @param taps the weights, centre in the middle, normalised so they add up to 1; their
+     *             absolute values must add up to less than 4 once normalised,
+     *             which leaves room for sharpening kernels
+     */
+    public Kernel(double... taps) {
+        if (taps.length % 2 == 0) {
+            throw new IllegalArgumentException("Need an odd number of taps, got " + taps.length);
+        }
+        double total = 0, magnitude = 0;
+        for (double tap : taps) {
+            total += tap;
+            magnitude += Math.abs(tap);
+        }
+        if (total == 0 || magnitude / Math.abs(total) >= MAX_MAGNITUDE) {
+            throw new IllegalArgumentException("Kernel taps must add up to more than a quarter of their magnitude");
+        }
+        weights = new int[taps.length];
+        int sum = 0;
+        for (int i = 0; i < taps.length; i++) {
+            weights[i] = (int) Math.round(taps[i] / total * (1 << SHIFT));
+            sum += weights[i];
+        }
+        // rounding must not brighten or darken a flat area
+        weights[taps.length / 2] += (1 << SHIFT) - sum;
+    }
+
+    /**
+     * @return a Gaussian blur cut off at three standard deviations
+     */
+    public static Kernel gaussian(double sigma) {
+        if (sigma <= 0) {
+            throw new IllegalArgumentException("Bad sigma " + sigma);
+        }
+        int radius = Math.max(1, (int) Math.ceil(sigma * 3));
+        double[] taps = new double[radius * 2 + 1];
+        for (int i = -radius; i <= radius; i++) {
+            taps[i + radius] = Math.exp(-i * i / (2 * sigma * sigma));
+        }
+        return new Kernel(taps);
+    }
+
+    public static Kernel box(int radius) {
+        double[] taps = new double[radius * 2 + 1];
+        Arrays.fill(taps, 1);
+        return new Kernel(taps);
+    }
+
+    public int getRadius() {
+        return weights.length / 2;
+    }
+
+    int[] getWeights() {
+        return weights;
+    }
+}
@@ -0,0 +1,54 @@
+package com.wigl.wigl.image;
+
+/**
+ * An 8-bit single-channel image, row by row with no padding: the luminance the aligner works on,
+ * or one channel of a {@link PlanarImage}.
+ */
+public final class LumaPlane {
+    private final int width;
+    private final int height;
+    private final byte[] pixels;
+
+    public LumaPlane(int width, int height) {
+        this(width, height, new byte[width * height]);
+    }
+
+    public LumaPlane(int width, int height, byte[] pixels) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Need " + width * height + " pixels, got " + pixels.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Overwrites this plane with the BT.601 luma of packed ARGB pixels of the same size.
+     *
+     * @return this plane
+     */
+    public LumaPlane setFromArgb(int[] argb) {
+        ImageOps.luma(new ArgbImage(width, height, argb), this, TileExecutor.serial());
+        return this;
+    }
+
+    public static LumaPlane fromArgb(int[] argb, int width, int height) {
+        return new LumaPlane(width, height).setFromArgb(argb);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    public int get(int x, int y) {
+        return pixels[y * width + x] & 0xFF;
+    }
+}
@@ -0,0 +1,143 @@
+package com.wigl.wigl.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The variable-length LZW of GIF image data, written as 255-byte sub-blocks.  The string table is
+ * an open-addressed hash of (prefix code, next index) pairs, so encoding allocates nothing; the
+ * table is cleared and restarted whenever all 4096 codes are used.
+ *
+ * <p>Instances keep their tables between frames and are not thread safe.
+ */
+class LzwEncoder {
+    private static final int MAX_BITS = 12;
+    private static final int MAX_CODES = 1 << MAX_BITS;
+    /**
+     * A prime a little over the 4096 codes, so the table stays about 80% full at most.
+     */
+    private static final int HASH_SIZE = 5003;
+    private static final int HASH_SHIFT = 4;
+
+    private final int[] hashKeys = new int[HASH_SIZE];
+    private final short[] hashCodes = new short[HASH_SIZE];
+    private final byte[] block = new byte[256];
+    private int blockLength;
+    private int bits;
+    private int bitCount;
+
+    private OutputStream out;
+    private int codeSize;
+    private int initialCodeSize;
+    private int maxCode;
+    private int nextCode;
+    private boolean clearing;
+
+    /**
+     * Writes the LZW minimum code size, the compressed {@code pixels} and the block terminator.
+     *
+     * @param depth bits per pixel index, 1 to 8
+     */
+    void encode(byte[] pixels, int count, int depth, OutputStream out) throws IOException {
+        int minCodeSize = Math.max(2, depth);
+        out.write(minCodeSize);
+        this.out = out;
+        bits = 0;
+        bitCount = 0;
+        blockLength = 0;
+        initialCodeSize = minCodeSize + 1;
+        codeSize = initialCodeSize;
+        maxCode = (1 << codeSize) - 1;
+        clearing = false;
+
+        int clearCode = 1 << minCodeSize;
+        int endCode = clearCode + 1;
+        nextCode = clearCode + 2;
+        Arrays.fill(hashKeys, -1);
+        write(clearCode);
+
+        int prefix = count > 0 ? pixels[0] & 0xFF : 0;
+        for (int p = 1; p < count; p++) {
+            int c = pixels[p] & 0xFF;
+            int key = (c << MAX_BITS) + prefix;
+            int i = (c << HASH_SHIFT) ^ prefix;
+            if (hashKeys[i] == key) {
+                prefix = hashCodes[i];
+                continue;
+            }
+            if (hashKeys[i] >= 0) {
+                int step = i == 0 ? 1 : HASH_SIZE - i;
+                do {
+                    i -= step;
+                    if (i < 0) {
+                        i += HASH_SIZE;
+                    }
+                } while (hashKeys[i] != key && hashKeys[i] >= 0);
+                if (hashKeys[i] == key) {
+                    prefix = hashCodes[i];
+                    continue;
+                }
+            }
+            write(prefix);
+            prefix = c;
+            if (nextCode < MAX_CODES) {
+                hashCodes[i] = (short) nextCode++;
+                hashKeys[i] = key;
+            } else {
+                Arrays.fill(hashKeys, -1);
+                nextCode = clearCode + 2;
+                clearing = true;
+                write(clearCode);
+            }
+        }
+        if (count > 0) {
+            write(prefix);
+        }
+        write(endCode);
+        if (bitCount > 0) {
+            writeByte(bits & 0xFF);
+        }
+        flushBlock();
+        out.write(0);
+        this.out = null;
+    }
+
+    /**
+     * Writes one code, then widens the codes once the table has outgrown them.  The check runs
+     * before the code's string is added, which keeps us in step with the decoder: it only adds
+     * that string after reading the next code.
+     */
+    private void write(int code) throws IOException {
+        bits |= code << bitCount;
+        bitCount += codeSize;
+        while (bitCount >= 8) {
+            writeByte(bits & 0xFF);
+            bits >>>= 8;
+            bitCount -= 8;
+        }
+        if (clearing) {
+            codeSize = initialCodeSize;
+            maxCode = (1 << codeSize) - 1;
+            clearing = false;
+        } else if (nextCode > maxCode && codeSize < MAX_BITS) {
+            codeSize++;
+            maxCode = (1 << codeSize) - 1;
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == 255) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockLength > 0) {
+            out.write(blockLength);
+            out.write(block, 0, blockLength);
+            blockLength = 0;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.wigl.wigl.image;
+
+import java.util.Arrays;
+
+/**
+ * Picks a palette for one frame by median cut over a 15-bit colour histogram, then maps every
+ * pixel through a lookup table.  The histogram keeps the work per pixel to two array reads, so
+ * the cost is dominated by one pass to count and one to map, whatever the palette size.
+ *
+ * <p>Instances keep their work arrays between frames and are not thread safe; use one per thread.
+ */
+public class MedianCutQuantizer {
+    private static final int BINS = 1 << 15;
+
+    private final int[] histogram = new int[BINS];
+    private final int[] colors = new int[BINS];
+    private final int[] boxLo = new int[256];
+    private final int[] boxHi = new int[256];
+    private final int[] boxCount = new int[256];
+    private final int[] boxAxis = new int[256];
+    private final long[] boxScore = new long[256];
+
+    /**
+     * @param argb      packed pixels, row by row; alpha is ignored
+     * @param maxColors 2 to 256
+     */
+    public IndexedFrame quantize(int[] argb, int width, int height, int maxColors) {
+        return quantize(new ArgbImage(width, height, argb), maxColors);
+    }
+
+    /**
+     * @param image     alpha is ignored
+     * @param maxColors 2 to 256
+     */
+    public IndexedFrame quantize(ArgbImage image, int maxColors) {
+        if (maxColors < 2 || maxColors > 256) {
+            throw new IllegalArgumentException("Bad palette size " + maxColors);
+        }
+        int width = image.getWidth(), height = image.getHeight();
+        int[] argb = image.getPixels();
+        int n = width * height;
+        Arrays.fill(histogram, 0);
+        for (int y = 0; y < height; y++) {
+            for (int i = image.index(0, y), end = i + width; i < end; i++) {
+                histogram[bin(argb[i])]++;
+            }
+        }
+        int distinct = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            if (histogram[bin] != 0) {
+                colors[distinct++] = bin;
+            }
+        }
+
+        int boxes = 1;
+        boxLo[0] = 0;
+        boxHi[0] = distinct;
+        boxCount[0] = n;
+        measure(0);
+        while (boxes < maxColors) {
+            int box = widestBox(boxes);
+            if (box < 0) {
+                break;
+            }
+            split(box, boxes++);
+        }
+
+        int[] palette = new int[boxes];
+        for (int box = 0; box < boxes; box++) {
+            long r = 0, g = 0, b = 0;
+            for (int i = boxLo[box]; i < boxHi[box]; i++) {
+                int bin = colors[i];
+                int count = histogram[bin];
+                r += (long) expand(bin >> 10) * count;
+                g += (long) expand((bin >> 5) & 0x1F) * count;
+                b += (long) expand(bin & 0x1F) * count;
+            }
+            long count = Math.max(1, boxCount[box]);
+            palette[box] = (int) ((r + count / 2) / count) << 16 | (int) ((g + count / 2) / count) << 8
+                    | (int) ((b + count / 2) / count);
+            // counts are no longer needed, so the histogram becomes the lookup table
+            for (int i = boxLo[box]; i < boxHi[box]; i++) {
+                histogram[colors[i]] = box;
+            }
+        }
+
+        byte[] pixels = new byte[n];
+        for (int y = 0, o = 0; y < height; y++) {
+            for (int i = image.index(0, y), end = i + width; i < end; i++) {
+                pixels[o++] = (byte) histogram[bin(argb[i])];
+            }
+        }
+        return new IndexedFrame(width, height, pixels, palette, boxes);
+    }
+
+    /**
+     * @return the box with the most pixels times colour spread, or -1 if none can be split
+     */
+    private int widestBox(int boxes) {
+        int best = -1;
+        long bestScore = 0;
+        for (int box = 0; box < boxes; box++) {
+            if (boxScore[box] > bestScore) {
+                bestScore = boxScore[box];
+                best = box;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the box's longest axis and scores it by pixels times spread along that axis.
+     */
+    private void measure(int box) {
+        int rMin = 31, rMax = 0, gMin = 31, gMax = 0, bMin = 31, bMax = 0;
+        for (int i = boxLo[box]; i < boxHi[box]; i++) {
+            int bin = colors[i];
+            int r = bin >> 10, g = (bin >> 5) & 0x1F, b = bin & 0x1F;
+            rMin = Math.min(rMin, r);
+            rMax = Math.max(rMax, r);
+            gMin = Math.min(gMin, g);
+            gMax = Math.max(gMax, g);
+            bMin = Math.min(bMin, b);
+            bMax = Math.max(bMax, b);
+        }
+        int r = rMax - rMin, g = gMax - gMin, b = bMax - bMin;
+        boxAxis[box] = g >= r && g >= b ? 1 : r >= b ? 0 : 2;
+        boxScore[box] = boxHi[box] - boxLo[box] < 2 ? 0 : (long) boxCount[box] * (Math.max(r, Math.max(g, b)) + 1);
+    }
+
+    /**
+     * Sorts the box along its longest axis and cuts it where half its pixels are on each side.
+     */
+    private void split(int box, int newBox) {
+        int lo = boxLo[box], hi = boxHi[box];
+        int axis = boxAxis[box];
+        for (int i = lo; i < hi; i++) {
+            colors[i] |= component(colors[i], axis) << 15;
+        }
+        Arrays.sort(colors, lo, hi);
+        for (int i = lo; i < hi; i++) {
+            colors[i] &= BINS - 1;
+        }
+
+        int half = boxCount[box] / 2;
+        int seen = 0;
+        int cut = lo + 1;
+        for (int i = lo; i < hi - 1; i++) {
+            seen += histogram[colors[i]];
+            cut = i + 1;
+            if (seen >= half) {
+                break;
+            }
+        }
+        boxLo[newBox] = cut;
+        boxHi[newBox] = hi;
+        boxCount[newBox] = boxCount[box] - seen;
+        boxHi[box] = cut;
+        boxCount[box] = seen;
+        measure(box);
+        measure(newBox);
+    }
+
+    private static int component(int bin, int axis) {
+        return axis == 0 ? bin >> 10 : axis == 1 ? (bin >> 5) & 0x1F : bin & 0x1F;
+    }
+
+    private static int bin(int argb) {
+        return (argb >> 9) & 0x7C00 | (argb >> 6) & 0x03E0 | (argb >> 3) & 0x001F;
+    }
+
+    private static int expand(int c5) {
+        return c5 << 3 | c5 >> 2;
+    }
+}
@@ -0,0 +1,50 @@
+package com.wigl.wigl.image;
+
+/**
+ * An image stored as one 8-bit plane per channel, each row by row with no padding.  Kernels that
+ * treat every channel alike, such as {@link Convolver}, run over each plane in turn.
+ */
+public final class PlanarImage {
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    private final int width;
+    private final int height;
+    private final LumaPlane[] planes;
+
+    public PlanarImage(int width, int height, int channels) {
+        if (channels < 1) {
+            throw new IllegalArgumentException("Bad channel count " + channels);
+        }
+        this.width = width;
+        this.height = height;
+        this.planes = new LumaPlane[channels];
+        for (int c = 0; c < channels; c++) {
+            planes[c] = new LumaPlane(width, height);
+        }
+    }
+
+    /**
+     * @return an image with {@link #RED}, {@link #GREEN} and {@link #BLUE} planes
+     */
+    public static PlanarImage rgb(int width, int height) {
+        return new PlanarImage(width, height, 3);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChannels() {
+        return planes.length;
+    }
+
+    public LumaPlane getPlane(int channel) {
+        return planes[channel];
+    }
+}
@@ -0,0 +1,34 @@
+package com.wigl.wigl.image;
+
+/**
+ * Chooses power-of-two downscale factors, the way {@code BitmapFactory.Options.inSampleSize}
+ * and JPEG DCT scaling work.
+ */
+public final class SampleSize {
+    private SampleSize() {
+    }
+
+    /**
+     * @return the largest power of two that still leaves the image at least as large as the
+     *         target in both dimensions, or 1 if the image is already smaller
+     */
+    public static int compute(ImageSize image, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            throw new IllegalArgumentException("Bad target size " + targetWidth + "x" + targetHeight);
+        }
+        int sample = 1;
+        while (image.getWidth() / (sample * 2) >= targetWidth && image.getHeight() / (sample * 2) >= targetHeight) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    /**
+     * @return the size of {@code image} decoded with {@code sampleSize}, rounding up like the
+     *         JPEG decoder does
+     */
+    public static ImageSize scaled(ImageSize image, int sampleSize) {
+        return new ImageSize((image.getWidth() + sampleSize - 1) / sampleSize,
+                (image.getHeight() + sampleSize - 1) / sampleSize);
+    }
+}
@@ -0,0 +1,134 @@
+package com.wigl.wigl.image;
+
+/**
+ * Resizes ARGB images of one size to another in two separable passes, with a triangle filter
+ * that widens with the reduction so that shrinking averages every source pixel instead of
+ * aliasing.  The filter taps and the intermediate image are computed once per size pair; scaling
+ * allocates nothing.  Instances are not thread safe, but one scale is split over the
+ * {@link TileExecutor}'s threads.
+ */
+public class Scaler {
+    private static final int SHIFT = 14;
+    private static final int ONE = 1 << SHIFT;
+    private static final int HALF = ONE >> 1;
+
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int dstWidth;
+    private final int dstHeight;
+    private final Taps horizontal;
+    private final Taps vertical;
+    /**
+     * Source rows already resized to the destination width.
+     */
+    private final int[] rows;
+
+    public Scaler(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        if (srcWidth < 1 || srcHeight < 1 || dstWidth < 1 || dstHeight < 1) {
+            throw new IllegalArgumentException("Bad size " + srcWidth + "x" + srcHeight + " to " + dstWidth + "x" + dstHeight);
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        horizontal = new Taps(srcWidth, dstWidth);
+        vertical = new Taps(srcHeight, dstHeight);
+        rows = new int[dstWidth * srcHeight];
+    }
+
+    public void scale(final ArgbImage src, final ArgbImage dst, TileExecutor tiles) {
+        ImageOps.checkSize(srcWidth, srcHeight, src.getWidth(), src.getHeight());
+        ImageOps.checkSize(dstWidth, dstHeight, dst.getWidth(), dst.getHeight());
+        tiles.forRows(srcHeight, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                int[] in = src.getPixels();
+                for (int y = y0; y < y1; y++) {
+                    filter(in, src.index(0, y), horizontal, rows, y * dstWidth, dstWidth);
+                }
+            }
+        });
+        tiles.forRows(dstHeight, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                int[] out = dst.getPixels();
+                int n = vertical.count;
+                for (int y = y0; y < y1; y++) {
+                    // one column of the intermediate image at a time, stepping a row at a time
+                    int o = dst.index(0, y);
+                    for (int x = 0; x < dstWidth; x++) {
+                        int a = HALF, r = HALF, g = HALF, b = HALF;
+                        for (int k = y * n, end = k + n; k < end; k++) {
+                            int p = rows[vertical.index[k] * dstWidth + x];
+                            int w = vertical.weight[k];
+                            a += (p >>> 24) * w;
+                            r += (p >> 16 & 0xFF) * w;
+                            g += (p >> 8 & 0xFF) * w;
+                            b += (p & 0xFF) * w;
+                        }
+                        out[o + x] = (a >> SHIFT) << 24 | (r >> SHIFT) << 16 | (g >> SHIFT) << 8 | (b >> SHIFT);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Resamples one row.  Weights are positive and sum to exactly {@link #ONE}, so every channel
+     * stays within 0 to 255 without clamping.
+     */
+    private static void filter(int[] in, int inOffset, Taps taps, int[] out, int outOffset, int length) {
+        int n = taps.count;
+        for (int x = 0, k = 0; x < length; x++) {
+            int a = HALF, r = HALF, g = HALF, b = HALF;
+            for (int end = k + n; k < end; k++) {
+                int p = in[inOffset + taps.index[k]];
+                int w = taps.weight[k];
+                a += (p >>> 24) * w;
+                r += (p >> 16 & 0xFF) * w;
+                g += (p >> 8 & 0xFF) * w;
+                b += (p & 0xFF) * w;
+            }
+            out[outOffset + x] = (a >> SHIFT) << 24 | (r >> SHIFT) << 16 | (g >> SHIFT) << 8 | (b >> SHIFT);
+        }
+    }
+
+    /**
+     * The source indices and weights of every output pixel along one axis, {@code count} per
+     * pixel.  Taps beyond the edge are folded onto the edge pixel; unused ones have weight 0.
+     */
+    private static final class Taps {
+        final int count;
+        final int[] index;
+        final int[] weight;
+
+        Taps(int srcSize, int dstSize) {
+            double scale = (double) dstSize / srcSize;
+            double support = Math.max(1, 1 / scale);
+            count = (int) Math.ceil(support) * 2 + 1;
+            index = new int[dstSize * count];
+            weight = new int[dstSize * count];
+            double[] raw = new double[count];
+            for (int i = 0; i < dstSize; i++) {
+                double centre = (i + 0.5) / scale - 0.5;
+                int first = (int) Math.floor(centre - support) + 1;
+                double total = 0;
+                for (int k = 0; k < count; k++) {
+                    raw[k] = Math.max(0, 1 - Math.abs(first + k - centre) / support);
+                    total += raw[k];
+                }
+                int sum = 0, largest = 0;
+                for (int k = 0; k < count; k++) {
+                    int j = i * count + k;
+                    index[j] = Math.min(srcSize - 1, Math.max(0, first + k));
+                    weight[j] = (int) Math.round(raw[k] / total * ONE);
+                    sum += weight[j];
+                    if (weight[j] > weight[i * count + largest]) {
+                        largest = k;
+                    }
+                }
+                weight[i * count + largest] += ONE - sum;
+            }
+        }
+    }
+}
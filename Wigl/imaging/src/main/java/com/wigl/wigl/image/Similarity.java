@@ -0,0 +1,90 @@
+package com.wigl.wigl.image;
+
+/**
+ * A rotation, uniform scale and translation of the plane:
+ * <pre>
+ *   x' = a x - b y + c
+ *   y' = b x + a y + d
+ * </pre>
+ * {@link FrameAligner} returns the one that takes reference pixel coordinates to the matching
+ * pixel of a frame, which is what resampling the frame onto the reference needs.
+ */
+public final class Similarity {
+    public static final Similarity IDENTITY = new Similarity(1, 0, 0, 0);
+
+    private final double a;
+    private final double b;
+    private final double c;
+    private final double d;
+
+    public Similarity(double a, double b, double c, double d) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+    }
+
+    public static Similarity translation(double dx, double dy) {
+        return new Similarity(1, 0, dx, dy);
+    }
+
+    /**
+     * @param degrees counter-clockwise in a y-up frame, clockwise on screen
+     */
+    public static Similarity rotation(double degrees, double scale, double cx, double cy) {
+        double a = scale * Math.cos(Math.toRadians(degrees));
+        double b = scale * Math.sin(Math.toRadians(degrees));
+        return new Similarity(a, b, cx - a * cx + b * cy, cy - b * cx - a * cy);
+    }
+
+    public double mapX(double x, double y) {
+        return a * x - b * y + c;
+    }
+
+    public double mapY(double x, double y) {
+        return b * x + a * y + d;
+    }
+
+    public Similarity inverse() {
+        double k = a * a + b * b;
+        return new Similarity(a / k, -b / k, -(a * c + b * d) / k, (b * c - a * d) / k);
+    }
+
+    /**
+     * @return this transform applied after {@code first}
+     */
+    public Similarity compose(Similarity first) {
+        return new Similarity(a * first.a - b * first.b, b * first.a + a * first.b,
+                a * first.c - b * first.d + c, b * first.c + a * first.d + d);
+    }
+
+    public double getA() {
+        return a;
+    }
+
+    public double getB() {
+        return b;
+    }
+
+    public double getTx() {
+        return c;
+    }
+
+    public double getTy() {
+        return d;
+    }
+
+    public double getScale() {
+        return Math.sqrt(a * a + b * b);
+    }
+
+    public double getRotationDegrees() {
+        return Math.toDegrees(Math.atan2(b, a));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Similarity{scale=%.4f, rotation=%.3f deg, t=(%.2f, %.2f)}", getScale(),
+                getRotationDegrees(), c, d);
+    }
+}
@@ -0,0 +1,111 @@
+package com.wigl.wigl.image;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs an image operation over horizontal bands of rows, on the executor and the calling thread
+ * at once.  Fork/join would split the work more evenly but only exists from Android API 21, so
+ * bands are sized up front: {@code tiles} of them, or fewer when the image is short.
+ */
+public class TileExecutor {
+    public interface RowTask {
+        /**
+         * Processes rows {@code y0} inclusive to {@code y1} exclusive.  Bands never overlap, and
+         * may run concurrently.
+         */
+        void run(int y0, int y1);
+    }
+
+    /**
+     * Bands shorter than this are not worth handing to another thread.
+     */
+    private static final int MIN_ROWS = 16;
+
+    private static final TileExecutor SERIAL = new TileExecutor(null, 1);
+
+    private final ExecutorService executor;
+    private final int tiles;
+
+    /**
+     * @param tiles how many bands to split an image into; usually the number of executor threads
+     *              plus one for the caller
+     */
+    public TileExecutor(ExecutorService executor, int tiles) {
+        if (tiles < 1 || (executor == null && tiles > 1)) {
+            throw new IllegalArgumentException("Bad tiles " + tiles);
+        }
+        this.executor = executor;
+        this.tiles = tiles;
+    }
+
+    /**
+     * @return an executor that runs every operation on the calling thread
+     */
+    public static TileExecutor serial() {
+        return SERIAL;
+    }
+
+    public int getTiles() {
+        return tiles;
+    }
+
+    /**
+     * Runs {@code task} over rows 0 to {@code height} and returns once every band has finished.
+     * A band that throws makes this throw once the others are done; interrupting the caller does
+     * not stop the wait, since the bands write into the caller's buffers.
+     */
+    public void forRows(int height, final RowTask task) {
+        int bands = Math.max(1, Math.min(tiles, height / MIN_ROWS));
+        if (bands == 1) {
+            task.run(0, height);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(bands - 1);
+        for (int i = 1; i < bands; i++) {
+            final int y0 = (int) ((long) height * i / bands);
+            final int y1 = (int) ((long) height * (i + 1) / bands);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(y0, y1);
+                }
+            }));
+        }
+        Throwable failure = null;
+        try {
+            task.run(0, height / bands);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.wigl.wigl.image;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BucketPoolTest {
+    @Test
+    public void reusesBuffersLargeEnoughForRequest() {
+        BytePool pool = new BytePool(1 << 20);
+        byte[] a = pool.take(3000);
+        assertEquals(4096, a.length);
+        assertTrue(pool.release(a));
+        assertEquals(4096, pool.getSizeBytes());
+
+        // 2049..4096 all land in the same bucket
+        assertSame(a, pool.take(2049));
+        assertEquals(0, pool.getSizeBytes());
+        pool.release(a);
+        assertEquals(8192, pool.take(4097).length);
+        assertSame(a, pool.take(4096));
+        assertEquals(2, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+    }
+
+    @Test
+    public void oddSizedItemsOnlyServeRequestsTheyCover() {
+        BucketPool<byte[]> pool = new BucketPool<>(1 << 20, new BucketPool.Sizer<byte[]>() {
+            @Override
+            public int capacityOf(byte[] item) {
+                return item.length;
+            }
+        });
+        byte[] odd = new byte[6000];
+        pool.release(odd);
+        assertNull(pool.acquire(6000));
+        assertSame(odd, pool.acquire(4096));
+    }
+
+    @Test
+    public void dropsReleasesBeyondBudget() {
+        BytePool pool = new BytePool(10000);
+        assertTrue(pool.release(new byte[8192]));
+        assertFalse(pool.release(new byte[4096]));
+        assertEquals(1, pool.getDropCount());
+        pool.clear();
+        assertEquals(0, pool.getSizeBytes());
+        assertTrue(pool.release(new byte[4096]));
+    }
+}
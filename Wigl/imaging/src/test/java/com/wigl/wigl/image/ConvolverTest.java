@@ -0,0 +1,78 @@
+package com.wigl.wigl.image;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ConvolverTest {
+    @Test
+    public void boxBlurSpreadsAnImpulse() {
+        LumaPlane plane = new LumaPlane(9, 9);
+        plane.getPixels()[4 * 9 + 4] = (byte) 180;
+        new Convolver(9, 9).convolve(plane, plane, Kernel.box(1), TileExecutor.serial());
+        for (int y = 0; y < 9; y++) {
+            for (int x = 0; x < 9; x++) {
+                boolean near = Math.abs(x - 4) <= 1 && Math.abs(y - 4) <= 1;
+                assertEquals(x + "," + y, near ? 20 : 0, plane.get(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void flatPlaneStaysFlatUpToTheEdges() {
+        LumaPlane plane = new LumaPlane(20, 12);
+        Arrays.fill(plane.getPixels(), (byte) 201);
+        LumaPlane out = new LumaPlane(20, 12);
+        new Convolver(20, 12).convolve(plane, out, Kernel.gaussian(2.5), TileExecutor.serial());
+        for (byte b : out.getPixels()) {
+            assertEquals(201, b & 0xFF);
+        }
+    }
+
+    @Test
+    public void sharpeningClampsToTheByteRange() {
+        LumaPlane plane = new LumaPlane(6, 1, new byte[]{0, 0, 0, (byte) 255, (byte) 255, (byte) 255});
+        LumaPlane out = new LumaPlane(6, 1);
+        new Convolver(6, 1).convolve(plane, out, new Kernel(-0.5, 2, -0.5), TileExecutor.serial());
+        assertArrayEquals(new byte[]{0, 0, 0, (byte) 255, (byte) 255, (byte) 255}, out.getPixels());
+        out = new LumaPlane(6, 1);
+        new Convolver(6, 1).convolve(new LumaPlane(6, 1, new byte[]{50, 50, 50, 100, 100, 100}), out,
+                new Kernel(-0.5, 2, -0.5), TileExecutor.serial());
+        assertArrayEquals(new byte[]{50, 50, 25, 125, 100, 100}, out.getPixels());
+    }
+
+    @Test
+    public void convolvesEveryPlaneTheSameOnTiles() throws Exception {
+        ArgbImage image = ImageOpsTest.noise(120, 90, 9);
+        PlanarImage planes = PlanarImage.rgb(120, 90);
+        ImageOps.split(image, planes, TileExecutor.serial());
+        PlanarImage serial = PlanarImage.rgb(120, 90);
+        PlanarImage tiled = PlanarImage.rgb(120, 90);
+        Convolver convolver = new Convolver(120, 90);
+        convolver.convolve(planes, serial, Kernel.gaussian(1.2), TileExecutor.serial());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            convolver.convolve(planes, tiled, Kernel.gaussian(1.2), new TileExecutor(executor, 3));
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int c = 0; c < 3; c++) {
+            assertArrayEquals(serial.getPlane(c).getPixels(), tiled.getPlane(c).getPixels());
+        }
+    }
+
+    @Test
+    public void rejectsKernelsThatWouldOverflow() {
+        try {
+            new Kernel(-2, 5, -2);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.wigl.wigl.image;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameAlignerTest {
+    private static final int W = 320, H = 240;
+
+    @Test
+    public void recoversTranslation() {
+        Scene scene = new Scene(1);
+        Similarity shift = Similarity.translation(12.3, -7.6);
+        FrameAligner aligner = new FrameAligner(W, H, FrameAligner.Model.TRANSLATION);
+        aligner.setReference(scene.render(W, H, Similarity.IDENTITY, 1, 0));
+        Similarity found = aligner.align(scene.render(W, H, shift, 1, 0));
+        assertClose(shift, found, 0.15);
+    }
+
+    @Test
+    public void recoversSimilarityDespiteExposureDifference() {
+        Scene scene = new Scene(2);
+        Similarity rig = Similarity.translation(-9.4, 5.2).compose(Similarity.rotation(2, 1.03, W / 2.0, H / 2.0));
+        FrameAligner aligner = new FrameAligner(W, H, FrameAligner.Model.SIMILARITY);
+        aligner.setReference(scene.render(W, H, Similarity.IDENTITY, 1, 0));
+        // a darker, flatter exposure from another phone
+        Similarity found = aligner.align(scene.render(W, H, rig, 0.7, 30));
+        assertEquals(2, found.getRotationDegrees(), 0.05);
+        assertEquals(1.03, found.getScale(), 0.003);
+        assertClose(rig, found, 0.25);
+    }
+
+    @Test
+    public void largeShiftIsFoundByCoarseSearch() {
+        Scene scene = new Scene(3);
+        Similarity shift = Similarity.translation(-41, 23);
+        FrameAligner aligner = new FrameAligner(W, H, FrameAligner.Model.SIMILARITY);
+        aligner.setReference(scene.render(W, H, Similarity.IDENTITY, 1, 0));
+        assertClose(shift, aligner.align(scene.render(W, H, shift, 1, 0)), 0.25);
+    }
+
+    @Test
+    public void alignerIsReusableAcrossFrames() {
+        Scene scene = new Scene(4);
+        FrameAligner aligner = new FrameAligner(W, H, FrameAligner.Model.SIMILARITY);
+        aligner.setReference(scene.render(W, H, Similarity.IDENTITY, 1, 0));
+        for (double dx : new double[]{3.5, -6.25, 0}) {
+            Similarity shift = Similarity.translation(dx, dx / 2);
+            assertClose(shift, aligner.align(scene.render(W, H, shift, 1, 0)), 0.15);
+        }
+    }
+
+    @Test
+    public void alignAllUsesMiddleFrameAsReference() {
+        Scene scene = new Scene(5);
+        Similarity[] rigs = {Similarity.translation(-6, 1), Similarity.IDENTITY, Similarity.translation(5, -3)};
+        java.util.List<LumaPlane> planes = new java.util.ArrayList<>();
+        for (Similarity rig : rigs) {
+            planes.add(scene.render(W, H, rig, 1, 0));
+        }
+        // planes[1] is the reference; the others moved against it
+        Alignment alignment = FrameAligner.alignAll(planes, FrameAligner.Model.SIMILARITY);
+        assertEquals(1, alignment.getReference());
+        for (int i = 0; i < rigs.length; i++) {
+            assertClose(rigs[i], alignment.getTransform(i), 0.2);
+        }
+        Crop crop = alignment.getCrop();
+        assertTrue(crop.toString(), crop.getWidth() >= W - 2 * 6 - 1 && crop.getWidth() <= W - 2 * 6);
+    }
+
+    @Test
+    public void commonCropIsCoveredByEveryFrame() {
+        java.util.List<Similarity> transforms = Arrays.asList(Similarity.IDENTITY, Similarity.translation(10, 0),
+                Similarity.translation(-10, 6));
+        Crop crop = FrameAligner.commonCrop(transforms, W, H);
+        assertEquals(new Crop(10, 7, 300, 225), crop);
+
+        java.util.List<Similarity> rotated = Arrays.asList(Similarity.IDENTITY,
+                Similarity.rotation(3, 1, W / 2.0, H / 2.0), Similarity.translation(-5, -5));
+        crop = FrameAligner.commonCrop(rotated, W, H);
+        assertEquals((double) W / H, (double) crop.getWidth() / crop.getHeight(), 0.02);
+        for (Similarity t : rotated) {
+            for (int[] corner : new int[][]{{crop.getX(), crop.getY()},
+                    {crop.getX() + crop.getWidth(), crop.getY() + crop.getHeight()},
+                    {crop.getX(), crop.getY() + crop.getHeight()}, {crop.getX() + crop.getWidth(), crop.getY()}}) {
+                double u = t.mapX(corner[0], corner[1]), v = t.mapY(corner[0], corner[1]);
+                assertTrue(t + " maps " + Arrays.toString(corner) + " outside",
+                        u >= 0 && v >= 0 && u <= W && v <= H);
+            }
+        }
+    }
+
+    @Test
+    public void inverseAndCompose() {
+        Similarity t = Similarity.translation(4, -2).compose(Similarity.rotation(10, 0.9, 50, 20));
+        Similarity back = t.inverse().compose(t);
+        assertEquals(1, back.getA(), 1e-12);
+        assertEquals(0, back.getB(), 1e-12);
+        assertEquals(0, back.getTx(), 1e-9);
+        assertEquals(0, back.getTy(), 1e-9);
+    }
+
+    /**
+     * Compares where the two transforms put the corners of the anchor.
+     */
+    private static void assertClose(Similarity expected, Similarity actual, double pixels) {
+        double[][] points = {{W * 0.3, H * 0.3}, {W * 0.7, H * 0.3}, {W * 0.3, H * 0.7}, {W * 0.7, H * 0.7}};
+        for (double[] p : points) {
+            double dx = expected.mapX(p[0], p[1]) - actual.mapX(p[0], p[1]);
+            double dy = expected.mapY(p[0], p[1]) - actual.mapY(p[0], p[1]);
+            assertTrue("Expected " + expected + " but was " + actual, Math.hypot(dx, dy) <= pixels);
+        }
+    }
+
+    /**
+     * Soft random blobs, smooth enough to sample anywhere, so a frame can be rendered under any
+     * transform without resampling error.
+     */
+    static class Scene {
+        private final double[] x, y, radius, weight;
+
+        Scene(long seed) {
+            Random random = new Random(seed);
+            int blobs = 80;
+            x = new double[blobs];
+            y = new double[blobs];
+            radius = new double[blobs];
+            weight = new double[blobs];
+            for (int i = 0; i < blobs; i++) {
+                x[i] = random.nextDouble() * W * 1.4 - W * 0.2;
+                y[i] = random.nextDouble() * H * 1.4 - H * 0.2;
+                radius[i] = 4 + random.nextDouble() * 18;
+                weight[i] = random.nextDouble() * 160 - 60;
+            }
+        }
+
+        double at(double px, double py) {
+            double v = 90;
+            for (int i = 0; i < x.length; i++) {
+                double dx = px - x[i], dy = py - y[i];
+                v += weight[i] * Math.exp(-(dx * dx + dy * dy) / (2 * radius[i] * radius[i]));
+            }
+            return v;
+        }
+
+        /**
+         * @param toFrame where each reference point appears in the rendered frame
+         */
+        LumaPlane render(int w, int h, Similarity toFrame, double gain, double offset) {
+            Similarity toScene = toFrame.inverse();
+            byte[] pixels = new byte[w * h];
+            for (int v = 0; v < h; v++) {
+                for (int u = 0; u < w; u++) {
+                    double value = gain * at(toScene.mapX(u, v), toScene.mapY(u, v)) + offset;
+                    pixels[v * w + u] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+                }
+            }
+            return new LumaPlane(w, h, pixels);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.wigl.wigl.image;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCacheTest {
+    private final List<FrameKey> evicted = new ArrayList<>();
+    private final FrameCache<byte[]> cache = new FrameCache<>(1000, new FrameCache.Weigher<byte[]>() {
+        @Override
+        public int weigh(byte[] value) {
+            return value.length;
+        }
+    }, new FrameCache.EvictionListener<byte[]>() {
+        @Override
+        public void onEvicted(FrameKey key, byte[] value) {
+            evicted.add(key);
+        }
+    });
+
+    @Test
+    public void evictsLeastRecentlyUsedToStayWithinBudget() {
+        for (int i = 0; i < 4; i++) {
+            cache.put(new FrameKey(1, i), new byte[200]);
+        }
+        byte[] kept = new byte[200];
+        cache.put(new FrameKey(2, 0), kept);
+        assertEquals(1000, cache.getSizeBytes());
+        // touching the first frame of session 1 makes its second frame the eldest
+        cache.get(new FrameKey(1, 0));
+        cache.put(new FrameKey(2, 1), new byte[300]);
+
+        assertEquals(2, cache.getEvictionCount());
+        assertEquals(new FrameKey(1, 1), evicted.get(0));
+        assertEquals(new FrameKey(1, 2), evicted.get(1));
+        assertEquals(900, cache.getSizeBytes());
+        assertSame(kept, cache.get(new FrameKey(2, 0)));
+        assertNull(cache.get(new FrameKey(1, 1)));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void replacingAndOversizedFramesGoToListener() {
+        FrameKey key = new FrameKey(1, 0);
+        cache.put(key, new byte[100]);
+        cache.put(key, new byte[50]);
+        assertEquals(50, cache.getSizeBytes());
+        assertEquals(1, cache.getFrameCount());
+
+        cache.put(new FrameKey(1, 1), new byte[1001]);
+        assertEquals(50, cache.getSizeBytes());
+        assertEquals(2, evicted.size());
+        assertEquals(new FrameKey(1, 1), evicted.get(1));
+    }
+
+    @Test
+    public void trimAndRemoveSession() {
+        for (int s = 0; s < 3; s++) {
+            for (int i = 0; i < 3; i++) {
+                cache.put(new FrameKey(s, i), new byte[100]);
+            }
+        }
+        assertEquals(3, cache.removeSession(1));
+        assertEquals(0, cache.removeSession(1));
+        assertEquals(600, cache.getSizeBytes());
+        cache.trimToSize(250);
+        assertEquals(200, cache.getSizeBytes());
+        // what is left is the most recent session
+        assertNull(cache.get(new FrameKey(2, 0)));
+        assertNotNull(cache.get(new FrameKey(2, 1)));
+        cache.trimToSize(0);
+        assertEquals(0, cache.getFrameCount());
+        assertEquals(9, evicted.size());
+    }
+
+    @Test
+    public void pinnedSessionIsNeverEvictedNorReplacedIntoTheListener() {
+        cache.put(new FrameKey(2, 0), new byte[300]);
+        cache.pin(1);
+        cache.pin(1);
+        for (int i = 0; i < 3; i++) {
+            cache.put(new FrameKey(1, i), new byte[300]);
+        }
+        // the frame of session 2 is the only one that can go
+        assertEquals(1, evicted.size());
+        assertEquals(new FrameKey(2, 0), evicted.get(0));
+
+        // over the budget, replaced and trimmed, the pinned frames stay out of the listener
+        cache.put(new FrameKey(1, 3), new byte[1001]);
+        cache.put(new FrameKey(1, 0), new byte[300]);
+        cache.trimToSize(0);
+        assertEquals(0, cache.removeSession(1));
+        assertEquals(1, evicted.size());
+        assertEquals(4, cache.getFrameCount());
+        assertEquals(1901, cache.getSizeBytes());
+
+        cache.unpin(1);
+        assertTrue(cache.isPinned(1));
+        assertEquals(4, cache.getFrameCount());
+        cache.unpin(1);
+        assertFalse(cache.isPinned(1));
+        // unpinned, it is trimmed back within the budget at once, eldest first
+        assertEquals(300, cache.getSizeBytes());
+        assertEquals(new FrameKey(1, 1), evicted.get(1));
+        assertEquals(new FrameKey(1, 2), evicted.get(2));
+        assertEquals(new FrameKey(1, 3), evicted.get(3));
+        assertNotNull(cache.get(new FrameKey(1, 0)));
+    }
+}
@@ -0,0 +1,248 @@
+package com.wigl.wigl.image;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FramePipelineTest {
+    private static final int THREADS = 2;
+    private static final long SESSION = 42;
+
+    private final List<File> files = new ArrayList<>();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(THREADS);
+        int[][] sizes = {{1600, 1200}, {800, 600}, {4000, 3000}, {1200, 1600}, {640, 480}, {2000, 1500}};
+        for (int[] size : sizes) {
+            File f = File.createTempFile("wigl-frame", ".jpg");
+            ImageIO.write(new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB), "jpeg", f);
+            files.add(f);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void deliversFramesInOrderWithTheirSampleSizes() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        FrameDecoder<String> decoder = new FrameDecoder<String>() {
+            @Override
+            public String decode(File file, ImageSize size, int sampleSize) throws IOException {
+                int now = running.incrementAndGet();
+                while (true) {
+                    int max = maxRunning.get();
+                    if (now <= max || maxRunning.compareAndSet(max, now)) break;
+                }
+                try {
+                    // later frames finish first
+                    Thread.sleep(5 * (files.size() - files.indexOf(file)));
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+                return file.getName() + "@" + sampleSize;
+            }
+        };
+        Result result = run(decoder);
+        assertNull(result.error.get());
+        List<String> expected = new ArrayList<>();
+        int[] samples = {1, 1, 4, 1, 1, 2};
+        for (int i = 0; i < files.size(); i++) {
+            expected.add(files.get(i).getName() + "@" + samples[i]);
+        }
+        assertEquals(expected, result.frames.get());
+        assertTrue("Decoded " + maxRunning.get() + " at once", maxRunning.get() <= THREADS);
+    }
+
+    @Test
+    public void reportsFirstFailureInsteadOfFrames() throws Exception {
+        final File bad = files.get(3);
+        FrameDecoder<String> decoder = new FrameDecoder<String>() {
+            @Override
+            public String decode(File file, ImageSize size, int sampleSize) throws IOException {
+                if (file.equals(bad)) {
+                    throw new IOException("corrupt");
+                }
+                return file.getName();
+            }
+        };
+        Result result = run(decoder);
+        assertNull(result.frames.get());
+        assertEquals("corrupt", result.error.get().getMessage());
+    }
+
+    @Test
+    public void cancelledRequestNeverCallsBack() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger decoded = new AtomicInteger();
+        FrameDecoder<String> decoder = new FrameDecoder<String>() {
+            @Override
+            public String decode(File file, ImageSize size, int sampleSize) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                decoded.incrementAndGet();
+                return file.getName();
+            }
+        };
+        final AtomicInteger callbacks = new AtomicInteger();
+        FramePipeline.Request request = new FramePipeline<>(decoder, executor).decode(SESSION, files, 1000, 750,
+                new FramePipeline.Callback<String>() {
+                    @Override
+                    public void onFrames(List<String> frames) {
+                        callbacks.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onError(File file, IOException e) {
+                        callbacks.incrementAndGet();
+                    }
+                });
+        request.cancel();
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, callbacks.get());
+        // only the pictures already being decoded ran
+        assertTrue(decoded.get() <= THREADS);
+    }
+
+    @Test
+    public void emptyListCompletesImmediately() throws Exception {
+        files.clear();
+        Result result = run(new FrameDecoder<String>() {
+            @Override
+            public String decode(File file, ImageSize size, int sampleSize) {
+                throw new AssertionError();
+            }
+        });
+        assertEquals(Arrays.<String>asList(), result.frames.get());
+        assertNull(result.error.get());
+    }
+
+    @Test
+    public void replayComesFromCacheWithoutDecoding() throws Exception {
+        final AtomicInteger decodes = new AtomicInteger();
+        FrameDecoder<String> decoder = new FrameDecoder<String>() {
+            @Override
+            public String decode(File file, ImageSize size, int sampleSize) {
+                decodes.incrementAndGet();
+                return file.getName();
+            }
+        };
+        FrameCache<String> cache = new FrameCache<>(1000, new FrameCache.Weigher<String>() {
+            @Override
+            public int weigh(String value) {
+                return 100;
+            }
+        }, null);
+        List<String> first = run(new FramePipeline<>(decoder, executor, cache)).frames.get();
+        assertEquals(files.size(), decodes.get());
+
+        // cached frames are handed back before decode returns
+        List<String> replay = run(new FramePipeline<>(decoder, executor, cache)).frames.get();
+        assertEquals(first, replay);
+        assertEquals(files.size(), decodes.get());
+        assertEquals(files.size(), cache.getHitCount());
+
+        // only the evicted frame is decoded again
+        cache.trimToSize(cache.getSizeBytes() - 100);
+        assertEquals(first, run(new FramePipeline<>(decoder, executor, cache)).frames.get());
+        assertEquals(files.size() + 1, decodes.get());
+    }
+
+    @Test
+    public void fullyCachedReplayIsDoneWhenDecodeReturns() throws Exception {
+        FrameDecoder<String> decoder = new FrameDecoder<String>() {
+            @Override
+            public String decode(File file, ImageSize size, int sampleSize) {
+                return file.getName();
+            }
+        };
+        FrameCache<String> cache = new FrameCache<>(1000, new FrameCache.Weigher<String>() {
+            @Override
+            public int weigh(String value) {
+                return 100;
+            }
+        }, null);
+        FramePipeline<String> pipeline = new FramePipeline<>(decoder, executor, cache);
+        run(pipeline);
+
+        // the viewer must not take the replay for a decode still in flight
+        final Thread caller = Thread.currentThread();
+        final AtomicReference<Thread> calledOn = new AtomicReference<>();
+        FramePipeline.Request request = pipeline.decode(SESSION, files, 1000, 750,
+                new FramePipeline.Callback<String>() {
+                    @Override
+                    public void onFrames(List<String> frames) {
+                        calledOn.set(Thread.currentThread());
+                    }
+
+                    @Override
+                    public void onError(File file, IOException e) {
+                    }
+                });
+        assertEquals(caller, calledOn.get());
+        assertTrue(request.isDone());
+    }
+
+    private Result run(FrameDecoder<String> decoder) throws InterruptedException {
+        return run(new FramePipeline<>(decoder, executor));
+    }
+
+    private Result run(FramePipeline<String> pipeline) throws InterruptedException {
+        final Result result = new Result();
+        pipeline.decode(SESSION, files, 1000, 750, new FramePipeline.Callback<String>() {
+            @Override
+            public void onFrames(List<String> frames) {
+                result.frames.set(frames);
+                result.done.countDown();
+            }
+
+            @Override
+            public void onError(File file, IOException e) {
+                result.error.set(e);
+                result.done.countDown();
+            }
+        });
+        assertTrue(result.done.await(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static class Result {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<List<String>> frames = new AtomicReference<>();
+        final AtomicReference<IOException> error = new AtomicReference<>();
+    }
+}
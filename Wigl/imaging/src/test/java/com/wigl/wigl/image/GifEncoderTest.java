@@ -0,0 +1,135 @@
+package com.wigl.wigl.image;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GifEncoderTest {
+    @Test
+    public void fewColoursAreKeptExactly() {
+        int[] argb = new int[64 * 64];
+        for (int i = 0; i < argb.length; i++) {
+            int c = i % 200;
+            argb[i] = 0xFF000000 | expand(c % 32) << 16 | expand(c / 32 * 4) << 8 | expand(31 - c % 32);
+        }
+        IndexedFrame frame = new MedianCutQuantizer().quantize(argb, 64, 64, 256);
+        assertEquals(200, frame.getColorCount());
+        for (int i = 0; i < argb.length; i++) {
+            assertEquals(argb[i] & 0xFFFFFF, frame.getRgb(i % 64, i / 64));
+        }
+    }
+
+    @Test
+    public void gradientStaysCloseWithinPalette() {
+        int w = 320, h = 240;
+        int[] argb = gradient(w, h, 7);
+        MedianCutQuantizer quantizer = new MedianCutQuantizer();
+        for (int colors : new int[]{16, 256}) {
+            IndexedFrame frame = quantizer.quantize(argb, w, h, colors);
+            assertTrue(frame.getColorCount() <= colors);
+            long error = 0;
+            for (int i = 0; i < argb.length; i++) {
+                int a = argb[i], b = frame.getRgb(i % w, i / w);
+                error += Math.abs((a >> 16 & 0xFF) - (b >> 16 & 0xFF)) + Math.abs((a >> 8 & 0xFF) - (b >> 8 & 0xFF))
+                        + Math.abs((a & 0xFF) - (b & 0xFF));
+            }
+            double mean = error / (3.0 * argb.length);
+            assertTrue(colors + " colours: mean error " + mean, mean < (colors == 256 ? 6 : 20));
+        }
+    }
+
+    @Test
+    public void animatedGifDecodesBackToQuantizedFrames() throws IOException {
+        int w = 257, h = 131;
+        MedianCutQuantizer quantizer = new MedianCutQuantizer();
+        List<IndexedFrame> frames = new ArrayList<>();
+        frames.add(quantizer.quantize(gradient(w, h, 1), w, h, 256));
+        // random pixels use up the 4096 codes many times over, forcing table resets
+        int[] noise = new int[w * h];
+        Random random = new Random(5);
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextInt();
+        }
+        frames.add(quantizer.quantize(noise, w, h, 256));
+        // one and two colours: the smallest code sizes
+        frames.add(quantizer.quantize(new int[w * h], w, h, 256));
+        int[] twoTone = new int[w * h];
+        for (int i = 0; i < twoTone.length; i++) {
+            twoTone[i] = (i / 3) % 2 == 0 ? 0xFFFFFF : 0xFF0000;
+        }
+        frames.add(quantizer.quantize(twoTone, w, h, 256));
+        assertEquals(1, frames.get(2).getColorCount());
+        assertEquals(2, frames.get(3).getColorCount());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GifEncoder encoder = new GifEncoder(out, w, h, GifEncoder.LOOP_FOREVER);
+        for (IndexedFrame frame : frames) {
+            encoder.writeFrame(frame, 10);
+        }
+        encoder.close();
+
+        List<BufferedImage> decoded = readGif(out.toByteArray());
+        assertEquals(frames.size(), decoded.size());
+        for (int f = 0; f < frames.size(); f++) {
+            assertFrame(frames.get(f), decoded.get(f));
+        }
+    }
+
+    static void assertFrame(IndexedFrame expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                assertEquals("pixel " + x + "," + y, expected.getRgb(x, y), actual.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+    static List<BufferedImage> readGif(byte[] gif) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(gif));
+        try {
+            reader.setInput(in);
+            List<BufferedImage> images = new ArrayList<>();
+            int count = reader.getNumImages(true);
+            for (int i = 0; i < count; i++) {
+                images.add(reader.read(i));
+            }
+            return images;
+        } finally {
+            reader.dispose();
+            in.close();
+        }
+    }
+
+    static int[] gradient(int w, int h, long seed) {
+        Random random = new Random(seed);
+        int[] argb = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int r = x * 255 / w;
+                int g = y * 255 / h;
+                int b = (x + y) * 255 / (w + h);
+                argb[y * w + x] = 0xFF000000 | r << 16 | g << 8 | Math.min(255, b + random.nextInt(8));
+            }
+        }
+        return argb;
+    }
+
+    private static int expand(int c5) {
+        return c5 << 3 | c5 >> 2;
+    }
+}
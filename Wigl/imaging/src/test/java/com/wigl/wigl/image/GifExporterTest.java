@@ -0,0 +1,96 @@
+package com.wigl.wigl.image;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GifExporterTest {
+    private static final int W = 96, H = 64;
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void writesFramesInOrderWithBoundedLookahead() throws IOException {
+        final int[] colors = {0xFF0000, 0x00FF00, 0x0000FF, 0xFFFF00, 0x00FFFF, 0xFF00FF, 0xFFFFFF, 0x000000};
+        final AtomicInteger reading = new AtomicInteger();
+        final AtomicInteger maxReading = new AtomicInteger();
+        GifExporter.FrameSource source = new GifExporter.FrameSource() {
+            @Override
+            public int getFrameCount() {
+                return colors.length;
+            }
+
+            @Override
+            public ArgbImage readFrame(int index, int width, int height) throws IOException {
+                int now = reading.incrementAndGet();
+                while (true) {
+                    int max = maxReading.get();
+                    if (now <= max || maxReading.compareAndSet(max, now)) break;
+                }
+                try {
+                    // frames further ahead take less time, so they finish out of order
+                    Thread.sleep(3 * (colors.length - index));
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    reading.decrementAndGet();
+                }
+                int[] argb = new int[width * height];
+                Arrays.fill(argb, 0xFF000000 | colors[index]);
+                // a dot whose position also identifies the frame
+                argb[index] = 0xFF848484;
+                return new ArgbImage(width, height, argb);
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(colors.length, new GifExporter(executor, 2).export(source, W, H, 10, out));
+        assertTrue("Read " + maxReading.get() + " frames at once", maxReading.get() <= 2);
+
+        List<BufferedImage> frames = GifEncoderTest.readGif(out.toByteArray());
+        assertEquals(colors.length, frames.size());
+        for (int i = 0; i < colors.length; i++) {
+            assertEquals(colors[i], frames.get(i).getRGB(W - 1, H - 1) & 0xFFFFFF);
+            assertEquals(0x848484, frames.get(i).getRGB(i, 0) & 0xFFFFFF);
+        }
+    }
+
+    @Test
+    public void sourceFailureStopsExport() {
+        GifExporter.FrameSource source = new GifExporter.FrameSource() {
+            @Override
+            public int getFrameCount() {
+                return 5;
+            }
+
+            @Override
+            public ArgbImage readFrame(int index, int width, int height) throws IOException {
+                if (index == 2) {
+                    throw new IOException("unreadable");
+                }
+                return new ArgbImage(width, height, GifEncoderTest.gradient(width, height, index));
+            }
+        };
+        try {
+            new GifExporter(executor, 3).export(source, W, H, 10, new ByteArrayOutputStream());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("unreadable", e.getMessage());
+        }
+    }
+}
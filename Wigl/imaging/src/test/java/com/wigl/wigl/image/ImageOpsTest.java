@@ -0,0 +1,151 @@
+package com.wigl.wigl.image;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ImageOpsTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+    private final TileExecutor tiles = new TileExecutor(executor, 4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    static ArgbImage noise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return new ArgbImage(width, height, argb);
+    }
+
+    @Test
+    public void cropIsAViewAndCopyPacksIt() {
+        ArgbImage image = noise(40, 30, 1);
+        ArgbImage view = image.crop(new Crop(5, 7, 20, 10));
+        assertEquals(image.get(5, 7), view.get(0, 0));
+        assertEquals(image.get(24, 16), view.get(19, 9));
+        image.set(6, 8, 0xFF123456);
+        assertEquals(0xFF123456, view.get(1, 1));
+
+        ArgbImage copy = new ArgbImage(20, 10);
+        ImageOps.copy(view, copy, tiles);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 20; x++) {
+                assertEquals(view.get(x, y), copy.get(x, y));
+            }
+        }
+        try {
+            image.crop(new Crop(30, 0, 20, 10));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void lumaOfCroppedViewMatchesLumaPlane() {
+        ArgbImage image = noise(64, 48, 2);
+        ArgbImage view = image.crop(new Crop(8, 4, 32, 32));
+        LumaPlane plane = new LumaPlane(32, 32);
+        ImageOps.luma(view, plane, tiles);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                int p = view.get(x, y);
+                int expected = ((p >> 16 & 0xFF) * 77 + (p >> 8 & 0xFF) * 150 + (p & 0xFF) * 29) >> 8;
+                assertEquals(expected, plane.get(x, y));
+            }
+        }
+        assertEquals(255, LumaPlane.fromArgb(new int[]{0xFFFFFFFF}, 1, 1).get(0, 0));
+    }
+
+    @Test
+    public void splitAndMergeRoundTrip() {
+        ArgbImage image = noise(33, 17, 3);
+        PlanarImage planes = PlanarImage.rgb(33, 17);
+        ImageOps.split(image, planes, tiles);
+        assertEquals(image.get(10, 5) >> 8 & 0xFF, planes.getPlane(PlanarImage.GREEN).get(10, 5));
+        ArgbImage merged = new ArgbImage(33, 17);
+        ImageOps.merge(planes, merged, tiles);
+        assertArrayEquals(image.getPixels(), merged.getPixels());
+    }
+
+    @Test
+    public void warpByIdentityAndWholePixelsCopies() {
+        ArgbImage image = noise(50, 40, 4);
+        ArgbImage out = new ArgbImage(50, 40);
+        ImageOps.warp(image, Affine.IDENTITY, out, tiles);
+        assertArrayEquals(image.getPixels(), out.getPixels());
+
+        ArgbImage shifted = new ArgbImage(30, 20);
+        ImageOps.warp(image, Affine.translation(7, 11), shifted, tiles);
+        assertEquals(image.get(7, 11), shifted.get(0, 0));
+        assertEquals(image.get(36, 30), shifted.get(29, 19));
+    }
+
+    @Test
+    public void warpInterpolatesAndClampsAtTheEdges() {
+        ArgbImage image = new ArgbImage(2, 1, new int[]{0xFF000000, 0xFFC86440});
+        ArgbImage out = new ArgbImage(4, 1);
+        // each output pixel covers half a source pixel
+        ImageOps.warp(image, Affine.scale(0.5, 1), out, TileExecutor.serial());
+        assertEquals(0xFF000000, out.get(0, 0));
+        assertEquals(0xFF321910, out.get(1, 0));
+        assertEquals(0xFF964B30, out.get(2, 0));
+        assertEquals(0xFFC86440, out.get(3, 0));
+    }
+
+    @Test
+    public void tiledResultMatchesSerial() {
+        ArgbImage image = noise(200, 150, 5);
+        Affine rotate = Affine.of(Similarity.rotation(5, 1.1, 100, 75));
+        ArgbImage serial = new ArgbImage(200, 150);
+        ArgbImage tiled = new ArgbImage(200, 150);
+        ImageOps.warp(image, rotate, serial, TileExecutor.serial());
+        ImageOps.warp(image, rotate, tiled, tiles);
+        assertArrayEquals(serial.getPixels(), tiled.getPixels());
+    }
+
+    @Test
+    public void failingTileIsRethrownAfterTheOthersFinish() {
+        final int[] rows = new int[1];
+        try {
+            tiles.forRows(100, new TileExecutor.RowTask() {
+                @Override
+                public void run(int y0, int y1) {
+                    if (y0 == 0) {
+                        throw new IllegalStateException("first band");
+                    }
+                    synchronized (rows) {
+                        rows[0] += y1 - y0;
+                    }
+                }
+            });
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("first band", e.getMessage());
+        }
+        assertEquals(75, rows[0]);
+    }
+
+    @Test
+    public void affineInverseAndCompose() {
+        Affine a = new Affine(1.5, 0.2, 3, -0.1, 0.8, -7);
+        Affine identity = a.compose(a.inverse());
+        assertEquals(1, identity.getM00(), 1e-12);
+        assertEquals(0, identity.getM01(), 1e-12);
+        assertEquals(0, identity.getM12(), 1e-12);
+        Affine then = Affine.translation(1, 2).compose(a);
+        assertEquals(a.mapX(4, 5) + 1, then.mapX(4, 5), 1e-12);
+        assertEquals(a.mapY(4, 5) + 2, then.mapY(4, 5), 1e-12);
+    }
+}
@@ -0,0 +1,170 @@
+package com.wigl.wigl.image;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class JpegFrameTest {
+    private static byte[] jpeg(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpeg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return {@code picture} with an EXIF block in front of its own segments whose second IFD
+     *         points at {@code thumbnail}, the way cameras write them
+     */
+    private static byte[] withExif(byte[] picture, byte[] thumbnail, ByteOrder order, boolean shortTags) {
+        int ifd0 = 8;
+        int ifd1 = ifd0 + 2 + 4;
+        int thumbnailAt = ifd1 + 2 + 2 * 12 + 4;
+        ByteBuffer tiff = ByteBuffer.allocate(thumbnailAt + thumbnail.length).order(order);
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiff.putShort((short) 42).putInt(ifd0);
+        tiff.putShort((short) 0).putInt(ifd1);
+        tiff.putShort((short) 2);
+        entry(tiff, 0x0201, thumbnailAt, shortTags);
+        entry(tiff, 0x0202, thumbnail.length, shortTags);
+        tiff.putInt(0);
+        tiff.put(thumbnail);
+
+        int app1 = 2 + 6 + tiff.capacity();
+        ByteBuffer out = ByteBuffer.allocate(2 + 2 + app1 + picture.length - 2);
+        out.put((byte) 0xFF).put((byte) 0xD8);
+        out.put((byte) 0xFF).put((byte) 0xE1).putShort((short) app1);
+        out.put(new byte[]{'E', 'x', 'i', 'f', 0, 0}).put(tiff.array());
+        out.put(picture, 2, picture.length - 2);
+        return out.array();
+    }
+
+    private static void entry(ByteBuffer tiff, int tag, int value, boolean asShort) {
+        tiff.putShort((short) tag).putShort((short) (asShort ? 3 : 4)).putInt(1);
+        if (asShort) {
+            tiff.putShort((short) value).putShort((short) 0);
+        } else {
+            tiff.putInt(value);
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] b = new byte[buf.remaining()];
+        buf.duplicate().get(b);
+        return b;
+    }
+
+    @Test
+    public void mappedFileGivesSizeAndThumbnailWithoutCopying() throws IOException {
+        byte[] thumbnail = jpeg(160, 90);
+        byte[] picture = withExif(jpeg(640, 360), thumbnail, ByteOrder.LITTLE_ENDIAN, false);
+        File file = File.createTempFile("wigl", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(picture);
+            } finally {
+                out.close();
+            }
+            JpegFrame frame = JpegFrame.map(file);
+            assertEquals(new ImageSize(640, 360), frame.getSize());
+            assertEquals(picture.length, frame.getLength());
+
+            ByteBuffer thumb = frame.getThumbnail();
+            assertTrue(thumb.isReadOnly());
+            assertFalse(thumb.hasArray());
+            assertArrayEquals(thumbnail, bytes(thumb));
+            assertEquals(new ImageSize(160, 90), JpegFrame.parse(thumb).getSize());
+
+            ByteBuffer exif = frame.getExif();
+            assertEquals('I', exif.get(0));
+            assertEquals(exif.remaining() + 6, frame.getSegment(JpegFrame.APP1).remaining());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void headerEndsWhereTheScanBegins() throws IOException {
+        byte[] picture = jpeg(64, 48);
+        JpegFrame frame = JpegFrame.parse(ByteBuffer.wrap(picture));
+        byte[] header = bytes(frame.getHeader());
+        assertTrue(header.length < picture.length);
+        assertArrayEquals(Arrays.copyOf(picture, header.length), header);
+        // the last segment of the header is the start of scan
+        int at = header.length;
+        while (!(picture[at] == (byte) 0xFF && picture[at + 1] == (byte) 0xDA)) {
+            at--;
+        }
+        assertEquals(header.length, at + 2 + ((picture[at + 2] & 0xFF) << 8 | picture[at + 3] & 0xFF));
+        assertNull(frame.getExif());
+        assertNull(frame.getThumbnail());
+    }
+
+    @Test
+    public void bigEndianExifWithShortTags() throws IOException {
+        byte[] thumbnail = jpeg(32, 24);
+        byte[] picture = withExif(jpeg(320, 240), thumbnail, ByteOrder.BIG_ENDIAN, true);
+        ByteBuffer buf = ByteBuffer.allocate(picture.length + 10);
+        buf.position(10);
+        buf.put(picture);
+        buf.position(10);
+
+        JpegFrame frame = JpegFrame.parse(buf);
+        assertEquals(10, buf.position());
+        assertEquals(new ImageSize(320, 240), frame.getSize());
+        assertArrayEquals(thumbnail, bytes(frame.getThumbnail()));
+    }
+
+    @Test
+    public void thumbnailOutsideTheExifBlockIsIgnored() throws IOException {
+        byte[] picture = withExif(jpeg(320, 240), jpeg(32, 24), ByteOrder.LITTLE_ENDIAN, false);
+        // the thumbnail length now runs past the block
+        int lengthValue = 2 + 2 + 2 + 6 + 8 + 6 + 2 + 12 + 8;
+        picture[lengthValue + 1] = 0x7F;
+        JpegFrame frame = JpegFrame.parse(ByteBuffer.wrap(picture));
+        assertNotNull(frame.getExif());
+        assertNull(frame.getThumbnail());
+    }
+
+    @Test
+    public void agreesWithTheStreamReaderAndRejectsWhatItRejects() throws IOException {
+        byte[] progressive = {
+                (byte) 0xFF, (byte) 0xD8,
+                (byte) 0xFF, (byte) 0xE1, 0, 6, 1, 2, 3, 4,
+                (byte) 0xFF, (byte) 0xC4, 0, 3, 0,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xC2, 0, 11, 8,
+                (byte) 0x0B, (byte) 0xB8, (byte) 0x0F, (byte) 0xA0, 1, 1, 0x11, 0,
+                (byte) 0xFF, (byte) 0xDA, 0, 2,
+        };
+        JpegFrame frame = JpegFrame.parse(ByteBuffer.wrap(progressive));
+        assertEquals(new ImageSize(4000, 3000), frame.getSize());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, bytes(frame.getSegment(JpegFrame.APP1)));
+        assertNull(frame.getExif());
+
+        expectIOException(new byte[]{(byte) 0x89, 'P', 'N', 'G'});
+        expectIOException(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0, 2});
+        expectIOException(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 100, 1});
+        // the frame header without a start of scan after it
+        expectIOException(Arrays.copyOf(progressive, progressive.length - 4));
+    }
+
+    private static void expectIOException(byte[] data) {
+        try {
+            JpegFrame.parse(ByteBuffer.wrap(data));
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+}
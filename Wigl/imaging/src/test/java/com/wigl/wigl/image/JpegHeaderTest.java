@@ -0,0 +1,68 @@
+package com.wigl.wigl.image;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JpegHeaderTest {
+    @Test
+    public void readsSizeOfRealJpeg() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(640, 360, BufferedImage.TYPE_INT_RGB), "jpeg", out);
+        assertEquals(new ImageSize(640, 360), JpegHeader.readSize(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void skipsSegmentsAndFillBytesBeforeProgressiveFrame() throws IOException {
+        byte[] jpeg = {
+                (byte) 0xFF, (byte) 0xD8,
+                // APP1 with 4 bytes of payload
+                (byte) 0xFF, (byte) 0xE1, 0, 6, 1, 2, 3, 4,
+                // DHT must not be mistaken for a frame header
+                (byte) 0xFF, (byte) 0xC4, 0, 3, 0,
+                // fill bytes, then SOF2: precision 8, height 3000, width 4000
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xC2, 0, 11, 8,
+                (byte) 0x0B, (byte) 0xB8, (byte) 0x0F, (byte) 0xA0, 1, 1, 0x11, 0,
+        };
+        assertEquals(new ImageSize(4000, 3000), JpegHeader.readSize(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void rejectsNonJpegAndMissingFrame() {
+        expectIOException(new byte[]{(byte) 0x89, 'P', 'N', 'G'});
+        expectIOException(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0, 2});
+        expectIOException(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 100, 1});
+    }
+
+    @Test
+    public void sampleSizeIsLargestPowerOfTwoThatStillFillsTarget() {
+        ImageSize photo = new ImageSize(4000, 3000);
+        assertEquals(1, SampleSize.compute(photo, 4000, 3000));
+        assertEquals(1, SampleSize.compute(photo, 2001, 100));
+        assertEquals(2, SampleSize.compute(photo, 2000, 1500));
+        assertEquals(2, SampleSize.compute(photo, 1080, 720));
+        assertEquals(4, SampleSize.compute(photo, 1000, 720));
+        assertEquals(8, SampleSize.compute(photo, 480, 360));
+        // the tighter dimension decides
+        assertEquals(2, SampleSize.compute(photo, 480, 1000));
+        assertEquals(1, SampleSize.compute(new ImageSize(320, 240), 1080, 720));
+        assertEquals(new ImageSize(1000, 750), SampleSize.scaled(photo, 4));
+        assertEquals(new ImageSize(3, 2), SampleSize.scaled(new ImageSize(9, 5), 4));
+    }
+
+    private static void expectIOException(byte[] data) {
+        try {
+            JpegHeader.readSize(new ByteArrayInputStream(data));
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+}
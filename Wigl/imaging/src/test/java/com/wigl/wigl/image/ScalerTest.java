@@ -0,0 +1,74 @@
+package com.wigl.wigl.image;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScalerTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void keepsFlatColourAtAnySize() {
+        int[] argb = new int[97 * 61];
+        Arrays.fill(argb, 0xFF336699);
+        ArgbImage flat = new ArgbImage(97, 61, argb);
+        int[][] sizes = {{97, 61}, {40, 25}, {13, 7}, {300, 200}, {1, 1}};
+        for (int[] size : sizes) {
+            ArgbImage out = new ArgbImage(size[0], size[1]);
+            new Scaler(97, 61, size[0], size[1]).scale(flat, out, TileExecutor.serial());
+            for (int p : out.getPixels()) {
+                assertEquals(Arrays.toString(size), 0xFF336699, p);
+            }
+        }
+    }
+
+    @Test
+    public void shrinkingAveragesInsteadOfAliasing() {
+        // one-pixel stripes would come out all black or all white if only some pixels were sampled
+        int w = 120, h = 80;
+        ArgbImage stripes = new ArgbImage(w, h);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                stripes.set(x, y, x % 2 == 0 ? 0xFF000000 : 0xFFFFFFFF);
+            }
+        }
+        ArgbImage out = new ArgbImage(37, 25);
+        new Scaler(w, h, 37, 25).scale(stripes, out, TileExecutor.serial());
+        for (int p : out.getPixels()) {
+            int grey = p & 0xFF;
+            assertTrue("Got " + grey, Math.abs(grey - 128) < 24);
+        }
+    }
+
+    @Test
+    public void sameSizeIsACopy() {
+        ArgbImage image = ImageOpsTest.noise(31, 23, 7);
+        ArgbImage out = new ArgbImage(31, 23);
+        new Scaler(31, 23, 31, 23).scale(image, out, TileExecutor.serial());
+        assertArrayEquals(image.getPixels(), out.getPixels());
+    }
+
+    @Test
+    public void scalesCroppedViewsOnTiles() {
+        ArgbImage image = ImageOpsTest.noise(300, 240, 8);
+        ArgbImage view = image.crop(new Crop(20, 10, 256, 192));
+        ArgbImage serial = new ArgbImage(100, 75);
+        ArgbImage tiled = new ArgbImage(100, 75);
+        Scaler scaler = new Scaler(256, 192, 100, 75);
+        scaler.scale(view, serial, TileExecutor.serial());
+        scaler.scale(view, tiled, new TileExecutor(executor, 3));
+        assertArrayEquals(serial.getPixels(), tiled.getPixels());
+    }
+}